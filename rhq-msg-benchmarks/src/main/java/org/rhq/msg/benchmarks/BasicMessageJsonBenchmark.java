@@ -0,0 +1,46 @@
+package org.rhq.msg.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rhq.msg.common.BasicMessage;
+
+/**
+ * Measures the JSON encoding and decoding every message goes through when it is sent and received.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class BasicMessageJsonBenchmark {
+
+    private BasicMessage message;
+    private String json;
+
+    @Setup
+    public void setup() {
+        message = Messages.createBasicMessage();
+        json = message.toJSON();
+    }
+
+    @Benchmark
+    public String toJSON() {
+        return message.toJSON();
+    }
+
+    @Benchmark
+    public BasicMessage fromJSON() {
+        return BasicMessage.fromJSON(json, BasicMessage.class);
+    }
+}
@@ -0,0 +1,49 @@
+package org.rhq.msg.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.rhq.msg.common.test.AbstractEmbeddedBrokerWrapper;
+import org.rhq.msg.common.test.TCPEmbeddedBrokerWrapper;
+import org.rhq.msg.common.test.VMEmbeddedBrokerWrapper;
+
+/**
+ * The embedded broker the messaging benchmarks run against. Each benchmark is run once with an intra-VM broker and
+ * once with a broker that is connected to over a loopback TCP socket, so the cost of the framework itself can be told
+ * apart from the cost of the transport.
+ */
+@State(Scope.Benchmark)
+public class BrokerState {
+
+    @Param({ "vm", "tcp" })
+    public String transport;
+
+    private AbstractEmbeddedBrokerWrapper broker;
+
+    @Setup(Level.Trial)
+    public void startBroker() throws Exception {
+        if ("vm".equals(transport)) {
+            broker = new VMEmbeddedBrokerWrapper();
+        } else if ("tcp".equals(transport)) {
+            broker = new TCPEmbeddedBrokerWrapper();
+        } else {
+            throw new IllegalStateException("Unknown transport: " + transport);
+        }
+        broker.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopBroker() throws Exception {
+        if (broker != null) {
+            broker.stop();
+            broker = null;
+        }
+    }
+
+    public String getBrokerURL() {
+        return broker.getBrokerURL();
+    }
+}
@@ -0,0 +1,88 @@
+package org.rhq.msg.benchmarks;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.LocalTransport;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.BasicMessageListener;
+import org.rhq.msg.common.consumer.ConsumerConnectionContext;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+
+/**
+ * Compares the time it takes a message to get from {@link MessageProcessor#send(ProducerConnectionContext, BasicMessage)
+ * send} to a listener in the same JVM through the broker with the time it takes through a {@link LocalTransport}.
+ * Run with the intra-VM broker this shows what the in-process fast path saves over the <code>vm://</code> transport.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class LocalTransportBenchmark {
+
+    @Param({ "broker", "local" })
+    public String path;
+
+    private ConnectionContextFactory factory;
+    private ProducerConnectionContext producerContext;
+    private MessageProcessor processor;
+    private BasicMessage message;
+    private final Semaphore received = new Semaphore(0);
+
+    @Setup(Level.Trial)
+    public void setup(BrokerState brokerState) throws Exception {
+        Endpoint endpoint = new Endpoint(Type.QUEUE, "benchmark.local");
+        processor = new MessageProcessor();
+        if ("local".equals(path)) {
+            LocalTransport transport = new LocalTransport();
+            transport.enable(endpoint);
+            processor.setLocalTransport(transport);
+        } else if (!"broker".equals(path)) {
+            throw new IllegalStateException("Unknown path: " + path);
+        }
+
+        factory = new ConnectionContextFactory(brokerState.getBrokerURL());
+        ConsumerConnectionContext consumerContext = factory.createConsumerConnectionContext(endpoint);
+        processor.listen(consumerContext, new BasicMessageListener<BasicMessage>(BasicMessage.class) {
+            @Override
+            protected void onBasicMessage(BasicMessage basicMessage) {
+                received.release();
+            }
+        });
+
+        producerContext = factory.createProducerConnectionContext(endpoint);
+        message = Messages.createBasicMessage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        factory.close();
+    }
+
+    @Benchmark
+    public void sendAndReceive() throws Exception {
+        processor.send(producerContext, message);
+        if (!received.tryAcquire(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Message was not received within 10 seconds");
+        }
+    }
+}
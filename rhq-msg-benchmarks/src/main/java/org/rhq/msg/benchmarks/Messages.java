@@ -0,0 +1,25 @@
+package org.rhq.msg.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rhq.msg.common.BasicMessage;
+
+/**
+ * Creates the messages the benchmarks send, so all benchmarks measure payloads of the same shape and size.
+ */
+final class Messages {
+
+    private Messages() {
+    }
+
+    static BasicMessage createBasicMessage() {
+        Map<String, String> details = new HashMap<String, String>();
+        details.put("resource-id", "10001");
+        details.put("resource-type", "RHQ Agent");
+        details.put("plugin", "Platforms");
+        details.put("availability", "UP");
+        details.put("timestamp", "1404765360000");
+        return new BasicMessage("availability report for resource 10001", details);
+    }
+}
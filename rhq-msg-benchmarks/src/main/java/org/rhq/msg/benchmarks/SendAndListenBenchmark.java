@@ -0,0 +1,80 @@
+package org.rhq.msg.benchmarks;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.BasicMessageListener;
+import org.rhq.msg.common.consumer.ConsumerConnectionContext;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+
+/**
+ * Measures the time it takes a message to get from {@link MessageProcessor#send(ProducerConnectionContext, BasicMessage)
+ * send} through the broker to a listener registered with
+ * {@link MessageProcessor#listen(ConsumerConnectionContext, org.rhq.msg.common.consumer.AbstractBasicMessageListener)
+ * listen}, including the JSON encoding and decoding on both ends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class SendAndListenBenchmark {
+
+    private ConnectionContextFactory consumerFactory;
+    private ConnectionContextFactory producerFactory;
+    private ProducerConnectionContext producerContext;
+    private MessageProcessor processor;
+    private BasicMessage message;
+    private final Semaphore received = new Semaphore(0);
+
+    @Setup(Level.Trial)
+    public void setup(BrokerState brokerState) throws Exception {
+        Endpoint endpoint = new Endpoint(Type.QUEUE, "benchmark.roundtrip");
+        processor = new MessageProcessor();
+
+        consumerFactory = new ConnectionContextFactory(brokerState.getBrokerURL());
+        ConsumerConnectionContext consumerContext = consumerFactory.createConsumerConnectionContext(endpoint);
+        processor.listen(consumerContext, new BasicMessageListener<BasicMessage>(BasicMessage.class) {
+            @Override
+            protected void onBasicMessage(BasicMessage basicMessage) {
+                received.release();
+            }
+        });
+
+        producerFactory = new ConnectionContextFactory(brokerState.getBrokerURL());
+        producerContext = producerFactory.createProducerConnectionContext(endpoint);
+        message = Messages.createBasicMessage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        producerFactory.close();
+        consumerFactory.close();
+    }
+
+    @Benchmark
+    public void sendAndReceive() throws Exception {
+        processor.send(producerContext, message);
+        if (!received.tryAcquire(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Message was not received within 10 seconds");
+        }
+    }
+}
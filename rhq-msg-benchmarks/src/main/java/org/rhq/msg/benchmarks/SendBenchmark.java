@@ -0,0 +1,60 @@
+package org.rhq.msg.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageId;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+
+/**
+ * Measures fire-and-forget {@link MessageProcessor#send(ProducerConnectionContext, BasicMessage) sends}. Messages are
+ * sent to a topic nobody subscribes to, so the broker discards them right away and only the cost of producing a
+ * message is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class SendBenchmark {
+
+    private ConnectionContextFactory factory;
+    private ProducerConnectionContext producerContext;
+    private MessageProcessor processor;
+    private BasicMessage message;
+
+    @Setup(Level.Trial)
+    public void setup(BrokerState brokerState) throws Exception {
+        factory = new ConnectionContextFactory(brokerState.getBrokerURL());
+        producerContext = factory.createProducerConnectionContext(new Endpoint(Type.TOPIC, "benchmark.send"));
+        processor = new MessageProcessor();
+        message = Messages.createBasicMessage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        factory.close();
+    }
+
+    @Benchmark
+    public MessageId send() throws Exception {
+        return processor.send(producerContext, message);
+    }
+}
@@ -0,0 +1,80 @@
+package org.rhq.msg.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.ConsumerConnectionContext;
+import org.rhq.msg.common.consumer.RPCBasicMessageListener;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+
+/**
+ * Measures the latency of a {@link MessageProcessor#sendRPC(ProducerConnectionContext, BasicMessage, Class) request
+ * and response}, which includes creating the temporary response queue and consumer for every request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class SendRPCBenchmark {
+
+    private ConnectionContextFactory consumerFactory;
+    private ConnectionContextFactory producerFactory;
+    private ProducerConnectionContext producerContext;
+    private MessageProcessor processor;
+    private BasicMessage message;
+
+    @Setup(Level.Trial)
+    public void setup(BrokerState brokerState) throws Exception {
+        Endpoint endpoint = new Endpoint(Type.QUEUE, "benchmark.rpc");
+        processor = new MessageProcessor();
+
+        // the server side simply echoes the request back
+        consumerFactory = new ConnectionContextFactory(brokerState.getBrokerURL());
+        ConsumerConnectionContext consumerContext = consumerFactory.createConsumerConnectionContext(endpoint);
+        processor.listen(consumerContext, new EchoListener());
+
+        producerFactory = new ConnectionContextFactory(brokerState.getBrokerURL());
+        producerContext = producerFactory.createProducerConnectionContext(endpoint);
+        message = Messages.createBasicMessage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        producerFactory.close();
+        consumerFactory.close();
+    }
+
+    @Benchmark
+    public BasicMessage sendRPC() throws Exception {
+        return processor.sendRPC(producerContext, message, BasicMessage.class).get(10, TimeUnit.SECONDS);
+    }
+
+    private static class EchoListener extends RPCBasicMessageListener<BasicMessage, BasicMessage> {
+        EchoListener() {
+            super(BasicMessage.class);
+        }
+
+        @Override
+        protected BasicMessage onBasicMessage(BasicMessage request) {
+            return new BasicMessage(request.getMessage(), request.getDetails());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.rhq.msg.broker.extension;
+
+import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.NAME;
+import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.OP_ADDR;
+
+import org.jboss.as.controller.AbstractRuntimeOnlyHandler;
+import org.jboss.as.controller.OperationContext;
+import org.jboss.as.controller.OperationFailedException;
+import org.jboss.as.controller.PathAddress;
+import org.jboss.as.controller.PathElement;
+import org.jboss.dmr.ModelNode;
+import org.rhq.msg.broker.BrokerMetrics;
+import org.rhq.msg.broker.DestinationMetrics;
+import org.rhq.msg.broker.DestinationPolicy.DestinationType;
+
+/**
+ * Reads the runtime metrics of the broker (when asked on the subsystem resource) or of a single queue or topic (when
+ * asked on a destination resource). If the broker is not running the metric is left undefined.
+ */
+class BrokerMetricsHandler extends AbstractRuntimeOnlyHandler {
+
+    static final BrokerMetricsHandler INSTANCE = new BrokerMetricsHandler();
+
+    private BrokerMetricsHandler() {
+    }
+
+    @Override
+    protected void executeRuntimeStep(OperationContext context, ModelNode operation) throws OperationFailedException {
+        String metricName = operation.require(NAME).asString();
+        PathAddress address = PathAddress.pathAddress(operation.require(OP_ADDR));
+
+        BrokerService service = BrokerService.getBrokerService(context);
+        if (service != null) {
+            PathElement element = address.getLastElement();
+            if (BrokerSubsystemExtension.QUEUE_ELEMENT.equals(element.getKey())) {
+                setDestinationMetric(context.getResult(), metricName, service.getDestinationMetrics(DestinationType.QUEUE, element.getValue()));
+            } else if (BrokerSubsystemExtension.TOPIC_ELEMENT.equals(element.getKey())) {
+                setDestinationMetric(context.getResult(), metricName, service.getDestinationMetrics(DestinationType.TOPIC, element.getValue()));
+            } else {
+                setBrokerMetric(context.getResult(), metricName, service.getBrokerMetrics());
+            }
+        }
+
+        context.stepCompleted();
+    }
+
+    private void setBrokerMetric(ModelNode result, String metricName, BrokerMetrics metrics) {
+        if (metrics == null) {
+            return; // the broker is not started
+        }
+
+        if (BrokerSubsystemExtension.ENQUEUE_COUNT_METRIC.equals(metricName)) {
+            result.set(metrics.getEnqueueCount());
+        } else if (BrokerSubsystemExtension.DEQUEUE_COUNT_METRIC.equals(metricName)) {
+            result.set(metrics.getDequeueCount());
+        } else if (BrokerSubsystemExtension.ENQUEUE_RATE_METRIC.equals(metricName)) {
+            result.set(metrics.getEnqueueRate());
+        } else if (BrokerSubsystemExtension.DEQUEUE_RATE_METRIC.equals(metricName)) {
+            result.set(metrics.getDequeueRate());
+        } else if (BrokerSubsystemExtension.MESSAGE_COUNT_METRIC.equals(metricName)) {
+            result.set(metrics.getMessageCount());
+        } else if (BrokerSubsystemExtension.CONSUMER_COUNT_METRIC.equals(metricName)) {
+            result.set(metrics.getConsumerCount());
+        } else if (BrokerSubsystemExtension.MEMORY_PERCENT_USAGE_METRIC.equals(metricName)) {
+            result.set(metrics.getMemoryPercentUsage());
+        } else if (BrokerSubsystemExtension.STORE_USAGE_METRIC.equals(metricName)) {
+            result.set(metrics.getStoreUsage());
+        } else if (BrokerSubsystemExtension.STORE_PERCENT_USAGE_METRIC.equals(metricName)) {
+            result.set(metrics.getStorePercentUsage());
+        } else if (BrokerSubsystemExtension.AVERAGE_ENQUEUE_TIME_METRIC.equals(metricName)) {
+            result.set(metrics.getAverageEnqueueTime());
+        }
+    }
+
+    private void setDestinationMetric(ModelNode result, String metricName, DestinationMetrics metrics) {
+        if (metrics == null) {
+            return; // the destination has gone away since the resource was read
+        }
+
+        if (BrokerSubsystemExtension.ENQUEUE_COUNT_METRIC.equals(metricName)) {
+            result.set(metrics.getEnqueueCount());
+        } else if (BrokerSubsystemExtension.DEQUEUE_COUNT_METRIC.equals(metricName)) {
+            result.set(metrics.getDequeueCount());
+        } else if (BrokerSubsystemExtension.ENQUEUE_RATE_METRIC.equals(metricName)) {
+            result.set(metrics.getEnqueueRate());
+        } else if (BrokerSubsystemExtension.DEQUEUE_RATE_METRIC.equals(metricName)) {
+            result.set(metrics.getDequeueRate());
+        } else if (BrokerSubsystemExtension.MESSAGE_COUNT_METRIC.equals(metricName)) {
+            result.set(metrics.getMessageCount());
+        } else if (BrokerSubsystemExtension.CONSUMER_COUNT_METRIC.equals(metricName)) {
+            result.set(metrics.getConsumerCount());
+        } else if (BrokerSubsystemExtension.MEMORY_PERCENT_USAGE_METRIC.equals(metricName)) {
+            result.set(metrics.getMemoryPercentUsage());
+        } else if (BrokerSubsystemExtension.AVERAGE_ENQUEUE_TIME_METRIC.equals(metricName)) {
+            result.set(metrics.getAverageEnqueueTime());
+        }
+    }
+}
@@ -3,19 +3,28 @@ package org.rhq.msg.broker.extension;
 import java.net.InetAddress;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.jboss.as.controller.OperationContext;
 import org.jboss.as.network.SocketBinding;
 import org.jboss.as.server.ServerEnvironment;
 import org.jboss.logging.Logger;
 import org.jboss.msc.service.Service;
+import org.jboss.msc.service.ServiceController;
 import org.jboss.msc.service.ServiceName;
 import org.jboss.msc.service.StartContext;
 import org.jboss.msc.service.StartException;
 import org.jboss.msc.service.StopContext;
 import org.jboss.msc.value.InjectedValue;
+import org.rhq.msg.broker.BrokerMetrics;
+import org.rhq.msg.broker.BrokerTuning;
+import org.rhq.msg.broker.DestinationMetrics;
+import org.rhq.msg.broker.DestinationPolicy.DestinationType;
 import org.rhq.msg.broker.EmbeddedBroker;
+import org.rhq.msg.broker.NetworkConnectorConfiguration;
 
 public class BrokerService implements Service<BrokerService> {
 
@@ -48,15 +57,33 @@ public class BrokerService implements Service<BrokerService> {
      */
     private Map<String, String> customConfigProperties = Collections.synchronizedMap(new HashMap<String, String>());
 
+    /**
+     * Usage limits and destination policies the user set in the subsystem. These are applied to the broker after it has
+     * been created from its configuration file but before it is started.
+     */
+    private BrokerTuning brokerTuning;
+
+    /**
+     * Set once a change to the destination policies waits for a reload. From then on the model no longer describes the
+     * tuning of the running broker, so no tuning built from the model may be applied to the broker in place.
+     */
+    private volatile boolean tuningReloadRequired = false;
+
+    /**
+     * Static network connectors to the brokers of other servers. These are added to the broker after it has been
+     * created from its configuration file but before it is started.
+     */
+    private List<NetworkConnectorConfiguration> networkConnectors = Collections.emptyList();
+
     /**
      * This is the actual embedded broker.
      */
     private AtomicReference<EmbeddedBroker> theBroker = new AtomicReference<EmbeddedBroker>();
 
     /**
-     * This is the daemon thread running the broker.
+     * The number of milliseconds to wait for the broker to start and accept connections.
      */
-    private Thread brokerThread;
+    private long startupTimeout = BrokerSubsystemExtension.STARTUP_TIMEOUT_DEFAULT;
 
     public BrokerService() {
     }
@@ -66,10 +93,28 @@ public class BrokerService implements Service<BrokerService> {
         return this;
     }
 
+    /**
+     * Starts the broker in the background so server boot is not held up by it. The service is not considered up, and
+     * so services depending on it are not started, until the broker accepts connections.
+     */
     @Override
-    public void start(StartContext context) throws StartException {
+    public void start(final StartContext context) throws StartException {
         log.info("Broker service starting");
-        startBroker();
+        context.asynchronous();
+        Thread startThread = new Thread("RHQ Msg Broker Start Thread") {
+            public void run() {
+                try {
+                    startBroker();
+                    context.complete();
+                } catch (StartException e) {
+                    context.failed(e);
+                } catch (Throwable t) {
+                    context.failed(new StartException(t));
+                }
+            }
+        };
+        startThread.setDaemon(true);
+        startThread.start();
     }
 
     @Override
@@ -91,12 +136,100 @@ public class BrokerService implements Service<BrokerService> {
         }
     }
 
+    /**
+     * Looks up the broker service.
+     * 
+     * @param context
+     *            the context of the management operation that needs the service
+     * @return the service, or null if the broker is not deployed (i.e. it is disabled)
+     */
+    static BrokerService getBrokerService(OperationContext context) {
+        ServiceController<?> controller = context.getServiceRegistry(false).getService(SERVICE_NAME);
+        if (controller == null) {
+            return null;
+        }
+        return (BrokerService) controller.getService();
+    }
+
+    protected void setBrokerTuning(BrokerTuning tuning) {
+        this.brokerTuning = tuning;
+    }
+
+    protected BrokerTuning getBrokerTuning() {
+        return brokerTuning;
+    }
+
+    protected boolean isTuningReloadRequired() {
+        return tuningReloadRequired;
+    }
+
+    protected void setTuningReloadRequired(boolean tuningReloadRequired) {
+        this.tuningReloadRequired = tuningReloadRequired;
+    }
+
+    protected void setNetworkConnectors(List<NetworkConnectorConfiguration> connectors) {
+        this.networkConnectors = connectors;
+    }
+
+    protected void setStartupTimeout(long timeoutMillis) {
+        this.startupTimeout = timeoutMillis;
+    }
+
+    /**
+     * Remembers the given tuning for the next time the broker starts and, if the broker is running now, applies it to
+     * the running broker in place.
+     * 
+     * @param tuning
+     *            the new limits and destination policies
+     */
+    protected void updateBrokerTuning(BrokerTuning tuning) {
+        setBrokerTuning(tuning);
+        EmbeddedBroker broker = theBroker.get();
+        if (broker != null) {
+            log.info("Applying new broker tuning to the running broker: " + tuning);
+            broker.applyBrokerTuning(tuning);
+        }
+    }
+
     protected boolean isBrokerStarted() {
         EmbeddedBroker broker = theBroker.get();
         return (broker != null && broker.isBrokerStarted());
     }
 
-    protected void startBroker() throws StartException {
+    /**
+     * @return the metrics of the broker as a whole, or null if the broker is not started
+     */
+    protected BrokerMetrics getBrokerMetrics() {
+        EmbeddedBroker broker = theBroker.get();
+        return (broker != null) ? broker.getBrokerMetrics() : null;
+    }
+
+    /**
+     * @return the sorted names of all queues or all topics, found without sampling their metrics; empty if the broker
+     *         is not started
+     */
+    protected Set<String> getDestinationNames(DestinationType type) {
+        EmbeddedBroker broker = theBroker.get();
+        return (broker != null) ? broker.getDestinationNames(type) : Collections.<String> emptySet();
+    }
+
+    /**
+     * @return the metrics of the given queue or topic, or null if the broker is not started or there is no such
+     *         destination
+     */
+    protected DestinationMetrics getDestinationMetrics(DestinationType type, String name) {
+        EmbeddedBroker broker = theBroker.get();
+        return (broker != null) ? broker.getDestinationMetrics(type, name) : null;
+    }
+
+    /**
+     * Starts the broker and waits for it to accept connections. If the broker fails to start, or is not ready within
+     * the startup timeout, it is stopped again and an exception is thrown.
+     *
+     * @throws StartException
+     *             if the broker could not be started
+     */
+    protected synchronized void startBroker() throws StartException {
         if (isBrokerStarted()) {
             log.info("Broker is already started.");
             return;
@@ -135,28 +268,26 @@ public class BrokerService implements Service<BrokerService> {
             args[argIndex++] = "-c";
             args[argIndex++] = configSetup.getConfigurationFile();
 
-            theBroker.set(new EmbeddedBroker(args));
-
-            brokerThread = new Thread("RHQ Msg Broker Start Thread") {
-                public void run() {
-                    try {
-                        theBroker.get().startBroker();
-                    } catch (InterruptedException e) {
-                        // broker just exited due to being shutdown, die quietly
-                        log.debug("Broker has exited.");
-                    } catch (Throwable t) {
-                        log.error("Broker aborted with exception.", t);
-                    }
-                };
-            };
-            brokerThread.setDaemon(true);
-            brokerThread.start();
+            EmbeddedBroker embeddedBroker = new EmbeddedBroker(args);
+            embeddedBroker.applyBrokerTuning(brokerTuning);
+            for (NetworkConnectorConfiguration connector : networkConnectors) {
+                embeddedBroker.addNetworkConnector(connector);
+            }
+            theBroker.set(embeddedBroker);
+
+            embeddedBroker.startBroker();
+            if (!embeddedBroker.waitForBrokerReady(startupTimeout)) {
+                throw new StartException("Broker did not accept connections within [" + startupTimeout + "] ms");
+            }
+            log.info("Broker is ready");
         } catch (Exception e) {
-            throw new StartException(e);
+            log.error("Broker failed to start", e);
+            stopBroker();
+            throw (e instanceof StartException) ? (StartException) e : new StartException(e);
         }
     }
 
-    protected void stopBroker() {
+    protected synchronized void stopBroker() {
         try {
             if (!isBrokerStarted()) {
                 log.info("Broker is already stopped.");
@@ -166,10 +297,6 @@ public class BrokerService implements Service<BrokerService> {
             }
         } catch (Throwable t) {
             log.error("Failed to shutdown broker", t);
-        } finally {
-            if (brokerThread != null) {
-                brokerThread.interrupt();
-            }
         }
         theBroker.set(null);
     }
@@ -1,5 +1,6 @@
 package org.rhq.msg.broker.extension;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,7 +9,9 @@ import org.jboss.as.controller.AbstractAddStepHandler;
 import org.jboss.as.controller.AttributeDefinition;
 import org.jboss.as.controller.OperationContext;
 import org.jboss.as.controller.OperationFailedException;
+import org.jboss.as.controller.PathAddress;
 import org.jboss.as.controller.ServiceVerificationHandler;
+import org.jboss.as.controller.registry.Resource;
 import org.jboss.as.network.SocketBinding;
 import org.jboss.as.server.ServerEnvironment;
 import org.jboss.as.server.ServerEnvironmentService;
@@ -18,6 +21,8 @@ import org.jboss.logging.Logger;
 import org.jboss.msc.service.ServiceController;
 import org.jboss.msc.service.ServiceController.Mode;
 import org.jboss.msc.service.ServiceName;
+import org.rhq.msg.broker.BrokerTuning;
+import org.rhq.msg.broker.NetworkConnectorConfiguration;
 
 /**
  * Handler responsible for adding the subsystem resource to the model
@@ -31,10 +36,18 @@ class BrokerSubsystemAdd extends AbstractAddStepHandler {
     private BrokerSubsystemAdd() {
     }
 
+    @Override
+    protected Resource createResource(OperationContext context) {
+        Resource resource = new BrokerSubsystemResource();
+        context.addResource(PathAddress.EMPTY_ADDRESS, resource);
+        return resource;
+    }
+
     @Override
     protected void populateModel(ModelNode operation, ModelNode model) throws OperationFailedException {
         BrokerSubsystemDefinition.BROKER_ENABLED_ATTRIBDEF.validateAndSet(operation, model);
         BrokerSubsystemDefinition.BROKER_CONFIG_FILE_ATTRIBDEF.validateAndSet(operation, model);
+        BrokerSubsystemDefinition.STARTUP_TIMEOUT_ATTRIBDEF.validateAndSet(operation, model);
         BrokerSubsystemDefinition.BROKER_NAME_ATTRIBDEF.validateAndSet(operation, model);
         BrokerSubsystemDefinition.BROKER_PERSISTENT_ATTRIBDEF.validateAndSet(operation, model);
         BrokerSubsystemDefinition.BROKER_USE_JMX_ATTRIBDEF.validateAndSet(operation, model);
@@ -42,6 +55,9 @@ class BrokerSubsystemAdd extends AbstractAddStepHandler {
         BrokerSubsystemDefinition.CONNECTOR_NAME_ATTRIBDEF.validateAndSet(operation, model);
         BrokerSubsystemDefinition.CONNECTOR_PROTOCOL_ATTRIBDEF.validateAndSet(operation, model);
         BrokerSubsystemDefinition.SOCKET_BINDING_ATTRIBDEF.validateAndSet(operation, model);
+        BrokerSubsystemDefinition.MEMORY_LIMIT_ATTRIBDEF.validateAndSet(operation, model);
+        BrokerSubsystemDefinition.STORE_LIMIT_ATTRIBDEF.validateAndSet(operation, model);
+        BrokerSubsystemDefinition.TEMP_LIMIT_ATTRIBDEF.validateAndSet(operation, model);
         log.debug("Populating the Broker subsystem model: " + operation + "=" + model);
     }
 
@@ -86,10 +102,27 @@ class BrokerSubsystemAdd extends AbstractAddStepHandler {
             customConfigProps.putAll(customConfig);
         }
 
+        // the resource limits and destination policies that are applied on top of the configuration file
+        Resource resource = context.readResource(PathAddress.EMPTY_ADDRESS);
+        BrokerTuning brokerTuning = createBrokerTuning(context, resource);
+
+        // the connectors to the brokers of other servers
+        List<NetworkConnectorConfiguration> networkConnectors = new ArrayList<NetworkConnectorConfiguration>();
+        for (Resource.ResourceEntry connectorResource : resource.getChildren(BrokerSubsystemExtension.NETWORK_CONNECTOR_ELEMENT)) {
+            networkConnectors.add(NetworkConnectorDefinition.createNetworkConnector(context, connectorResource.getName(),
+                    connectorResource.getModel()));
+        }
+
         // create our service
         BrokerService service = new BrokerService();
         service.setConfigurationFile(configFile);
         service.setCustomConfigurationProperties(customConfigProps);
+        service.setBrokerTuning(brokerTuning);
+        service.setNetworkConnectors(networkConnectors);
+        service.setStartupTimeout(BrokerSubsystemDefinition.STARTUP_TIMEOUT_ATTRIBDEF.resolveModelAttribute(context, model).asLong());
+
+        // let the subsystem resource expose the broker's queues and topics as runtime children
+        ((BrokerSubsystemResource) resource).setBrokerService(service);
 
         // install the service
         String binding = BrokerSubsystemDefinition.SOCKET_BINDING_ATTRIBDEF.resolveModelAttribute(context, model).asString();
@@ -105,6 +138,29 @@ class BrokerSubsystemAdd extends AbstractAddStepHandler {
         return;
     }
 
+    /**
+     * Builds the limits and destination policies the broker should use from the current model.
+     * 
+     * @param context
+     *            used to resolve any expressions found in the model
+     * @param subsystemResource
+     *            the subsystem resource whose model and destination-policy children are read
+     * @return the broker tuning
+     * @throws OperationFailedException
+     *             if the model could not be resolved
+     */
+    static BrokerTuning createBrokerTuning(OperationContext context, Resource subsystemResource) throws OperationFailedException {
+        ModelNode model = subsystemResource.getModel();
+        BrokerTuning brokerTuning = new BrokerTuning();
+        brokerTuning.setMemoryLimit(BrokerSubsystemDefinition.MEMORY_LIMIT_ATTRIBDEF.resolveModelAttribute(context, model).asLong(0L));
+        brokerTuning.setStoreLimit(BrokerSubsystemDefinition.STORE_LIMIT_ATTRIBDEF.resolveModelAttribute(context, model).asLong(0L));
+        brokerTuning.setTempLimit(BrokerSubsystemDefinition.TEMP_LIMIT_ATTRIBDEF.resolveModelAttribute(context, model).asLong(0L));
+        for (Resource.ResourceEntry policyResource : subsystemResource.getChildren(BrokerSubsystemExtension.DESTINATION_POLICY_ELEMENT)) {
+            brokerTuning.addDestinationPolicy(DestinationPolicyDefinition.createDestinationPolicy(context, policyResource.getModel()));
+        }
+        return brokerTuning;
+    }
+
     private void addCustomConfigProperty(OperationContext context, ModelNode model, Map<String, String> customConfigProps, AttributeDefinition attribDef)
             throws OperationFailedException {
         addCustomConfigProperty(context, model, customConfigProps, attribDef, null);
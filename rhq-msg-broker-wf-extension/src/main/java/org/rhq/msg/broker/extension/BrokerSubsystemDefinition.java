@@ -6,7 +6,9 @@ import org.jboss.as.controller.SimpleAttributeDefinition;
 import org.jboss.as.controller.SimpleAttributeDefinitionBuilder;
 import org.jboss.as.controller.SimpleOperationDefinitionBuilder;
 import org.jboss.as.controller.SimpleResourceDefinition;
+import org.jboss.as.controller.client.helpers.MeasurementUnit;
 import org.jboss.as.controller.operations.common.GenericSubsystemDescribeHandler;
+import org.jboss.as.controller.operations.validation.LongRangeValidator;
 import org.jboss.as.controller.operations.validation.StringLengthValidator;
 import org.jboss.as.controller.registry.AttributeAccess;
 import org.jboss.as.controller.registry.ManagementResourceRegistration;
@@ -27,6 +29,12 @@ public class BrokerSubsystemDefinition extends SimpleResourceDefinition {
             .setFlags(AttributeAccess.Flag.RESTART_RESOURCE_SERVICES).setDefaultValue(new ModelNode(BrokerSubsystemExtension.BROKER_CONFIG_FILE_DEFAULT))
             .setAllowNull(true).build();
 
+    protected static final SimpleAttributeDefinition STARTUP_TIMEOUT_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.STARTUP_TIMEOUT_ATTR, ModelType.LONG).setAllowExpression(true).setXmlName(BrokerSubsystemExtension.STARTUP_TIMEOUT_ATTR)
+            .setMeasurementUnit(MeasurementUnit.MILLISECONDS).setFlags(AttributeAccess.Flag.RESTART_RESOURCE_SERVICES)
+            .setDefaultValue(new ModelNode(BrokerSubsystemExtension.STARTUP_TIMEOUT_DEFAULT)).setValidator(new LongRangeValidator(1L, true))
+            .setAllowNull(true).build();
+
     protected static final SimpleAttributeDefinition BROKER_NAME_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(BrokerSubsystemExtension.BROKER_NAME_ELEMENT,
             ModelType.STRING).setAllowExpression(true).setFlags(AttributeAccess.Flag.RESTART_RESOURCE_SERVICES)
             .setDefaultValue(new ModelNode(BrokerSubsystemExtension.BROKER_NAME_DEFAULT)).setAllowNull(true).build();
@@ -57,6 +65,27 @@ public class BrokerSubsystemDefinition extends SimpleResourceDefinition {
             BrokerSubsystemExtension.CONNECTOR_SOCKET_BINDING_ATTR, ModelType.STRING).setFlags(AttributeAccess.Flag.RESTART_RESOURCE_SERVICES)
             .setDefaultValue(new ModelNode("org.rhq.msg.broker")).setValidator(new StringLengthValidator(1)).setAllowNull(false).build();
 
+    // the usage limits can be changed while the broker is running
+    protected static final SimpleAttributeDefinition MEMORY_LIMIT_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(BrokerSubsystemExtension.MEMORY_LIMIT_ATTR,
+            ModelType.LONG).setAllowExpression(true).setXmlName(BrokerSubsystemExtension.MEMORY_LIMIT_ATTR).setMeasurementUnit(MeasurementUnit.BYTES)
+            .setFlags(AttributeAccess.Flag.RESTART_NONE).setValidator(new LongRangeValidator(1L, true)).setAllowNull(true).build();
+
+    protected static final SimpleAttributeDefinition STORE_LIMIT_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(BrokerSubsystemExtension.STORE_LIMIT_ATTR,
+            ModelType.LONG).setAllowExpression(true).setXmlName(BrokerSubsystemExtension.STORE_LIMIT_ATTR).setMeasurementUnit(MeasurementUnit.BYTES)
+            .setFlags(AttributeAccess.Flag.RESTART_NONE).setValidator(new LongRangeValidator(1L, true)).setAllowNull(true).build();
+
+    protected static final SimpleAttributeDefinition TEMP_LIMIT_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(BrokerSubsystemExtension.TEMP_LIMIT_ATTR,
+            ModelType.LONG).setAllowExpression(true).setXmlName(BrokerSubsystemExtension.TEMP_LIMIT_ATTR).setMeasurementUnit(MeasurementUnit.BYTES)
+            .setFlags(AttributeAccess.Flag.RESTART_NONE).setValidator(new LongRangeValidator(1L, true)).setAllowNull(true).build();
+
+    // runtime metrics only the broker as a whole provides; the rest are shared with the destinations
+    protected static final SimpleAttributeDefinition STORE_USAGE_METRICDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.STORE_USAGE_METRIC, ModelType.LONG).setMeasurementUnit(MeasurementUnit.BYTES).setStorageRuntime().build();
+
+    protected static final SimpleAttributeDefinition STORE_PERCENT_USAGE_METRICDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.STORE_PERCENT_USAGE_METRIC, ModelType.INT).setMeasurementUnit(MeasurementUnit.PERCENTAGE).setStorageRuntime()
+            .build();
+
     // operation parameters
     protected static final SimpleAttributeDefinition START_OP_PARAM_RESTART = new SimpleAttributeDefinitionBuilder("restart", ModelType.BOOLEAN)
             .setAllowExpression(true).setDefaultValue(new ModelNode(false)).build();
@@ -70,6 +99,7 @@ public class BrokerSubsystemDefinition extends SimpleResourceDefinition {
     public void registerAttributes(ManagementResourceRegistration rr) {
         rr.registerReadWriteAttribute(BROKER_ENABLED_ATTRIBDEF, null, BrokerEnabledAttributeHandler.INSTANCE);
         registerReloadRequiredWriteAttributeHandler(rr, BROKER_CONFIG_FILE_ATTRIBDEF);
+        registerReloadRequiredWriteAttributeHandler(rr, STARTUP_TIMEOUT_ATTRIBDEF);
         registerReloadRequiredWriteAttributeHandler(rr, BROKER_NAME_ATTRIBDEF);
         registerReloadRequiredWriteAttributeHandler(rr, BROKER_PERSISTENT_ATTRIBDEF);
         registerReloadRequiredWriteAttributeHandler(rr, BROKER_USE_JMX_ATTRIBDEF);
@@ -77,6 +107,26 @@ public class BrokerSubsystemDefinition extends SimpleResourceDefinition {
         registerReloadRequiredWriteAttributeHandler(rr, CONNECTOR_NAME_ATTRIBDEF);
         registerReloadRequiredWriteAttributeHandler(rr, CONNECTOR_PROTOCOL_ATTRIBDEF);
         registerReloadRequiredWriteAttributeHandler(rr, SOCKET_BINDING_ATTRIBDEF);
+
+        BrokerTuningWriteAttributeHandler tuningHandler = new BrokerTuningWriteAttributeHandler(MEMORY_LIMIT_ATTRIBDEF, STORE_LIMIT_ATTRIBDEF,
+                TEMP_LIMIT_ATTRIBDEF);
+        rr.registerReadWriteAttribute(MEMORY_LIMIT_ATTRIBDEF, null, tuningHandler);
+        rr.registerReadWriteAttribute(STORE_LIMIT_ATTRIBDEF, null, tuningHandler);
+        rr.registerReadWriteAttribute(TEMP_LIMIT_ATTRIBDEF, null, tuningHandler);
+
+        for (AttributeDefinition def : DestinationMetricsDefinition.METRICS) {
+            rr.registerMetric(def, BrokerMetricsHandler.INSTANCE);
+        }
+        rr.registerMetric(STORE_USAGE_METRICDEF, BrokerMetricsHandler.INSTANCE);
+        rr.registerMetric(STORE_PERCENT_USAGE_METRICDEF, BrokerMetricsHandler.INSTANCE);
+    }
+
+    @Override
+    public void registerChildren(ManagementResourceRegistration rr) {
+        rr.registerSubModel(DestinationPolicyDefinition.INSTANCE);
+        rr.registerSubModel(NetworkConnectorDefinition.INSTANCE);
+        rr.registerSubModel(DestinationMetricsDefinition.QUEUE_INSTANCE).setRuntimeOnly(true);
+        rr.registerSubModel(DestinationMetricsDefinition.TOPIC_INSTANCE).setRuntimeOnly(true);
     }
 
     private void registerReloadRequiredWriteAttributeHandler(ManagementResourceRegistration rr, AttributeDefinition def) {
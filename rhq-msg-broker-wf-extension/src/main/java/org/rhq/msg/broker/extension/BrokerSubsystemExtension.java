@@ -5,6 +5,7 @@ import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.OP;
 import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.OP_ADDR;
 import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.SUBSYSTEM;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.xml.stream.XMLStreamConstants;
@@ -61,6 +62,9 @@ public class BrokerSubsystemExtension implements Extension {
     protected static final String BROKER_CONFIG_FILE_ATTR = "configuration-file";
     protected static final String BROKER_CONFIG_FILE_DEFAULT = "default-broker.xml";
 
+    protected static final String STARTUP_TIMEOUT_ATTR = "startup-timeout";
+    protected static final long STARTUP_TIMEOUT_DEFAULT = 30000L;
+
     protected static final String BROKER_NAME_ELEMENT = BROKER_NAME_SYSPROP;
     protected static final String BROKER_NAME_DEFAULT = "org.rhq.msg.broker";
 
@@ -80,11 +84,61 @@ public class BrokerSubsystemExtension implements Extension {
     protected static final String CUSTOM_CONFIG_ELEMENT = "custom-configuration";
     protected static final String PROPERTY_ELEMENT = "property";
 
+    protected static final String USAGE_LIMITS_ELEMENT = "usage-limits";
+    protected static final String MEMORY_LIMIT_ATTR = "memory-limit";
+    protected static final String STORE_LIMIT_ATTR = "store-limit";
+    protected static final String TEMP_LIMIT_ATTR = "temp-limit";
+
+    protected static final String DESTINATION_POLICIES_ELEMENT = "destination-policies";
+    protected static final String DESTINATION_POLICY_ELEMENT = "destination-policy";
+    protected static final String DESTINATION_TYPE_ATTR = "destination-type";
+    protected static final String DESTINATION_PATTERN_ATTR = "destination-pattern";
+    protected static final String PRODUCER_FLOW_CONTROL_ATTR = "producer-flow-control";
+    protected static final boolean PRODUCER_FLOW_CONTROL_DEFAULT = true;
+    protected static final String CURSOR_TYPE_ATTR = "cursor-type";
+    protected static final String QUEUE_PREFETCH_ATTR = "queue-prefetch";
+    protected static final String TOPIC_PREFETCH_ATTR = "topic-prefetch";
+    protected static final String PRIORITIZED_MESSAGES_ATTR = "prioritized-messages";
+    protected static final boolean PRIORITIZED_MESSAGES_DEFAULT = false;
+
+    protected static final String NETWORK_CONNECTORS_ELEMENT = "network-connectors";
+    protected static final String NETWORK_CONNECTOR_ELEMENT = "network-connector";
+    protected static final String URIS_ATTR = "uris";
+    protected static final String DUPLEX_ATTR = "duplex";
+    protected static final boolean DUPLEX_DEFAULT = false;
+    protected static final String CONDUIT_SUBSCRIPTIONS_ATTR = "conduit-subscriptions";
+    protected static final boolean CONDUIT_SUBSCRIPTIONS_DEFAULT = true;
+    protected static final String DECREASE_NETWORK_CONSUMER_PRIORITY_ATTR = "decrease-network-consumer-priority";
+    protected static final boolean DECREASE_NETWORK_CONSUMER_PRIORITY_DEFAULT = false;
+    protected static final String DEMAND_FORWARDING_ATTR = "demand-forwarding";
+    protected static final boolean DEMAND_FORWARDING_DEFAULT = true;
+    protected static final String NETWORK_TTL_ATTR = "network-ttl";
+    protected static final int NETWORK_TTL_DEFAULT = 1;
+
+    // The following are the read-only runtime metrics of the broker and of its individual queues and topics.
+    protected static final String QUEUE_ELEMENT = "queue";
+    protected static final String TOPIC_ELEMENT = "topic";
+    protected static final String DESTINATION_ELEMENT = "destination";
+    protected static final String ENQUEUE_COUNT_METRIC = "enqueue-count";
+    protected static final String DEQUEUE_COUNT_METRIC = "dequeue-count";
+    protected static final String ENQUEUE_RATE_METRIC = "enqueue-rate";
+    protected static final String DEQUEUE_RATE_METRIC = "dequeue-rate";
+    protected static final String MESSAGE_COUNT_METRIC = "message-count";
+    protected static final String CONSUMER_COUNT_METRIC = "consumer-count";
+    protected static final String MEMORY_PERCENT_USAGE_METRIC = "memory-percent-usage";
+    protected static final String STORE_USAGE_METRIC = "store-usage";
+    protected static final String STORE_PERCENT_USAGE_METRIC = "store-percent-usage";
+    protected static final String AVERAGE_ENQUEUE_TIME_METRIC = "average-enqueue-time";
+
     protected static final String BROKER_START_OP = "start";
     protected static final String BROKER_STOP_OP = "stop";
     protected static final String BROKER_STATUS_OP = "status";
 
     protected static final PathElement SUBSYSTEM_PATH = PathElement.pathElement(SUBSYSTEM, SUBSYSTEM_NAME);
+    protected static final PathElement DESTINATION_POLICY_PATH = PathElement.pathElement(DESTINATION_POLICY_ELEMENT);
+    protected static final PathElement NETWORK_CONNECTOR_PATH = PathElement.pathElement(NETWORK_CONNECTOR_ELEMENT);
+    protected static final PathElement QUEUE_PATH = PathElement.pathElement(QUEUE_ELEMENT);
+    protected static final PathElement TOPIC_PATH = PathElement.pathElement(TOPIC_ELEMENT);
 
     static StandardResourceDescriptionResolver getResourceDescriptionResolver(final String keyPrefix) {
         String prefix = SUBSYSTEM_NAME + (keyPrefix == null ? "" : "." + keyPrefix);
@@ -128,6 +182,10 @@ public class BrokerSubsystemExtension implements Extension {
             if (brokerConfigFileValue != null) {
                 opAdd.get(BROKER_CONFIG_FILE_ATTR).set(new ValueExpression(brokerConfigFileValue));
             }
+            readAttributeExpression(reader, opAdd, STARTUP_TIMEOUT_ATTR);
+
+            // Child resources must be added after the subsystem itself
+            List<ModelNode> childOps = new ArrayList<ModelNode>();
 
             // Read the children elements
             while (reader.hasNext() && reader.nextTag() != END_ELEMENT) {
@@ -160,12 +218,81 @@ public class BrokerSubsystemExtension implements Extension {
                     opAdd.get(PERSISTENT_ELEMENT).set(new ValueExpression(reader.getElementText()));
                 } else if (elementName.equals(USE_JMX_ELEMENT)) {
                     opAdd.get(USE_JMX_ELEMENT).set(new ValueExpression(reader.getElementText()));
+                } else if (elementName.equals(USAGE_LIMITS_ELEMENT)) {
+                    readAttributeExpression(reader, opAdd, MEMORY_LIMIT_ATTR);
+                    readAttributeExpression(reader, opAdd, STORE_LIMIT_ATTR);
+                    readAttributeExpression(reader, opAdd, TEMP_LIMIT_ATTR);
+                    ParseUtils.requireNoContent(reader);
+                } else if (elementName.equals(DESTINATION_POLICIES_ELEMENT)) {
+                    while (reader.hasNext() && reader.nextTag() != END_ELEMENT) {
+                        if (reader.isStartElement()) {
+                            childOps.add(readDestinationPolicy(reader));
+                        }
+                    }
+                } else if (elementName.equals(NETWORK_CONNECTORS_ELEMENT)) {
+                    while (reader.hasNext() && reader.nextTag() != END_ELEMENT) {
+                        if (reader.isStartElement()) {
+                            childOps.add(readNetworkConnector(reader));
+                        }
+                    }
                 } else {
                     throw ParseUtils.unexpectedElement(reader);
                 }
             }
 
             list.add(opAdd);
+            list.addAll(childOps);
+        }
+
+        private ModelNode readDestinationPolicy(XMLExtendedStreamReader reader) throws XMLStreamException {
+            if (!reader.getLocalName().equals(DESTINATION_POLICY_ELEMENT)) {
+                throw ParseUtils.unexpectedElement(reader);
+            }
+
+            ParseUtils.requireAttributes(reader, Attribute.NAME.getLocalName(), DESTINATION_TYPE_ATTR, DESTINATION_PATTERN_ATTR);
+            String name = reader.getAttributeValue(null, Attribute.NAME.getLocalName());
+
+            final ModelNode opAdd = new ModelNode();
+            opAdd.get(OP).set(ADD);
+            opAdd.get(OP_ADDR).set(PathAddress.pathAddress(SUBSYSTEM_PATH, PathElement.pathElement(DESTINATION_POLICY_ELEMENT, name)).toModelNode());
+            readAttributeExpression(reader, opAdd, DESTINATION_TYPE_ATTR);
+            readAttributeExpression(reader, opAdd, DESTINATION_PATTERN_ATTR);
+            readAttributeExpression(reader, opAdd, MEMORY_LIMIT_ATTR);
+            readAttributeExpression(reader, opAdd, PRODUCER_FLOW_CONTROL_ATTR);
+            readAttributeExpression(reader, opAdd, CURSOR_TYPE_ATTR);
+            readAttributeExpression(reader, opAdd, QUEUE_PREFETCH_ATTR);
+            readAttributeExpression(reader, opAdd, TOPIC_PREFETCH_ATTR);
+            readAttributeExpression(reader, opAdd, PRIORITIZED_MESSAGES_ATTR);
+            ParseUtils.requireNoContent(reader);
+            return opAdd;
+        }
+
+        private ModelNode readNetworkConnector(XMLExtendedStreamReader reader) throws XMLStreamException {
+            if (!reader.getLocalName().equals(NETWORK_CONNECTOR_ELEMENT)) {
+                throw ParseUtils.unexpectedElement(reader);
+            }
+
+            ParseUtils.requireAttributes(reader, Attribute.NAME.getLocalName(), URIS_ATTR);
+            String name = reader.getAttributeValue(null, Attribute.NAME.getLocalName());
+
+            final ModelNode opAdd = new ModelNode();
+            opAdd.get(OP).set(ADD);
+            opAdd.get(OP_ADDR).set(PathAddress.pathAddress(SUBSYSTEM_PATH, PathElement.pathElement(NETWORK_CONNECTOR_ELEMENT, name)).toModelNode());
+            readAttributeExpression(reader, opAdd, URIS_ATTR);
+            readAttributeExpression(reader, opAdd, DUPLEX_ATTR);
+            readAttributeExpression(reader, opAdd, CONDUIT_SUBSCRIPTIONS_ATTR);
+            readAttributeExpression(reader, opAdd, DECREASE_NETWORK_CONSUMER_PRIORITY_ATTR);
+            readAttributeExpression(reader, opAdd, DEMAND_FORWARDING_ATTR);
+            readAttributeExpression(reader, opAdd, NETWORK_TTL_ATTR);
+            ParseUtils.requireNoContent(reader);
+            return opAdd;
+        }
+
+        private void readAttributeExpression(XMLExtendedStreamReader reader, ModelNode op, String attribName) {
+            String val = reader.getAttributeValue(null, attribName);
+            if (val != null) {
+                op.get(attribName).set(new ValueExpression(val));
+            }
         }
 
         private void readCustomConfigurationProperty(XMLExtendedStreamReader reader, ModelNode configAttributeNode) throws XMLStreamException {
@@ -189,6 +316,7 @@ public class BrokerSubsystemExtension implements Extension {
             context.startSubsystemElement(BrokerSubsystemExtension.NAMESPACE, false);
             writer.writeAttribute(BROKER_ENABLED_ATTR, node.get(BROKER_ENABLED_ATTR).asString());
             writer.writeAttribute(BROKER_CONFIG_FILE_ATTR, node.get(BROKER_CONFIG_FILE_ATTR).asString());
+            writeAttribute(writer, node, STARTUP_TIMEOUT_ATTR);
 
             // our config elements
             writeElement(writer, node, BROKER_NAME_ELEMENT);
@@ -213,6 +341,54 @@ public class BrokerSubsystemExtension implements Extension {
             // </connector>
             writer.writeEndElement();
 
+            // <usage-limits>
+            if (node.hasDefined(MEMORY_LIMIT_ATTR) || node.hasDefined(STORE_LIMIT_ATTR) || node.hasDefined(TEMP_LIMIT_ATTR)) {
+                writer.writeEmptyElement(USAGE_LIMITS_ELEMENT);
+                writeAttribute(writer, node, MEMORY_LIMIT_ATTR);
+                writeAttribute(writer, node, STORE_LIMIT_ATTR);
+                writeAttribute(writer, node, TEMP_LIMIT_ATTR);
+            }
+
+            // <destination-policies>
+            if (node.hasDefined(DESTINATION_POLICY_ELEMENT)) {
+                writer.writeStartElement(DESTINATION_POLICIES_ELEMENT);
+                for (Property policy : node.get(DESTINATION_POLICY_ELEMENT).asPropertyList()) {
+                    // <destination-policy>
+                    ModelNode policyNode = policy.getValue();
+                    writer.writeEmptyElement(DESTINATION_POLICY_ELEMENT);
+                    writer.writeAttribute(Attribute.NAME.getLocalName(), policy.getName());
+                    writeAttribute(writer, policyNode, DESTINATION_TYPE_ATTR);
+                    writeAttribute(writer, policyNode, DESTINATION_PATTERN_ATTR);
+                    writeAttribute(writer, policyNode, MEMORY_LIMIT_ATTR);
+                    writeAttribute(writer, policyNode, PRODUCER_FLOW_CONTROL_ATTR);
+                    writeAttribute(writer, policyNode, CURSOR_TYPE_ATTR);
+                    writeAttribute(writer, policyNode, QUEUE_PREFETCH_ATTR);
+                    writeAttribute(writer, policyNode, TOPIC_PREFETCH_ATTR);
+                    writeAttribute(writer, policyNode, PRIORITIZED_MESSAGES_ATTR);
+                }
+                // </destination-policies>
+                writer.writeEndElement();
+            }
+
+            // <network-connectors>
+            if (node.hasDefined(NETWORK_CONNECTOR_ELEMENT)) {
+                writer.writeStartElement(NETWORK_CONNECTORS_ELEMENT);
+                for (Property connector : node.get(NETWORK_CONNECTOR_ELEMENT).asPropertyList()) {
+                    // <network-connector>
+                    ModelNode connectorNode = connector.getValue();
+                    writer.writeEmptyElement(NETWORK_CONNECTOR_ELEMENT);
+                    writer.writeAttribute(Attribute.NAME.getLocalName(), connector.getName());
+                    writeAttribute(writer, connectorNode, URIS_ATTR);
+                    writeAttribute(writer, connectorNode, DUPLEX_ATTR);
+                    writeAttribute(writer, connectorNode, CONDUIT_SUBSCRIPTIONS_ATTR);
+                    writeAttribute(writer, connectorNode, DECREASE_NETWORK_CONSUMER_PRIORITY_ATTR);
+                    writeAttribute(writer, connectorNode, DEMAND_FORWARDING_ATTR);
+                    writeAttribute(writer, connectorNode, NETWORK_TTL_ATTR);
+                }
+                // </network-connectors>
+                writer.writeEndElement();
+            }
+
             // <custom-configuration>
             writer.writeStartElement(CUSTOM_CONFIG_ELEMENT);
             ModelNode configNode = node.get(CUSTOM_CONFIG_ELEMENT);
@@ -233,6 +409,13 @@ public class BrokerSubsystemExtension implements Extension {
             writer.writeEndElement();
         }
 
+        private void writeAttribute(final XMLExtendedStreamWriter writer, ModelNode node, String attribName) throws XMLStreamException {
+            ModelNode attribNode = node.get(attribName);
+            if (attribNode.isDefined()) {
+                writer.writeAttribute(attribName, attribNode.asString());
+            }
+        }
+
         private void writeElement(final XMLExtendedStreamWriter writer, ModelNode node, String attribName) throws XMLStreamException {
             ModelNode attribNode = node.get(attribName);
             if (attribNode.isDefined()) {
@@ -0,0 +1,192 @@
+package org.rhq.msg.broker.extension;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.as.controller.PathAddress;
+import org.jboss.as.controller.PathElement;
+import org.jboss.as.controller.registry.PlaceholderResource;
+import org.jboss.as.controller.registry.Resource;
+import org.jboss.dmr.ModelNode;
+import org.rhq.msg.broker.DestinationPolicy.DestinationType;
+
+/**
+ * The subsystem resource. In addition to the children stored in the model (i.e. the destination policies), this
+ * exposes one runtime child per queue and topic that currently exists in the broker. Those children are not stored
+ * anywhere - they are looked up from the running broker every time they are asked for.
+ */
+class BrokerSubsystemResource implements Resource {
+
+    private final Resource delegate;
+
+    /**
+     * Shared among all clones of this resource so the copies the controller makes when it updates the model still see
+     * the broker service.
+     */
+    private final AtomicReference<BrokerService> brokerService;
+
+    BrokerSubsystemResource() {
+        this(Resource.Factory.create(), new AtomicReference<BrokerService>());
+    }
+
+    private BrokerSubsystemResource(Resource delegate, AtomicReference<BrokerService> brokerService) {
+        this.delegate = delegate;
+        this.brokerService = brokerService;
+    }
+
+    void setBrokerService(BrokerService service) {
+        brokerService.set(service);
+    }
+
+    @Override
+    public ModelNode getModel() {
+        return delegate.getModel();
+    }
+
+    @Override
+    public void writeModel(ModelNode newModel) {
+        delegate.writeModel(newModel);
+    }
+
+    @Override
+    public boolean isModelDefined() {
+        return delegate.isModelDefined();
+    }
+
+    @Override
+    public boolean hasChild(PathElement element) {
+        DestinationType type = getDestinationType(element.getKey());
+        if (type != null) {
+            return getDestinationNames(type).contains(element.getValue());
+        }
+        return delegate.hasChild(element);
+    }
+
+    @Override
+    public Resource getChild(PathElement element) {
+        DestinationType type = getDestinationType(element.getKey());
+        if (type != null) {
+            return hasChild(element) ? new DestinationResourceEntry(element) : null;
+        }
+        return delegate.getChild(element);
+    }
+
+    @Override
+    public Resource requireChild(PathElement element) {
+        Resource child = getChild(element);
+        if (child == null) {
+            throw new NoSuchResourceException(element);
+        }
+        return child;
+    }
+
+    @Override
+    public boolean hasChildren(String childType) {
+        DestinationType type = getDestinationType(childType);
+        if (type != null) {
+            return !getDestinationNames(type).isEmpty();
+        }
+        return delegate.hasChildren(childType);
+    }
+
+    @Override
+    public Resource navigate(PathAddress address) {
+        return Resource.Tools.navigate(this, address);
+    }
+
+    @Override
+    public Set<String> getChildTypes() {
+        Set<String> childTypes = new LinkedHashSet<String>(delegate.getChildTypes());
+        childTypes.add(BrokerSubsystemExtension.QUEUE_ELEMENT);
+        childTypes.add(BrokerSubsystemExtension.TOPIC_ELEMENT);
+        return childTypes;
+    }
+
+    @Override
+    public Set<String> getChildrenNames(String childType) {
+        DestinationType type = getDestinationType(childType);
+        if (type != null) {
+            return getDestinationNames(type);
+        }
+        return delegate.getChildrenNames(childType);
+    }
+
+    @Override
+    public Set<ResourceEntry> getChildren(String childType) {
+        DestinationType type = getDestinationType(childType);
+        if (type != null) {
+            Set<ResourceEntry> children = new LinkedHashSet<ResourceEntry>();
+            for (String name : getDestinationNames(type)) {
+                children.add(new DestinationResourceEntry(PathElement.pathElement(childType, name)));
+            }
+            return children;
+        }
+        return delegate.getChildren(childType);
+    }
+
+    @Override
+    public void registerChild(PathElement address, Resource resource) {
+        if (getDestinationType(address.getKey()) != null) {
+            throw new UnsupportedOperationException("Destinations are created by the broker, they cannot be added: " + address);
+        }
+        delegate.registerChild(address, resource);
+    }
+
+    @Override
+    public Resource removeChild(PathElement address) {
+        if (getDestinationType(address.getKey()) != null) {
+            throw new UnsupportedOperationException("Destinations are managed by the broker, they cannot be removed: " + address);
+        }
+        return delegate.removeChild(address);
+    }
+
+    @Override
+    public boolean isRuntime() {
+        return delegate.isRuntime();
+    }
+
+    @Override
+    public boolean isProxy() {
+        return delegate.isProxy();
+    }
+
+    @Override
+    public Resource clone() {
+        return new BrokerSubsystemResource(delegate.clone(), brokerService);
+    }
+
+    private DestinationType getDestinationType(String childType) {
+        if (BrokerSubsystemExtension.QUEUE_ELEMENT.equals(childType)) {
+            return DestinationType.QUEUE;
+        } else if (BrokerSubsystemExtension.TOPIC_ELEMENT.equals(childType)) {
+            return DestinationType.TOPIC;
+        }
+        return null;
+    }
+
+    private Set<String> getDestinationNames(DestinationType type) {
+        BrokerService service = brokerService.get();
+        if (service == null) {
+            return Collections.emptySet();
+        }
+        return service.getDestinationNames(type);
+    }
+
+    private static class DestinationResourceEntry extends PlaceholderResource.PlaceholderResourceEntry {
+        DestinationResourceEntry(PathElement path) {
+            super(path);
+        }
+
+        @Override
+        public boolean isRuntime() {
+            return true;
+        }
+
+        @Override
+        public DestinationResourceEntry clone() {
+            return new DestinationResourceEntry(getPathElement());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.rhq.msg.broker.extension;
+
+import org.jboss.as.controller.AbstractWriteAttributeHandler;
+import org.jboss.as.controller.AttributeDefinition;
+import org.jboss.as.controller.OperationContext;
+import org.jboss.as.controller.OperationFailedException;
+import org.jboss.as.controller.PathAddress;
+import org.jboss.as.controller.registry.Resource;
+import org.jboss.dmr.ModelNode;
+import org.jboss.logging.Logger;
+import org.rhq.msg.broker.BrokerTuning;
+
+/**
+ * Handles changes to the usage limits and destination policy settings that the broker can pick up while it is running.
+ * The complete tuning is rebuilt from the new model and applied to the running broker in place so connected clients are
+ * not dropped. The previous tuning is the handback so it can be restored if the operation is rolled back.
+ *
+ * Once another tuning change waits for a reload, the model holds changes the running broker must not pick up yet, so
+ * from then on changes handled here require a reload as well.
+ */
+class BrokerTuningWriteAttributeHandler extends AbstractWriteAttributeHandler<BrokerTuning> {
+
+    private final Logger log = Logger.getLogger(BrokerTuningWriteAttributeHandler.class);
+
+    BrokerTuningWriteAttributeHandler(AttributeDefinition... definitions) {
+        super(definitions);
+    }
+
+    @Override
+    protected boolean applyUpdateToRuntime(OperationContext context, ModelNode operation, String attributeName,
+        ModelNode resolvedValue, ModelNode currentValue, HandbackHolder<BrokerTuning> handbackHolder)
+        throws OperationFailedException {
+
+        BrokerService service = BrokerService.getBrokerService(context);
+        if (service == null) {
+            return false; // the broker is disabled; it will read the new value from the model when it is deployed
+        }
+
+        log.debug("Broker tuning attribute changed: " + attributeName + "=" + resolvedValue);
+        if (service.isTuningReloadRequired()) {
+            return true; // rebuilding the tuning from the model would apply the pending changes too
+        }
+        Resource subsystemResource = context.readResourceFromRoot(PathAddress.pathAddress(BrokerSubsystemExtension.SUBSYSTEM_PATH));
+        handbackHolder.setHandback(service.getBrokerTuning());
+        service.updateBrokerTuning(BrokerSubsystemAdd.createBrokerTuning(context, subsystemResource));
+        return false;
+    }
+
+    @Override
+    protected void revertUpdateToRuntime(OperationContext context, ModelNode operation, String attributeName,
+        ModelNode valueToRestore, ModelNode valueToRevert, BrokerTuning handback) throws OperationFailedException {
+
+        BrokerService service = BrokerService.getBrokerService(context);
+        if (service != null && handback != null) {
+            service.updateBrokerTuning(handback);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.rhq.msg.broker.extension;
+
+import org.jboss.as.controller.AttributeDefinition;
+import org.jboss.as.controller.PathElement;
+import org.jboss.as.controller.SimpleAttributeDefinition;
+import org.jboss.as.controller.SimpleAttributeDefinitionBuilder;
+import org.jboss.as.controller.SimpleResourceDefinition;
+import org.jboss.as.controller.client.helpers.MeasurementUnit;
+import org.jboss.as.controller.registry.ManagementResourceRegistration;
+import org.jboss.dmr.ModelType;
+
+/**
+ * Defines the runtime-only child resources that represent the queues and topics that currently exist in the broker.
+ * These resources have no configuration - they only expose the read-only metrics of their destinations.
+ */
+public class DestinationMetricsDefinition extends SimpleResourceDefinition {
+
+    public static final DestinationMetricsDefinition QUEUE_INSTANCE = new DestinationMetricsDefinition(BrokerSubsystemExtension.QUEUE_PATH);
+    public static final DestinationMetricsDefinition TOPIC_INSTANCE = new DestinationMetricsDefinition(BrokerSubsystemExtension.TOPIC_PATH);
+
+    protected static final SimpleAttributeDefinition ENQUEUE_COUNT_METRICDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.ENQUEUE_COUNT_METRIC, ModelType.LONG).setStorageRuntime().build();
+
+    protected static final SimpleAttributeDefinition DEQUEUE_COUNT_METRICDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.DEQUEUE_COUNT_METRIC, ModelType.LONG).setStorageRuntime().build();
+
+    protected static final SimpleAttributeDefinition ENQUEUE_RATE_METRICDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.ENQUEUE_RATE_METRIC, ModelType.DOUBLE).setMeasurementUnit(MeasurementUnit.PER_SECOND).setStorageRuntime()
+            .build();
+
+    protected static final SimpleAttributeDefinition DEQUEUE_RATE_METRICDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.DEQUEUE_RATE_METRIC, ModelType.DOUBLE).setMeasurementUnit(MeasurementUnit.PER_SECOND).setStorageRuntime()
+            .build();
+
+    protected static final SimpleAttributeDefinition MESSAGE_COUNT_METRICDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.MESSAGE_COUNT_METRIC, ModelType.LONG).setStorageRuntime().build();
+
+    protected static final SimpleAttributeDefinition CONSUMER_COUNT_METRICDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.CONSUMER_COUNT_METRIC, ModelType.LONG).setStorageRuntime().build();
+
+    protected static final SimpleAttributeDefinition MEMORY_PERCENT_USAGE_METRICDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.MEMORY_PERCENT_USAGE_METRIC, ModelType.INT).setMeasurementUnit(MeasurementUnit.PERCENTAGE)
+            .setStorageRuntime().build();
+
+    protected static final SimpleAttributeDefinition AVERAGE_ENQUEUE_TIME_METRICDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.AVERAGE_ENQUEUE_TIME_METRIC, ModelType.DOUBLE).setMeasurementUnit(MeasurementUnit.MILLISECONDS)
+            .setStorageRuntime().build();
+
+    /**
+     * The metrics that both the broker as a whole and each individual destination provide.
+     */
+    protected static final AttributeDefinition[] METRICS = { ENQUEUE_COUNT_METRICDEF, DEQUEUE_COUNT_METRICDEF, ENQUEUE_RATE_METRICDEF,
+            DEQUEUE_RATE_METRICDEF, MESSAGE_COUNT_METRICDEF, CONSUMER_COUNT_METRICDEF, MEMORY_PERCENT_USAGE_METRICDEF,
+            AVERAGE_ENQUEUE_TIME_METRICDEF };
+
+    private DestinationMetricsDefinition(PathElement path) {
+        super(path, BrokerSubsystemExtension.getResourceDescriptionResolver(BrokerSubsystemExtension.DESTINATION_ELEMENT));
+    }
+
+    @Override
+    public void registerAttributes(ManagementResourceRegistration rr) {
+        for (AttributeDefinition def : METRICS) {
+            rr.registerMetric(def, BrokerMetricsHandler.INSTANCE);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.rhq.msg.broker.extension;
+
+import java.util.List;
+
+import org.jboss.as.controller.AbstractAddStepHandler;
+import org.jboss.as.controller.AttributeDefinition;
+import org.jboss.as.controller.OperationContext;
+import org.jboss.as.controller.OperationContext.AttachmentKey;
+import org.jboss.as.controller.OperationFailedException;
+import org.jboss.as.controller.PathAddress;
+import org.jboss.as.controller.ServiceVerificationHandler;
+import org.jboss.as.controller.registry.Resource;
+import org.jboss.dmr.ModelNode;
+import org.jboss.logging.Logger;
+import org.jboss.msc.service.ServiceController;
+import org.rhq.msg.broker.BrokerTuning;
+
+/**
+ * Handler responsible for adding a destination policy resource to the model. The subsystem add handler reads all
+ * policies when it deploys the broker; a policy added afterwards is applied to the running broker in place, unless
+ * another change to the policies waits for a reload, in which case the new policy waits for it too.
+ */
+class DestinationPolicyAdd extends AbstractAddStepHandler {
+
+    static final DestinationPolicyAdd INSTANCE = new DestinationPolicyAdd();
+
+    /**
+     * The tuning the broker used before this operation; restored if the operation is rolled back.
+     */
+    private static final AttachmentKey<BrokerTuning> PREVIOUS_TUNING = AttachmentKey.create(BrokerTuning.class);
+
+    private final Logger log = Logger.getLogger(DestinationPolicyAdd.class);
+
+    private DestinationPolicyAdd() {
+    }
+
+    @Override
+    protected void populateModel(ModelNode operation, ModelNode model) throws OperationFailedException {
+        for (AttributeDefinition def : DestinationPolicyDefinition.ATTRIBUTES) {
+            def.validateAndSet(operation, model);
+        }
+        log.debug("Populating the destination policy model: " + operation + "=" + model);
+    }
+
+    @Override
+    protected void performRuntime(OperationContext context, ModelNode operation, ModelNode model,
+            ServiceVerificationHandler verificationHandler, List<ServiceController<?>> newControllers)
+            throws OperationFailedException {
+
+        // during boot the subsystem add handler picks this policy up when it creates the broker service
+        if (context.isBooting()) {
+            return;
+        }
+
+        BrokerService service = BrokerService.getBrokerService(context);
+        if (service != null && service.isTuningReloadRequired()) {
+            // rebuilding the tuning from the model would apply the pending changes too
+            context.reloadRequired();
+        } else if (service != null) {
+            context.attachIfAbsent(PREVIOUS_TUNING, service.getBrokerTuning());
+            Resource subsystemResource = context.readResourceFromRoot(PathAddress.pathAddress(BrokerSubsystemExtension.SUBSYSTEM_PATH));
+            service.updateBrokerTuning(BrokerSubsystemAdd.createBrokerTuning(context, subsystemResource));
+        }
+    }
+
+    @Override
+    protected void rollbackRuntime(OperationContext context, ModelNode operation, ModelNode model, List<ServiceController<?>> controllers) {
+        BrokerService service = BrokerService.getBrokerService(context);
+        BrokerTuning previousTuning = context.detach(PREVIOUS_TUNING);
+        if (service != null && previousTuning != null) {
+            service.updateBrokerTuning(previousTuning);
+        } else if (service != null && service.isTuningReloadRequired()) {
+            context.revertReloadRequired();
+        }
+    }
+}
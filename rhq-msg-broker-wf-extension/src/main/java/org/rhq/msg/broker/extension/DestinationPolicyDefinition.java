@@ -0,0 +1,131 @@
+package org.rhq.msg.broker.extension;
+
+import java.util.Locale;
+
+import org.jboss.as.controller.AttributeDefinition;
+import org.jboss.as.controller.OperationContext;
+import org.jboss.as.controller.OperationFailedException;
+import org.jboss.as.controller.SimpleAttributeDefinition;
+import org.jboss.as.controller.SimpleAttributeDefinitionBuilder;
+import org.jboss.as.controller.SimpleResourceDefinition;
+import org.jboss.as.controller.client.helpers.MeasurementUnit;
+import org.jboss.as.controller.operations.validation.EnumValidator;
+import org.jboss.as.controller.operations.validation.IntRangeValidator;
+import org.jboss.as.controller.operations.validation.LongRangeValidator;
+import org.jboss.as.controller.operations.validation.StringLengthValidator;
+import org.jboss.as.controller.registry.AttributeAccess;
+import org.jboss.as.controller.registry.ManagementResourceRegistration;
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.ModelType;
+import org.rhq.msg.broker.DestinationPolicy;
+import org.rhq.msg.broker.DestinationPolicy.CursorType;
+import org.rhq.msg.broker.DestinationPolicy.DestinationType;
+
+/**
+ * Defines the child resources of the subsystem that each describe a policy (memory limit, flow control, prefetch,
+ * cursor type and prioritized dispatch) for the queues or topics whose names match a destination pattern.
+ *
+ * The memory limit, flow control and prefetch settings are applied to the running broker in place. The destination
+ * type, pattern, cursor type and prioritized dispatch decide which destinations exist with which storage, so changing those requires a
+ * reload.
+ */
+public class DestinationPolicyDefinition extends SimpleResourceDefinition {
+
+    public static final DestinationPolicyDefinition INSTANCE = new DestinationPolicyDefinition();
+
+    protected static final SimpleAttributeDefinition DESTINATION_TYPE_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.DESTINATION_TYPE_ATTR, ModelType.STRING).setAllowExpression(true)
+            .setXmlName(BrokerSubsystemExtension.DESTINATION_TYPE_ATTR).setFlags(AttributeAccess.Flag.RESTART_RESOURCE_SERVICES)
+            .setValidator(new EnumValidator<DestinationType>(DestinationType.class, false, true)).setAllowNull(false).build();
+
+    protected static final SimpleAttributeDefinition DESTINATION_PATTERN_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.DESTINATION_PATTERN_ATTR, ModelType.STRING).setAllowExpression(true)
+            .setXmlName(BrokerSubsystemExtension.DESTINATION_PATTERN_ATTR).setFlags(AttributeAccess.Flag.RESTART_RESOURCE_SERVICES)
+            .setValidator(new StringLengthValidator(1)).setAllowNull(false).build();
+
+    protected static final SimpleAttributeDefinition MEMORY_LIMIT_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.MEMORY_LIMIT_ATTR, ModelType.LONG).setAllowExpression(true).setXmlName(BrokerSubsystemExtension.MEMORY_LIMIT_ATTR)
+            .setMeasurementUnit(MeasurementUnit.BYTES).setFlags(AttributeAccess.Flag.RESTART_NONE)
+            .setValidator(new LongRangeValidator(1L, true)).setAllowNull(true).build();
+
+    protected static final SimpleAttributeDefinition PRODUCER_FLOW_CONTROL_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.PRODUCER_FLOW_CONTROL_ATTR, ModelType.BOOLEAN).setAllowExpression(true)
+            .setXmlName(BrokerSubsystemExtension.PRODUCER_FLOW_CONTROL_ATTR).setFlags(AttributeAccess.Flag.RESTART_NONE)
+            .setDefaultValue(new ModelNode(BrokerSubsystemExtension.PRODUCER_FLOW_CONTROL_DEFAULT)).setAllowNull(true).build();
+
+    protected static final SimpleAttributeDefinition CURSOR_TYPE_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.CURSOR_TYPE_ATTR, ModelType.STRING).setAllowExpression(true).setXmlName(BrokerSubsystemExtension.CURSOR_TYPE_ATTR)
+            .setFlags(AttributeAccess.Flag.RESTART_RESOURCE_SERVICES).setValidator(new EnumValidator<CursorType>(CursorType.class, true, true))
+            .setAllowNull(true).build();
+
+    protected static final SimpleAttributeDefinition QUEUE_PREFETCH_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.QUEUE_PREFETCH_ATTR, ModelType.INT).setAllowExpression(true).setXmlName(BrokerSubsystemExtension.QUEUE_PREFETCH_ATTR)
+            .setFlags(AttributeAccess.Flag.RESTART_NONE).setValidator(new IntRangeValidator(1, true)).setAllowNull(true).build();
+
+    protected static final SimpleAttributeDefinition TOPIC_PREFETCH_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.TOPIC_PREFETCH_ATTR, ModelType.INT).setAllowExpression(true).setXmlName(BrokerSubsystemExtension.TOPIC_PREFETCH_ATTR)
+            .setFlags(AttributeAccess.Flag.RESTART_NONE).setValidator(new IntRangeValidator(1, true)).setAllowNull(true).build();
+
+    protected static final SimpleAttributeDefinition PRIORITIZED_MESSAGES_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.PRIORITIZED_MESSAGES_ATTR, ModelType.BOOLEAN).setAllowExpression(true)
+            .setXmlName(BrokerSubsystemExtension.PRIORITIZED_MESSAGES_ATTR).setFlags(AttributeAccess.Flag.RESTART_RESOURCE_SERVICES)
+            .setDefaultValue(new ModelNode(BrokerSubsystemExtension.PRIORITIZED_MESSAGES_DEFAULT)).setAllowNull(true).build();
+
+    protected static final AttributeDefinition[] ATTRIBUTES = { DESTINATION_TYPE_ATTRIBDEF, DESTINATION_PATTERN_ATTRIBDEF, MEMORY_LIMIT_ATTRIBDEF,
+            PRODUCER_FLOW_CONTROL_ATTRIBDEF, CURSOR_TYPE_ATTRIBDEF, QUEUE_PREFETCH_ATTRIBDEF, TOPIC_PREFETCH_ATTRIBDEF,
+            PRIORITIZED_MESSAGES_ATTRIBDEF };
+
+    // these attributes are applied to the running broker; the rest require a reload
+    private static final AttributeDefinition[] LIVE_ATTRIBUTES = { MEMORY_LIMIT_ATTRIBDEF, PRODUCER_FLOW_CONTROL_ATTRIBDEF, QUEUE_PREFETCH_ATTRIBDEF,
+            TOPIC_PREFETCH_ATTRIBDEF };
+
+    private DestinationPolicyDefinition() {
+        super(BrokerSubsystemExtension.DESTINATION_POLICY_PATH, BrokerSubsystemExtension
+                .getResourceDescriptionResolver(BrokerSubsystemExtension.DESTINATION_POLICY_ELEMENT), DestinationPolicyAdd.INSTANCE,
+                DestinationPolicyRemove.INSTANCE);
+    }
+
+    @Override
+    public void registerAttributes(ManagementResourceRegistration rr) {
+        BrokerTuningWriteAttributeHandler tuningHandler = new BrokerTuningWriteAttributeHandler(LIVE_ATTRIBUTES);
+        for (AttributeDefinition def : ATTRIBUTES) {
+            if (def.getFlags().contains(AttributeAccess.Flag.RESTART_NONE)) {
+                rr.registerReadWriteAttribute(def, null, tuningHandler);
+            } else {
+                rr.registerReadWriteAttribute(def, null, new TuningReloadRequiredWriteAttributeHandler(def));
+            }
+        }
+    }
+
+    /**
+     * Converts the model of a destination-policy resource to the policy object the broker understands.
+     *
+     * @param context
+     *            used to resolve any expressions found in the model
+     * @param policyModel
+     *            the model of the destination-policy resource
+     * @return the policy
+     * @throws OperationFailedException
+     *             if the model could not be resolved
+     */
+    static DestinationPolicy createDestinationPolicy(OperationContext context, ModelNode policyModel) throws OperationFailedException {
+        String type = DESTINATION_TYPE_ATTRIBDEF.resolveModelAttribute(context, policyModel).asString();
+        String pattern = DESTINATION_PATTERN_ATTRIBDEF.resolveModelAttribute(context, policyModel).asString();
+        DestinationPolicy policy = new DestinationPolicy(DestinationType.valueOf(type.toUpperCase(Locale.ENGLISH)), pattern);
+
+        policy.setMemoryLimit(MEMORY_LIMIT_ATTRIBDEF.resolveModelAttribute(context, policyModel).asLong(0L));
+        policy.setProducerFlowControl(PRODUCER_FLOW_CONTROL_ATTRIBDEF.resolveModelAttribute(context, policyModel).asBoolean(
+                BrokerSubsystemExtension.PRODUCER_FLOW_CONTROL_DEFAULT));
+
+        policy.setQueuePrefetch(QUEUE_PREFETCH_ATTRIBDEF.resolveModelAttribute(context, policyModel).asInt(0));
+        policy.setTopicPrefetch(TOPIC_PREFETCH_ATTRIBDEF.resolveModelAttribute(context, policyModel).asInt(0));
+        policy.setPrioritizedMessages(PRIORITIZED_MESSAGES_ATTRIBDEF.resolveModelAttribute(context, policyModel).asBoolean(
+                BrokerSubsystemExtension.PRIORITIZED_MESSAGES_DEFAULT));
+
+        ModelNode cursorType = CURSOR_TYPE_ATTRIBDEF.resolveModelAttribute(context, policyModel);
+        if (cursorType.isDefined()) {
+            policy.setCursorType(CursorType.valueOf(cursorType.asString().toUpperCase(Locale.ENGLISH)));
+        }
+        return policy;
+    }
+}
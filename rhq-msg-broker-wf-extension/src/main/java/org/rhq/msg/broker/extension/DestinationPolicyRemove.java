@@ -0,0 +1,48 @@
+package org.rhq.msg.broker.extension;
+
+import org.jboss.as.controller.AbstractRemoveStepHandler;
+import org.jboss.as.controller.OperationContext;
+import org.jboss.as.controller.OperationContext.AttachmentKey;
+import org.jboss.as.controller.OperationFailedException;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Handler responsible for removing a destination policy resource from the model. The running broker keeps the policy
+ * until the server is reloaded.
+ */
+class DestinationPolicyRemove extends AbstractRemoveStepHandler {
+
+    static final DestinationPolicyRemove INSTANCE = new DestinationPolicyRemove();
+
+    /**
+     * Whether a tuning change already waited for a reload before this operation; restored if it is rolled back.
+     */
+    private static final AttachmentKey<Boolean> PREVIOUS_TUNING_RELOAD_REQUIRED = AttachmentKey.create(Boolean.class);
+
+    private DestinationPolicyRemove() {
+    }
+
+    @Override
+    protected void performRuntime(OperationContext context, ModelNode operation, ModelNode model)
+        throws OperationFailedException {
+
+        BrokerService service = BrokerService.getBrokerService(context);
+        if (service != null) {
+            context.attachIfAbsent(PREVIOUS_TUNING_RELOAD_REQUIRED, Boolean.valueOf(service.isTuningReloadRequired()));
+            service.setTuningReloadRequired(true);
+            context.reloadRequired();
+        }
+    }
+
+    @Override
+    protected void recoverServices(OperationContext context, ModelNode operation, ModelNode model)
+        throws OperationFailedException {
+
+        BrokerService service = BrokerService.getBrokerService(context);
+        Boolean previous = context.detach(PREVIOUS_TUNING_RELOAD_REQUIRED);
+        if (service != null && previous != null) {
+            service.setTuningReloadRequired(previous.booleanValue());
+        }
+        context.revertReloadRequired();
+    }
+}
@@ -0,0 +1,52 @@
+package org.rhq.msg.broker.extension;
+
+import java.util.List;
+
+import org.jboss.as.controller.AbstractAddStepHandler;
+import org.jboss.as.controller.AttributeDefinition;
+import org.jboss.as.controller.OperationContext;
+import org.jboss.as.controller.OperationFailedException;
+import org.jboss.as.controller.ServiceVerificationHandler;
+import org.jboss.dmr.ModelNode;
+import org.jboss.logging.Logger;
+import org.jboss.msc.service.ServiceController;
+
+/**
+ * Handler responsible for adding a network connector resource to the model. The subsystem add handler reads all
+ * network connectors when it deploys the broker; a connector added afterwards requires a reload.
+ */
+class NetworkConnectorAdd extends AbstractAddStepHandler {
+
+    static final NetworkConnectorAdd INSTANCE = new NetworkConnectorAdd();
+
+    private final Logger log = Logger.getLogger(NetworkConnectorAdd.class);
+
+    private NetworkConnectorAdd() {
+    }
+
+    @Override
+    protected void populateModel(ModelNode operation, ModelNode model) throws OperationFailedException {
+        for (AttributeDefinition def : NetworkConnectorDefinition.ATTRIBUTES) {
+            def.validateAndSet(operation, model);
+        }
+        log.debug("Populating the network connector model: " + operation + "=" + model);
+    }
+
+    @Override
+    protected void performRuntime(OperationContext context, ModelNode operation, ModelNode model,
+            ServiceVerificationHandler verificationHandler, List<ServiceController<?>> newControllers)
+            throws OperationFailedException {
+
+        // during boot the subsystem add handler picks this connector up when it creates the broker service
+        if (!context.isBooting() && context.getServiceRegistry(false).getService(BrokerService.SERVICE_NAME) != null) {
+            context.reloadRequired();
+        }
+    }
+
+    @Override
+    protected void rollbackRuntime(OperationContext context, ModelNode operation, ModelNode model, List<ServiceController<?>> controllers) {
+        if (!context.isBooting()) {
+            context.revertReloadRequired();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.rhq.msg.broker.extension;
+
+import org.jboss.as.controller.AttributeDefinition;
+import org.jboss.as.controller.OperationContext;
+import org.jboss.as.controller.OperationFailedException;
+import org.jboss.as.controller.ReloadRequiredWriteAttributeHandler;
+import org.jboss.as.controller.SimpleAttributeDefinition;
+import org.jboss.as.controller.SimpleAttributeDefinitionBuilder;
+import org.jboss.as.controller.SimpleResourceDefinition;
+import org.jboss.as.controller.operations.validation.IntRangeValidator;
+import org.jboss.as.controller.operations.validation.StringLengthValidator;
+import org.jboss.as.controller.registry.AttributeAccess;
+import org.jboss.as.controller.registry.ManagementResourceRegistration;
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.ModelType;
+import org.rhq.msg.broker.NetworkConnectorConfiguration;
+
+/**
+ * Defines the child resources of the subsystem that each connect the embedded broker to the brokers of other WildFly
+ * instances, forming a network of brokers. The connectors are created when the broker is started, so any change
+ * requires a reload.
+ */
+public class NetworkConnectorDefinition extends SimpleResourceDefinition {
+
+    public static final NetworkConnectorDefinition INSTANCE = new NetworkConnectorDefinition();
+
+    protected static final SimpleAttributeDefinition URIS_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(BrokerSubsystemExtension.URIS_ATTR,
+            ModelType.STRING).setAllowExpression(true).setXmlName(BrokerSubsystemExtension.URIS_ATTR)
+            .setFlags(AttributeAccess.Flag.RESTART_RESOURCE_SERVICES).setValidator(new StringLengthValidator(1)).setAllowNull(false).build();
+
+    protected static final SimpleAttributeDefinition DUPLEX_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(BrokerSubsystemExtension.DUPLEX_ATTR,
+            ModelType.BOOLEAN).setAllowExpression(true).setXmlName(BrokerSubsystemExtension.DUPLEX_ATTR)
+            .setFlags(AttributeAccess.Flag.RESTART_RESOURCE_SERVICES).setDefaultValue(new ModelNode(BrokerSubsystemExtension.DUPLEX_DEFAULT))
+            .setAllowNull(true).build();
+
+    protected static final SimpleAttributeDefinition CONDUIT_SUBSCRIPTIONS_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.CONDUIT_SUBSCRIPTIONS_ATTR, ModelType.BOOLEAN).setAllowExpression(true)
+            .setXmlName(BrokerSubsystemExtension.CONDUIT_SUBSCRIPTIONS_ATTR).setFlags(AttributeAccess.Flag.RESTART_RESOURCE_SERVICES)
+            .setDefaultValue(new ModelNode(BrokerSubsystemExtension.CONDUIT_SUBSCRIPTIONS_DEFAULT)).setAllowNull(true).build();
+
+    protected static final SimpleAttributeDefinition DECREASE_NETWORK_CONSUMER_PRIORITY_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.DECREASE_NETWORK_CONSUMER_PRIORITY_ATTR, ModelType.BOOLEAN).setAllowExpression(true)
+            .setXmlName(BrokerSubsystemExtension.DECREASE_NETWORK_CONSUMER_PRIORITY_ATTR).setFlags(AttributeAccess.Flag.RESTART_RESOURCE_SERVICES)
+            .setDefaultValue(new ModelNode(BrokerSubsystemExtension.DECREASE_NETWORK_CONSUMER_PRIORITY_DEFAULT)).setAllowNull(true).build();
+
+    protected static final SimpleAttributeDefinition DEMAND_FORWARDING_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.DEMAND_FORWARDING_ATTR, ModelType.BOOLEAN).setAllowExpression(true)
+            .setXmlName(BrokerSubsystemExtension.DEMAND_FORWARDING_ATTR).setFlags(AttributeAccess.Flag.RESTART_RESOURCE_SERVICES)
+            .setDefaultValue(new ModelNode(BrokerSubsystemExtension.DEMAND_FORWARDING_DEFAULT)).setAllowNull(true).build();
+
+    protected static final SimpleAttributeDefinition NETWORK_TTL_ATTRIBDEF = new SimpleAttributeDefinitionBuilder(
+            BrokerSubsystemExtension.NETWORK_TTL_ATTR, ModelType.INT).setAllowExpression(true).setXmlName(BrokerSubsystemExtension.NETWORK_TTL_ATTR)
+            .setFlags(AttributeAccess.Flag.RESTART_RESOURCE_SERVICES).setDefaultValue(new ModelNode(BrokerSubsystemExtension.NETWORK_TTL_DEFAULT))
+            .setValidator(new IntRangeValidator(1, true)).setAllowNull(true).build();
+
+    protected static final AttributeDefinition[] ATTRIBUTES = { URIS_ATTRIBDEF, DUPLEX_ATTRIBDEF, CONDUIT_SUBSCRIPTIONS_ATTRIBDEF,
+            DECREASE_NETWORK_CONSUMER_PRIORITY_ATTRIBDEF, DEMAND_FORWARDING_ATTRIBDEF, NETWORK_TTL_ATTRIBDEF };
+
+    private NetworkConnectorDefinition() {
+        super(BrokerSubsystemExtension.NETWORK_CONNECTOR_PATH, BrokerSubsystemExtension
+                .getResourceDescriptionResolver(BrokerSubsystemExtension.NETWORK_CONNECTOR_ELEMENT), NetworkConnectorAdd.INSTANCE,
+                NetworkConnectorRemove.INSTANCE);
+    }
+
+    @Override
+    public void registerAttributes(ManagementResourceRegistration rr) {
+        for (AttributeDefinition def : ATTRIBUTES) {
+            rr.registerReadWriteAttribute(def, null, new ReloadRequiredWriteAttributeHandler(def));
+        }
+    }
+
+    /**
+     * Converts the model of a network-connector resource to the configuration the broker understands.
+     *
+     * @param context
+     *            used to resolve any expressions found in the model
+     * @param name
+     *            the name of the network-connector resource
+     * @param connectorModel
+     *            the model of the network-connector resource
+     * @return the network connector configuration
+     * @throws OperationFailedException
+     *             if the model could not be resolved
+     */
+    static NetworkConnectorConfiguration createNetworkConnector(OperationContext context, String name, ModelNode connectorModel)
+        throws OperationFailedException {
+
+        NetworkConnectorConfiguration config = new NetworkConnectorConfiguration(name);
+
+        // the URIs of the remote brokers are given as a comma-separated list
+        String uris = URIS_ATTRIBDEF.resolveModelAttribute(context, connectorModel).asString();
+        for (String uri : uris.split(",")) {
+            uri = uri.trim();
+            if (uri.length() > 0) {
+                config.addUri(uri);
+            }
+        }
+
+        config.setDuplex(DUPLEX_ATTRIBDEF.resolveModelAttribute(context, connectorModel).asBoolean());
+        config.setConduitSubscriptions(CONDUIT_SUBSCRIPTIONS_ATTRIBDEF.resolveModelAttribute(context, connectorModel).asBoolean());
+        config.setDecreaseNetworkConsumerPriority(DECREASE_NETWORK_CONSUMER_PRIORITY_ATTRIBDEF.resolveModelAttribute(context, connectorModel)
+                .asBoolean());
+        config.setDemandForwarding(DEMAND_FORWARDING_ATTRIBDEF.resolveModelAttribute(context, connectorModel).asBoolean());
+        config.setNetworkTTL(NETWORK_TTL_ATTRIBDEF.resolveModelAttribute(context, connectorModel).asInt());
+        return config;
+    }
+}
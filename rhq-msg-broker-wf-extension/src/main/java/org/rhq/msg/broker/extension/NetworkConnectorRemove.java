@@ -0,0 +1,30 @@
+package org.rhq.msg.broker.extension;
+
+import org.jboss.as.controller.AbstractRemoveStepHandler;
+import org.jboss.as.controller.OperationContext;
+import org.jboss.as.controller.OperationFailedException;
+import org.jboss.dmr.ModelNode;
+
+class NetworkConnectorRemove extends AbstractRemoveStepHandler {
+
+    static final NetworkConnectorRemove INSTANCE = new NetworkConnectorRemove();
+
+    private NetworkConnectorRemove() {
+    }
+
+    @Override
+    protected void performRuntime(OperationContext context, ModelNode operation, ModelNode model)
+        throws OperationFailedException {
+
+        if (context.getServiceRegistry(false).getService(BrokerService.SERVICE_NAME) != null) {
+            context.reloadRequired();
+        }
+    }
+
+    @Override
+    protected void recoverServices(OperationContext context, ModelNode operation, ModelNode model)
+        throws OperationFailedException {
+
+        context.revertReloadRequired();
+    }
+}
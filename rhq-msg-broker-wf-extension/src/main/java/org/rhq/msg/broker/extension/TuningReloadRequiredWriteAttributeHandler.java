@@ -0,0 +1,51 @@
+package org.rhq.msg.broker.extension;
+
+import org.jboss.as.controller.AttributeDefinition;
+import org.jboss.as.controller.OperationContext;
+import org.jboss.as.controller.OperationContext.AttachmentKey;
+import org.jboss.as.controller.OperationFailedException;
+import org.jboss.as.controller.ReloadRequiredWriteAttributeHandler;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Handles changes to the destination policy settings that the running broker cannot pick up. Besides requiring a
+ * reload, it tells the broker service that the tuning in the model now differs from the running one, so that later
+ * changes are not applied in place together with this one (see {@link BrokerTuningWriteAttributeHandler}).
+ */
+class TuningReloadRequiredWriteAttributeHandler extends ReloadRequiredWriteAttributeHandler {
+
+    /**
+     * Whether a tuning change already waited for a reload before this operation; restored if it is rolled back.
+     */
+    private static final AttachmentKey<Boolean> PREVIOUS_TUNING_RELOAD_REQUIRED = AttachmentKey.create(Boolean.class);
+
+    TuningReloadRequiredWriteAttributeHandler(AttributeDefinition... definitions) {
+        super(definitions);
+    }
+
+    @Override
+    protected boolean applyUpdateToRuntime(OperationContext context, ModelNode operation, String attributeName,
+        ModelNode resolvedValue, ModelNode currentValue, HandbackHolder<Void> handbackHolder)
+        throws OperationFailedException {
+
+        boolean reloadRequired = super.applyUpdateToRuntime(context, operation, attributeName, resolvedValue, currentValue,
+            handbackHolder);
+        BrokerService service = BrokerService.getBrokerService(context);
+        if (reloadRequired && service != null) {
+            context.attachIfAbsent(PREVIOUS_TUNING_RELOAD_REQUIRED, Boolean.valueOf(service.isTuningReloadRequired()));
+            service.setTuningReloadRequired(true);
+        }
+        return reloadRequired;
+    }
+
+    @Override
+    protected void revertUpdateToRuntime(OperationContext context, ModelNode operation, String attributeName,
+        ModelNode valueToRestore, ModelNode valueToRevert, Void handback) {
+
+        BrokerService service = BrokerService.getBrokerService(context);
+        Boolean previous = context.detach(PREVIOUS_TUNING_RELOAD_REQUIRED);
+        if (service != null && previous != null) {
+            service.setTuningReloadRequired(previous.booleanValue());
+        }
+    }
+}
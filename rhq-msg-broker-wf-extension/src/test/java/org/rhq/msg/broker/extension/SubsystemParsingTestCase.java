@@ -8,6 +8,7 @@ import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.OP_
 import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.OUTCOME;
 import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.READ_ATTRIBUTE_OPERATION;
 import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.READ_RESOURCE_DESCRIPTION_OPERATION;
+import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.RESPONSE_HEADERS;
 import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.SUBSYSTEM;
 import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.SUCCESS;
 import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.VALUE;
@@ -52,7 +53,7 @@ public class SubsystemParsingTestCase extends SubsystemBaseParsingTestCase {
         List<ModelNode> operations = super.parse(subsystemXml);
 
         // /Check that we have the expected number of operations
-        Assert.assertEquals(operations.size(), 1);
+        Assert.assertEquals(operations.size(), 3);
 
         // Check that each operation has the correct content
         // The add subsystem operation will happen first
@@ -65,6 +66,43 @@ public class SubsystemParsingTestCase extends SubsystemBaseParsingTestCase {
         Assert.assertEquals(element.getValue(), BrokerSubsystemExtension.SUBSYSTEM_NAME);
         Assert.assertEquals(addSubsystem.get(BrokerSubsystemExtension.BROKER_ENABLED_ATTR).resolve().asBoolean(), true);
         Assert.assertEquals(addSubsystem.get(BrokerSubsystemExtension.BROKER_CONFIG_FILE_ATTR).resolve().asString(), "foo/bar.xml");
+        Assert.assertEquals(addSubsystem.get(BrokerSubsystemExtension.STARTUP_TIMEOUT_ATTR).resolve().asLong(), 60000L);
+        Assert.assertEquals(addSubsystem.get(BrokerSubsystemExtension.MEMORY_LIMIT_ATTR).resolve().asLong(), 1048576L);
+        Assert.assertEquals(addSubsystem.get(BrokerSubsystemExtension.STORE_LIMIT_ATTR).resolve().asLong(), 2097152L);
+        Assert.assertEquals(addSubsystem.get(BrokerSubsystemExtension.TEMP_LIMIT_ATTR).resolve().asLong(), 3145728L);
+
+        // The destination policies are added after the subsystem
+        ModelNode addPolicy = operations.get(1);
+        Assert.assertEquals(addPolicy.get(OP).asString(), ADD);
+        addr = PathAddress.pathAddress(addPolicy.get(OP_ADDR));
+        Assert.assertEquals(addr.size(), 2);
+        element = addr.getElement(1);
+        Assert.assertEquals(element.getKey(), BrokerSubsystemExtension.DESTINATION_POLICY_ELEMENT);
+        Assert.assertEquals(element.getValue(), "test-queues");
+        Assert.assertEquals(addPolicy.get(BrokerSubsystemExtension.DESTINATION_TYPE_ATTR).resolve().asString(), "QUEUE");
+        Assert.assertEquals(addPolicy.get(BrokerSubsystemExtension.DESTINATION_PATTERN_ATTR).resolve().asString(), "test.>");
+        Assert.assertEquals(addPolicy.get(BrokerSubsystemExtension.MEMORY_LIMIT_ATTR).resolve().asLong(), 65536L);
+        Assert.assertEquals(addPolicy.get(BrokerSubsystemExtension.PRODUCER_FLOW_CONTROL_ATTR).resolve().asBoolean(), false);
+        Assert.assertEquals(addPolicy.get(BrokerSubsystemExtension.CURSOR_TYPE_ATTR).resolve().asString(), "FILE");
+        Assert.assertEquals(addPolicy.get(BrokerSubsystemExtension.QUEUE_PREFETCH_ATTR).resolve().asInt(), 10);
+        Assert.assertFalse(addPolicy.hasDefined(BrokerSubsystemExtension.TOPIC_PREFETCH_ATTR));
+        Assert.assertEquals(addPolicy.get(BrokerSubsystemExtension.PRIORITIZED_MESSAGES_ATTR).resolve().asBoolean(), true);
+
+        // The network connectors are added after the subsystem, too
+        ModelNode addConnector = operations.get(2);
+        Assert.assertEquals(addConnector.get(OP).asString(), ADD);
+        addr = PathAddress.pathAddress(addConnector.get(OP_ADDR));
+        Assert.assertEquals(addr.size(), 2);
+        element = addr.getElement(1);
+        Assert.assertEquals(element.getKey(), BrokerSubsystemExtension.NETWORK_CONNECTOR_ELEMENT);
+        Assert.assertEquals(element.getValue(), "test-network");
+        Assert.assertEquals(addConnector.get(BrokerSubsystemExtension.URIS_ATTR).resolve().asString(),
+                "tcp://127.0.0.1:61617,tcp://127.0.0.1:61618");
+        Assert.assertEquals(addConnector.get(BrokerSubsystemExtension.DUPLEX_ATTR).resolve().asBoolean(), true);
+        Assert.assertEquals(addConnector.get(BrokerSubsystemExtension.DECREASE_NETWORK_CONSUMER_PRIORITY_ATTR).resolve().asBoolean(), true);
+        Assert.assertEquals(addConnector.get(BrokerSubsystemExtension.DEMAND_FORWARDING_ATTR).resolve().asBoolean(), false);
+        Assert.assertFalse(addConnector.hasDefined(BrokerSubsystemExtension.CONDUIT_SUBSCRIPTIONS_ATTR));
+        Assert.assertFalse(addConnector.hasDefined(BrokerSubsystemExtension.NETWORK_TTL_ATTR));
     }
 
     /**
@@ -81,6 +119,8 @@ public class SubsystemParsingTestCase extends SubsystemBaseParsingTestCase {
         Assert.assertTrue(model.get(SUBSYSTEM).hasDefined(BrokerSubsystemExtension.SUBSYSTEM_NAME));
         Assert.assertTrue(model.get(SUBSYSTEM, BrokerSubsystemExtension.SUBSYSTEM_NAME).hasDefined(BrokerSubsystemExtension.BROKER_ENABLED_ATTR));
         Assert.assertTrue(model.get(SUBSYSTEM, BrokerSubsystemExtension.SUBSYSTEM_NAME, BrokerSubsystemExtension.BROKER_ENABLED_ATTR).resolve().asBoolean());
+        Assert.assertTrue(model.get(SUBSYSTEM, BrokerSubsystemExtension.SUBSYSTEM_NAME, BrokerSubsystemExtension.DESTINATION_POLICY_ELEMENT).hasDefined("test-queues"));
+        Assert.assertTrue(model.get(SUBSYSTEM, BrokerSubsystemExtension.SUBSYSTEM_NAME, BrokerSubsystemExtension.NETWORK_CONNECTOR_ELEMENT).hasDefined("test-network"));
 
         // Sanity check to test the service was there
         BrokerService broker = (BrokerService) services.getContainer().getRequiredService(BrokerService.SERVICE_NAME)            .getValue();
@@ -185,7 +225,21 @@ public class SubsystemParsingTestCase extends SubsystemBaseParsingTestCase {
                 BrokerSubsystemExtension.PERSISTENT_ELEMENT, //
                 BrokerSubsystemExtension.BROKER_CONFIG_FILE_ATTR, //
                 BrokerSubsystemExtension.BROKER_NAME_ELEMENT, //
-                BrokerSubsystemExtension.BROKER_ENABLED_ATTR);
+                BrokerSubsystemExtension.BROKER_ENABLED_ATTR, //
+                BrokerSubsystemExtension.STARTUP_TIMEOUT_ATTR, //
+                BrokerSubsystemExtension.MEMORY_LIMIT_ATTR, //
+                BrokerSubsystemExtension.STORE_LIMIT_ATTR, //
+                BrokerSubsystemExtension.TEMP_LIMIT_ATTR, //
+                BrokerSubsystemExtension.ENQUEUE_COUNT_METRIC, //
+                BrokerSubsystemExtension.DEQUEUE_COUNT_METRIC, //
+                BrokerSubsystemExtension.ENQUEUE_RATE_METRIC, //
+                BrokerSubsystemExtension.DEQUEUE_RATE_METRIC, //
+                BrokerSubsystemExtension.MESSAGE_COUNT_METRIC, //
+                BrokerSubsystemExtension.CONSUMER_COUNT_METRIC, //
+                BrokerSubsystemExtension.MEMORY_PERCENT_USAGE_METRIC, //
+                BrokerSubsystemExtension.STORE_USAGE_METRIC, //
+                BrokerSubsystemExtension.STORE_PERCENT_USAGE_METRIC, //
+                BrokerSubsystemExtension.AVERAGE_ENQUEUE_TIME_METRIC);
         Assert.assertEquals(attributes.size(), expectedAttributes.size());
 
         for (int i = 0 ; i < attributes.size(); i++) {
@@ -280,4 +334,41 @@ public class SubsystemParsingTestCase extends SubsystemBaseParsingTestCase {
         // result = services.executeOperation(statusOp);
         // Assert.assertTrue(checkResultAndGetContents(result).asBoolean());
     }
+
+    public void testWriteTuningAttributes() throws Exception {
+        String subsystemXml = getSubsystemXml();
+        KernelServices services = createKernelServicesBuilder(null).setSubsystemXml(subsystemXml).build();
+
+        PathAddress brokerSubsystemPath = PathAddress.pathAddress(PathElement.pathElement(SUBSYSTEM, BrokerSubsystemExtension.SUBSYSTEM_NAME));
+        PathAddress policyPath = brokerSubsystemPath.append(BrokerSubsystemExtension.DESTINATION_POLICY_ELEMENT, "test-queues");
+
+        // usage limits are applied in place - no reload should be needed
+        ModelNode writeOp = new ModelNode();
+        writeOp.get(OP).set(WRITE_ATTRIBUTE_OPERATION);
+        writeOp.get(OP_ADDR).set(brokerSubsystemPath.toModelNode());
+        writeOp.get(NAME).set(BrokerSubsystemExtension.MEMORY_LIMIT_ATTR);
+        writeOp.get(VALUE).set(4194304L);
+        ModelNode result = services.executeOperation(writeOp);
+        Assert.assertEquals(result.get(OUTCOME).asString(), SUCCESS);
+        Assert.assertFalse(result.hasDefined(RESPONSE_HEADERS), "should not require reload: " + result);
+
+        BrokerService service = (BrokerService) services.getContainer().getService(BrokerService.SERVICE_NAME).getService();
+        Assert.assertEquals(service.getBrokerTuning().getMemoryLimit(), 4194304L);
+
+        // so are the policy's flow control and prefetch settings
+        writeOp.get(OP_ADDR).set(policyPath.toModelNode());
+        writeOp.get(NAME).set(BrokerSubsystemExtension.TOPIC_PREFETCH_ATTR);
+        writeOp.get(VALUE).set(5);
+        result = services.executeOperation(writeOp);
+        Assert.assertEquals(result.get(OUTCOME).asString(), SUCCESS);
+        Assert.assertFalse(result.hasDefined(RESPONSE_HEADERS), "should not require reload: " + result);
+        Assert.assertEquals(service.getBrokerTuning().getDestinationPolicies().get(0).getTopicPrefetch(), 5);
+
+        // but changing which destinations the policy applies to is structural
+        writeOp.get(NAME).set(BrokerSubsystemExtension.DESTINATION_PATTERN_ATTR);
+        writeOp.get(VALUE).set("other.>");
+        result = services.executeOperation(writeOp);
+        Assert.assertEquals(result.get(OUTCOME).asString(), SUCCESS);
+        Assert.assertTrue(result.hasDefined(RESPONSE_HEADERS), "should require reload: " + result);
+    }
 }
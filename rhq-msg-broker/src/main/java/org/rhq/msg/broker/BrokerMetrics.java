@@ -0,0 +1,133 @@
+package org.rhq.msg.broker;
+
+/**
+ * A point-in-time view of the message traffic flowing through the broker as a whole along with how much of its memory
+ * and store limits the broker is using.
+ *
+ * @see EmbeddedBroker#getBrokerMetrics()
+ */
+public class BrokerMetrics {
+    private long enqueueCount;
+    private long dequeueCount;
+    private double enqueueRate;
+    private double dequeueRate;
+    private long messageCount;
+    private long consumerCount;
+    private int memoryPercentUsage;
+    private long storeUsage;
+    private int storePercentUsage;
+    private double averageEnqueueTime;
+
+    /**
+     * @return the number of messages sent to all destinations since the broker started
+     */
+    public long getEnqueueCount() {
+        return enqueueCount;
+    }
+
+    public void setEnqueueCount(long enqueueCount) {
+        this.enqueueCount = enqueueCount;
+    }
+
+    /**
+     * @return the number of messages acknowledged by consumers since the broker started
+     */
+    public long getDequeueCount() {
+        return dequeueCount;
+    }
+
+    public void setDequeueCount(long dequeueCount) {
+        this.dequeueCount = dequeueCount;
+    }
+
+    /**
+     * @return messages enqueued per second, measured over the most recent sampling interval
+     */
+    public double getEnqueueRate() {
+        return enqueueRate;
+    }
+
+    public void setEnqueueRate(double enqueueRate) {
+        this.enqueueRate = enqueueRate;
+    }
+
+    /**
+     * @return messages dequeued per second, measured over the most recent sampling interval
+     */
+    public double getDequeueRate() {
+        return dequeueRate;
+    }
+
+    public void setDequeueRate(double dequeueRate) {
+        this.dequeueRate = dequeueRate;
+    }
+
+    /**
+     * @return the number of messages waiting to be consumed across all destinations
+     */
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    public void setMessageCount(long messageCount) {
+        this.messageCount = messageCount;
+    }
+
+    public long getConsumerCount() {
+        return consumerCount;
+    }
+
+    public void setConsumerCount(long consumerCount) {
+        this.consumerCount = consumerCount;
+    }
+
+    /**
+     * @return how much of the broker memory limit is currently used, as a percentage
+     */
+    public int getMemoryPercentUsage() {
+        return memoryPercentUsage;
+    }
+
+    public void setMemoryPercentUsage(int memoryPercentUsage) {
+        this.memoryPercentUsage = memoryPercentUsage;
+    }
+
+    /**
+     * @return the number of bytes the persistent message store is currently using
+     */
+    public long getStoreUsage() {
+        return storeUsage;
+    }
+
+    public void setStoreUsage(long storeUsage) {
+        this.storeUsage = storeUsage;
+    }
+
+    /**
+     * @return how much of the store limit is currently used, as a percentage
+     */
+    public int getStorePercentUsage() {
+        return storePercentUsage;
+    }
+
+    public void setStorePercentUsage(int storePercentUsage) {
+        this.storePercentUsage = storePercentUsage;
+    }
+
+    /**
+     * @return the average number of milliseconds a message spent in the broker before it was acknowledged
+     */
+    public double getAverageEnqueueTime() {
+        return averageEnqueueTime;
+    }
+
+    public void setAverageEnqueueTime(double averageEnqueueTime) {
+        this.averageEnqueueTime = averageEnqueueTime;
+    }
+
+    @Override
+    public String toString() {
+        return "BrokerMetrics: [enqueue-count=" + enqueueCount + ", dequeue-count=" + dequeueCount + ", message-count=" + messageCount
+                + ", consumer-count=" + consumerCount + ", memory-percent-usage=" + memoryPercentUsage + ", store-usage=" + storeUsage + "]";
+    }
+}
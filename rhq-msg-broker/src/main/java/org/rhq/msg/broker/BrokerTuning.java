@@ -0,0 +1,75 @@
+package org.rhq.msg.broker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Resource limits and destination policies that are applied on top of whatever the broker configuration file defines.
+ * This lets the embedding environment bound how much heap, store and temp space the broker may use without requiring a
+ * custom configuration file.
+ *
+ * A limit of 0 means the limit is the one defined in the broker configuration file, also when a tuning that set it is
+ * replaced by one that does not.
+ *
+ * @see EmbeddedBroker#applyBrokerTuning(BrokerTuning)
+ */
+public class BrokerTuning {
+    private long memoryLimit = 0L;
+    private long storeLimit = 0L;
+    private long tempLimit = 0L;
+    private final List<DestinationPolicy> destinationPolicies = new ArrayList<DestinationPolicy>();
+
+    /**
+     * @return the number of bytes of heap all destinations combined may use to hold messages
+     */
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    public void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * @return the number of bytes the persistent message store may use
+     */
+    public long getStoreLimit() {
+        return storeLimit;
+    }
+
+    public void setStoreLimit(long storeLimit) {
+        this.storeLimit = storeLimit;
+    }
+
+    /**
+     * @return the number of bytes of temp storage used to spool non-persistent messages out of the heap
+     */
+    public long getTempLimit() {
+        return tempLimit;
+    }
+
+    public void setTempLimit(long tempLimit) {
+        this.tempLimit = tempLimit;
+    }
+
+    /**
+     * @return the per-destination policies, in the order they were added. This is a read-only list.
+     */
+    public List<DestinationPolicy> getDestinationPolicies() {
+        return Collections.unmodifiableList(destinationPolicies);
+    }
+
+    public void addDestinationPolicy(DestinationPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("policy must not be null");
+        }
+        destinationPolicies.add(policy);
+    }
+
+    @Override
+    public String toString() {
+        return "BrokerTuning: [memory-limit=" + memoryLimit + ", store-limit=" + storeLimit + ", temp-limit=" + tempLimit
+                + ", destination-policies=" + destinationPolicies + "]";
+    }
+}
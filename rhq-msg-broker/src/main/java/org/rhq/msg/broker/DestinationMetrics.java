@@ -0,0 +1,131 @@
+package org.rhq.msg.broker;
+
+import org.rhq.msg.broker.DestinationPolicy.DestinationType;
+
+/**
+ * A point-in-time view of the message traffic flowing through a single queue or topic.
+ *
+ * @see EmbeddedBroker#getDestinationMetrics()
+ */
+public class DestinationMetrics {
+    private final DestinationType destinationType;
+    private final String name;
+    private long enqueueCount;
+    private long dequeueCount;
+    private double enqueueRate;
+    private double dequeueRate;
+    private long messageCount;
+    private long consumerCount;
+    private int memoryPercentUsage;
+    private double averageEnqueueTime;
+
+    public DestinationMetrics(DestinationType destinationType, String name) {
+        if (destinationType == null) {
+            throw new NullPointerException("destination type must not be null");
+        }
+        if (name == null) {
+            throw new NullPointerException("name must not be null");
+        }
+        this.destinationType = destinationType;
+        this.name = name;
+    }
+
+    public DestinationType getDestinationType() {
+        return destinationType;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of messages sent to the destination since the broker started
+     */
+    public long getEnqueueCount() {
+        return enqueueCount;
+    }
+
+    public void setEnqueueCount(long enqueueCount) {
+        this.enqueueCount = enqueueCount;
+    }
+
+    /**
+     * @return the number of messages acknowledged by consumers of the destination since the broker started
+     */
+    public long getDequeueCount() {
+        return dequeueCount;
+    }
+
+    public void setDequeueCount(long dequeueCount) {
+        this.dequeueCount = dequeueCount;
+    }
+
+    /**
+     * @return messages enqueued per second, measured over the most recent sampling interval
+     */
+    public double getEnqueueRate() {
+        return enqueueRate;
+    }
+
+    public void setEnqueueRate(double enqueueRate) {
+        this.enqueueRate = enqueueRate;
+    }
+
+    /**
+     * @return messages dequeued per second, measured over the most recent sampling interval
+     */
+    public double getDequeueRate() {
+        return dequeueRate;
+    }
+
+    public void setDequeueRate(double dequeueRate) {
+        this.dequeueRate = dequeueRate;
+    }
+
+    /**
+     * @return the number of messages waiting to be consumed (i.e. the queue depth)
+     */
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    public void setMessageCount(long messageCount) {
+        this.messageCount = messageCount;
+    }
+
+    public long getConsumerCount() {
+        return consumerCount;
+    }
+
+    public void setConsumerCount(long consumerCount) {
+        this.consumerCount = consumerCount;
+    }
+
+    /**
+     * @return how much of its memory limit the destination is currently using, as a percentage
+     */
+    public int getMemoryPercentUsage() {
+        return memoryPercentUsage;
+    }
+
+    public void setMemoryPercentUsage(int memoryPercentUsage) {
+        this.memoryPercentUsage = memoryPercentUsage;
+    }
+
+    /**
+     * @return the average number of milliseconds a message spent in the destination before it was acknowledged
+     */
+    public double getAverageEnqueueTime() {
+        return averageEnqueueTime;
+    }
+
+    public void setAverageEnqueueTime(double averageEnqueueTime) {
+        this.averageEnqueueTime = averageEnqueueTime;
+    }
+
+    @Override
+    public String toString() {
+        return "{" + destinationType.name() + "}" + name + ": enqueue-count=" + enqueueCount + ", dequeue-count=" + dequeueCount
+                + ", message-count=" + messageCount + ", consumer-count=" + consumerCount;
+    }
+}
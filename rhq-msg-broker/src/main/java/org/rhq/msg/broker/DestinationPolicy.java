@@ -0,0 +1,199 @@
+package org.rhq.msg.broker;
+
+import org.apache.activemq.broker.region.policy.FilePendingDurableSubscriberMessageStoragePolicy;
+import org.apache.activemq.broker.region.policy.FilePendingQueueMessageStoragePolicy;
+import org.apache.activemq.broker.region.policy.FilePendingSubscriberMessageStoragePolicy;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.broker.region.policy.StorePendingDurableSubscriberMessageStoragePolicy;
+import org.apache.activemq.broker.region.policy.StorePendingQueueMessageStoragePolicy;
+import org.apache.activemq.broker.region.policy.VMPendingDurableSubscriberMessageStoragePolicy;
+import org.apache.activemq.broker.region.policy.VMPendingQueueMessageStoragePolicy;
+import org.apache.activemq.broker.region.policy.VMPendingSubscriberMessageStoragePolicy;
+
+/**
+ * Describes how the broker should treat all queues or topics whose names match a destination pattern. The pattern uses
+ * the broker's wildcard syntax (e.g. "agent.>" matches all destinations whose names start with "agent.").
+ *
+ * A policy lets you put a memory limit on matching destinations and decide what happens when that limit is reached -
+ * either producers are throttled (producer flow control) or pending messages are spooled out of the heap, depending on
+ * the {@link CursorType cursor type}. A policy can also make matching destinations dispatch messages in order of their
+ * JMS priority, so that urgent messages overtake the bulk of messages already waiting.
+ */
+public class DestinationPolicy {
+
+    public enum DestinationType {
+        QUEUE, TOPIC
+    }
+
+    /**
+     * Determines where messages are held while they wait to be dispatched to consumers.
+     */
+    public enum CursorType {
+        /** pending messages are paged in from the message store as needed */
+        STORE,
+        /** pending messages are kept in memory */
+        VM,
+        /** pending messages are kept in memory until the memory limit is reached, then are spooled to temp storage */
+        FILE
+    }
+
+    private final DestinationType destinationType;
+    private final String destinationPattern;
+    private long memoryLimit = 0L;
+    private boolean producerFlowControl = true;
+    private CursorType cursorType = null;
+    private int queuePrefetch = 0;
+    private int topicPrefetch = 0;
+    private boolean prioritizedMessages = false;
+
+    public DestinationPolicy(DestinationType destinationType, String destinationPattern) {
+        if (destinationType == null) {
+            throw new NullPointerException("destination type must not be null");
+        }
+        if (destinationPattern == null || destinationPattern.length() == 0) {
+            throw new NullPointerException("destination pattern must not be null or empty");
+        }
+        this.destinationType = destinationType;
+        this.destinationPattern = destinationPattern;
+    }
+
+    public DestinationType getDestinationType() {
+        return destinationType;
+    }
+
+    public String getDestinationPattern() {
+        return destinationPattern;
+    }
+
+    /**
+     * @return the number of bytes each matching destination may hold in memory, or 0 if the broker default is used
+     */
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    public void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * @return if true, producers are slowed down when a matching destination reaches its memory limit
+     */
+    public boolean isProducerFlowControl() {
+        return producerFlowControl;
+    }
+
+    public void setProducerFlowControl(boolean producerFlowControl) {
+        this.producerFlowControl = producerFlowControl;
+    }
+
+    /**
+     * @return the pending message cursor used by matching destinations, or null if the broker default is used
+     */
+    public CursorType getCursorType() {
+        return cursorType;
+    }
+
+    public void setCursorType(CursorType cursorType) {
+        this.cursorType = cursorType;
+    }
+
+    /**
+     * @return the number of messages the broker pushes to each queue consumer ahead of acknowledgement, or 0 if the
+     *         broker default is used
+     */
+    public int getQueuePrefetch() {
+        return queuePrefetch;
+    }
+
+    public void setQueuePrefetch(int queuePrefetch) {
+        this.queuePrefetch = queuePrefetch;
+    }
+
+    /**
+     * @return the number of messages the broker pushes to each topic subscriber ahead of acknowledgement, or 0 if the
+     *         broker default is used
+     */
+    public int getTopicPrefetch() {
+        return topicPrefetch;
+    }
+
+    public void setTopicPrefetch(int topicPrefetch) {
+        this.topicPrefetch = topicPrefetch;
+    }
+
+    /**
+     * @return if true, matching destinations dispatch waiting messages with a higher JMS priority before those with a
+     *         lower priority; otherwise messages are dispatched in the order they arrived. The broker orders the page of
+     *         messages it holds ready for dispatch (200 messages by default), so an urgent message waits for at most that
+     *         many messages however long the backlog is.
+     */
+    public boolean isPrioritizedMessages() {
+        return prioritizedMessages;
+    }
+
+    public void setPrioritizedMessages(boolean prioritizedMessages) {
+        this.prioritizedMessages = prioritizedMessages;
+    }
+
+    /**
+     * Builds the broker policy entry that represents this policy.
+     *
+     * @return the policy entry that can be placed in the broker's destination policy map
+     */
+    public PolicyEntry toPolicyEntry() {
+        PolicyEntry entry = new PolicyEntry();
+
+        if (destinationType == DestinationType.QUEUE) {
+            entry.setQueue(destinationPattern);
+        } else {
+            entry.setTopic(destinationPattern);
+        }
+
+        entry.setProducerFlowControl(producerFlowControl);
+        entry.setPrioritizedMessages(prioritizedMessages);
+
+        if (memoryLimit > 0L) {
+            entry.setMemoryLimit(memoryLimit);
+        }
+
+        if (queuePrefetch > 0) {
+            entry.setQueuePrefetch(queuePrefetch);
+        }
+        if (topicPrefetch > 0) {
+            entry.setTopicPrefetch(topicPrefetch);
+            entry.setDurableTopicPrefetch(topicPrefetch);
+        }
+
+        if (cursorType != null) {
+            switch (cursorType) {
+            case STORE: {
+                entry.setPendingQueuePolicy(new StorePendingQueueMessageStoragePolicy());
+                entry.setPendingDurableSubscriberPolicy(new StorePendingDurableSubscriberMessageStoragePolicy());
+                break;
+            }
+            case VM: {
+                entry.setPendingQueuePolicy(new VMPendingQueueMessageStoragePolicy());
+                entry.setPendingDurableSubscriberPolicy(new VMPendingDurableSubscriberMessageStoragePolicy());
+                entry.setPendingSubscriberPolicy(new VMPendingSubscriberMessageStoragePolicy());
+                break;
+            }
+            case FILE: {
+                entry.setPendingQueuePolicy(new FilePendingQueueMessageStoragePolicy());
+                entry.setPendingDurableSubscriberPolicy(new FilePendingDurableSubscriberMessageStoragePolicy());
+                entry.setPendingSubscriberPolicy(new FilePendingSubscriberMessageStoragePolicy());
+                break;
+            }
+            }
+        }
+
+        return entry;
+    }
+
+    @Override
+    public String toString() {
+        return "{" + destinationType.name() + "}" + destinationPattern + ": memory-limit=" + memoryLimit + ", producer-flow-control="
+                + producerFlowControl + ", cursor-type=" + cursorType + ", queue-prefetch=" + queuePrefetch + ", topic-prefetch=" + topicPrefetch
+                + ", prioritized-messages=" + prioritizedMessages;
+    }
+}
@@ -4,10 +4,37 @@ import gnu.getopt.Getopt;
 import gnu.getopt.LongOpt;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
-
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.activemq.advisory.AdvisorySupport;
+import org.apache.activemq.broker.Broker;
 import org.apache.activemq.broker.BrokerFactory;
 import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.TransportConnector;
+import org.apache.activemq.broker.region.Destination;
+import org.apache.activemq.broker.region.DestinationFilter;
+import org.apache.activemq.broker.region.DestinationStatistics;
+import org.apache.activemq.broker.region.Queue;
+import org.apache.activemq.broker.region.RegionBroker;
+import org.apache.activemq.broker.region.Topic;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.broker.region.policy.PolicyMap;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.network.NetworkConnector;
+import org.apache.activemq.transport.TransportServer;
+import org.apache.activemq.usage.SystemUsage;
+import org.apache.activemq.util.ServiceSupport;
+import org.rhq.msg.broker.DestinationPolicy.DestinationType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,6 +52,14 @@ public class EmbeddedBroker {
     private final Logger log = LoggerFactory.getLogger(EmbeddedBroker.class);
     private InitializationParameters initialParameters;
     private BrokerService brokerService;
+    private final List<PolicyEntry> appliedPolicyEntries = new ArrayList<PolicyEntry>();
+    // the limits of the configuration file, restored when a tuning no longer sets them
+    private long configuredMemoryLimit;
+    private long configuredStoreLimit;
+    private long configuredTempLimit;
+    // separates the qualified name of a destination from the name of its rate in the keys of the rate samplers
+    private static final char RATE_KEY_SEPARATOR = '|';
+    private final ConcurrentMap<String, RateSampler> rateSamplers = new ConcurrentHashMap<String, RateSampler>();
 
     public static void main(String[] args) throws Exception {
         if (args.length == 0) {
@@ -69,6 +104,57 @@ public class EmbeddedBroker {
         log.info("Started broker");
     }
 
+    /**
+     * The broker is ready when it has been started and the servers of all of its transport connectors have been
+     * started, which is when they accept connections. The broker itself reports that it has started only once it has
+     * started its connectors; they are checked too in case one is restarted or added later.
+     *
+     * @return true if clients can now connect to the broker
+     */
+    public boolean isBrokerReady() {
+        BrokerService broker = getBrokerService();
+        if (broker == null || !broker.isStarted()) {
+            return false;
+        }
+
+        for (TransportConnector connector : broker.getTransportConnectors()) {
+            TransportServer server;
+            try {
+                server = connector.getServer();
+            } catch (Exception e) {
+                log.debug("Transport connector [{}] has no server yet: {}", connector.getName(), e.toString());
+                return false;
+            }
+            if (server instanceof ServiceSupport && !((ServiceSupport) server).isStarted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the broker to become ready to accept connections.
+     *
+     * @param timeoutMillis
+     *            the maximum number of milliseconds to wait
+     * @return true if the broker is ready, false if it did not become ready within the given time
+     * @see #isBrokerReady()
+     */
+    public boolean waitForBrokerReady(long timeoutMillis) throws InterruptedException {
+        long stopTime = System.currentTimeMillis() + timeoutMillis;
+        while (!isBrokerReady()) {
+            BrokerService broker = getBrokerService();
+            if (broker != null && broker.getStartException() != null) {
+                return false; // it will not become ready
+            }
+            if (System.currentTimeMillis() >= stopTime) {
+                return false;
+            }
+            Thread.sleep(100L);
+        }
+        return true;
+    }
+
     public void stopBroker() throws Exception {
         BrokerService broker = getBrokerService();
         if (broker == null) {
@@ -80,7 +166,309 @@ public class EmbeddedBroker {
             log.info("Stopped broker");
         } finally {
             setBrokerService(null); // we do not want to attempt to reuse or restart this broker instance again
+            rateSamplers.clear();
+        }
+    }
+
+    /**
+     * Pushes the current policies to the destinations that already exist in a running broker. Destinations created
+     * later will pick up the policies on their own.
+     */
+    private void updateLiveDestinations(PolicyMap policyMap) {
+        RegionBroker regionBroker = getRegionBroker();
+        if (regionBroker == null) {
+            return;
         }
+
+        for (Destination destination : regionBroker.getDestinationMap().values()) {
+            PolicyEntry entry = policyMap.getEntryFor(destination.getActiveMQDestination());
+            if (entry == null) {
+                continue;
+            }
+
+            // interceptors (e.g. virtual topics) may wrap the actual destination
+            while (destination instanceof DestinationFilter) {
+                destination = ((DestinationFilter) destination).getNext();
+            }
+
+            if (destination instanceof Queue) {
+                entry.update((Queue) destination);
+            } else if (destination instanceof Topic) {
+                entry.update((Topic) destination);
+            }
+        }
+    }
+
+    /**
+     * Returns the current metrics of the broker as a whole. Rates are measured between successive calls, so the very
+     * first call will report rates of 0.
+     * 
+     * @return the broker metrics, or null if the broker is not started
+     */
+    public BrokerMetrics getBrokerMetrics() {
+        RegionBroker regionBroker = getRegionBroker();
+        if (regionBroker == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        DestinationStatistics stats = regionBroker.getDestinationStatistics();
+        SystemUsage systemUsage = getBrokerService().getSystemUsage();
+
+        BrokerMetrics metrics = new BrokerMetrics();
+        metrics.setEnqueueCount(stats.getEnqueues().getCount());
+        metrics.setDequeueCount(stats.getDequeues().getCount());
+        metrics.setEnqueueRate(sampleRate("enqueues", metrics.getEnqueueCount(), now));
+        metrics.setDequeueRate(sampleRate("dequeues", metrics.getDequeueCount(), now));
+        metrics.setMessageCount(stats.getMessages().getCount());
+        metrics.setConsumerCount(stats.getConsumers().getCount());
+        metrics.setAverageEnqueueTime(stats.getProcessTime().getAverageTime());
+        metrics.setMemoryPercentUsage(systemUsage.getMemoryUsage().getPercentUsage());
+        metrics.setStoreUsage(systemUsage.getStoreUsage().getUsage());
+        metrics.setStorePercentUsage(systemUsage.getStoreUsage().getPercentUsage());
+        return metrics;
+    }
+
+    /**
+     * Returns the current metrics of all queues and topics. Temporary destinations and the broker's own advisory
+     * topics are not included.
+     * 
+     * @return the destination metrics; empty if the broker is not started
+     */
+    public List<DestinationMetrics> getDestinationMetrics() {
+        List<DestinationMetrics> metrics = new ArrayList<DestinationMetrics>();
+        RegionBroker regionBroker = getRegionBroker();
+        if (regionBroker == null) {
+            return metrics;
+        }
+
+        Map<ActiveMQDestination, Destination> destinationMap = regionBroker.getDestinationMap();
+        removeRateSamplersOfRemovedDestinations(destinationMap);
+        long now = System.currentTimeMillis();
+        for (Destination destination : destinationMap.values()) {
+            if (isMonitoredDestination(destination.getActiveMQDestination())) {
+                metrics.add(createDestinationMetrics(destination, now));
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the names of all queues or all topics, like {@link #getDestinationMetrics()} would, but without sampling
+     * their rates. Use this to find out which destinations exist, as sampling too often shortens the interval the
+     * rates are measured over.
+     * 
+     * @param type
+     *            whether to return the names of the queues or of the topics
+     * @return the sorted destination names; empty if the broker is not started
+     */
+    public Set<String> getDestinationNames(DestinationType type) {
+        Set<String> names = new TreeSet<String>();
+        RegionBroker regionBroker = getRegionBroker();
+        if (regionBroker == null) {
+            return names;
+        }
+
+        Map<ActiveMQDestination, Destination> destinationMap = regionBroker.getDestinationMap();
+        removeRateSamplersOfRemovedDestinations(destinationMap);
+        for (ActiveMQDestination destination : destinationMap.keySet()) {
+            if (isMonitoredDestination(destination) && destination.isQueue() == (type == DestinationType.QUEUE)) {
+                names.add(destination.getPhysicalName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns the current metrics of the given queue or topic.
+     * 
+     * @param type
+     *            whether the destination is a queue or topic
+     * @param name
+     *            the name of the destination
+     * @return the destination metrics, or null if the broker is not started or the destination does not exist
+     */
+    public DestinationMetrics getDestinationMetrics(DestinationType type, String name) {
+        RegionBroker regionBroker = getRegionBroker();
+        if (regionBroker == null) {
+            return null;
+        }
+
+        ActiveMQDestination amqDestination = (type == DestinationType.QUEUE) ? new ActiveMQQueue(name) : new ActiveMQTopic(name);
+        Map<ActiveMQDestination, Destination> destinationMap = regionBroker.getDestinationMap();
+        Destination destination = destinationMap.get(amqDestination);
+        if (destination == null) {
+            removeRateSamplers(amqDestination.getQualifiedName());
+            return null;
+        }
+        return createDestinationMetrics(destination, System.currentTimeMillis());
+    }
+
+    private DestinationMetrics createDestinationMetrics(Destination destination, long now) {
+        ActiveMQDestination amqDestination = destination.getActiveMQDestination();
+        DestinationType type = amqDestination.isQueue() ? DestinationType.QUEUE : DestinationType.TOPIC;
+        DestinationStatistics stats = destination.getDestinationStatistics();
+        String key = amqDestination.getQualifiedName();
+
+        DestinationMetrics metrics = new DestinationMetrics(type, amqDestination.getPhysicalName());
+        metrics.setEnqueueCount(stats.getEnqueues().getCount());
+        metrics.setDequeueCount(stats.getDequeues().getCount());
+        metrics.setEnqueueRate(sampleRate(key + RATE_KEY_SEPARATOR + "enqueues", metrics.getEnqueueCount(), now));
+        metrics.setDequeueRate(sampleRate(key + RATE_KEY_SEPARATOR + "dequeues", metrics.getDequeueCount(), now));
+        metrics.setMessageCount(stats.getMessages().getCount());
+        metrics.setConsumerCount(stats.getConsumers().getCount());
+        metrics.setAverageEnqueueTime(stats.getProcessTime().getAverageTime());
+        metrics.setMemoryPercentUsage(destination.getMemoryUsage().getPercentUsage());
+        return metrics;
+    }
+
+    private boolean isMonitoredDestination(ActiveMQDestination destination) {
+        return !destination.isTemporary() && !AdvisorySupport.isAdvisoryTopic(destination);
+    }
+
+    /**
+     * Forgets the rates of destinations that no longer exist, so that their samplers do not pile up and a destination
+     * created again under the same name starts with a fresh rate.
+     */
+    private void removeRateSamplersOfRemovedDestinations(Map<ActiveMQDestination, Destination> destinationMap) {
+        Set<String> existing = new HashSet<String>();
+        for (ActiveMQDestination destination : destinationMap.keySet()) {
+            existing.add(destination.getQualifiedName());
+        }
+        for (String key : rateSamplers.keySet()) {
+            int separator = key.lastIndexOf(RATE_KEY_SEPARATOR);
+            if (separator >= 0 && !existing.contains(key.substring(0, separator))) {
+                rateSamplers.remove(key);
+            }
+        }
+    }
+
+    private void removeRateSamplers(String qualifiedName) {
+        rateSamplers.remove(qualifiedName + RATE_KEY_SEPARATOR + "enqueues");
+        rateSamplers.remove(qualifiedName + RATE_KEY_SEPARATOR + "dequeues");
+    }
+
+    /**
+     * @return the number of rates currently sampled, for the broker as a whole and per destination
+     */
+    int getRateSamplerCount() {
+        return rateSamplers.size();
+    }
+
+    private double sampleRate(String key, long count, long now) {
+        RateSampler sampler = rateSamplers.get(key);
+        if (sampler == null) {
+            RateSampler newSampler = new RateSampler(count, now);
+            sampler = rateSamplers.putIfAbsent(key, newSampler);
+            if (sampler == null) {
+                sampler = newSampler;
+            }
+        }
+        return sampler.sample(count, now);
+    }
+
+    /**
+     * @return the broker that owns all destinations, or null if the broker is not started
+     */
+    private RegionBroker getRegionBroker() {
+        BrokerService broker = getBrokerService();
+        if (broker == null || !broker.isStarted()) {
+            return null;
+        }
+        Broker regionBroker = broker.getRegionBroker();
+        if (regionBroker == null) {
+            return null;
+        }
+        return (RegionBroker) regionBroker.getAdaptor(RegionBroker.class);
+    }
+
+    /**
+     * Applies the given resource limits and destination policies on top of the settings found in the broker
+     * configuration file. This can be called before the broker is started or while it is running. Policies applied by
+     * a previous call are replaced by the policies given here, and limits the tuning does not set go back to those of
+     * the configuration file.
+     * 
+     * When the broker is running, the new limits, memory limits and flow control settings take effect immediately on
+     * all existing destinations. Prefetch sizes only apply to consumers that subscribe afterwards. The cursor type of
+     * an existing destination cannot be changed; neither can a destination that no longer matches any policy go back
+     * to its defaults - those changes only apply to destinations created afterwards.
+     * 
+     * @param tuning
+     *            the limits and policies to apply; if null, this method does nothing
+     */
+    public synchronized void applyBrokerTuning(BrokerTuning tuning) {
+        if (tuning == null) {
+            return;
+        }
+
+        BrokerService broker = getBrokerService();
+        if (broker == null) {
+            throw new IllegalStateException("Broker was not initialized");
+        }
+
+        SystemUsage systemUsage = broker.getSystemUsage();
+        systemUsage.getMemoryUsage().setLimit((tuning.getMemoryLimit() > 0L) ? tuning.getMemoryLimit() : configuredMemoryLimit);
+        systemUsage.getStoreUsage().setLimit((tuning.getStoreLimit() > 0L) ? tuning.getStoreLimit() : configuredStoreLimit);
+        systemUsage.getTempUsage().setLimit((tuning.getTempLimit() > 0L) ? tuning.getTempLimit() : configuredTempLimit);
+
+        // keep any policies that came from the configuration file - ours are simply added to them
+        PolicyMap policyMap = broker.getDestinationPolicy();
+        if (policyMap == null && !tuning.getDestinationPolicies().isEmpty()) {
+            policyMap = new PolicyMap();
+            broker.setDestinationPolicy(policyMap);
+        }
+        if (policyMap != null) {
+            for (PolicyEntry entry : appliedPolicyEntries) {
+                policyMap.remove(entry.getDestination(), entry);
+            }
+            appliedPolicyEntries.clear();
+            for (DestinationPolicy policy : tuning.getDestinationPolicies()) {
+                PolicyEntry entry = policy.toPolicyEntry();
+                policyMap.put(entry.getDestination(), entry);
+                appliedPolicyEntries.add(entry);
+            }
+            updateLiveDestinations(policyMap);
+        }
+
+        log.info("Applied broker tuning: {}", tuning);
+    }
+
+    /**
+     * Connects this broker to the remote brokers described by the given configuration, in addition to any network
+     * connectors found in the broker configuration file. This must be called before the broker is started.
+     *
+     * If the connector does not use demand forwarding, all queues and topics are statically forwarded to the remote
+     * brokers, whether or not they have consumers for them.
+     *
+     * @param config
+     *            describes the remote brokers and how messages are forwarded to them
+     */
+    public synchronized void addNetworkConnector(NetworkConnectorConfiguration config) throws Exception {
+        if (config == null) {
+            throw new NullPointerException("config must not be null");
+        }
+
+        BrokerService broker = getBrokerService();
+        if (broker == null) {
+            throw new IllegalStateException("Broker was not initialized");
+        }
+        if (broker.isStarted()) {
+            throw new IllegalStateException("Network connectors must be added before the broker is started");
+        }
+
+        NetworkConnector connector = broker.addNetworkConnector(config.getDiscoveryUri());
+        connector.setName(config.getName());
+        connector.setDuplex(config.isDuplex());
+        connector.setConduitSubscriptions(config.isConduitSubscriptions());
+        connector.setDecreaseNetworkConsumerPriority(config.isDecreaseNetworkConsumerPriority());
+        connector.setNetworkTTL(config.getNetworkTTL());
+        if (!config.isDemandForwarding()) {
+            connector.setStaticBridge(true);
+            connector.addStaticallyIncludedDestination(new ActiveMQQueue(">"));
+            connector.addStaticallyIncludedDestination(new ActiveMQTopic(">"));
+        }
+
+        log.info("Added network connector: {}", config);
     }
 
     protected InitializationParameters getInitializationParameters() {
@@ -102,6 +490,10 @@ public class EmbeddedBroker {
         }
 
         BrokerService broker = BrokerFactory.createBroker(initParams.configFile, false);
+        SystemUsage systemUsage = broker.getSystemUsage();
+        configuredMemoryLimit = systemUsage.getMemoryUsage().getLimit();
+        configuredStoreLimit = systemUsage.getStoreUsage().getLimit();
+        configuredTempLimit = systemUsage.getTempUsage().getLimit();
         setBrokerService(broker);
         log.info("Initialized broker");
     }
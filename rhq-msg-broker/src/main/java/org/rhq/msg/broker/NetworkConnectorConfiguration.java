@@ -0,0 +1,132 @@
+package org.rhq.msg.broker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes a static network connector that links this broker to one or more other brokers, forming a network of
+ * brokers. Messages sent to this broker are forwarded to the remote brokers when they have consumers for them, which
+ * spreads the load of a destination across the consumers attached to all brokers in the network.
+ *
+ * @see EmbeddedBroker#addNetworkConnector(NetworkConnectorConfiguration)
+ */
+public class NetworkConnectorConfiguration {
+    private final String name;
+    private final List<String> uris = new ArrayList<String>();
+    private boolean duplex = false;
+    private boolean conduitSubscriptions = true;
+    private boolean decreaseNetworkConsumerPriority = false;
+    private boolean demandForwarding = true;
+    private int networkTTL = 1;
+
+    public NetworkConnectorConfiguration(String name) {
+        if (name == null || name.length() == 0) {
+            throw new NullPointerException("name must not be null or empty");
+        }
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the transport URIs of the remote brokers (e.g. "tcp://host:61616"). This is a read-only list.
+     */
+    public List<String> getUris() {
+        return Collections.unmodifiableList(uris);
+    }
+
+    public void addUri(String uri) {
+        if (uri == null || uri.length() == 0) {
+            throw new NullPointerException("uri must not be null or empty");
+        }
+        uris.add(uri);
+    }
+
+    /**
+     * @return if true, the remote broker can use the connection to forward messages back to this broker, which lets
+     *         a broker behind a firewall join the network without accepting incoming connections
+     */
+    public boolean isDuplex() {
+        return duplex;
+    }
+
+    public void setDuplex(boolean duplex) {
+        this.duplex = duplex;
+    }
+
+    /**
+     * @return if true, multiple consumers of the same topic on a remote broker are treated as one, so each message is
+     *         forwarded only once
+     */
+    public boolean isConduitSubscriptions() {
+        return conduitSubscriptions;
+    }
+
+    public void setConduitSubscriptions(boolean conduitSubscriptions) {
+        this.conduitSubscriptions = conduitSubscriptions;
+    }
+
+    /**
+     * @return if true, consumers on remote brokers get a lower priority than local consumers, so messages are only
+     *         forwarded when the local consumers cannot keep up
+     */
+    public boolean isDecreaseNetworkConsumerPriority() {
+        return decreaseNetworkConsumerPriority;
+    }
+
+    public void setDecreaseNetworkConsumerPriority(boolean decreaseNetworkConsumerPriority) {
+        this.decreaseNetworkConsumerPriority = decreaseNetworkConsumerPriority;
+    }
+
+    /**
+     * @return if true, messages are only forwarded to remote brokers that have consumers for them. If false, all
+     *         messages of all destinations are forwarded whether or not the remote brokers have consumers for them.
+     */
+    public boolean isDemandForwarding() {
+        return demandForwarding;
+    }
+
+    public void setDemandForwarding(boolean demandForwarding) {
+        this.demandForwarding = demandForwarding;
+    }
+
+    /**
+     * @return the number of brokers in the network a message may be forwarded through
+     */
+    public int getNetworkTTL() {
+        return networkTTL;
+    }
+
+    public void setNetworkTTL(int networkTTL) {
+        this.networkTTL = networkTTL;
+    }
+
+    /**
+     * @return the discovery URI the broker uses to find the remote brokers, e.g. "static:(tcp://a:61616,tcp://b:61616)"
+     */
+    public String getDiscoveryUri() {
+        if (uris.isEmpty()) {
+            throw new IllegalStateException("Network connector [" + name + "] has no remote broker URIs");
+        }
+
+        StringBuilder str = new StringBuilder("static:(");
+        for (int i = 0; i < uris.size(); i++) {
+            if (i > 0) {
+                str.append(',');
+            }
+            str.append(uris.get(i));
+        }
+        str.append(')');
+        return str.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "NetworkConnector: [name=" + name + ", uris=" + uris + ", duplex=" + duplex + ", conduit-subscriptions=" + conduitSubscriptions
+                + ", decrease-network-consumer-priority=" + decreaseNetworkConsumerPriority + ", demand-forwarding=" + demandForwarding
+                + ", network-ttl=" + networkTTL + "]";
+    }
+}
@@ -0,0 +1,37 @@
+package org.rhq.msg.broker;
+
+/**
+ * Turns an ever-increasing counter into a per-second rate. The rate is computed from the change in the counter across
+ * a sampling interval; samples taken before the interval has elapsed return the rate of the previous interval. This
+ * keeps the rate stable when the same value is read many times in quick succession (e.g. by a management client
+ * reading several attributes one after another).
+ */
+class RateSampler {
+    static final long DEFAULT_INTERVAL_MILLIS = 1000L;
+
+    private final long intervalMillis;
+    private long lastCount;
+    private long lastTime;
+    private double lastRate;
+
+    RateSampler(long initialCount, long now) {
+        this(initialCount, now, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    RateSampler(long initialCount, long now, long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        this.lastCount = initialCount;
+        this.lastTime = now;
+        this.lastRate = 0.0;
+    }
+
+    synchronized double sample(long count, long now) {
+        long elapsed = now - lastTime;
+        if (elapsed >= intervalMillis) {
+            lastRate = ((count - lastCount) * 1000.0) / elapsed;
+            lastCount = count;
+            lastTime = now;
+        }
+        return lastRate;
+    }
+}
@@ -1,5 +1,10 @@
 package org.rhq.msg.broker;
 
+import java.net.ServerSocket;
+import java.net.URI;
+
+import org.rhq.msg.broker.EmbeddedBroker.InitializationParameters;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
 @Test
@@ -11,4 +16,29 @@ public class EmbeddedBrokerConfigurationTest {
     public void testXMLConfig() throws Exception {
         new EmbeddedBroker(new String[] { "--config=test-broker.xml", "-Dtest.bind.port=61616" }).stopBroker();
     }
+
+    public void testBrokerReadiness() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        InitializationParameters initParams = new InitializationParameters();
+        initParams.configFile = new URI("broker:(tcp://0.0.0.0:" + port + ")?brokerName=readiness&persistent=false&useJmx=false");
+        EmbeddedBroker embeddedBroker = new EmbeddedBroker(initParams);
+        try {
+            Assert.assertFalse(embeddedBroker.isBrokerReady(), "broker is not started so it cannot be ready");
+            Assert.assertFalse(embeddedBroker.waitForBrokerReady(200L));
+
+            embeddedBroker.startBroker();
+            Assert.assertTrue(embeddedBroker.waitForBrokerReady(10000L), "broker should have been ready after starting");
+            Assert.assertTrue(embeddedBroker.isBrokerReady());
+
+            // the broker is still started, but its connector no longer accepts connections
+            embeddedBroker.getBrokerService().getTransportConnectors().get(0).stop();
+            Assert.assertFalse(embeddedBroker.isBrokerReady(), "broker without a running connector cannot be ready");
+        } finally {
+            embeddedBroker.stopBroker();
+        }
+        Assert.assertFalse(embeddedBroker.isBrokerReady(), "stopped broker cannot be ready");
+    }
 }
@@ -0,0 +1,120 @@
+package org.rhq.msg.broker;
+
+import java.util.List;
+
+import javax.jms.Connection;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.rhq.msg.broker.DestinationPolicy.DestinationType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class EmbeddedBrokerMetricsTest {
+    public void testMetricsNotAvailableUntilStarted() throws Exception {
+        EmbeddedBroker embeddedBroker = new EmbeddedBroker(new String[] { "--config=test-broker.properties" });
+        try {
+            Assert.assertNull(embeddedBroker.getBrokerMetrics());
+            Assert.assertTrue(embeddedBroker.getDestinationMetrics().isEmpty());
+            Assert.assertNull(embeddedBroker.getDestinationMetrics(DestinationType.QUEUE, "metrics.queue"));
+        } finally {
+            embeddedBroker.stopBroker();
+        }
+    }
+
+    public void testQueueDepthAndEnqueueCount() throws Exception {
+        EmbeddedBroker embeddedBroker = new EmbeddedBroker(new String[] { "--config=test-broker.properties" });
+        embeddedBroker.startBroker();
+        try {
+            ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory("vm://testbroker?create=false");
+            Connection connection = factory.createConnection();
+            try {
+                Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                MessageProducer producer = session.createProducer(session.createQueue("metrics.queue"));
+                for (int i = 0; i < 3; i++) {
+                    producer.send(session.createTextMessage("msg" + i));
+                }
+            } finally {
+                connection.close();
+            }
+
+            DestinationMetrics queueMetrics = embeddedBroker.getDestinationMetrics(DestinationType.QUEUE, "metrics.queue");
+            Assert.assertNotNull(queueMetrics, "queue should have been created");
+            Assert.assertEquals(queueMetrics.getName(), "metrics.queue");
+            Assert.assertEquals(queueMetrics.getEnqueueCount(), 3L);
+            Assert.assertEquals(queueMetrics.getDequeueCount(), 0L);
+            Assert.assertEquals(queueMetrics.getMessageCount(), 3L);
+            Assert.assertEquals(queueMetrics.getConsumerCount(), 0L);
+
+            Assert.assertNull(embeddedBroker.getDestinationMetrics(DestinationType.TOPIC, "metrics.queue"));
+
+            List<DestinationMetrics> allMetrics = embeddedBroker.getDestinationMetrics();
+            boolean found = false;
+            for (DestinationMetrics metrics : allMetrics) {
+                Assert.assertFalse(metrics.getName().startsWith("ActiveMQ.Advisory"), "advisory topics should be hidden: " + metrics);
+                if (metrics.getName().equals("metrics.queue")) {
+                    found = true;
+                }
+            }
+            Assert.assertTrue(found, "queue missing from " + allMetrics);
+
+            BrokerMetrics brokerMetrics = embeddedBroker.getBrokerMetrics();
+            Assert.assertNotNull(brokerMetrics);
+            Assert.assertTrue(brokerMetrics.getEnqueueCount() >= 3L, brokerMetrics.toString());
+            Assert.assertTrue(brokerMetrics.getMessageCount() >= 3L, brokerMetrics.toString());
+        } finally {
+            embeddedBroker.stopBroker();
+        }
+    }
+
+    public void testDestinationNamesAndRemovedDestinations() throws Exception {
+        EmbeddedBroker embeddedBroker = new EmbeddedBroker(new String[] { "--config=test-broker.properties" });
+        embeddedBroker.startBroker();
+        try {
+            ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory("vm://testbroker?create=false");
+            Connection connection = factory.createConnection();
+            try {
+                Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                session.createProducer(session.createQueue("names.queue")).send(session.createTextMessage("msg"));
+                session.createProducer(session.createTopic("names.topic")).send(session.createTextMessage("msg"));
+            } finally {
+                connection.close();
+            }
+
+            // listing the destinations does not sample their rates
+            int samplers = embeddedBroker.getRateSamplerCount();
+            Assert.assertTrue(embeddedBroker.getDestinationNames(DestinationType.QUEUE).contains("names.queue"));
+            Assert.assertFalse(embeddedBroker.getDestinationNames(DestinationType.QUEUE).contains("names.topic"));
+            Assert.assertTrue(embeddedBroker.getDestinationNames(DestinationType.TOPIC).contains("names.topic"));
+            Assert.assertEquals(embeddedBroker.getRateSamplerCount(), samplers);
+
+            Assert.assertNotNull(embeddedBroker.getDestinationMetrics(DestinationType.QUEUE, "names.queue"));
+            Assert.assertNotNull(embeddedBroker.getDestinationMetrics(DestinationType.TOPIC, "names.topic"));
+            Assert.assertEquals(embeddedBroker.getRateSamplerCount(), samplers + 4);
+
+            // the samplers of removed destinations are dropped
+            BrokerService brokerService = embeddedBroker.getBrokerService();
+            brokerService.getBroker().removeDestination(brokerService.getAdminConnectionContext(), new ActiveMQQueue("names.queue"), 0L);
+            Assert.assertFalse(embeddedBroker.getDestinationNames(DestinationType.QUEUE).contains("names.queue"));
+            Assert.assertEquals(embeddedBroker.getRateSamplerCount(), samplers + 2);
+            brokerService.getBroker().removeDestination(brokerService.getAdminConnectionContext(), new ActiveMQTopic("names.topic"), 0L);
+            Assert.assertNull(embeddedBroker.getDestinationMetrics(DestinationType.TOPIC, "names.topic"));
+            Assert.assertEquals(embeddedBroker.getRateSamplerCount(), samplers);
+        } finally {
+            embeddedBroker.stopBroker();
+        }
+    }
+
+    public void testRateSampler() {
+        RateSampler sampler = new RateSampler(0L, 0L, 1000L);
+        Assert.assertEquals(sampler.sample(10L, 500L), 0.0); // interval not yet elapsed
+        Assert.assertEquals(sampler.sample(20L, 2000L), 10.0); // 20 messages over 2 seconds
+        Assert.assertEquals(sampler.sample(500L, 2100L), 10.0); // still reports the last full interval
+        Assert.assertEquals(sampler.sample(50L, 5000L), 10.0); // 30 messages over 3 seconds
+    }
+}
@@ -0,0 +1,182 @@
+package org.rhq.msg.broker;
+
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.rhq.msg.broker.DestinationPolicy.DestinationType;
+import org.rhq.msg.broker.EmbeddedBroker.InitializationParameters;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class EmbeddedBrokerNetworkTest {
+    public void testMessagesForwardToRemoteConsumer() throws Exception {
+        int portA = findFreePort();
+        int portB = findFreePort();
+        EmbeddedBroker brokerA = createBroker("netForwardA", portA);
+        EmbeddedBroker brokerB = createBroker("netForwardB", portB);
+
+        NetworkConnectorConfiguration config = new NetworkConnectorConfiguration("a-to-b");
+        config.addUri("tcp://127.0.0.1:" + portB);
+        brokerA.addNetworkConnector(config);
+
+        brokerB.startBroker();
+        brokerA.startBroker();
+        Connection connectionA = null;
+        Connection connectionB = null;
+        try {
+            connectionB = new ActiveMQConnectionFactory("tcp://127.0.0.1:" + portB).createConnection();
+            connectionB.start();
+            Session sessionB = connectionB.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer consumerB = sessionB.createConsumer(sessionB.createQueue("net.forward"));
+
+            // the demand from the consumer on B must reach A before A knows to forward anything
+            waitForConsumers(brokerA, "net.forward", 1);
+
+            connectionA = new ActiveMQConnectionFactory("tcp://127.0.0.1:" + portA).createConnection();
+            connectionA.start();
+            Session sessionA = connectionA.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producerA = sessionA.createProducer(sessionA.createQueue("net.forward"));
+            producerA.send(sessionA.createTextMessage("hello from A"));
+
+            Message message = consumerB.receive(10000L);
+            Assert.assertNotNull(message, "message sent to broker A was not forwarded to the consumer on broker B");
+            Assert.assertEquals(((TextMessage) message).getText(), "hello from A");
+        } finally {
+            close(connectionA);
+            close(connectionB);
+            brokerA.stopBroker();
+            brokerB.stopBroker();
+        }
+    }
+
+    public void testConsumersLoadBalanceAcrossBrokers() throws Exception {
+        int portA = findFreePort();
+        int portB = findFreePort();
+        EmbeddedBroker brokerA = createBroker("netBalanceA", portA);
+        EmbeddedBroker brokerB = createBroker("netBalanceB", portB);
+
+        NetworkConnectorConfiguration config = new NetworkConnectorConfiguration("a-to-b");
+        config.addUri("tcp://127.0.0.1:" + portB);
+        config.setDecreaseNetworkConsumerPriority(false);
+        brokerA.addNetworkConnector(config);
+
+        brokerB.startBroker();
+        brokerA.startBroker();
+        Connection connectionA = null;
+        Connection connectionB = null;
+        try {
+            int messageCount = 20;
+            CountDownLatch latch = new CountDownLatch(messageCount);
+            AtomicInteger receivedA = new AtomicInteger();
+            AtomicInteger receivedB = new AtomicInteger();
+
+            // a prefetch of 1 keeps either consumer from grabbing all the messages at once
+            connectionA = new ActiveMQConnectionFactory("tcp://127.0.0.1:" + portA + "?jms.prefetchPolicy.all=1").createConnection();
+            connectionB = new ActiveMQConnectionFactory("tcp://127.0.0.1:" + portB + "?jms.prefetchPolicy.all=1").createConnection();
+            Session sessionA = connectionA.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            Session sessionB = connectionB.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            sessionA.createConsumer(sessionA.createQueue("net.balance")).setMessageListener(new CountingListener(receivedA, latch));
+            sessionB.createConsumer(sessionB.createQueue("net.balance")).setMessageListener(new CountingListener(receivedB, latch));
+            connectionA.start();
+            connectionB.start();
+
+            // the local consumer plus the network bridge that represents the consumer on B
+            waitForConsumers(brokerA, "net.balance", 2);
+
+            Session producerSession = connectionA.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = producerSession.createProducer(producerSession.createQueue("net.balance"));
+            for (int i = 0; i < messageCount; i++) {
+                producer.send(producerSession.createTextMessage("message #" + i));
+            }
+
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS), "not all messages were consumed: A=" + receivedA + ", B=" + receivedB);
+            Assert.assertEquals(receivedA.get() + receivedB.get(), messageCount);
+            Assert.assertTrue(receivedA.get() > 0, "local consumer on A got no messages");
+            Assert.assertTrue(receivedB.get() > 0, "remote consumer on B got no messages");
+        } finally {
+            close(connectionA);
+            close(connectionB);
+            brokerA.stopBroker();
+            brokerB.stopBroker();
+        }
+    }
+
+    public void testNetworkConnectorConfiguration() throws Exception {
+        NetworkConnectorConfiguration config = new NetworkConnectorConfiguration("test");
+        config.addUri("tcp://host1:61616");
+        config.addUri("tcp://host2:61616");
+        Assert.assertEquals(config.getDiscoveryUri(), "static:(tcp://host1:61616,tcp://host2:61616)");
+
+        try {
+            new NetworkConnectorConfiguration("empty").getDiscoveryUri();
+            Assert.fail("a connector without URIs should not be usable");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private EmbeddedBroker createBroker(String name, int port) throws Exception {
+        InitializationParameters initParams = new InitializationParameters();
+        initParams.configFile = new URI("broker:(tcp://127.0.0.1:" + port + ")?brokerName=" + name
+                + "&persistent=false&useJmx=false");
+        return new EmbeddedBroker(initParams);
+    }
+
+    private void waitForConsumers(EmbeddedBroker broker, String queueName, int expected) throws Exception {
+        long stopTime = System.currentTimeMillis() + 10000L;
+        while (System.currentTimeMillis() < stopTime) {
+            DestinationMetrics metrics = broker.getDestinationMetrics(DestinationType.QUEUE, queueName);
+            if (metrics != null && metrics.getConsumerCount() >= expected) {
+                return;
+            }
+            Thread.sleep(100L);
+        }
+        Assert.fail("queue [" + queueName + "] never had " + expected + " consumer(s)");
+    }
+
+    private int findFreePort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void close(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+
+    private static class CountingListener implements MessageListener {
+        private final AtomicInteger counter;
+        private final CountDownLatch latch;
+
+        CountingListener(AtomicInteger counter, CountDownLatch latch) {
+            this.counter = counter;
+            this.latch = latch;
+        }
+
+        @Override
+        public void onMessage(Message message) {
+            counter.incrementAndGet();
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.rhq.msg.broker;
+
+import javax.jms.Connection;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.Destination;
+import org.apache.activemq.broker.region.RegionBroker;
+import org.apache.activemq.broker.region.policy.FilePendingQueueMessageStoragePolicy;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.usage.SystemUsage;
+import org.rhq.msg.broker.DestinationPolicy.CursorType;
+import org.rhq.msg.broker.DestinationPolicy.DestinationType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class EmbeddedBrokerTuningTest {
+    public void testApplyLimitsAndPolicies() throws Exception {
+        EmbeddedBroker embeddedBroker = new EmbeddedBroker(new String[] { "--config=test-broker.properties" });
+        try {
+            BrokerTuning tuning = new BrokerTuning();
+            tuning.setMemoryLimit(16L * 1024L * 1024L);
+            tuning.setTempLimit(32L * 1024L * 1024L);
+
+            DestinationPolicy queuePolicy = new DestinationPolicy(DestinationType.QUEUE, "agent.>");
+            queuePolicy.setMemoryLimit(1024L * 1024L);
+            queuePolicy.setProducerFlowControl(false);
+            queuePolicy.setCursorType(CursorType.FILE);
+            tuning.addDestinationPolicy(queuePolicy);
+
+            DestinationPolicy topicPolicy = new DestinationPolicy(DestinationType.TOPIC, "status.>");
+            topicPolicy.setMemoryLimit(2048L * 1024L);
+            tuning.addDestinationPolicy(topicPolicy);
+
+            embeddedBroker.applyBrokerTuning(tuning);
+
+            BrokerService broker = embeddedBroker.getBrokerService();
+            Assert.assertEquals(broker.getSystemUsage().getMemoryUsage().getLimit(), 16L * 1024L * 1024L);
+            Assert.assertEquals(broker.getSystemUsage().getTempUsage().getLimit(), 32L * 1024L * 1024L);
+
+            PolicyEntry queueEntry = broker.getDestinationPolicy().getEntryFor(new ActiveMQQueue("agent.inventory"));
+            Assert.assertNotNull(queueEntry, "queue policy should have matched");
+            Assert.assertEquals(queueEntry.getMemoryLimit(), 1024L * 1024L);
+            Assert.assertFalse(queueEntry.isProducerFlowControl());
+            Assert.assertTrue(queueEntry.getPendingQueuePolicy() instanceof FilePendingQueueMessageStoragePolicy);
+
+            PolicyEntry topicEntry = broker.getDestinationPolicy().getEntryFor(new ActiveMQTopic("status.avail"));
+            Assert.assertNotNull(topicEntry, "topic policy should have matched");
+            Assert.assertEquals(topicEntry.getMemoryLimit(), 2048L * 1024L);
+            Assert.assertTrue(topicEntry.isProducerFlowControl());
+
+            Assert.assertNull(broker.getDestinationPolicy().getEntryFor(new ActiveMQQueue("other")), "policy should not have matched");
+        } finally {
+            embeddedBroker.stopBroker();
+        }
+    }
+
+    public void testNullTuningIsIgnored() throws Exception {
+        EmbeddedBroker embeddedBroker = new EmbeddedBroker(new String[] { "--config=test-broker.properties" });
+        try {
+            long originalLimit = embeddedBroker.getBrokerService().getSystemUsage().getMemoryUsage().getLimit();
+            embeddedBroker.applyBrokerTuning(null);
+            embeddedBroker.applyBrokerTuning(new BrokerTuning());
+            Assert.assertEquals(embeddedBroker.getBrokerService().getSystemUsage().getMemoryUsage().getLimit(), originalLimit);
+            Assert.assertNull(embeddedBroker.getBrokerService().getDestinationPolicy());
+        } finally {
+            embeddedBroker.stopBroker();
+        }
+    }
+
+    public void testUnsetLimitsAreRestored() throws Exception {
+        EmbeddedBroker embeddedBroker = new EmbeddedBroker(new String[] { "--config=test-broker.properties" });
+        embeddedBroker.startBroker();
+        try {
+            // the broker trims the configured store limit to the free disk space when it starts
+            embeddedBroker.applyBrokerTuning(new BrokerTuning());
+            SystemUsage systemUsage = embeddedBroker.getBrokerService().getSystemUsage();
+            long memoryLimit = systemUsage.getMemoryUsage().getLimit();
+            long storeLimit = systemUsage.getStoreUsage().getLimit();
+            long tempLimit = systemUsage.getTempUsage().getLimit();
+
+            BrokerTuning tuning = new BrokerTuning();
+            tuning.setMemoryLimit(memoryLimit / 2L);
+            tuning.setStoreLimit(storeLimit / 2L);
+            tuning.setTempLimit(tempLimit / 2L);
+            embeddedBroker.applyBrokerTuning(tuning);
+            Assert.assertEquals(systemUsage.getMemoryUsage().getLimit(), memoryLimit / 2L);
+            Assert.assertEquals(systemUsage.getStoreUsage().getLimit(), storeLimit / 2L);
+            Assert.assertEquals(systemUsage.getTempUsage().getLimit(), tempLimit / 2L);
+
+            // a limit that is no longer set, e.g. undefined in the subsystem, goes back to the configuration file's
+            BrokerTuning memoryOnly = new BrokerTuning();
+            memoryOnly.setMemoryLimit(memoryLimit / 4L);
+            embeddedBroker.applyBrokerTuning(memoryOnly);
+            Assert.assertEquals(systemUsage.getMemoryUsage().getLimit(), memoryLimit / 4L);
+            Assert.assertEquals(systemUsage.getStoreUsage().getLimit(), storeLimit);
+            Assert.assertEquals(systemUsage.getTempUsage().getLimit(), tempLimit);
+
+            // as does a limit when a write that set it is rolled back to a tuning without it
+            embeddedBroker.applyBrokerTuning(new BrokerTuning());
+            Assert.assertEquals(systemUsage.getMemoryUsage().getLimit(), memoryLimit);
+        } finally {
+            embeddedBroker.stopBroker();
+        }
+    }
+
+    public void testReapplyWhileRunning() throws Exception {
+        EmbeddedBroker embeddedBroker = new EmbeddedBroker(new String[] { "--config=test-broker.properties" });
+        embeddedBroker.startBroker();
+        try {
+            BrokerTuning tuning = new BrokerTuning();
+            DestinationPolicy policy = new DestinationPolicy(DestinationType.QUEUE, "agent.>");
+            policy.setMemoryLimit(1024L * 1024L);
+            tuning.addDestinationPolicy(policy);
+            embeddedBroker.applyBrokerTuning(tuning);
+
+            // create the queue so it exists before we change its policy
+            ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory("vm://testbroker?create=false");
+            Connection connection = factory.createConnection();
+            try {
+                Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                session.createProducer(session.createQueue("agent.live")).send(session.createTextMessage("hello"));
+            } finally {
+                connection.close();
+            }
+
+            BrokerService broker = embeddedBroker.getBrokerService();
+            RegionBroker regionBroker = (RegionBroker) broker.getRegionBroker().getAdaptor(RegionBroker.class);
+            Destination queue = regionBroker.getDestinationMap().get(new ActiveMQQueue("agent.live"));
+            Assert.assertNotNull(queue, "queue should have been created");
+            Assert.assertEquals(queue.getMemoryUsage().getLimit(), 1024L * 1024L);
+            Assert.assertTrue(queue.isProducerFlowControl());
+
+            BrokerTuning newTuning = new BrokerTuning();
+            newTuning.setMemoryLimit(8L * 1024L * 1024L);
+            DestinationPolicy newPolicy = new DestinationPolicy(DestinationType.QUEUE, "agent.>");
+            newPolicy.setMemoryLimit(2L * 1024L * 1024L);
+            newPolicy.setProducerFlowControl(false);
+            newPolicy.setQueuePrefetch(10);
+            newTuning.addDestinationPolicy(newPolicy);
+            embeddedBroker.applyBrokerTuning(newTuning);
+
+            Assert.assertEquals(broker.getSystemUsage().getMemoryUsage().getLimit(), 8L * 1024L * 1024L);
+            Assert.assertEquals(queue.getMemoryUsage().getLimit(), 2L * 1024L * 1024L);
+            Assert.assertFalse(queue.isProducerFlowControl());
+
+            // the old policy must have been replaced, not added to
+            Assert.assertEquals(broker.getDestinationPolicy().get(new ActiveMQQueue("agent.live")).size(), 1);
+            Assert.assertEquals(broker.getDestinationPolicy().getEntryFor(new ActiveMQQueue("agent.live")).getQueuePrefetch(), 10);
+        } finally {
+            embeddedBroker.stopBroker();
+        }
+    }
+}
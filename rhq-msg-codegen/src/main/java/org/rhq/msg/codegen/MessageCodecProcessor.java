@@ -0,0 +1,623 @@
+package org.rhq.msg.codegen;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates a <code>org.rhq.msg.common.codec.MessageCodec</code> for each concrete subclass of
+ * <code>org.rhq.msg.common.BasicMessage</code> that is compiled while this processor is on the compile classpath, and
+ * lists the generated codecs in <code>META-INF/services</code> so that they are registered automatically.
+ *
+ * A codec streams the fields annotated with Gson's <code>@Expose</code> - of the message class and its superclasses -
+ * with Gson's <code>JsonWriter</code> and <code>JsonReader</code>, producing the same JSON as Gson. It reads each field
+ * directly if it is visible to the codec, which is generated in the package of the message, or through its getter
+ * (<code>getX()</code>, or <code>isX()</code> for a boolean) otherwise; and it creates the message with the
+ * constructor that takes all exposed fields, whose parameters are named like the fields. Fields can be strings,
+ * primitives and their wrappers, enums and <code>Map&lt;String, String&gt;</code>.
+ *
+ * Gson does not call that constructor, so a constructor that changes the values it is given - e.g. one that drops an
+ * empty map - would make the codec decode a message differently than Gson does. The codec therefore checks that the
+ * created message holds the values that were read, and otherwise throws
+ * <code>org.rhq.msg.common.codec.MessageConstructionException</code> so that the message is decoded by Gson instead.
+ *
+ * No codec is generated for a message class that does not meet these requirements, or that is generic; a warning tells
+ * why, and the message is encoded by Gson as before. Classes that are private, or that encode themselves by
+ * overriding <code>toJSON</code>, are skipped without a warning.
+ */
+@SupportedAnnotationTypes("*")
+public class MessageCodecProcessor extends AbstractProcessor {
+
+    private static final String BASIC_MESSAGE = "org.rhq.msg.common.BasicMessage";
+    private static final String MESSAGE_CODEC = "org.rhq.msg.common.codec.MessageCodec";
+    private static final String CODEC_SUPPORT = "org.rhq.msg.common.codec.CodecSupport";
+    private static final String MESSAGE_CONSTRUCTION_EXCEPTION = "org.rhq.msg.common.codec.MessageConstructionException";
+    private static final String EXPOSE = "com.google.gson.annotations.Expose";
+    private static final String SERIALIZED_NAME = "com.google.gson.annotations.SerializedName";
+    private static final String SERVICE_FILE = "META-INF/services/" + MESSAGE_CODEC;
+
+    private static final Map<String, ValueType> VALUE_TYPES = new HashMap<String, ValueType>();
+    static {
+        addValueType("boolean", "false", "out.value(%s)", "readBoolean(in, %s)");
+        addValueType("int", "0", "out.value((long) %s)", "readInt(in, %s)");
+        addValueType("long", "0L", "out.value(%s)", "readLong(in, %s)");
+        addValueType("short", "(short) 0", "out.value((long) %s)", "readShort(in, %s)");
+        addValueType("byte", "(byte) 0", "out.value((long) %s)", "readByte(in, %s)");
+        addValueType("double", "0d", "out.value(%s)", "readDouble(in, %s)");
+        // written as a Number, like Gson does, so that e.g. 0.1f is not written as 0.10000000149011612
+        addValueType("float", "0f", "out.value(java.lang.Float.valueOf(%s))", "readFloat(in, %s)");
+        addValueType("java.lang.String", "null", "out.value(%s)", "readString(in)");
+        addValueType("java.lang.Boolean", "null", CODEC_SUPPORT + ".writeBoolean(out, %s)", "readBoolean(in)");
+        addValueType("java.lang.Integer", "null", "out.value(%s)", "readInteger(in)");
+        addValueType("java.lang.Long", "null", "out.value(%s)", "readLong(in)");
+        addValueType("java.lang.Short", "null", "out.value(%s)", "readShort(in)");
+        addValueType("java.lang.Byte", "null", "out.value(%s)", "readByte(in)");
+        addValueType("java.lang.Double", "null", "out.value(%s)", "readDouble(in)");
+        addValueType("java.lang.Float", "null", "out.value(%s)", "readFloat(in)");
+        addValueType("java.util.Map<java.lang.String, java.lang.String>", "null", CODEC_SUPPORT + ".writeMap(out, %s)",
+                "readMap(in)");
+    }
+
+    // the message classes already handled, and the codecs generated for them
+    private final Set<String> processedTypes = new HashSet<String>();
+    private final Set<String> codecNames = new TreeSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            if (!codecNames.isEmpty()) {
+                writeServiceFile();
+            }
+            return false;
+        }
+
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+            processType(type);
+        }
+        // the annotations are Gson's (or anybody's), so do not claim them
+        return false;
+    }
+
+    private void processType(TypeElement type) {
+        for (TypeElement memberType : ElementFilter.typesIn(type.getEnclosedElements())) {
+            processType(memberType);
+        }
+
+        if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT)
+                || !isMessageType(type) || !processedTypes.add(type.getQualifiedName().toString())) {
+            return;
+        }
+        if (isPrivate(type) || overridesToJSON(type)) {
+            return;
+        }
+
+        try {
+            generateCodec(type);
+        } catch (UnsupportedMessageException e) {
+            processingEnv.getMessager().printMessage(Kind.WARNING,
+                    "No codec generated for " + type.getQualifiedName() + ", it will be encoded by Gson: " + e.getMessage(),
+                    type);
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Kind.ERROR,
+                    "Cannot write the codec for " + type.getQualifiedName() + ": " + e, type);
+        }
+    }
+
+    private boolean isMessageType(TypeElement type) {
+        TypeElement current = type;
+        while (current != null) {
+            if (current.getQualifiedName().contentEquals(BASIC_MESSAGE)) {
+                return true;
+            }
+            current = getSuperclass(current);
+        }
+        return false;
+    }
+
+    private void generateCodec(TypeElement type) throws UnsupportedMessageException, IOException {
+        if (!type.getTypeParameters().isEmpty()) {
+            throw new UnsupportedMessageException("the class is generic");
+        }
+        for (Element element = type; element instanceof TypeElement; element = element.getEnclosingElement()) {
+            TypeElement enclosing = (TypeElement) element;
+            if (enclosing.getNestingKind() != NestingKind.TOP_LEVEL
+                    && (enclosing.getNestingKind() != NestingKind.MEMBER || !enclosing.getModifiers().contains(Modifier.STATIC))) {
+                throw new UnsupportedMessageException("inner classes are not supported");
+            }
+        }
+
+        List<ExposedField> fields = getExposedFields(type);
+        List<ExposedField> constructorArguments = getConstructorArguments(type, fields);
+
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        StringBuilder simpleName = new StringBuilder(type.getSimpleName());
+        for (Element element = type.getEnclosingElement(); element instanceof TypeElement; element = element
+                .getEnclosingElement()) {
+            simpleName.insert(0, element.getSimpleName() + "_");
+        }
+        String codecSimpleName = simpleName + "Codec";
+        String codecName = packageName.length() > 0 ? packageName + "." + codecSimpleName : codecSimpleName;
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(codecName, type);
+        Writer writer = file.openWriter();
+        try {
+            writer.write(generateSource(type, packageName, codecSimpleName, fields, constructorArguments));
+        } finally {
+            writer.close();
+        }
+        codecNames.add(codecName);
+    }
+
+    private List<ExposedField> getExposedFields(TypeElement type) throws UnsupportedMessageException {
+        // in the order Gson writes them: the fields of the class before those of its superclasses
+        List<ExposedField> fields = new ArrayList<ExposedField>();
+        Set<String> names = new HashSet<String>();
+        Set<String> jsonNames = new HashSet<String>();
+        for (TypeElement current = type; current != null; current = getSuperclass(current)) {
+            for (VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements())) {
+                AnnotationMirror expose = getAnnotation(field, EXPOSE);
+                if (expose == null || field.getModifiers().contains(Modifier.STATIC)
+                        || field.getModifiers().contains(Modifier.TRANSIENT)) {
+                    continue;
+                }
+
+                ExposedField exposedField = new ExposedField(field, getJsonName(field),
+                        getBooleanValue(expose, "serialize"), getBooleanValue(expose, "deserialize"));
+                if (!names.add(exposedField.name)) {
+                    throw new UnsupportedMessageException("more than one exposed field is named " + exposedField.name);
+                }
+                if (!jsonNames.add(exposedField.jsonName)) {
+                    throw new UnsupportedMessageException("more than one exposed field is serialized as "
+                            + exposedField.jsonName);
+                }
+                exposedField.valueType = getValueType(field);
+                if (exposedField.valueType == null) {
+                    throw new UnsupportedMessageException("the type of field " + exposedField.name + " is not supported: "
+                            + field.asType());
+                }
+                exposedField.accessor = getAccessor(type, field);
+                if (exposedField.accessor == null) {
+                    throw new UnsupportedMessageException("field " + exposedField.name
+                            + " is neither visible to the codec nor has a visible getter");
+                }
+                fields.add(exposedField);
+            }
+            if (current.getQualifiedName().contentEquals(BASIC_MESSAGE)) {
+                break;
+            }
+        }
+        return fields;
+    }
+
+    private ValueType getValueType(VariableElement field) {
+        TypeMirror fieldType = field.asType();
+        if (fieldType.getKind().isPrimitive()) {
+            return VALUE_TYPES.get(fieldType.getKind().name().toLowerCase(Locale.ENGLISH));
+        }
+        if (fieldType.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+
+        DeclaredType declaredType = (DeclaredType) fieldType;
+        TypeElement element = (TypeElement) declaredType.asElement();
+        if (element.getKind() == ElementKind.ENUM) {
+            if (!isVisible(element)) {
+                return null;
+            }
+            String enumName = element.getQualifiedName().toString();
+            return new ValueType(enumName, "null", CODEC_SUPPORT + ".writeEnum(out, %s)", "readEnum(in, " + enumName
+                    + ".class)");
+        }
+
+        StringBuilder name = new StringBuilder(element.getQualifiedName());
+        if (!declaredType.getTypeArguments().isEmpty()) {
+            name.append('<');
+            String separator = "";
+            for (TypeMirror argument : declaredType.getTypeArguments()) {
+                if (argument.getKind() != TypeKind.DECLARED) {
+                    return null;
+                }
+                name.append(separator).append(((TypeElement) ((DeclaredType) argument).asElement()).getQualifiedName());
+                separator = ", ";
+            }
+            name.append('>');
+        }
+        return VALUE_TYPES.get(name.toString());
+    }
+
+    private String getAccessor(TypeElement type, VariableElement field) {
+        if (isVisible(field, type)) {
+            return field.getSimpleName().toString();
+        }
+
+        String name = field.getSimpleName().toString();
+        String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        Set<String> getterNames = new HashSet<String>();
+        getterNames.add("get" + capitalized);
+        if (field.asType().getKind() == TypeKind.BOOLEAN) {
+            getterNames.add("is" + capitalized);
+        }
+
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            if (getterNames.contains(method.getSimpleName().toString()) && method.getParameters().isEmpty()
+                    && !method.getModifiers().contains(Modifier.STATIC)
+                    && processingEnv.getTypeUtils().isSameType(method.getReturnType(), field.asType())
+                    && isVisible(method, type)) {
+                return method.getSimpleName() + "()";
+            }
+        }
+        return null;
+    }
+
+    private List<ExposedField> getConstructorArguments(TypeElement type, List<ExposedField> fields)
+            throws UnsupportedMessageException {
+        Map<String, ExposedField> fieldsByName = new LinkedHashMap<String, ExposedField>();
+        for (ExposedField field : fields) {
+            fieldsByName.put(field.name, field);
+        }
+
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getModifiers().contains(Modifier.PRIVATE) || constructor.getParameters().size() != fields.size()) {
+                continue;
+            }
+            List<ExposedField> arguments = new ArrayList<ExposedField>();
+            for (VariableElement parameter : constructor.getParameters()) {
+                ExposedField field = fieldsByName.get(parameter.getSimpleName().toString());
+                if (field == null || arguments.contains(field)
+                        || !processingEnv.getTypeUtils().isAssignable(field.element.asType(), parameter.asType())) {
+                    arguments = null;
+                    break;
+                }
+                arguments.add(field);
+            }
+            if (arguments != null) {
+                return arguments;
+            }
+        }
+        throw new UnsupportedMessageException("there is no constructor that takes the exposed fields "
+                + fieldsByName.keySet() + " as parameters with the same names");
+    }
+
+    private String generateSource(TypeElement type, String packageName, String codecSimpleName,
+            List<ExposedField> fields, List<ExposedField> constructorArguments) {
+        String typeName = type.getQualifiedName().toString();
+        StringBuilder source = new StringBuilder();
+        if (packageName.length() > 0) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("/**\n");
+        source.append(" * Converts {@link ").append(typeName).append("} to and from JSON.\n");
+        source.append(" * Generated by ").append(getClass().getName()).append(" - do not edit.\n");
+        source.append(" */\n");
+        source.append("public final class ").append(codecSimpleName).append(" implements ").append(MESSAGE_CODEC)
+                .append('<').append(typeName).append("> {\n\n");
+
+        source.append("    @Override\n");
+        source.append("    public java.lang.Class<").append(typeName).append("> getMessageClass() {\n");
+        source.append("        return ").append(typeName).append(".class;\n");
+        source.append("    }\n\n");
+
+        source.append("    @Override\n");
+        source.append("    public void write(com.google.gson.stream.JsonWriter out, ").append(typeName)
+                .append(" message) throws java.io.IOException {\n");
+        source.append("        out.beginObject();\n");
+        for (ExposedField field : fields) {
+            if (field.serialize) {
+                source.append("        out.name(").append(quote(field.jsonName)).append(");\n");
+                source.append("        ").append(String.format(field.valueType.writeFormat, "message." + field.accessor))
+                        .append(";\n");
+            }
+        }
+        source.append("        out.endObject();\n");
+        source.append("    }\n\n");
+
+        source.append("    @Override\n");
+        source.append("    public ").append(typeName)
+                .append(" read(com.google.gson.stream.JsonReader in) throws java.io.IOException {\n");
+        source.append("        if (in.peek() == com.google.gson.stream.JsonToken.NULL) {\n");
+        source.append("            in.nextNull();\n");
+        source.append("            return null;\n");
+        source.append("        }\n");
+        for (ExposedField field : fields) {
+            source.append("        ").append(field.valueType.javaType).append(' ').append(field.getVariable())
+                    .append(" = ").append(field.valueType.defaultValue).append(";\n");
+        }
+        source.append("        in.beginObject();\n");
+        source.append("        while (in.hasNext()) {\n");
+        source.append("            java.lang.String name = in.nextName();\n");
+        source.append("            ");
+        for (ExposedField field : fields) {
+            if (field.deserialize) {
+                source.append("if (").append(quote(field.jsonName)).append(".equals(name)) {\n");
+                source.append("                ").append(field.getVariable()).append(" = ").append(CODEC_SUPPORT).append('.')
+                        .append(String.format(field.valueType.readFormat, field.getVariable())).append(";\n");
+                source.append("            } else ");
+            }
+        }
+        source.append("{\n");
+        source.append("                in.skipValue();\n");
+        source.append("            }\n");
+        source.append("        }\n");
+        source.append("        in.endObject();\n");
+        source.append("        ").append(typeName).append(" message;\n");
+        source.append("        try {\n");
+        source.append("            message = new ").append(typeName).append('(');
+        String separator = "";
+        for (ExposedField argument : constructorArguments) {
+            source.append(separator).append(argument.getVariable());
+            separator = ", ";
+        }
+        source.append(");\n");
+        source.append("        } catch (java.lang.RuntimeException e) {\n");
+        source.append("            throw new ").append(MESSAGE_CONSTRUCTION_EXCEPTION).append("(\"Cannot create \" + ")
+                .append("getMessageClass().getName(), e);\n");
+        source.append("        }\n");
+        // Gson would have kept the values as they were read
+        for (ExposedField field : fields) {
+            source.append("        if (").append(getChangedCondition(field)).append(") {\n");
+            source.append("            throw new ").append(MESSAGE_CONSTRUCTION_EXCEPTION).append("(\"The constructor of \" + ")
+                    .append("getMessageClass().getName() + \" changed ").append(field.name).append("\", null);\n");
+            source.append("        }\n");
+        }
+        source.append("        return message;\n");
+        source.append("    }\n");
+        source.append("}\n");
+        return source.toString();
+    }
+
+    /**
+     * @return the generated condition that is true if the created message does not hold the value read for the field
+     */
+    private static String getChangedCondition(ExposedField field) {
+        String read = field.getVariable();
+        String held = "message." + field.accessor;
+        TypeKind kind = field.element.asType().getKind();
+        if (kind == TypeKind.FLOAT || kind == TypeKind.DOUBLE) {
+            return "java.lang.Double.compare(" + read + ", " + held + ") != 0";
+        }
+        if (kind.isPrimitive()) {
+            return read + " != " + held;
+        }
+        return "!" + CODEC_SUPPORT + ".isSame(" + read + ", " + held + ")";
+    }
+
+    private void writeServiceFile() {
+        // keep the codecs listed by an earlier, incremental compilation
+        Set<String> entries = new TreeSet<String>(codecNames);
+        try {
+            FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(existing.openInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().length() > 0) {
+                        entries.add(line.trim());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // there is none yet
+        }
+
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+            Writer writer = new OutputStreamWriter(file.openOutputStream(), "UTF-8");
+            try {
+                for (String entry : entries) {
+                    writer.write(entry);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, "Cannot write " + SERVICE_FILE + ": " + e);
+        }
+    }
+
+    /**
+     * @return true if the type, or a type it is nested in, is private and so cannot be seen by a codec in its package
+     */
+    private boolean isPrivate(TypeElement type) {
+        for (Element element = type; element instanceof TypeElement; element = element.getEnclosingElement()) {
+            if (element.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the type or one of its superclasses below BasicMessage writes its own JSON
+     */
+    private boolean overridesToJSON(TypeElement type) {
+        for (TypeElement current = type; current != null; current = getSuperclass(current)) {
+            if (current.getQualifiedName().contentEquals(BASIC_MESSAGE)) {
+                break;
+            }
+            for (ExecutableElement method : ElementFilter.methodsIn(current.getEnclosedElements())) {
+                if (method.getSimpleName().contentEquals("toJSON") && !method.getModifiers().contains(Modifier.STATIC)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private TypeElement getSuperclass(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        return (TypeElement) ((DeclaredType) superclass).asElement();
+    }
+
+    /**
+     * @return true if the member can be accessed by a codec in the package of the given type
+     */
+    private boolean isVisible(Element member, TypeElement type) {
+        Set<Modifier> modifiers = member.getModifiers();
+        if (modifiers.contains(Modifier.PRIVATE)) {
+            return false;
+        }
+        Element declaringType = member.getEnclosingElement();
+        if (processingEnv.getElementUtils().getPackageOf(declaringType)
+                .equals(processingEnv.getElementUtils().getPackageOf(type))) {
+            return true;
+        }
+        return modifiers.contains(Modifier.PUBLIC) && declaringType.getModifiers().contains(Modifier.PUBLIC);
+    }
+
+    private boolean isVisible(TypeElement type) {
+        for (Element element = type; element instanceof TypeElement; element = element.getEnclosingElement()) {
+            if (!element.getModifiers().contains(Modifier.PUBLIC)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static AnnotationMirror getAnnotation(Element element, String annotationName) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            if (((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotationName)) {
+                return annotation;
+            }
+        }
+        return null;
+    }
+
+    private static Object getValue(AnnotationMirror annotation, String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : annotation.getElementValues()
+                .entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name)) {
+                return entry.getValue().getValue();
+            }
+        }
+        return null;
+    }
+
+    private static boolean getBooleanValue(AnnotationMirror annotation, String name) {
+        Object value = getValue(annotation, name);
+        return value == null || Boolean.TRUE.equals(value);
+    }
+
+    private static String getJsonName(VariableElement field) {
+        AnnotationMirror serializedName = getAnnotation(field, SERIALIZED_NAME);
+        if (serializedName != null) {
+            Object value = getValue(serializedName, "value");
+            if (value != null) {
+                return value.toString();
+            }
+        }
+        return field.getSimpleName().toString();
+    }
+
+    private static String quote(String string) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : string.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ' || c > '~') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static void addValueType(String javaType, String defaultValue, String writeFormat, String readFormat) {
+        VALUE_TYPES.put(javaType, new ValueType(javaType, defaultValue, writeFormat, readFormat));
+    }
+
+    /**
+     * How the values of a field type are declared, written and read by the generated code.
+     */
+    private static class ValueType {
+        private final String javaType;
+        private final String defaultValue;
+        private final String writeFormat;
+        private final String readFormat;
+
+        ValueType(String javaType, String defaultValue, String writeFormat, String readFormat) {
+            this.javaType = javaType;
+            this.defaultValue = defaultValue;
+            this.writeFormat = writeFormat;
+            this.readFormat = readFormat;
+        }
+    }
+
+    private static class ExposedField {
+        private final VariableElement element;
+        private final String name;
+        private final String jsonName;
+        private final boolean serialize;
+        private final boolean deserialize;
+        private ValueType valueType;
+        private String accessor;
+
+        ExposedField(VariableElement element, String jsonName, boolean serialize, boolean deserialize) {
+            this.element = element;
+            this.name = element.getSimpleName().toString();
+            this.jsonName = jsonName;
+            this.serialize = serialize;
+            this.deserialize = deserialize;
+        }
+
+        /**
+         * @return the name of the local variable the generated code reads the field into, which cannot clash with
+         *         the other local variables
+         */
+        String getVariable() {
+            return "_" + name;
+        }
+    }
+
+    private static class UnsupportedMessageException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedMessageException(String message) {
+            super(message);
+        }
+    }
+}
@@ -1,12 +1,29 @@
 package org.rhq.msg.common;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Map;
 
+import org.rhq.msg.common.codec.DictionaryJsonReader;
+import org.rhq.msg.common.codec.DictionaryJsonWriter;
+import org.rhq.msg.common.codec.KeyDictionary;
+import org.rhq.msg.common.codec.MessageCodec;
+import org.rhq.msg.common.codec.MessageCodecs;
+import org.rhq.msg.common.codec.MessageConstructionException;
+
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 
 /**
  * Basic information that is sent over the message bus.
@@ -17,6 +34,11 @@ import com.google.gson.annotations.Expose;
  * usually left unset unless this message needs to be correlated with another. As an example, when a process is stopped,
  * you can correlate the "Stopped" event with the "Stopping" event so you can later determine how long it took for the
  * process to stop.
+ * 
+ * Only the fields annotated with {@link Expose} are JSON encoded. Subclasses whose exposed fields are handed to a
+ * constructor and read back through getters get a {@link MessageCodec codec} generated at compile time when the
+ * rhq-msg-codegen annotation processor is on their compile classpath; the codec encodes and decodes the message
+ * without reflection. Other subclasses are encoded by Gson.
  */
 public class BasicMessage {
     // these are passed out-of-band of the message body - these attributes will therefore not be JSON encoded
@@ -42,8 +64,110 @@ public class BasicMessage {
      * @return the message object that was represented by the JSON string
      */
     public static <T extends BasicMessage> T fromJSON(String json, Class<T> clazz) {
-        final Gson gson = createGsonBuilder();
-        return gson.fromJson(json, clazz);
+        return fromJSON(json, clazz, null);
+    }
+
+    /**
+     * Converts a JSON string to a particular message object, like {@link #fromJSON(String, Class)} does, expanding the
+     * detail keys that were written as numbers of the given dictionary.
+     * 
+     * @param json
+     *            the JSON string
+     * @param clazz
+     *            the class whose instance is represented by the JSON string
+     * @param keyDictionary
+     *            the dictionary the JSON was written with (or a later version of it), or null if it was written
+     *            without one
+     * 
+     * @return the message object that was represented by the JSON string
+     */
+    public static <T extends BasicMessage> T fromJSON(String json, Class<T> clazz, KeyDictionary keyDictionary) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            return fromJSON(new StringReader(json), clazz, keyDictionary, true);
+        } catch (MessageConstructionException e) {
+            // Gson does not call constructors, e.g. when a message is converted to a subclass of it; do the same
+            return fromJSON(new StringReader(json), clazz, keyDictionary, false);
+        }
+    }
+
+    /**
+     * Converts JSON read from a stream, e.g. the body of a received message, to a particular message object without
+     * reading the whole JSON into a string first.
+     * 
+     * @param json
+     *            the JSON, which is read up to its end but not closed
+     * @param clazz
+     *            the class whose instance is represented by the JSON
+     * 
+     * @return the message object that was represented by the JSON
+     * @throws MessageConstructionException
+     *             if the JSON was decoded by a generated {@link MessageCodec codec} and the constructor of the message
+     *             rejected the decoded values. Unlike {@link #fromJSON(String, Class)}, this method cannot fall back to
+     *             Gson, which does not call constructors, as the JSON has already been read.
+     */
+    public static <T extends BasicMessage> T fromJSON(Reader json, Class<T> clazz) {
+        return fromJSON(json, clazz, null);
+    }
+
+    /**
+     * Converts JSON read from a stream to a particular message object, like {@link #fromJSON(Reader, Class)} does,
+     * expanding the detail keys that were written as numbers of the given dictionary.
+     * 
+     * @param json
+     *            the JSON, which is read up to its end but not closed
+     * @param clazz
+     *            the class whose instance is represented by the JSON
+     * @param keyDictionary
+     *            the dictionary the JSON was written with (or an older or newer version of it), or null if it was
+     *            written without one
+     * 
+     * @return the message object that was represented by the JSON
+     * @throws MessageConstructionException
+     *             see {@link #fromJSON(Reader, Class)}
+     */
+    public static <T extends BasicMessage> T fromJSON(Reader json, Class<T> clazz, KeyDictionary keyDictionary) {
+        return fromJSON(json, clazz, keyDictionary, true);
+    }
+
+    private static <T extends BasicMessage> T fromJSON(Reader json, Class<T> clazz, KeyDictionary keyDictionary,
+            boolean useCodec) {
+        final MessageCodec<T> codec = useCodec ? MessageCodecs.getCodec(clazz) : null;
+        final JsonReader reader = (keyDictionary != null) ? new DictionaryJsonReader(json, keyDictionary)
+                : new JsonReader(json);
+        reader.setLenient(true);
+        try {
+            try {
+                reader.peek();
+            } catch (EOFException e) {
+                return null; // an empty document, which Gson reads as null
+            }
+
+            T message;
+            if (codec != null) {
+                message = codec.read(reader);
+            } else {
+                final Gson gson = createGsonBuilder();
+                message = gson.fromJson(reader, clazz);
+            }
+            // as Gson does when it reads from a string
+            if (message != null && reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("JSON document was not fully consumed.");
+            }
+            return message;
+        } catch (MalformedJsonException e) {
+            throw new JsonSyntaxException(e);
+        } catch (EOFException e) {
+            throw new JsonSyntaxException(e);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        } catch (IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
     }
 
     /**
@@ -52,8 +176,61 @@ public class BasicMessage {
      * @return JSON encoded data that represents this message.
      */
     public String toJSON() {
-        final Gson gson = createGsonBuilder();
-        return gson.toJson(this);
+        StringWriter json = new StringWriter();
+        try {
+            toJSON(json);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+        return json.toString();
+    }
+
+    /**
+     * Writes the JSON representation of this message to a stream, e.g. the body of a message that is about to be
+     * sent, without building the whole JSON string first.
+     * 
+     * @param out
+     *            where to write the JSON to; it is flushed but not closed
+     * @throws IOException
+     *             if the JSON could not be written
+     */
+    public void toJSON(Writer out) throws IOException {
+        toJSON(out, null);
+    }
+
+    /**
+     * Writes the JSON representation of this message to a stream, like {@link #toJSON(Writer)} does, writing the
+     * detail keys that are in the given dictionary as numbers. This only happens if this message is encoded by a
+     * generated {@link MessageCodec codec}.
+     * 
+     * @param out
+     *            where to write the JSON to; it is flushed but not closed
+     * @param keyDictionary
+     *            the dictionary, or null to write the keys as they are
+     * @throws IOException
+     *             if the JSON could not be written
+     */
+    public void toJSON(Writer out, KeyDictionary keyDictionary) throws IOException {
+        final JsonWriter writer = (keyDictionary != null) ? new DictionaryJsonWriter(out, keyDictionary)
+                : new JsonWriter(out);
+        final MessageCodec<BasicMessage> codec = MessageCodecs.getCodecOf(this);
+        if (codec != null) {
+            // the same output as Gson's defaults
+            writer.setHtmlSafe(true);
+            writer.setSerializeNulls(false);
+            codec.write(writer, this);
+        } else {
+            final Gson gson = createGsonBuilder();
+            try {
+                gson.toJson(this, getClass(), writer);
+            } catch (JsonIOException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        writer.flush();
     }
 
     public BasicMessage(String message) {
@@ -63,9 +240,9 @@ public class BasicMessage {
     public BasicMessage(String message, Map<String, String> details) {
         this.message = message;
 
-        // make our own copy of the details data
+        // make our own compact, immutable copy of the details data
         if (details != null && !details.isEmpty()) {
-            this.details = new HashMap<String, String>(details);
+            this.details = DetailsMap.copyOf(details);
         } else {
             this.details = null;
         }
@@ -115,10 +292,8 @@ public class BasicMessage {
      * @return the details of this message or null. This is an unmodifiable, read-only map of details.
      */
     public Map<String, String> getDetails() {
-        if (details == null) {
-            return null;
-        }
-        return Collections.unmodifiableMap(details);
+        // Gson reads details into a DetailsMap too
+        return details;
     }
 
     @Override
@@ -135,6 +310,7 @@ public class BasicMessage {
     }
 
     protected static Gson createGsonBuilder() {
-        return new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+        return new GsonBuilder().excludeFieldsWithoutExposeAnnotation()
+                .registerTypeAdapter(DetailsTypeAdapter.TYPE, new DetailsTypeAdapter()).create();
     }
 }
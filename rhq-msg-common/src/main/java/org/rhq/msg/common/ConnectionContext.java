@@ -12,6 +12,7 @@ public class ConnectionContext {
     private Connection connection;
     private Session session;
     private Destination destination;
+    private Endpoint endpoint;
 
     public Connection getConnection() {
         return connection;
@@ -37,6 +38,21 @@ public class ConnectionContext {
         this.destination = destination;
     }
 
+    /**
+     * The endpoint this context was created for. Contexts derived from another context (e.g. the context that receives
+     * the response to an RPC request) keep the endpoint of the original context, so everything that happens in a
+     * request-response exchange is attributed to the endpoint the request was sent to.
+     *
+     * @return the endpoint, or <code>null</code> if the context was not created for a known endpoint
+     */
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    public void setEndpoint(Endpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
     /**
      * Sets this context object with the same data found in the source context.
      * 
@@ -47,5 +63,6 @@ public class ConnectionContext {
         this.connection = source.connection;
         this.session = source.session;
         this.destination = source.destination;
+        this.endpoint = source.endpoint;
     }
 }
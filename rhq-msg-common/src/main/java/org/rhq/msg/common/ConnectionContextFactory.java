@@ -3,14 +3,24 @@ package org.rhq.msg.common;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
+import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
 import javax.jms.MessageConsumer;
 import javax.jms.MessageProducer;
+import javax.jms.Queue;
 import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
+import javax.jms.Topic;
 
+import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.transport.DefaultTransportListener;
 import org.rhq.msg.common.consumer.ConsumerConnectionContext;
+import org.rhq.msg.common.consumer.ConsumerOptions;
+import org.rhq.msg.common.consumer.RetryPolicy;
 import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.rhq.msg.common.producer.SendOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +42,10 @@ public class ConnectionContextFactory {
     private final Logger log = LoggerFactory.getLogger(ConnectionContextFactory.class);
     protected final ConnectionFactory connectionFactory;
     private Connection connection;
+    private RetryPolicy retryPolicy;
+    private ExceptionListener exceptionListener;
+    private String clientID;
+    private volatile boolean connected;
 
     /**
      * Initializes the factory with the given broker URL.
@@ -47,6 +61,110 @@ public class ConnectionContextFactory {
         log.debug("{} has been created: {}", this.getClass().getSimpleName(), brokerURL);
     }
 
+    /**
+     * Initializes the factory so that its connection survives brokers going away - see {@link FailoverConfiguration}.
+     * 
+     * @param failoverConfiguration
+     *            the brokers to connect to and how to reconnect to them
+     * 
+     * @throws JMSException
+     */
+    public ConnectionContextFactory(FailoverConfiguration failoverConfiguration) throws JMSException {
+        this(failoverConfiguration.toBrokerURL());
+    }
+
+    /**
+     * @return the listener that is notified of connection errors, or <code>null</code> if none was set
+     */
+    public ExceptionListener getExceptionListener() {
+        return exceptionListener;
+    }
+
+    /**
+     * Sets the listener that is notified when the connection fails for good, e.g. when the broker is gone and either
+     * no {@link FailoverConfiguration failover} is configured or all reconnect attempts have failed. The connection
+     * and the contexts created by this factory cannot be used any more after that. This must be called before the
+     * first context is created.
+     * 
+     * @param exceptionListener
+     *            the listener
+     * @throws IllegalStateException
+     *             if this factory has already created a connection
+     */
+    public void setExceptionListener(ExceptionListener exceptionListener) {
+        if (getConnection() != null) {
+            throw new IllegalStateException("The exception listener must be set before the connection is created");
+        }
+        this.exceptionListener = exceptionListener;
+    }
+
+    /**
+     * @return the client ID of this factory's connection, or <code>null</code> if none was set
+     */
+    public String getClientID() {
+        return clientID;
+    }
+
+    /**
+     * Sets the client ID of this factory's connection, which identifies the owner of durable topic subscriptions (see
+     * {@link ConsumerOptions#getSubscriptionName()}). Only one connection with a given client ID can be connected to
+     * the broker at any time. This must be called before the first context is created.
+     * 
+     * @param clientID
+     *            the client ID
+     * @throws IllegalStateException
+     *             if this factory has already created a connection
+     */
+    public void setClientID(String clientID) {
+        if (getConnection() != null) {
+            throw new IllegalStateException("The client ID must be set before the connection is created");
+        }
+        this.clientID = clientID;
+    }
+
+    /**
+     * @return true if this factory's connection is currently connected to a broker; false if there is no connection
+     *         yet or it has been interrupted and is waiting to reconnect
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return the retry policy of the consumers created by this factory, or <code>null</code> if none was set
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets how the consumers created by this factory deal with messages that fail to be processed. The policy's delays
+     * are implemented by the broker client's redelivery policy, which is fixed when the connection is created, so this
+     * must be called before the first context is created.
+     * 
+     * @param retryPolicy
+     *            the policy
+     * @throws IllegalStateException
+     *             if this factory has already created a connection
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        if (retryPolicy == null) {
+            throw new NullPointerException("retryPolicy must not be null");
+        }
+        if (getConnection() != null) {
+            throw new IllegalStateException("The retry policy must be set before the connection is created");
+        }
+        if (!(connectionFactory instanceof ActiveMQConnectionFactory)) {
+            throw new IllegalStateException("Retry policies are not supported by " + connectionFactory.getClass().getName());
+        }
+
+        ActiveMQConnectionFactory activeMQConnectionFactory = (ActiveMQConnectionFactory) connectionFactory;
+        activeMQConnectionFactory.setRedeliveryPolicy(retryPolicy.toRedeliveryPolicy());
+        // a message waiting for its redelivery must not hold up the messages behind it
+        activeMQConnectionFactory.setNonBlockingRedelivery(true);
+        this.retryPolicy = retryPolicy;
+    }
+
     /**
      * Creates a new producer connection context, reusing any existing connection that might have already been created.
      * The destination of the connection's session will be that of the given endpoint.
@@ -57,11 +175,31 @@ public class ConnectionContextFactory {
      * @throws JMSException
      */
     public ProducerConnectionContext createProducerConnectionContext(Endpoint endpoint) throws JMSException {
+        return createProducerConnectionContext(endpoint, new SendOptions());
+    }
+
+    /**
+     * Creates a new producer connection context, reusing any existing connection that might have already been created.
+     * The messages sent through the context are by default sent as described by the given options, e.g. non-persistent
+     * with a time-to-live.
+     * 
+     * @param endpoint
+     *            where the producer will send messages
+     * @param options
+     *            how messages are sent unless the send itself says otherwise
+     * @return the new producer connection context fully populated
+     * @throws JMSException
+     */
+    public ProducerConnectionContext createProducerConnectionContext(Endpoint endpoint, SendOptions options)
+            throws JMSException {
+        if (options == null) {
+            throw new NullPointerException("options must not be null");
+        }
         ProducerConnectionContext context = new ProducerConnectionContext();
         createOrReuseConnection(context, true);
         createSession(context);
         createDestination(context, endpoint);
-        createProducer(context);
+        createProducer(context, options);
         return context;
     }
 
@@ -75,25 +213,98 @@ public class ConnectionContextFactory {
      * @throws JMSException
      */
     public ConsumerConnectionContext createConsumerConnectionContext(Endpoint endpoint) throws JMSException {
+        return createConsumerConnectionContext(endpoint, new ConsumerOptions());
+    }
+
+    /**
+     * Creates a new consumer connection context, reusing any existing connection that might have already been created.
+     * How the consumer subscribes to the given endpoint is determined by the given options, e.g. the consumer of a topic
+     * can have a durable subscription or share the messages of the topic with the other consumers of its group.
+     * 
+     * @param endpoint
+     *            where the consumer will listen for messages
+     * @param options
+     *            how the consumer subscribes to the endpoint
+     * @return the new consumer connection context fully populated
+     * @throws JMSException
+     * @throws IllegalArgumentException
+     *             if the options do not apply to the endpoint, e.g. a durable subscription to a queue
+     * @throws IllegalStateException
+     *             if a durable subscription is requested but this factory has no client ID
+     */
+    public ConsumerConnectionContext createConsumerConnectionContext(Endpoint endpoint, ConsumerOptions options)
+            throws JMSException {
+        if (endpoint == null) {
+            throw new NullPointerException("Endpoint is null");
+        }
+        if (options == null) {
+            throw new NullPointerException("options must not be null");
+        }
+        if (options.getSubscriptionName() != null) {
+            if (endpoint.getType() != Endpoint.Type.TOPIC || endpoint.isTemporary()) {
+                throw new IllegalArgumentException("Only permanent topics can have durable subscriptions: " + endpoint);
+            }
+            if (options.getConsumerGroup() != null) {
+                throw new IllegalArgumentException("The consumers of a group cannot have durable subscriptions");
+            }
+            if (clientID == null) {
+                throw new IllegalStateException("Durable subscriptions require a client ID");
+            }
+        }
+        if (options.getConsumerGroup() != null) {
+            if (endpoint.getType() != Endpoint.Type.TOPIC || !endpoint.getName().startsWith(ConsumerOptions.VIRTUAL_TOPIC_PREFIX)) {
+                throw new IllegalArgumentException("Consumer groups can only subscribe to topics whose names start with "
+                        + ConsumerOptions.VIRTUAL_TOPIC_PREFIX + ": " + endpoint);
+            }
+            // the broker copies each message of the virtual topic to one queue per consumer group
+            endpoint = new Endpoint(Endpoint.Type.QUEUE, "Consumer." + options.getConsumerGroup() + "." + endpoint.getName());
+        }
+
         ConsumerConnectionContext context = new ConsumerConnectionContext();
         createOrReuseConnection(context, true);
         createSession(context);
         createDestination(context, endpoint);
-        createConsumer(context);
+        createConsumer(context, options);
+        context.setRetryPolicy(retryPolicy);
         return context;
     }
 
+    /**
+     * Removes a durable topic subscription of this factory's client ID; the broker discards the messages it kept for
+     * it. The subscription must not have an active consumer.
+     * 
+     * @param subscriptionName
+     *            the name of the subscription
+     * @throws JMSException
+     */
+    public void unsubscribe(String subscriptionName) throws JMSException {
+        if (subscriptionName == null) {
+            throw new NullPointerException("subscriptionName must not be null");
+        }
+        ConsumerConnectionContext context = new ConsumerConnectionContext();
+        createOrReuseConnection(context, true);
+        createSession(context);
+        try {
+            context.getSession().unsubscribe(subscriptionName);
+        } finally {
+            context.getSession().close();
+        }
+    }
+
     /**
      * This method should be called when this context factory is no longer needed. This will free up resources and close
-     * any open connections it has cached. Note this will invalidate contexts created by this factory.
+     * any open connections it has cached. Note this will invalidate contexts created by this factory. Contexts created
+     * afterwards use a new connection.
      * 
      * @throws JMSException
      */
     public void close() throws JMSException {
         Connection conn = getConnection();
         if (conn != null) {
+            this.connection = null;
             conn.close();
         }
+        connected = false;
         log.debug("{} has been closed", this);
     }
 
@@ -167,6 +378,7 @@ public class ConnectionContextFactory {
             createConnection(context);
             conn = context.getConnection();
             setConnection(conn);
+            monitorConnection(conn);
         }
 
         if (start) {
@@ -174,6 +386,45 @@ public class ConnectionContextFactory {
         }
     }
 
+    /**
+     * Keeps track of whether the given connection is connected and passes its errors on to the
+     * {@link #setExceptionListener(ExceptionListener) exception listener}.
+     * 
+     * @param conn
+     *            the connection that was just created and cached
+     * @throws JMSException
+     */
+    protected void monitorConnection(Connection conn) throws JMSException {
+        conn.setExceptionListener(new ExceptionListener() {
+            @Override
+            public void onException(JMSException exception) {
+                connected = false;
+                log.error("The connection has failed", exception);
+                ExceptionListener listener = exceptionListener;
+                if (listener != null) {
+                    listener.onException(exception);
+                }
+            }
+        });
+
+        if (conn instanceof ActiveMQConnection) {
+            ((ActiveMQConnection) conn).addTransportListener(new DefaultTransportListener() {
+                @Override
+                public void transportInterupted() {
+                    connected = false;
+                    log.warn("The connection to the broker has been interrupted; trying to reconnect");
+                }
+
+                @Override
+                public void transportResumed() {
+                    connected = true;
+                    log.info("The connection to the broker has been restored");
+                }
+            });
+        }
+        connected = true;
+    }
+
     /**
      * Creates a connection using this object's connection factory and stores
      * that connection in the given context object.
@@ -199,6 +450,9 @@ public class ConnectionContextFactory {
         }
         ConnectionFactory factory = getConnectionFactory();
         Connection conn = factory.createConnection();
+        if (clientID != null) {
+            conn.setClientID(clientID);
+        }
         context.setConnection(conn);
     }
 
@@ -264,6 +518,7 @@ public class ConnectionContextFactory {
             }
         }
         context.setDestination(dest);
+        context.setEndpoint(endpoint);
     }
 
     /**
@@ -276,6 +531,22 @@ public class ConnectionContextFactory {
      *             if the context is null or the context's session is null or the context's destination is null
      */
     protected void createProducer(ProducerConnectionContext context) throws JMSException {
+        createProducer(context, new SendOptions());
+    }
+
+    /**
+     * Creates a message producer using the context's session and destination whose defaults are taken from the given
+     * options.
+     * 
+     * @param context
+     *            the context where the new producer is stored
+     * @param options
+     *            the default delivery mode, priority and time-to-live of the producer's messages
+     * @throws JMSException
+     * @throws NullPointerException
+     *             if the context is null or the context's session is null or the context's destination is null
+     */
+    protected void createProducer(ProducerConnectionContext context, SendOptions options) throws JMSException {
         if (context == null) {
             throw new NullPointerException("The context is null");
         }
@@ -288,6 +559,15 @@ public class ConnectionContextFactory {
             throw new NullPointerException("The context had a null destination");
         }
         MessageProducer producer = session.createProducer(dest);
+        if (options.getDeliveryMode() >= 0) {
+            producer.setDeliveryMode(options.getDeliveryMode());
+        }
+        if (options.getPriority() >= 0) {
+            producer.setPriority(options.getPriority());
+        }
+        if (options.getTimeToLive() >= 0L) {
+            producer.setTimeToLive(options.getTimeToLive());
+        }
         context.setMessageProducer(producer);
     }
 
@@ -301,6 +581,22 @@ public class ConnectionContextFactory {
      *             if the context is null or the context's session is null or the context's destination is null
      */
     protected void createConsumer(ConsumerConnectionContext context) throws JMSException {
+        createConsumer(context, new ConsumerOptions());
+    }
+
+    /**
+     * Creates a message consumer using the context's session and destination that subscribes as described by the
+     * given options.
+     * 
+     * @param context
+     *            the context where the new consumer is stored
+     * @param options
+     *            how the consumer subscribes to the destination
+     * @throws JMSException
+     * @throws NullPointerException
+     *             if the context is null or the context's session is null or the context's destination is null
+     */
+    protected void createConsumer(ConsumerConnectionContext context, ConsumerOptions options) throws JMSException {
         if (context == null) {
             throw new NullPointerException("The context is null");
         }
@@ -312,7 +608,35 @@ public class ConnectionContextFactory {
         if (dest == null) {
             throw new NullPointerException("The context had a null destination");
         }
-        MessageConsumer consumer = session.createConsumer(dest);
+        if (options.getPrefetchSize() >= 0) {
+            dest = withPrefetchSize(session, dest, options.getPrefetchSize());
+        }
+
+        MessageConsumer consumer;
+        if (options.getSubscriptionName() != null) {
+            consumer = session.createDurableSubscriber((Topic) dest, options.getSubscriptionName(),
+                    options.getMessageSelector(), options.isNoLocal());
+        } else if (options.getMessageSelector() != null || options.isNoLocal()) {
+            consumer = session.createConsumer(dest, options.getMessageSelector(), options.isNoLocal());
+        } else {
+            consumer = session.createConsumer(dest);
+        }
         context.setMessageConsumer(consumer);
     }
+
+    /**
+     * The broker client takes consumer settings from the options of the destination name.
+     */
+    private Destination withPrefetchSize(Session session, Destination dest, int prefetchSize) throws JMSException {
+        String option = "?consumer.prefetchSize=" + prefetchSize;
+        if (dest instanceof TemporaryQueue || dest instanceof TemporaryTopic) {
+            return dest;
+        }
+        if (dest instanceof Queue) {
+            return session.createQueue(((Queue) dest).getQueueName() + option);
+        } else if (dest instanceof Topic) {
+            return session.createTopic(((Topic) dest).getTopicName() + option);
+        }
+        return dest;
+    }
 }
@@ -0,0 +1,243 @@
+package org.rhq.msg.common;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The compact, immutable map that holds the {@link BasicMessage#getDetails() details} of a message.
+ *
+ * The keys are kept sorted in one array and the values in another, so a map costs two arrays rather than a hash table
+ * and an entry object per detail, and keys are looked up by binary search. Messages tend to carry the same few detail
+ * keys over and over, so keys are interned in a dictionary shared by all maps: the maps of many messages then share
+ * the key strings instead of each holding its own copies. Only keys that are seen again shortly after they were first
+ * seen are added to the dictionary, so keys that occur once, e.g. ones made up of IDs, do not take up its room. The
+ * dictionary holds at most {@value #MAX_SHARED_KEYS} keys; keys beyond that are kept as they are.
+ *
+ * Null keys and values are allowed. Iteration is in the order of the keys, null first.
+ */
+public final class DetailsMap extends AbstractMap<String, String> {
+
+    /**
+     * The maximum number of keys the shared key dictionary holds.
+     */
+    public static final int MAX_SHARED_KEYS = 4096;
+
+    private static final ConcurrentMap<String, String> sharedKeys = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The keys seen once that are not shared yet, each in the slot its hash code picks; a key that is seen while it is
+     * still in its slot is added to the shared dictionary, and a different key for the same slot replaces it.
+     */
+    private static final AtomicReferenceArray<String> candidateKeys = new AtomicReferenceArray<String>(1024);
+
+    private static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String key1, String key2) {
+            if (key1 == key2) {
+                return 0;
+            }
+            if (key1 == null) {
+                return -1;
+            }
+            if (key2 == null) {
+                return 1;
+            }
+            return key1.compareTo(key2);
+        }
+    };
+
+    private static final DetailsMap EMPTY = new DetailsMap(new String[0], new String[0]);
+
+    private final String[] keys;
+    private final String[] values;
+    private Set<Map.Entry<String, String>> entrySet;
+
+    private DetailsMap(String[] keys, String[] values) {
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * Returns an immutable copy of the given details.
+     *
+     * @param details
+     *            the details to copy
+     * @return the copy, or the given details themselves if they already are a {@link DetailsMap}
+     */
+    public static DetailsMap copyOf(Map<String, String> details) {
+        if (details == null) {
+            throw new NullPointerException("details must not be null");
+        }
+        if (details instanceof DetailsMap) {
+            return (DetailsMap) details;
+        }
+        if (details.isEmpty()) {
+            return EMPTY;
+        }
+
+        String[] keys = details.keySet().toArray(new String[details.size()]);
+        Arrays.sort(keys, KEY_ORDER);
+        String[] values = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = details.get(keys[i]);
+            keys[i] = shareKey(keys[i]);
+        }
+        return new DetailsMap(keys, values);
+    }
+
+    /**
+     * @return the key that is equal to the given one from the shared dictionary, after adding it if it was seen before
+     *         and there is room
+     */
+    private static String shareKey(String key) {
+        if (key == null) {
+            return null;
+        }
+        String sharedKey = sharedKeys.get(key);
+        if (sharedKey != null) {
+            return sharedKey;
+        }
+
+        int hash = key.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & (candidateKeys.length() - 1);
+        String candidateKey = candidateKeys.get(slot);
+        if (!key.equals(candidateKey)) {
+            candidateKeys.set(slot, key); // seen for the first time, or again after another key took the slot
+            return key;
+        }
+        candidateKeys.compareAndSet(slot, candidateKey, null);
+        if (sharedKeys.size() >= MAX_SHARED_KEYS) {
+            return key;
+        }
+        // the key seen first is already held by another map
+        sharedKey = sharedKeys.putIfAbsent(candidateKey, candidateKey);
+        return (sharedKey != null) ? sharedKey : candidateKey;
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        int index = indexOf(key);
+        return (index >= 0) ? values[index] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        Set<Map.Entry<String, String>> result = entrySet;
+        if (result == null) {
+            result = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return keys.length;
+                }
+            };
+            entrySet = result;
+        }
+        return result;
+    }
+
+    private int indexOf(Object key) {
+        if (key != null && !(key instanceof String)) {
+            return -1;
+        }
+        return Arrays.binarySearch(keys, (String) key, KEY_ORDER);
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, String>> {
+        private int next;
+
+        @Override
+        public boolean hasNext() {
+            return next < keys.length;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next >= keys.length) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = new SimpleImmutableEntry<String, String>(keys[next], values[next]);
+            next++;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("The details of a message cannot be changed");
+        }
+    }
+
+    /**
+     * Collects details, e.g. while they are decoded, without the intermediate map {@link DetailsMap#copyOf(Map)}
+     * would need. If the same key is put more than once, the last value wins.
+     */
+    public static class Builder {
+        private String[] keys = new String[16];
+        private String[] values = new String[16];
+        private int size;
+        private boolean sorted = true;
+
+        public Builder put(String key, String value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            // details that were encoded from a DetailsMap arrive in order
+            if (size > 0 && KEY_ORDER.compare(keys[size - 1], key) >= 0) {
+                sorted = false;
+            }
+            keys[size] = key;
+            values[size] = value;
+            size++;
+            return this;
+        }
+
+        public DetailsMap build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            if (!sorted) {
+                Map<String, String> details = new HashMap<String, String>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    details.put(keys[i], values[i]);
+                }
+                return copyOf(details);
+            }
+
+            String[] builtKeys = Arrays.copyOf(keys, size);
+            for (int i = 0; i < size; i++) {
+                builtKeys[i] = shareKey(builtKeys[i]);
+            }
+            return new DetailsMap(builtKeys, Arrays.copyOf(values, size));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.rhq.msg.common;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Map;
+
+import org.rhq.msg.common.codec.CodecSupport;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Lets Gson read details into a {@link DetailsMap}, as the generated codecs do, instead of into a map of its own. The
+ * details are written the same way Gson writes any map.
+ */
+class DetailsTypeAdapter extends TypeAdapter<Map<String, String>> {
+
+    /**
+     * The type of the details, which Gson is told to use this adapter for.
+     */
+    static final Type TYPE = new TypeToken<Map<String, String>>() {
+    }.getType();
+
+    @Override
+    public Map<String, String> read(JsonReader in) throws IOException {
+        // also expands the keys of a key dictionary if the reader has one
+        return CodecSupport.readMap(in);
+    }
+
+    @Override
+    public void write(JsonWriter out, Map<String, String> details) throws IOException {
+        if (details == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        for (Map.Entry<String, String> entry : details.entrySet()) {
+            out.name(String.valueOf(entry.getKey()));
+            out.value(entry.getValue());
+        }
+        out.endObject();
+    }
+}
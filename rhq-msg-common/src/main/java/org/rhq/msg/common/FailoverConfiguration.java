@@ -0,0 +1,145 @@
+package org.rhq.msg.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes how a {@link ConnectionContextFactory} stays connected when brokers go away. The factory connects through
+ * the broker client's failover transport, which connects to the first available of the given brokers and, when the
+ * connection is lost, keeps trying to reconnect - to the same or another broker - with a growing delay between
+ * attempts. Once reconnected, the sessions, producers and consumers of all contexts created by the factory are
+ * restored, so message listeners keep receiving messages without having to be registered again.
+ *
+ * While the connection is down, sends block until the connection is back or the {@link #getSendTimeout() send
+ * timeout} has expired. Messages that were sent but not yet acknowledged by the broker when the connection was lost
+ * are kept in a buffer of {@link #getMaxBufferSize() limited size} and sent again after reconnecting.
+ */
+public class FailoverConfiguration {
+    private final List<String> brokerURLs = new ArrayList<String>();
+    private long initialReconnectDelay = 100L;
+    private long maxReconnectDelay = 30000L;
+    private int maxReconnectAttempts = -1;
+    private long sendTimeout = -1L;
+    private int maxBufferSize = 1024 * 1024;
+    private boolean randomize = false;
+
+    /**
+     * Adds a broker to connect to. Brokers are tried in the order they were added (unless {@link #isRandomize()
+     * randomized}).
+     *
+     * @param brokerURL
+     *            the URL of the broker, e.g. <code>tcp://host:61616</code>
+     */
+    public void addBrokerURL(String brokerURL) {
+        if (brokerURL == null) {
+            throw new NullPointerException("brokerURL must not be null");
+        }
+        brokerURLs.add(brokerURL);
+    }
+
+    public List<String> getBrokerURLs() {
+        return Collections.unmodifiableList(brokerURLs);
+    }
+
+    /**
+     * @return milliseconds to wait before the first reconnect attempt
+     */
+    public long getInitialReconnectDelay() {
+        return initialReconnectDelay;
+    }
+
+    public void setInitialReconnectDelay(long initialReconnectDelay) {
+        this.initialReconnectDelay = initialReconnectDelay;
+    }
+
+    /**
+     * @return the longest time to wait between two reconnect attempts, in milliseconds
+     */
+    public long getMaxReconnectDelay() {
+        return maxReconnectDelay;
+    }
+
+    public void setMaxReconnectDelay(long maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+    }
+
+    /**
+     * @return how often to try to reconnect before giving up and reporting the connection as failed; -1 to never give
+     *         up
+     */
+    public int getMaxReconnectAttempts() {
+        return maxReconnectAttempts;
+    }
+
+    public void setMaxReconnectAttempts(int maxReconnectAttempts) {
+        this.maxReconnectAttempts = maxReconnectAttempts;
+    }
+
+    /**
+     * @return how long a send blocks while the connection is down before it fails, in milliseconds; -1 to block until
+     *         the connection is back
+     */
+    public long getSendTimeout() {
+        return sendTimeout;
+    }
+
+    public void setSendTimeout(long sendTimeout) {
+        this.sendTimeout = sendTimeout;
+    }
+
+    /**
+     * @return the maximum size, in bytes, of the messages kept to be sent again after reconnecting
+     */
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    public void setMaxBufferSize(int maxBufferSize) {
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * @return true if the brokers are tried in random order, e.g. to spread clients across them
+     */
+    public boolean isRandomize() {
+        return randomize;
+    }
+
+    public void setRandomize(boolean randomize) {
+        this.randomize = randomize;
+    }
+
+    /**
+     * @return the URL of the failover transport that implements this configuration
+     * @throws IllegalStateException
+     *             if no broker URL has been added
+     */
+    public String toBrokerURL() {
+        if (brokerURLs.isEmpty()) {
+            throw new IllegalStateException("At least one broker URL is required");
+        }
+
+        StringBuilder url = new StringBuilder("failover:(");
+        for (int i = 0; i < brokerURLs.size(); i++) {
+            if (i > 0) {
+                url.append(',');
+            }
+            url.append(brokerURLs.get(i));
+        }
+        url.append(")?initialReconnectDelay=").append(initialReconnectDelay);
+        url.append("&maxReconnectDelay=").append(maxReconnectDelay);
+        url.append("&maxReconnectAttempts=").append(maxReconnectAttempts);
+        url.append("&startupMaxReconnectAttempts=").append(maxReconnectAttempts);
+        url.append("&timeout=").append(sendTimeout);
+        url.append("&trackMessages=true");
+        url.append("&maxCacheSize=").append(maxBufferSize);
+        url.append("&randomize=").append(randomize);
+        return url.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "FailoverConfiguration: [" + toBrokerURL() + "]";
+    }
+}
@@ -0,0 +1,255 @@
+package org.rhq.msg.common;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+
+import org.rhq.msg.common.consumer.BasicMessageListener;
+import org.rhq.msg.common.consumer.ConsumerConnectionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-process fast path for messages whose producers and consumers live in the same JVM. For the endpoints that are
+ * {@link #enable(Endpoint) enabled}, a {@link MessageProcessor} with this transport hands the sent {@link BasicMessage}
+ * object directly to the listeners in this JVM, without encoding it, going through the broker and decoding it again.
+ * A listener whose message type is not the type of the sent message gets a copy of the message converted to its type.
+ *
+ * Sent messages are still assigned message IDs, and endpoints keep their semantics: a message sent to a queue is given
+ * to exactly one of the queue's listeners (kept until there is a listener if there is none yet), while a message sent
+ * to a topic is given to each of the topic's listeners (and dropped if there are none). Listeners are called in the
+ * sending thread, one message at a time per listener.
+ *
+ * As the same message object is given to the sender and the listeners, neither should modify it after it has been
+ * sent. Messages that are sent locally are not persisted and not redelivered; a message whose listener fails is lost.
+ * Messages sent through the broker by other JVMs still reach the listeners as usual.
+ *
+ * A listener is removed when a message processor {@link MessageProcessor#unlisten stops listening} with it. A listener
+ * whose consumer has been closed otherwise, e.g. with its connection, is removed the next time a message is sent to
+ * its endpoint.
+ */
+public class LocalTransport {
+
+    /**
+     * The listeners of an endpoint and, for queues, the messages waiting for a listener.
+     */
+    private static class Route {
+        private final List<BasicMessageListener<?>> listeners = new CopyOnWriteArrayList<BasicMessageListener<?>>();
+        private final Queue<BasicMessage> pending = new ConcurrentLinkedQueue<BasicMessage>();
+        private final AtomicInteger next = new AtomicInteger();
+    }
+
+    private final Logger log = LoggerFactory.getLogger(LocalTransport.class);
+
+    private final ConcurrentMap<Endpoint, Route> routes = new ConcurrentHashMap<Endpoint, Route>();
+    private final String messageIdPrefix = "ID:local-" + UUID.randomUUID() + ":";
+    private final AtomicLong messageCount = new AtomicLong();
+    private int maxPendingMessages = 10000;
+
+    /**
+     * @return the maximum number of messages kept for each queue that has no listener yet
+     */
+    public int getMaxPendingMessages() {
+        return maxPendingMessages;
+    }
+
+    public void setMaxPendingMessages(int maxPendingMessages) {
+        this.maxPendingMessages = maxPendingMessages;
+    }
+
+    /**
+     * Sends the messages to the given endpoint in-process from now on. Listeners added to the endpoint before it was
+     * enabled do not get these messages.
+     *
+     * @param endpoint
+     *            the endpoint; temporary endpoints cannot be enabled
+     */
+    public void enable(Endpoint endpoint) {
+        if (endpoint == null) {
+            throw new NullPointerException("endpoint must not be null");
+        }
+        if (endpoint.isTemporary()) {
+            throw new IllegalArgumentException("Temporary endpoints cannot be sent to in-process: " + endpoint);
+        }
+        routes.putIfAbsent(endpoint, new Route());
+    }
+
+    /**
+     * Sends the messages to the given endpoint through the broker again. Messages still waiting for a listener are
+     * dropped.
+     *
+     * @param endpoint
+     *            the endpoint
+     */
+    public void disable(Endpoint endpoint) {
+        Route route = routes.remove(endpoint);
+        if (route != null && !route.pending.isEmpty()) {
+            log.warn("Dropping [{}] messages that were waiting for a listener of {}", route.pending.size(), endpoint);
+        }
+    }
+
+    /**
+     * @param endpoint
+     *            the endpoint, may be <code>null</code>
+     * @return true if the messages to the given endpoint are sent in-process
+     */
+    public boolean isEnabled(Endpoint endpoint) {
+        return endpoint != null && routes.containsKey(endpoint);
+    }
+
+    /**
+     * Adds a listener to an enabled endpoint. If the endpoint is a queue with messages waiting for a listener, they are
+     * given to this listener before this method returns.
+     *
+     * @param endpoint
+     *            the endpoint
+     * @param listener
+     *            the listener
+     * @throws IllegalStateException
+     *             if the endpoint is not enabled
+     */
+    public void addListener(Endpoint endpoint, BasicMessageListener<?> listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener must not be null");
+        }
+        Route route = getRoute(endpoint);
+        synchronized (route) {
+            // the waiting messages are delivered before the listener becomes visible to senders to keep them in order
+            BasicMessage message;
+            while ((message = route.pending.poll()) != null) {
+                deliver(endpoint, listener, message);
+            }
+            route.listeners.add(listener);
+        }
+    }
+
+    /**
+     * Removes a listener from an endpoint.
+     *
+     * @param endpoint
+     *            the endpoint
+     * @param listener
+     *            the listener
+     */
+    public void removeListener(Endpoint endpoint, BasicMessageListener<?> listener) {
+        Route route = routes.get(endpoint);
+        if (route != null) {
+            route.listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Sends a message to the listeners of an enabled endpoint and assigns it a message ID.
+     *
+     * @param endpoint
+     *            the endpoint
+     * @param basicMessage
+     *            the message
+     * @return the message ID
+     * @throws IllegalStateException
+     *             if the endpoint is not enabled, or if it is a queue without listeners that already holds the maximum
+     *             number of waiting messages
+     */
+    public MessageId send(Endpoint endpoint, BasicMessage basicMessage) {
+        if (basicMessage == null) {
+            throw new NullPointerException("message must not be null");
+        }
+        Route route = getRoute(endpoint);
+
+        MessageId messageId = new MessageId(messageIdPrefix + messageCount.incrementAndGet());
+        basicMessage.setMessageId(messageId);
+
+        if (endpoint.getType() == Endpoint.Type.TOPIC) {
+            for (BasicMessageListener<?> listener : route.listeners) {
+                if (isClosed(listener)) {
+                    route.listeners.remove(listener);
+                } else {
+                    deliver(endpoint, listener, basicMessage);
+                }
+            }
+            return messageId;
+        }
+
+        BasicMessageListener<?> listener = nextListener(route);
+        if (listener == null) {
+            synchronized (route) {
+                listener = nextListener(route); // a listener may have been added in the meantime
+                if (listener == null) {
+                    if (route.pending.size() >= maxPendingMessages) {
+                        throw new IllegalStateException("Too many messages are waiting for a listener of " + endpoint);
+                    }
+                    route.pending.add(basicMessage);
+                    return messageId;
+                }
+            }
+        }
+        deliver(endpoint, listener, basicMessage);
+        return messageId;
+    }
+
+    private Route getRoute(Endpoint endpoint) {
+        Route route = (endpoint != null) ? routes.get(endpoint) : null;
+        if (route == null) {
+            throw new IllegalStateException("The endpoint is not enabled for in-process messages: " + endpoint);
+        }
+        return route;
+    }
+
+    private BasicMessageListener<?> nextListener(Route route) {
+        List<BasicMessageListener<?>> listeners = route.listeners;
+        while (true) {
+            int size = listeners.size();
+            if (size == 0) {
+                return null;
+            }
+            BasicMessageListener<?> listener;
+            try {
+                listener = listeners.get((route.next.getAndIncrement() & Integer.MAX_VALUE) % size);
+            } catch (IndexOutOfBoundsException e) {
+                continue; // a listener was removed concurrently; try again
+            }
+            if (!isClosed(listener)) {
+                return listener;
+            }
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * @return true if the consumer the listener was attached to has been closed, e.g. with its connection
+     */
+    private boolean isClosed(BasicMessageListener<?> listener) {
+        ConsumerConnectionContext context = listener.getConsumerConnectionContext();
+        MessageConsumer consumer = (context != null) ? context.getMessageConsumer() : null;
+        if (consumer == null) {
+            return false;
+        }
+        try {
+            consumer.getMessageListener();
+            return false;
+        } catch (JMSException e) {
+            return true; // a closed consumer rejects all calls
+        }
+    }
+
+    private void deliver(Endpoint endpoint, BasicMessageListener<?> listener, BasicMessage basicMessage) {
+        try {
+            // like a JMS session, a listener processes one message at a time
+            synchronized (listener) {
+                listener.onLocalMessage(basicMessage);
+            }
+        } catch (RuntimeException e) {
+            log.error("The listener of " + endpoint + " failed to process message [" + basicMessage.getMessageId()
+                    + "]; it is lost", e);
+        }
+    }
+}
@@ -1,20 +1,47 @@
 package org.rhq.msg.common;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 import javax.jms.TemporaryQueue;
+import javax.jms.TextMessage;
 
+import org.apache.activemq.ScheduledMessage;
+import org.rhq.msg.common.codec.BytesMessageOutputStream;
+import org.rhq.msg.common.codec.KeyDictionary;
+import org.rhq.msg.common.codec.MessageCodecs;
 import org.rhq.msg.common.consumer.AbstractBasicMessageListener;
 import org.rhq.msg.common.consumer.BasicMessageListener;
 import org.rhq.msg.common.consumer.ConsumerConnectionContext;
 import org.rhq.msg.common.consumer.FutureBasicMessageListener;
 import org.rhq.msg.common.consumer.RPCConnectionContext;
+import org.rhq.msg.common.metrics.MessagingMetrics;
+import org.rhq.msg.common.metrics.NoOpMessagingMetrics;
+import org.rhq.msg.common.metrics.SendTimestamp;
+import org.rhq.msg.common.tracing.Span;
+import org.rhq.msg.common.tracing.SpanScope;
+import org.rhq.msg.common.tracing.SpanSink;
+import org.rhq.msg.common.tracing.TraceContext;
 import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.rhq.msg.common.producer.SendOptions;
+import org.rhq.msg.common.producer.TimingWheel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,11 +50,171 @@ import org.slf4j.LoggerFactory;
  * 
  * Use {@link ConnectionContextFactory} to create contexts (which create destinations, sessions, and connections for you)
  * that you then use to pass to the listen and send methods in this class.
+ * 
+ * The messages sent by this processor, and the messages received by the listeners attached through it, are measured
+ * by the processor's {@link MessagingMetrics}. By default nothing is measured. When metrics are set, outgoing messages
+ * are stamped with a {@link SendTimestamp send timestamp} so the receiving side can measure how long they took to
+ * arrive.
+ * 
+ * Outgoing messages carry a {@link TraceContext trace context} when they are sent within a traced scope (e.g. by a
+ * listener processing a traced message) or when this processor has a {@link SpanSink}. The spans of the sends are
+ * reported to that sink.
+ * 
+ * With a {@link LocalTransport}, messages to the endpoints enabled in it are handed directly to the listeners in this
+ * JVM instead of being sent through the broker.
+ * 
+ * Delayed messages (see {@link SendOptions#getDelay()}) are held in the broker's scheduler. With a
+ * {@link TimingWheel}, delayed non-persistent messages are held in this JVM instead and sent once their delay has
+ * passed, which spares the broker's scheduler store.
+ * 
+ * Messages are sent as JSON text messages unless {@link #setBytesMessageEncoding(boolean) bytes message encoding} is
+ * enabled. The detail keys of messages sent to endpoints with a {@link KeyDictionary} are compressed.
  */
 public class MessageProcessor {
 
     private final Logger log = LoggerFactory.getLogger(MessageProcessor.class);
 
+    private MessagingMetrics metrics = NoOpMessagingMetrics.INSTANCE;
+    private SpanSink spanSink;
+    private LocalTransport localTransport;
+    private TimingWheel timingWheel;
+    // the session and producer the timing wheel sends through, one per connection; an entry is dropped when a send
+    // through it fails or, once its connection is closed, when the wheel next needs a session for another connection
+    private final Map<Connection, ProducerConnectionContext> delayedSendContexts =
+            new HashMap<Connection, ProducerConnectionContext>();
+    private boolean bytesMessageEncoding;
+    private final ConcurrentMap<Endpoint, KeyDictionary> keyDictionaries = new ConcurrentHashMap<Endpoint, KeyDictionary>();
+
+    public MessageProcessor() {
+    }
+
+    public MessageProcessor(MessagingMetrics metrics) {
+        setMessagingMetrics(metrics);
+    }
+
+    public MessagingMetrics getMessagingMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics that measure the messages sent by this processor. Listeners attached via
+     * {@link #listen(ConsumerConnectionContext, AbstractBasicMessageListener)} and the response listeners of RPC
+     * requests are given these metrics, too.
+     * 
+     * @param metrics
+     *            the metrics to use
+     */
+    public void setMessagingMetrics(MessagingMetrics metrics) {
+        if (metrics == null) {
+            throw new NullPointerException("metrics must not be null");
+        }
+        this.metrics = metrics;
+    }
+
+    public SpanSink getSpanSink() {
+        return spanSink;
+    }
+
+    /**
+     * Sets the sink that the spans of the messages sent by this processor are reported to. Messages sent outside of a
+     * traced scope start new traces. Listeners attached via
+     * {@link #listen(ConsumerConnectionContext, AbstractBasicMessageListener)} and the response listeners of RPC
+     * requests report their spans to this sink, too.
+     * 
+     * @param spanSink
+     *            the sink, or <code>null</code> to only propagate traces that have been started elsewhere
+     */
+    public void setSpanSink(SpanSink spanSink) {
+        this.spanSink = spanSink;
+    }
+
+    public LocalTransport getLocalTransport() {
+        return localTransport;
+    }
+
+    /**
+     * Sets the transport that messages to the endpoints enabled in it are sent through in-process. Fire-and-forget
+     * messages sent to those endpoints via {@link #send(ProducerConnectionContext, BasicMessage)} only reach the
+     * listeners in this JVM, and {@link BasicMessageListener}s attached to those endpoints via
+     * {@link #listen(ConsumerConnectionContext, AbstractBasicMessageListener)} receive the messages sent in-process in
+     * addition to those that arrive through the broker. Request-response messages are always sent through the broker.
+     * 
+     * @param localTransport
+     *            the transport, or <code>null</code> to send all messages through the broker
+     */
+    public void setLocalTransport(LocalTransport localTransport) {
+        this.localTransport = localTransport;
+    }
+
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    /**
+     * Sets the wheel that holds delayed non-persistent messages until they are due, so they are not sent to the
+     * broker's scheduler. Messages held by the wheel are lost if this JVM goes down before they are sent, just as
+     * non-persistent messages held by the broker are lost if the broker goes down.
+     * 
+     * @param timingWheel
+     *            the wheel, or <code>null</code> to hold all delayed messages in the broker
+     */
+    public void setTimingWheel(TimingWheel timingWheel) {
+        this.timingWheel = timingWheel;
+    }
+
+    public boolean isBytesMessageEncoding() {
+        return bytesMessageEncoding;
+    }
+
+    /**
+     * Determines whether messages are sent as bytes messages whose body is the UTF-8 encoded JSON instead of text
+     * messages. The JSON is then streamed directly into the body of the message rather than being built as a string
+     * that is encoded again when the message is put on the wire, which for large messages saves the memory of two
+     * copies. Listeners decode both kinds of messages, so this can be enabled once all listeners of the destinations
+     * this processor sends to run a version that decodes bytes messages.
+     * 
+     * @param bytesMessageEncoding
+     *            true to send bytes messages, false to send text messages
+     */
+    public void setBytesMessageEncoding(boolean bytesMessageEncoding) {
+        this.bytesMessageEncoding = bytesMessageEncoding;
+    }
+
+    /**
+     * @return the dictionary that the detail keys of the messages sent to the given endpoint are compressed with, or
+     *         <code>null</code> if they are not compressed
+     */
+    public KeyDictionary getKeyDictionary(Endpoint endpoint) {
+        if (endpoint == null) {
+            throw new NullPointerException("endpoint must not be null");
+        }
+        return keyDictionaries.get(endpoint);
+    }
+
+    /**
+     * Sets the dictionary that the detail keys of the messages sent to the given endpoint are compressed with. The
+     * listeners attached to that endpoint via {@link #listen(ConsumerConnectionContext, AbstractBasicMessageListener)}
+     * are given the dictionary, too, so that they can expand the keys, as are the listeners of the responses to
+     * requests sent to the endpoint, whose responders may compress their responses with it. All consumers of the
+     * endpoint must have the dictionary, in the version the messages are sent with or a later one; a consumer that does
+     * not cannot decode the messages (see {@link KeyDictionary}).
+     * 
+     * @param endpoint
+     *            the endpoint
+     * @param keyDictionary
+     *            the dictionary, or <code>null</code> to send the keys as they are
+     */
+    public void setKeyDictionary(Endpoint endpoint, KeyDictionary keyDictionary) {
+        if (endpoint == null) {
+            throw new NullPointerException("endpoint must not be null");
+        }
+        if (keyDictionary == null) {
+            keyDictionaries.remove(endpoint);
+        } else {
+            keyDictionaries.put(endpoint, keyDictionary);
+        }
+    }
+
     /**
      * Listens for messages.
      * 
@@ -53,7 +240,48 @@ public class MessageProcessor {
         }
 
         listener.setConsumerConnectionContext(context);
+        listener.setMessagingMetrics(metrics);
+        listener.setSpanSink(spanSink);
+        if (context.getEndpoint() != null && keyDictionaries.containsKey(context.getEndpoint())) {
+            listener.setKeyDictionary(keyDictionaries.get(context.getEndpoint()));
+        }
         consumer.setMessageListener(listener);
+
+        LocalTransport transport = localTransport;
+        if (transport != null && transport.isEnabled(context.getEndpoint()) && listener instanceof BasicMessageListener) {
+            transport.addListener(context.getEndpoint(), (BasicMessageListener<?>) listener);
+        }
+    }
+
+    /**
+     * Stops listening for messages: the listener is detached from the {@link #setLocalTransport(LocalTransport) local
+     * transport} and the consumer of the context is closed.
+     * 
+     * @param context
+     *            the context the listener was given to {@link #listen(ConsumerConnectionContext, AbstractBasicMessageListener)}
+     * @param listener
+     *            the listener
+     * @throws JMSException
+     *             if the consumer could not be closed
+     */
+    public <T extends BasicMessage> void unlisten(ConsumerConnectionContext context, AbstractBasicMessageListener<T> listener)
+            throws JMSException {
+        if (context == null) {
+            throw new NullPointerException("context must not be null");
+        }
+        if (listener == null) {
+            throw new NullPointerException("listener must not be null");
+        }
+
+        LocalTransport transport = localTransport;
+        if (transport != null && context.getEndpoint() != null && listener instanceof BasicMessageListener) {
+            transport.removeListener(context.getEndpoint(), (BasicMessageListener<?>) listener);
+        }
+
+        MessageConsumer consumer = context.getMessageConsumer();
+        if (consumer != null) {
+            consumer.close();
+        }
     }
 
     /**
@@ -72,6 +300,31 @@ public class MessageProcessor {
      * @see {@link #createProducerConnectionContext(Endpoint)}
      */
     public MessageId send(ProducerConnectionContext context, BasicMessage basicMessage) throws JMSException {
+        return send(context, basicMessage, null);
+    }
+
+    /**
+     * Same as {@link #send(ProducerConnectionContext, BasicMessage)} except the given options determine how the message
+     * is sent, e.g. with which priority or time-to-live. Messages handed to a {@link LocalTransport} are delivered right
+     * away, so the options do not apply to them; delayed messages are never handed to it before they are due.
+     * 
+     * A delayed non-persistent message is not sent at all if this processor has a {@link #setTimingWheel(TimingWheel)
+     * timing wheel}; the wheel sends it, from its own thread, once the delay has passed. This method then returns
+     * <code>null</code> and the wheel thread sets the message ID on the given message when it sends it, so a caller
+     * that wants the ID must not read it until the delay has passed. JMS sessions must not be used by more than one
+     * thread, so the wheel does not send through the session of the given context, which its caller keeps using, but
+     * through the one session it keeps for each connection.
+     * 
+     * @param context
+     *            information that determines where the message is sent
+     * @param basicMessage
+     *            the message to send
+     * @param options
+     *            how to send the message, or <code>null</code> to use the producer's defaults
+     * @return the message ID, or <code>null</code> if the message is held by the timing wheel
+     * @throws JMSException
+     */
+    public MessageId send(ProducerConnectionContext context, BasicMessage basicMessage, SendOptions options) throws JMSException {
         if (context == null) {
             throw new NullPointerException("context must not be null");
         }
@@ -79,6 +332,24 @@ public class MessageProcessor {
             throw new NullPointerException("message must not be null");
         }
 
+        long delay = (options != null) ? options.getDelay() : 0L;
+        if (delay > 0L) {
+            TimingWheel wheel = timingWheel;
+            if (wheel != null && getDeliveryMode(context, options) == DeliveryMode.NON_PERSISTENT) {
+                sendLater(wheel, context, basicMessage, options);
+                return null;
+            }
+        }
+
+        long startTime = System.nanoTime();
+
+        LocalTransport transport = localTransport;
+        if (delay == 0L && transport != null && transport.isEnabled(context.getEndpoint())) {
+            MessageId messageId = transport.send(context.getEndpoint(), basicMessage);
+            metrics.messageSent(context.getEndpoint(), System.nanoTime() - startTime, 0);
+            return messageId;
+        }
+
         // create the JMS message to be sent
         Message msg = createMessage(context, basicMessage);
 
@@ -92,13 +363,18 @@ public class MessageProcessor {
             basicMessage.setMessageId(null);
         }
 
+        // the broker's scheduler holds the message back
+        if (delay > 0L) {
+            msg.setLongProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY, delay);
+        }
+
         // now send the message to the broker
         MessageProducer producer = context.getMessageProducer();
         if (producer == null) {
             throw new NullPointerException("context had a null producer");
         }
 
-        producer.send(msg);
+        sendMessage(context, producer, msg, startTime, options);
 
         // put message ID into the message in case the caller wants to correlate it with another record
         MessageId messageId = new MessageId(msg.getJMSMessageID());
@@ -137,6 +413,29 @@ public class MessageProcessor {
      */
     public <T extends BasicMessage> RPCConnectionContext sendAndListen(ProducerConnectionContext context, BasicMessage basicMessage,
             BasicMessageListener<T> responseListener) throws JMSException {
+        return sendAndListen(context, basicMessage, responseListener, null);
+    }
+
+    /**
+     * Same as {@link #sendAndListen(ProducerConnectionContext, BasicMessage, BasicMessageListener)} except the given
+     * options determine how the request is sent, e.g. with a high priority so that it overtakes bulk messages waiting
+     * for the same consumer. A delayed request is always held in the broker's scheduler, never in a
+     * {@link #setTimingWheel(TimingWheel) timing wheel}.
+     * 
+     * @param context
+     *            information that determines where the message is sent
+     * @param basicMessage
+     *            the request message to send
+     * @param responseListener
+     *            The listener that will process the response of the request. This listener should close its associated
+     *            consumer when appropriate.
+     * @param options
+     *            how to send the request, or <code>null</code> to use the producer's defaults
+     * @return the RPC context which includes information about the handling of the expected response
+     * @throws JMSException
+     */
+    public <T extends BasicMessage> RPCConnectionContext sendAndListen(ProducerConnectionContext context, BasicMessage basicMessage,
+            BasicMessageListener<T> responseListener, SendOptions options) throws JMSException {
 
         if (context == null) {
             throw new NullPointerException("context must not be null");
@@ -182,12 +481,25 @@ public class MessageProcessor {
         rpcContext.setResponseListener(responseListener);
 
         responseListener.setConsumerConnectionContext(rpcContext);
+        responseListener.setMessagingMetrics(metrics);
+        responseListener.setSpanSink(spanSink);
+        // the responder sends the response with the connection information of the request, including its endpoint
+        if (context.getEndpoint() != null && keyDictionaries.containsKey(context.getEndpoint())) {
+            responseListener.setKeyDictionary(keyDictionaries.get(context.getEndpoint()));
+        }
         responseConsumer.setMessageListener(responseListener);
 
         msg.setJMSReplyTo(responseQueue);
 
-        // now send the message to the broker
-        producer.send(msg);
+        // the broker's scheduler holds the request back
+        if (options != null && options.getDelay() > 0L) {
+            msg.setLongProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY, options.getDelay());
+        }
+
+        // now send the message to the broker - the response can arrive before send returns, so note the time first
+        long startTime = System.nanoTime();
+        rpcContext.setRequestSendTime(startTime);
+        sendMessage(context, producer, msg, startTime, options);
 
         // put message ID into the message in case the caller wants to correlate it with another record
         MessageId messageId = new MessageId(msg.getJMSMessageID());
@@ -221,14 +533,255 @@ public class MessageProcessor {
      */
     public <R extends BasicMessage> Future<R> sendRPC(ProducerConnectionContext context, BasicMessage basicMessage, Class<R> expectedResponseMessageClass)
             throws JMSException {
+        return sendRPC(context, basicMessage, expectedResponseMessageClass, null);
+    }
+
+    /**
+     * Same as {@link #sendRPC(ProducerConnectionContext, BasicMessage, Class)} except the given options determine how
+     * the request is sent (see
+     * {@link #sendAndListen(ProducerConnectionContext, BasicMessage, BasicMessageListener, SendOptions)}).
+     * 
+     * @param context
+     *            information that determines where the message is sent
+     * @param basicMessage
+     *            the request message to send
+     * @param expectedResponseMessageClass
+     *            this is the message class of the expected response object.
+     * @param options
+     *            how to send the request, or <code>null</code> to use the producer's defaults
+     * @return a future that allows you to wait for and get the response of the given response type
+     * @throws JMSException
+     */
+    public <R extends BasicMessage> Future<R> sendRPC(ProducerConnectionContext context, BasicMessage basicMessage,
+            Class<R> expectedResponseMessageClass, SendOptions options) throws JMSException {
 
         FutureBasicMessageListener<R> futureListener = new FutureBasicMessageListener<R>(expectedResponseMessageClass);
-        sendAndListen(context, basicMessage, futureListener);
+        sendAndListen(context, basicMessage, futureListener, options);
         return futureListener;
     }
 
+    private int getDeliveryMode(ProducerConnectionContext context, SendOptions options) throws JMSException {
+        if (options.getDeliveryMode() >= 0) {
+            return options.getDeliveryMode();
+        }
+        MessageProducer producer = context.getMessageProducer();
+        if (producer == null) {
+            throw new NullPointerException("context had a null producer");
+        }
+        return producer.getDeliveryMode();
+    }
+
+    private void sendLater(TimingWheel wheel, final ProducerConnectionContext context, final BasicMessage basicMessage,
+            SendOptions options) throws JMSException {
+        MessageProducer producer = context.getMessageProducer();
+        if (producer == null) {
+            throw new NullPointerException("context had a null producer");
+        }
+        // the message is sent by another producer, so the defaults of this one are resolved now
+        final SendOptions dueOptions = new SendOptions();
+        dueOptions.setDeliveryMode(options.getDeliveryMode() >= 0 ? options.getDeliveryMode() : producer.getDeliveryMode());
+        dueOptions.setPriority(options.getPriority() >= 0 ? options.getPriority() : producer.getPriority());
+        dueOptions.setTimeToLive(options.getTimeToLive() >= 0L ? options.getTimeToLive() : producer.getTimeToLive());
+
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ProducerConnectionContext delayedSendContext = null;
+                try {
+                    delayedSendContext = getDelayedSendContext(context.getConnection());
+                    synchronized (delayedSendContext) {
+                        ProducerConnectionContext sendContext = new ProducerConnectionContext();
+                        sendContext.copy(context);
+                        sendContext.setSession(delayedSendContext.getSession());
+                        sendContext.setMessageProducer(delayedSendContext.getMessageProducer());
+                        send(sendContext, basicMessage, dueOptions);
+                    }
+                } catch (Exception e) {
+                    log.error("Failed to send delayed message to [" + context.getEndpoint() + "]", e);
+                    if (delayedSendContext != null) {
+                        // the session may be broken, so the next delayed message gets a new one
+                        discardDelayedSendContext(delayedSendContext);
+                    }
+                }
+            }
+        }, options.getDelay(), TimeUnit.MILLISECONDS);
+    }
+
     /**
-     * Creates a text message that can be send via a producer that contains the given BasicMessage's JSON encoded data.
+     * @return the context with the session, of its own on the given connection, and the producer, which has no
+     *         destination of its own, that the timing wheel sends the delayed messages given for that connection
+     *         through
+     */
+    private ProducerConnectionContext getDelayedSendContext(Connection connection) throws JMSException {
+        if (connection == null) {
+            throw new NullPointerException("context had a null connection");
+        }
+        synchronized (delayedSendContexts) {
+            ProducerConnectionContext delayedSendContext = delayedSendContexts.get(connection);
+            if (delayedSendContext == null) {
+                // the sessions of closed connections are closed with them, only their entries are left to drop
+                for (Iterator<Connection> iterator = delayedSendContexts.keySet().iterator(); iterator.hasNext();) {
+                    if (isClosed(iterator.next())) {
+                        iterator.remove();
+                    }
+                }
+                delayedSendContext = new ProducerConnectionContext();
+                delayedSendContext.setConnection(connection);
+                Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                delayedSendContext.setSession(session);
+                delayedSendContext.setMessageProducer(session.createProducer(null));
+                delayedSendContexts.put(connection, delayedSendContext);
+            }
+            return delayedSendContext;
+        }
+    }
+
+    /**
+     * @return the number of connections the timing wheel keeps a session on, for tests
+     */
+    int getDelayedSendSessionCount() {
+        synchronized (delayedSendContexts) {
+            return delayedSendContexts.size();
+        }
+    }
+
+    private static boolean isClosed(Connection connection) {
+        try {
+            // every method but close() throws once the connection is closed
+            connection.getClientID();
+            return false;
+        } catch (JMSException e) {
+            return true;
+        }
+    }
+
+    private void discardDelayedSendContext(ProducerConnectionContext delayedSendContext) {
+        synchronized (delayedSendContexts) {
+            if (delayedSendContexts.get(delayedSendContext.getConnection()) == delayedSendContext) {
+                delayedSendContexts.remove(delayedSendContext.getConnection());
+            }
+        }
+        try {
+            delayedSendContext.getSession().close();
+        } catch (Exception e) {
+            log.debug("Cannot close the session of delayed messages: {}", e.toString());
+        }
+    }
+
+    private int getDeliveryMode(MessageProducer producer, SendOptions options) throws JMSException {
+        return (options.getDeliveryMode() < 0) ? producer.getDeliveryMode() : options.getDeliveryMode();
+    }
+
+    private int getPriority(MessageProducer producer, SendOptions options) throws JMSException {
+        return (options.getPriority() < 0) ? producer.getPriority() : options.getPriority();
+    }
+
+    private long getTimeToLive(MessageProducer producer, SendOptions options) throws JMSException {
+        return (options.getTimeToLive() < 0L) ? producer.getTimeToLive() : options.getTimeToLive();
+    }
+
+    private void sendMessage(ConnectionContext context, MessageProducer producer, Message msg, long startTime, SendOptions options)
+            throws JMSException {
+        if (metrics != NoOpMessagingMetrics.INSTANCE) {
+            msg.setLongProperty(SendTimestamp.PROPERTY_NAME, SendTimestamp.now());
+        }
+
+        SpanScope sendScope = openSendScope(context, msg);
+        try {
+            if (producer.getDestination() == null) {
+                // a producer without a destination of its own, like the one of the timing wheel
+                if (options == null) {
+                    producer.send(context.getDestination(), msg);
+                } else {
+                    producer.send(context.getDestination(), msg, getDeliveryMode(producer, options),
+                            getPriority(producer, options), getTimeToLive(producer, options));
+                }
+            } else if (options == null) {
+                producer.send(msg);
+            } else {
+                producer.send(msg, getDeliveryMode(producer, options), getPriority(producer, options),
+                        getTimeToLive(producer, options));
+            }
+        } catch (JMSException e) {
+            metrics.sendFailed(context.getEndpoint());
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.sendFailed(context.getEndpoint());
+            throw e;
+        } finally {
+            if (sendScope != null) {
+                sendScope.close();
+            }
+        }
+
+        if (metrics != NoOpMessagingMetrics.INSTANCE) {
+            int encodedSize = 0;
+            if (msg instanceof TextMessage) {
+                encodedSize = getUtf8Length(((TextMessage) msg).getText());
+            } else if (msg instanceof BytesMessage) {
+                encodedSize = getBodyLength((BytesMessage) msg);
+            }
+            metrics.messageSent(context.getEndpoint(), System.nanoTime() - startTime, encodedSize);
+        }
+    }
+
+    /**
+     * @return the length of the body of a bytes message that has been sent
+     */
+    private static int getBodyLength(BytesMessage msg) throws JMSException {
+        // the body is only written to until the message is sent; after that it may be made readable
+        msg.reset();
+        return (int) msg.getBodyLength();
+    }
+
+    /**
+     * @return the number of bytes the given text takes up when encoded as UTF-8, as it is on the wire
+     */
+    private static int getUtf8Length(String text) {
+        if (text == null) {
+            return 0;
+        }
+        int length = text.length();
+        int utf8Length = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    // a surrogate pair is 4 bytes for 2 chars
+                    utf8Length += 2;
+                    i++;
+                } else {
+                    utf8Length += 2;
+                }
+            } else if (c >= 0x80) {
+                utf8Length++;
+            }
+        }
+        return utf8Length;
+    }
+
+    private SpanScope openSendScope(ConnectionContext context, Message msg) throws JMSException {
+        SpanScope parent = SpanScope.current();
+        SpanSink sink = spanSink;
+        TraceContext sendContext;
+        if (parent != null) {
+            sendContext = parent.getContext().newChild();
+            if (sink == null) {
+                sink = parent.getSink();
+            }
+        } else if (sink != null) {
+            sendContext = TraceContext.newRoot();
+        } else {
+            return null; // not tracing
+        }
+
+        msg.setStringProperty(TraceContext.TRACEPARENT_PROPERTY, sendContext.toTraceparent());
+        return SpanScope.open(sendContext, Span.OPERATION_SEND, context.getEndpoint(), sink);
+    }
+
+    /**
+     * Creates a text message - or a bytes message, see {@link #setBytesMessageEncoding(boolean)} - that can be send
+     * via a producer that contains the given BasicMessage's JSON encoded data.
      * 
      * @param context
      *            the context whose session is used to create the message
@@ -247,7 +800,47 @@ public class MessageProcessor {
         if (session == null) {
             throw new NullPointerException("The context had a null session");
         }
-        Message msg = session.createTextMessage(basicMessage.toJSON());
+        KeyDictionary keyDictionary = (context.getEndpoint() != null) ? keyDictionaries.get(context.getEndpoint()) : null;
+        // only the generated codecs compress the keys; messages that are encoded otherwise must not claim they are
+        if (keyDictionary != null && MessageCodecs.getCodecOf(basicMessage) == null) {
+            keyDictionary = null;
+        }
+        Message msg;
+        if (bytesMessageEncoding) {
+            BytesMessage bytesMsg = session.createBytesMessage();
+            try {
+                Writer writer = new OutputStreamWriter(new BytesMessageOutputStream(bytesMsg), "UTF-8");
+                basicMessage.toJSON(writer, keyDictionary);
+            } catch (IOException e) {
+                if (e.getCause() instanceof JMSException) {
+                    throw (JMSException) e.getCause();
+                }
+                JMSException jmsException = new JMSException("Cannot encode message: " + e);
+                jmsException.setLinkedException(e);
+                throw jmsException;
+            }
+            // the body is left writable: ActiveMQ only takes properties while it is, e.g. those set before sending
+            msg = bytesMsg;
+            setKeyDictionaryProperties(msg, keyDictionary);
+        } else if (keyDictionary != null) {
+            StringWriter json = new StringWriter();
+            try {
+                basicMessage.toJSON(json, keyDictionary);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write to a string", e);
+            }
+            msg = session.createTextMessage(json.toString());
+            setKeyDictionaryProperties(msg, keyDictionary);
+        } else {
+            msg = session.createTextMessage(basicMessage.toJSON());
+        }
         return msg;
     }
+
+    private static void setKeyDictionaryProperties(Message msg, KeyDictionary keyDictionary) throws JMSException {
+        if (keyDictionary != null) {
+            msg.setStringProperty(KeyDictionary.NAME_PROPERTY, keyDictionary.getName());
+            msg.setIntProperty(KeyDictionary.VERSION_PROPERTY, keyDictionary.getVersion());
+        }
+    }
 }
@@ -0,0 +1,66 @@
+package org.rhq.msg.common.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MessageEOFException;
+
+/**
+ * Reads the body of a {@link BytesMessage}, so that a decoder can parse the received bytes without copying the whole
+ * body first.
+ */
+public class BytesMessageInputStream extends InputStream {
+    private final BytesMessage message;
+    // only needed when asked to read into the middle of an array, which BytesMessage cannot do
+    private byte[] chunk;
+
+    /**
+     * @param message
+     *            the message to read from; it must be readable and is read from its current position
+     */
+    public BytesMessageInputStream(BytesMessage message) {
+        if (message == null) {
+            throw new NullPointerException("message must not be null");
+        }
+        this.message = message;
+    }
+
+    @Override
+    public int read() throws IOException {
+        try {
+            return message.readUnsignedByte();
+        } catch (MessageEOFException e) {
+            return -1;
+        } catch (JMSException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        try {
+            if (off == 0) {
+                return message.readBytes(b, len);
+            }
+            if (chunk == null || chunk.length < len) {
+                chunk = new byte[len];
+            }
+            int read = message.readBytes(chunk, len);
+            if (read > 0) {
+                System.arraycopy(chunk, 0, b, off, read);
+            }
+            return read;
+        } catch (JMSException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.rhq.msg.common.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+/**
+ * Writes to the body of a {@link BytesMessage}, so that an encoder can stream into the buffer that is put on the wire
+ * instead of building the whole body first.
+ */
+public class BytesMessageOutputStream extends OutputStream {
+    private final BytesMessage message;
+
+    /**
+     * @param message
+     *            the message to write to; it must be writable
+     */
+    public BytesMessageOutputStream(BytesMessage message) {
+        if (message == null) {
+            throw new NullPointerException("message must not be null");
+        }
+        this.message = message;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        try {
+            message.writeByte((byte) b);
+        } catch (JMSException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        try {
+            message.writeBytes(b, off, len);
+        } catch (JMSException e) {
+            throw new IOException(e);
+        }
+    }
+}
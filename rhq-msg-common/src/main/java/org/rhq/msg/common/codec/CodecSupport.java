@@ -0,0 +1,258 @@
+package org.rhq.msg.common.codec;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.rhq.msg.common.DetailsMap;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Reads and writes the values of the field types {@link MessageCodec codecs} support, the same way Gson does: nulls
+ * are accepted for all objects, numbers and booleans may be quoted, and a null read for a primitive leaves the default
+ * value. This is used by the generated codecs and is not meant to be called directly.
+ */
+public final class CodecSupport {
+
+    private CodecSupport() {
+    }
+
+    public static String readString(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(in.nextBoolean());
+        }
+        return in.nextString();
+    }
+
+    public static Boolean readBoolean(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        if (token == JsonToken.STRING) {
+            return Boolean.valueOf(in.nextString());
+        }
+        return Boolean.valueOf(in.nextBoolean());
+    }
+
+    public static boolean readBoolean(JsonReader in, boolean defaultValue) throws IOException {
+        Boolean value = readBoolean(in);
+        return (value != null) ? value.booleanValue() : defaultValue;
+    }
+
+    public static Integer readInteger(JsonReader in) throws IOException {
+        if (nextIsNull(in)) {
+            return null;
+        }
+        return Integer.valueOf(in.nextInt());
+    }
+
+    public static int readInt(JsonReader in, int defaultValue) throws IOException {
+        Integer value = readInteger(in);
+        return (value != null) ? value.intValue() : defaultValue;
+    }
+
+    public static Long readLong(JsonReader in) throws IOException {
+        if (nextIsNull(in)) {
+            return null;
+        }
+        return Long.valueOf(in.nextLong());
+    }
+
+    public static long readLong(JsonReader in, long defaultValue) throws IOException {
+        Long value = readLong(in);
+        return (value != null) ? value.longValue() : defaultValue;
+    }
+
+    public static Short readShort(JsonReader in) throws IOException {
+        if (nextIsNull(in)) {
+            return null;
+        }
+        return Short.valueOf((short) in.nextInt());
+    }
+
+    public static short readShort(JsonReader in, short defaultValue) throws IOException {
+        Short value = readShort(in);
+        return (value != null) ? value.shortValue() : defaultValue;
+    }
+
+    public static Byte readByte(JsonReader in) throws IOException {
+        if (nextIsNull(in)) {
+            return null;
+        }
+        return Byte.valueOf((byte) in.nextInt());
+    }
+
+    public static byte readByte(JsonReader in, byte defaultValue) throws IOException {
+        Byte value = readByte(in);
+        return (value != null) ? value.byteValue() : defaultValue;
+    }
+
+    public static Double readDouble(JsonReader in) throws IOException {
+        if (nextIsNull(in)) {
+            return null;
+        }
+        return Double.valueOf(in.nextDouble());
+    }
+
+    public static double readDouble(JsonReader in, double defaultValue) throws IOException {
+        Double value = readDouble(in);
+        return (value != null) ? value.doubleValue() : defaultValue;
+    }
+
+    public static Float readFloat(JsonReader in) throws IOException {
+        if (nextIsNull(in)) {
+            return null;
+        }
+        return Float.valueOf((float) in.nextDouble());
+    }
+
+    public static float readFloat(JsonReader in, float defaultValue) throws IOException {
+        Float value = readFloat(in);
+        return (value != null) ? value.floatValue() : defaultValue;
+    }
+
+    /**
+     * @return the constant with the name that was read, or null if the value was null or no constant has that name
+     */
+    public static <E extends Enum<E>> E readEnum(JsonReader in, Class<E> enumClass) throws IOException {
+        String name = readString(in);
+        if (name == null) {
+            return null;
+        }
+        try {
+            return Enum.valueOf(enumClass, name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads details written by {@link #writeMap(JsonWriter, Map)}, either as an object or with the keys of a
+     * {@link KeyDictionary}.
+     *
+     * @throws IllegalStateException
+     *             if the keys are numbers of a dictionary that the reader is not a {@link DictionaryJsonReader} of, or
+     *             that its version of the dictionary does not have
+     */
+    public static Map<String, String> readMap(JsonReader in) throws IOException {
+        if (nextIsNull(in)) {
+            return null;
+        }
+        DetailsMap.Builder map = new DetailsMap.Builder();
+        if (in.peek() == JsonToken.BEGIN_ARRAY) {
+            readCompressedMap(in, map);
+            return map.build();
+        }
+        in.beginObject();
+        while (in.hasNext()) {
+            String key = in.nextName();
+            map.put(key, readString(in));
+        }
+        in.endObject();
+        return map.build();
+    }
+
+    public static void writeBoolean(JsonWriter out, Boolean value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else {
+            out.value(value.booleanValue());
+        }
+    }
+
+    public static void writeEnum(JsonWriter out, Enum<?> value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else {
+            out.value(value.name());
+        }
+    }
+
+    /**
+     * Writes details as an object - or, if the writer is a {@link DictionaryJsonWriter}, as an array of alternating
+     * keys and values in which the keys that are in the dictionary are numbers.
+     */
+    public static void writeMap(JsonWriter out, Map<String, String> map) throws IOException {
+        if (map == null) {
+            out.nullValue();
+            return;
+        }
+        if (out instanceof DictionaryJsonWriter) {
+            writeCompressedMap(out, map, ((DictionaryJsonWriter) out).getKeyDictionary());
+            return;
+        }
+        out.beginObject();
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            out.name(String.valueOf(entry.getKey()));
+            out.value(entry.getValue());
+        }
+        out.endObject();
+    }
+
+    private static void readCompressedMap(JsonReader in, DetailsMap.Builder map) throws IOException {
+        if (!(in instanceof DictionaryJsonReader)) {
+            throw new IllegalStateException("The details were written with a key dictionary, but none was given to read them");
+        }
+        KeyDictionary keyDictionary = ((DictionaryJsonReader) in).getKeyDictionary();
+        in.beginArray();
+        while (in.hasNext()) {
+            String key;
+            if (in.peek() == JsonToken.NUMBER) {
+                int index = in.nextInt();
+                key = keyDictionary.getKey(index);
+                if (key == null) {
+                    throw new IllegalStateException("Key " + index + " is not in version " + keyDictionary.getVersion()
+                            + " of key dictionary [" + keyDictionary.getName() + "]");
+                }
+            } else {
+                key = in.nextString();
+            }
+            map.put(key, readString(in));
+        }
+        in.endArray();
+    }
+
+    private static void writeCompressedMap(JsonWriter out, Map<String, String> map, KeyDictionary keyDictionary)
+            throws IOException {
+        out.beginArray();
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            // null values are left out, as they are from objects
+            if (entry.getValue() == null) {
+                continue;
+            }
+            String key = String.valueOf(entry.getKey());
+            int index = keyDictionary.getIndex(key);
+            if (index >= 0) {
+                out.value(index);
+            } else {
+                out.value(key);
+            }
+            out.value(entry.getValue());
+        }
+        out.endArray();
+    }
+
+    /**
+     * @return true if a message holds the value that was read for one of its fields
+     */
+    public static boolean isSame(Object read, Object held) {
+        return (read == null) ? held == null : read.equals(held);
+    }
+
+    private static boolean nextIsNull(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return true;
+        }
+        return false;
+    }
+}
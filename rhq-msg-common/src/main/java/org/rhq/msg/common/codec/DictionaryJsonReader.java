@@ -0,0 +1,25 @@
+package org.rhq.msg.common.codec;
+
+import java.io.Reader;
+
+import com.google.gson.stream.JsonReader;
+
+/**
+ * A JSON reader that lets the {@link MessageCodec codecs} read details whose keys were written as numbers of its
+ * {@link KeyDictionary}.
+ */
+public class DictionaryJsonReader extends JsonReader {
+    private final KeyDictionary keyDictionary;
+
+    public DictionaryJsonReader(Reader in, KeyDictionary keyDictionary) {
+        super(in);
+        if (keyDictionary == null) {
+            throw new NullPointerException("keyDictionary must not be null");
+        }
+        this.keyDictionary = keyDictionary;
+    }
+
+    public KeyDictionary getKeyDictionary() {
+        return keyDictionary;
+    }
+}
@@ -0,0 +1,25 @@
+package org.rhq.msg.common.codec;
+
+import java.io.Writer;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * A JSON writer that tells the {@link MessageCodec codecs} to write the keys of details that are in its
+ * {@link KeyDictionary} as numbers.
+ */
+public class DictionaryJsonWriter extends JsonWriter {
+    private final KeyDictionary keyDictionary;
+
+    public DictionaryJsonWriter(Writer out, KeyDictionary keyDictionary) {
+        super(out);
+        if (keyDictionary == null) {
+            throw new NullPointerException("keyDictionary must not be null");
+        }
+        this.keyDictionary = keyDictionary;
+    }
+
+    public KeyDictionary getKeyDictionary() {
+        return keyDictionary;
+    }
+}
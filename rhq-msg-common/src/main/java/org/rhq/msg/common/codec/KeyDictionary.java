@@ -0,0 +1,152 @@
+package org.rhq.msg.common.codec;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A numbered list of frequent {@link org.rhq.msg.common.BasicMessage#getDetails() detail} keys, shared by the producers
+ * and consumers of an endpoint, so that the keys can be sent as small integers instead of repeating the same strings
+ * in every message (see {@link org.rhq.msg.common.MessageProcessor#setKeyDictionary(org.rhq.msg.common.Endpoint, KeyDictionary)}).
+ * Keys that are not in the dictionary are still sent as strings.
+ *
+ * Dictionaries are versioned and only grow: a new version is {@link #extend(String...) created} by appending keys to
+ * the previous one, so a key keeps its number in all later versions. Producers do not learn which version their
+ * consumers have, so it is a hard requirement that every consumer has the version the producer sends with, or a later
+ * one. There is no fallback: a consumer with an older version fails to decode any message with a key its version does
+ * not have, and drops or dead-letters it like any other message it cannot decode. Such a message is never decoded
+ * with the wrong key. Update the dictionaries of the consumers before those of the producers, or have the producers
+ * {@link #getVersion(int) use the version} all consumers have.
+ *
+ * Both sides must build the same dictionary, e.g. from the same configuration. Compressed details are only written and
+ * read by the generated {@link MessageCodec codecs}; messages encoded by Gson keep their keys.
+ */
+public final class KeyDictionary {
+
+    /**
+     * The name of the message property that holds the name of the dictionary the message was encoded with.
+     */
+    public static final String NAME_PROPERTY = "RHQKeyDictionary";
+
+    /**
+     * The name of the message property that holds the version of the dictionary the message was encoded with.
+     */
+    public static final String VERSION_PROPERTY = "RHQKeyDictionaryVersion";
+
+    private final String name;
+    private final String[] keys;
+    // the number of keys of each version, the first version at index 0
+    private final int[] versionSizes;
+    private final Map<String, Integer> indexes;
+
+    private KeyDictionary(String name, String[] keys, int[] versionSizes) {
+        this.name = name;
+        this.keys = keys;
+        this.versionSizes = versionSizes;
+        this.indexes = new HashMap<String, Integer>(keys.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            indexes.put(keys[i], Integer.valueOf(i));
+        }
+    }
+
+    /**
+     * Creates the first version of a dictionary.
+     *
+     * @param name
+     *            the name of the dictionary, which identifies it to the consumers
+     * @param keys
+     *            the keys, most frequent first
+     * @return version 1 of the dictionary
+     */
+    public static KeyDictionary create(String name, String... keys) {
+        if (name == null) {
+            throw new NullPointerException("name must not be null");
+        }
+        if (name.length() == 0) {
+            throw new IllegalArgumentException("name must not be empty");
+        }
+        return new KeyDictionary(name, new String[0], new int[0]).extend(keys);
+    }
+
+    /**
+     * Creates the next version of this dictionary.
+     *
+     * @param newKeys
+     *            the keys to append
+     * @return a dictionary with all keys of this one, followed by the new keys
+     * @throws IllegalArgumentException
+     *             if a key is already in the dictionary
+     */
+    public KeyDictionary extend(String... newKeys) {
+        if (newKeys == null) {
+            throw new NullPointerException("newKeys must not be null");
+        }
+        String[] extendedKeys = Arrays.copyOf(keys, keys.length + newKeys.length);
+        Map<String, Integer> known = new HashMap<String, Integer>(indexes);
+        for (int i = 0; i < newKeys.length; i++) {
+            if (newKeys[i] == null) {
+                throw new NullPointerException("keys must not be null");
+            }
+            if (known.put(newKeys[i], Integer.valueOf(i)) != null) {
+                throw new IllegalArgumentException("Key is already in the dictionary: " + newKeys[i]);
+            }
+            extendedKeys[keys.length + i] = newKeys[i];
+        }
+        int[] extendedVersionSizes = Arrays.copyOf(versionSizes, versionSizes.length + 1);
+        extendedVersionSizes[versionSizes.length] = extendedKeys.length;
+        return new KeyDictionary(name, extendedKeys, extendedVersionSizes);
+    }
+
+    /**
+     * Returns an earlier version of this dictionary, e.g. for producers whose consumers have not all been updated.
+     *
+     * @param version
+     *            the version, from 1 to {@link #getVersion()}
+     * @return that version
+     */
+    public KeyDictionary getVersion(int version) {
+        if (version < 1 || version > versionSizes.length) {
+            throw new IllegalArgumentException("version must be between 1 and " + versionSizes.length + ": " + version);
+        }
+        if (version == versionSizes.length) {
+            return this;
+        }
+        return new KeyDictionary(name, Arrays.copyOf(keys, versionSizes[version - 1]), Arrays.copyOf(versionSizes,
+                version));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getVersion() {
+        return versionSizes.length;
+    }
+
+    /**
+     * @return the number of keys in the dictionary
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * @return the number the given key is sent as, or -1 if it is not in the dictionary
+     */
+    public int getIndex(String key) {
+        Integer index = indexes.get(key);
+        return (index != null) ? index.intValue() : -1;
+    }
+
+    /**
+     * @return the key sent as the given number, or null if this version of the dictionary has no such key
+     */
+    public String getKey(int index) {
+        return (index >= 0 && index < keys.length) ? keys[index] : null;
+    }
+
+    @Override
+    public String toString() {
+        return "KeyDictionary: [name=" + name + ", version=" + getVersion() + ", size=" + keys.length + "]";
+    }
+}
@@ -0,0 +1,52 @@
+package org.rhq.msg.common.codec;
+
+import java.io.IOException;
+
+import org.rhq.msg.common.BasicMessage;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Converts one particular kind of message to and from its JSON representation by streaming its exposed fields,
+ * without the reflection Gson needs to do the same.
+ *
+ * Codecs are normally generated at compile time for each {@link BasicMessage} subclass with
+ * {@link com.google.gson.annotations.Expose exposed} fields by the annotation processor of the rhq-msg-codegen module,
+ * and are found by {@link MessageCodecs}. The JSON they produce and accept is the same as Gson's.
+ *
+ * @param <T>
+ *            the kind of message this codec converts
+ */
+public interface MessageCodec<T extends BasicMessage> {
+
+    /**
+     * @return the exact class of the messages this codec converts; subclasses of it are not converted by this codec
+     */
+    Class<T> getMessageClass();
+
+    /**
+     * Writes the exposed fields of the message as a JSON object.
+     *
+     * @param out
+     *            where to write the message
+     * @param message
+     *            the message to write
+     * @throws IOException
+     *             if the message could not be written
+     */
+    void write(JsonWriter out, T message) throws IOException;
+
+    /**
+     * Reads a message from a JSON object. Unknown properties are skipped; missing ones are left unset.
+     *
+     * @param in
+     *            where to read the message from
+     * @return the message, or null if the JSON value is null
+     * @throws IOException
+     *             if the message could not be read
+     * @throws MessageConstructionException
+     *             if the constructor of the message rejected the values that were read
+     */
+    T read(JsonReader in) throws IOException;
+}
@@ -0,0 +1,108 @@
+package org.rhq.msg.common.codec;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.rhq.msg.common.BasicMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The registry of {@link MessageCodec codecs}.
+ *
+ * Generated codecs are listed in <code>META-INF/services/org.rhq.msg.common.codec.MessageCodec</code> of the jar that
+ * contains their messages. The first time a codec is looked up for a message class, the codecs visible to the class
+ * loader of that class are loaded and registered; later look ups are a single map access. Codecs written by hand can
+ * be {@link #register(MessageCodec) registered} explicitly.
+ */
+public final class MessageCodecs {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageCodecs.class);
+
+    private static final ConcurrentMap<Class<?>, MessageCodec<?>> codecs = new ConcurrentHashMap<Class<?>, MessageCodec<?>>();
+    private static final Map<ClassLoader, Boolean> scannedClassLoaders = Collections
+            .synchronizedMap(new WeakHashMap<ClassLoader, Boolean>());
+
+    private MessageCodecs() {
+    }
+
+    /**
+     * Returns the codec for the given kind of message.
+     *
+     * @param clazz
+     *            the exact class of the messages to convert
+     * @return the codec, or null if there is none and the message must be converted with Gson
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends BasicMessage> MessageCodec<T> getCodec(Class<T> clazz) {
+        if (clazz == null) {
+            throw new NullPointerException("clazz must not be null");
+        }
+
+        MessageCodec<?> codec = codecs.get(clazz);
+        if (codec == null) {
+            ClassLoader classLoader = clazz.getClassLoader();
+            if (classLoader != null && !scannedClassLoaders.containsKey(classLoader)) {
+                loadCodecs(classLoader);
+                codec = codecs.get(clazz);
+            }
+        }
+        return (MessageCodec<T>) codec;
+    }
+
+    /**
+     * Returns the codec for the class of the given message.
+     *
+     * @param message
+     *            the message to convert
+     * @return the codec, or null if there is none and the message must be converted with Gson
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends BasicMessage> MessageCodec<T> getCodecOf(T message) {
+        return (MessageCodec<T>) getCodec(message.getClass());
+    }
+
+    /**
+     * Registers a codec, replacing the one that was registered for the same kind of message before, if any.
+     *
+     * @param codec
+     *            the codec to register
+     */
+    public static <T extends BasicMessage> void register(MessageCodec<T> codec) {
+        if (codec == null) {
+            throw new NullPointerException("codec must not be null");
+        }
+        codecs.put(codec.getMessageClass(), codec);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static synchronized void loadCodecs(ClassLoader classLoader) {
+        if (scannedClassLoaders.containsKey(classLoader)) {
+            return;
+        }
+
+        Iterator<MessageCodec> iterator = ServiceLoader.load(MessageCodec.class, classLoader).iterator();
+        while (true) {
+            try {
+                if (!iterator.hasNext()) {
+                    break;
+                }
+                MessageCodec<?> codec = iterator.next();
+                // codecs registered explicitly win over the generated ones
+                if (codecs.putIfAbsent(codec.getMessageClass(), codec) == null) {
+                    log.debug("Registered message codec [{}]", codec.getClass().getName());
+                }
+            } catch (ServiceConfigurationError e) {
+                // e.g. a codec that is still listed although its message was removed - that message uses Gson
+                log.warn("Cannot load a message codec: " + e);
+            }
+        }
+        scannedClassLoaders.put(classLoader, Boolean.TRUE);
+    }
+}
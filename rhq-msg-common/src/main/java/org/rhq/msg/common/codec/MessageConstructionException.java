@@ -0,0 +1,13 @@
+package org.rhq.msg.common.codec;
+
+/**
+ * Thrown by a {@link MessageCodec} if the constructor of the message rejected the values that were read, e.g. because
+ * a property the constructor requires was missing.
+ */
+public class MessageConstructionException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public MessageConstructionException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,22 +1,42 @@
 package org.rhq.msg.common.consumer;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
 
+import java.util.Enumeration;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
 import javax.jms.TextMessage;
 
 import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.Endpoint;
 import org.rhq.msg.common.MessageId;
+import org.rhq.msg.common.codec.BytesMessageInputStream;
+import org.rhq.msg.common.codec.KeyDictionary;
+import org.rhq.msg.common.codec.MessageConstructionException;
+import org.rhq.msg.common.metrics.MessagingMetrics;
+import org.rhq.msg.common.metrics.NoOpMessagingMetrics;
+import org.rhq.msg.common.metrics.SendTimestamp;
+import org.rhq.msg.common.tracing.Span;
+import org.rhq.msg.common.tracing.SpanScope;
+import org.rhq.msg.common.tracing.SpanSink;
+import org.rhq.msg.common.tracing.TraceContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A message listener that expects to receive a JSON-encoded BasicMessage or one of its subclasses; the JSON decoding is
- * handled for you.
+ * handled for you. The JSON is the text of a text message or the UTF-8 encoded body of a bytes message.
  * 
  * Subclasses will typically override {@link #AbstractBasicMessageListener(Class)} or
  * {@link #determineBasicMessageClass()} unless either (a) the subclass hierarchy has generic types that are specific
@@ -29,6 +49,16 @@ public abstract class AbstractBasicMessageListener<T extends BasicMessage> imple
 
     private ConsumerConnectionContext consumerConnectionContext;
 
+    private MessagingMetrics metrics = NoOpMessagingMetrics.INSTANCE;
+
+    private SpanSink spanSink;
+
+    private DuplicateDetector duplicateDetector;
+
+    private String deduplicationKeyName;
+
+    private KeyDictionary keyDictionary;
+
     // In order to convert a JSON string to a BasicMessage object (or one of its subclasses), we need the actual Java
     // class of the generic type T. Java does not make it easy to find the class representation of T. This field will
     // store the actual class when we can actually determine what it is, which will be used when we decode a JSON string
@@ -67,20 +97,327 @@ public abstract class AbstractBasicMessageListener<T extends BasicMessage> imple
         this.consumerConnectionContext = consumerConnectionContext;
     }
 
+    /**
+     * @return the metrics that measure the messages received by this listener
+     */
+    public MessagingMetrics getMessagingMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics that measure the messages received by this listener. This is typically called by
+     * {@link org.rhq.msg.common.MessageProcessor} when the listener is attached to a consumer.
+     * 
+     * @param metrics
+     *            the metrics to use
+     */
+    public void setMessagingMetrics(MessagingMetrics metrics) {
+        if (metrics == null) {
+            throw new NullPointerException("metrics must not be null");
+        }
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return where the spans of the messages processed by this listener are reported, or <code>null</code> if they
+     *         are not
+     */
+    public SpanSink getSpanSink() {
+        return spanSink;
+    }
+
+    /**
+     * Sets the sink the spans of the messages processed by this listener are reported to. This is typically called by
+     * {@link org.rhq.msg.common.MessageProcessor} when the listener is attached to a consumer.
+     * 
+     * @param spanSink
+     *            the sink, or <code>null</code> to only continue traces started by the senders of the messages
+     */
+    public void setSpanSink(SpanSink spanSink) {
+        this.spanSink = spanSink;
+    }
+
+    /**
+     * @return the detector that decides which messages have already been processed, or <code>null</code> if all
+     *         messages are processed
+     */
+    public DuplicateDetector getDuplicateDetector() {
+        return duplicateDetector;
+    }
+
+    /**
+     * Makes this listener an idempotent consumer: messages that the given detector has seen processed recently are
+     * dropped instead of being processed again. A message only counts as processed once its listener has returned
+     * without throwing an exception, so a message whose processing failed is processed again when it is redelivered.
+     * Note that for RPC listeners, no response is sent back for a dropped request.
+     * 
+     * @param duplicateDetector
+     *            the detector to use, or <code>null</code> to process all messages
+     * 
+     * @see #setDeduplicationKeyName(String)
+     */
+    public void setDuplicateDetector(DuplicateDetector duplicateDetector) {
+        this.duplicateDetector = duplicateDetector;
+    }
+
+    /**
+     * @return the name of the message detail that holds the application's deduplication key, or <code>null</code> if
+     *         message IDs are used
+     */
+    public String getDeduplicationKeyName() {
+        return deduplicationKeyName;
+    }
+
+    /**
+     * By default, duplicate messages are recognized by their message ID, which only detects the redelivery of the very
+     * same message. If the application gives each logical message a key of its own, set the name of the message
+     * detail it is stored in here; messages without that detail are still recognized by their message ID.
+     * 
+     * @param deduplicationKeyName
+     *            the name of the detail, or <code>null</code> to use message IDs only
+     */
+    public void setDeduplicationKeyName(String deduplicationKeyName) {
+        this.deduplicationKeyName = deduplicationKeyName;
+    }
+
+    /**
+     * @return the dictionary that expands the compressed detail keys of the received messages, or <code>null</code>
+     */
+    public KeyDictionary getKeyDictionary() {
+        return keyDictionary;
+    }
+
+    /**
+     * Sets the dictionary that expands the detail keys of received messages that were compressed with it (see
+     * {@link KeyDictionary}). This is typically called by {@link org.rhq.msg.common.MessageProcessor} when the
+     * listener is attached to a consumer. Messages compressed with a dictionary this listener does not have, or with a
+     * key that is not in its version of the dictionary, cannot be decoded.
+     * 
+     * @param keyDictionary
+     *            the dictionary, or <code>null</code> if the messages are not compressed
+     */
+    public void setKeyDictionary(KeyDictionary keyDictionary) {
+        this.keyDictionary = keyDictionary;
+    }
+
+    /**
+     * @param basicMessage
+     *            the received message
+     * @return the key that identifies the message to the {@link #getDuplicateDetector() duplicate detector}, or
+     *         <code>null</code> if it cannot be identified
+     */
+    protected String getDeduplicationKey(T basicMessage) {
+        if (deduplicationKeyName != null && basicMessage.getDetails() != null) {
+            String key = basicMessage.getDetails().get(deduplicationKeyName);
+            if (key != null) {
+                return key;
+            }
+        }
+        MessageId messageId = basicMessage.getMessageId();
+        return (messageId != null) ? messageId.getId() : null;
+    }
+
+    /**
+     * Tells the {@link #getDuplicateDetector() duplicate detector} that the given message has been processed.
+     * Subclasses call this after they have successfully processed a message.
+     * 
+     * @param basicMessage
+     *            the message that has been processed
+     */
+    protected void markProcessed(T basicMessage) {
+        DuplicateDetector detector = duplicateDetector;
+        if (detector != null) {
+            String key = getDeduplicationKey(basicMessage);
+            if (key != null) {
+                detector.processed(key);
+            }
+        }
+    }
+
+    /**
+     * @return the retry policy of the consumer this listener is associated with, or <code>null</code> if there is none
+     */
+    protected RetryPolicy getRetryPolicy() {
+        ConsumerConnectionContext context = getConsumerConnectionContext();
+        return (context != null) ? context.getRetryPolicy() : null;
+    }
+
+    /**
+     * Called when the processing of a message failed. Unless the message has been tried as often as the
+     * {@link #getRetryPolicy() retry policy} allows, the exception is rethrown so that the message is redelivered
+     * later. A message that has run out of attempts is forwarded to the policy's dead letter endpoint and this method
+     * returns normally, which acknowledges the message.
+     * 
+     * @param message
+     *            the message that failed to be processed
+     * @param failure
+     *            why it failed
+     * @throws RuntimeException
+     *             the given failure, if the message is to be redelivered or cannot be dead-lettered
+     */
+    protected void processingFailed(Message message, RuntimeException failure) {
+        RetryPolicy policy = getRetryPolicy();
+        if (policy == null || policy.getDeadLetterEndpoint() == null) {
+            throw failure;
+        }
+
+        int attempts = getDeliveryCount(message);
+        if (attempts < policy.getMaxAttempts()) {
+            getLog().debug("Attempt {} of {} to process message failed, it will be redelivered: {}",
+                    new Object[] { attempts, policy.getMaxAttempts(), failure.toString() });
+            throw failure;
+        }
+
+        try {
+            sendToDeadLetterEndpoint(message, policy.getDeadLetterEndpoint(), failure, attempts);
+        } catch (Exception e) {
+            getLog().error("Failed to forward poison message to the dead letter endpoint", e);
+            throw failure;
+        }
+    }
+
+    private void deadLetterUndecodableMessage(Message message, Exception failure) {
+        RetryPolicy policy = getRetryPolicy();
+        if (policy != null && policy.getDeadLetterEndpoint() != null) {
+            try {
+                sendToDeadLetterEndpoint(message, policy.getDeadLetterEndpoint(), failure, getDeliveryCount(message));
+            } catch (Exception e) {
+                getLog().error("Failed to forward undecodable message to the dead letter endpoint", e);
+            }
+        }
+    }
+
+    private int getDeliveryCount(Message message) {
+        try {
+            if (message.propertyExists("JMSXDeliveryCount")) {
+                return message.getIntProperty("JMSXDeliveryCount");
+            }
+            return message.getJMSRedelivered() ? 2 : 1;
+        } catch (JMSException e) {
+            return 1;
+        }
+    }
+
+    private void sendToDeadLetterEndpoint(Message message, Endpoint deadLetterEndpoint, Exception failure, int attempts)
+            throws JMSException {
+        ConsumerConnectionContext context = getConsumerConnectionContext();
+        Session session = (context != null) ? context.getSession() : null;
+        if (session == null) {
+            throw new IllegalStateException("There is no session to send the dead letter with");
+        }
+
+        // the listener runs on the session's thread, so the session can be used here
+        Message deadLetter;
+        if (message instanceof TextMessage) {
+            deadLetter = session.createTextMessage(((TextMessage) message).getText());
+        } else if (message instanceof BytesMessage) {
+            BytesMessage bytesMessage = (BytesMessage) message;
+            bytesMessage.reset();
+            byte[] body = new byte[(int) bytesMessage.getBodyLength()];
+            bytesMessage.readBytes(body);
+            BytesMessage bytesDeadLetter = session.createBytesMessage();
+            bytesDeadLetter.writeBytes(body);
+            deadLetter = bytesDeadLetter;
+        } else {
+            deadLetter = session.createMessage();
+        }
+
+        for (Enumeration<?> names = message.getPropertyNames(); names.hasMoreElements();) {
+            String name = (String) names.nextElement();
+            if (!name.startsWith("JMSX")) {
+                deadLetter.setObjectProperty(name, message.getObjectProperty(name));
+            }
+        }
+        deadLetter.setJMSCorrelationID(message.getJMSCorrelationID());
+        if (message.getJMSDestination() != null) {
+            deadLetter.setStringProperty(RetryPolicy.ORIGINAL_DESTINATION_PROPERTY, message.getJMSDestination().toString());
+        }
+        if (message.getJMSMessageID() != null) {
+            deadLetter.setStringProperty(RetryPolicy.ORIGINAL_MESSAGE_ID_PROPERTY, message.getJMSMessageID());
+        }
+        deadLetter.setStringProperty(RetryPolicy.FAILURE_CAUSE_PROPERTY, failure.toString());
+        deadLetter.setIntProperty(RetryPolicy.ATTEMPTS_PROPERTY, attempts);
+        deadLetter.setLongProperty(RetryPolicy.FAILURE_TIME_PROPERTY, System.currentTimeMillis());
+
+        Destination destination = (deadLetterEndpoint.getType() == Endpoint.Type.QUEUE) ? session
+                .createQueue(deadLetterEndpoint.getName()) : session.createTopic(deadLetterEndpoint.getName());
+        MessageProducer producer = session.createProducer(destination);
+        try {
+            producer.send(deadLetter);
+        } finally {
+            producer.close();
+        }
+        getLog().warn("Gave up on message [{}] after {} attempt(s) and forwarded it to [{}]: {}",
+                new Object[] { message.getJMSMessageID(), attempts, deadLetterEndpoint, failure.toString() });
+    }
+
+    /**
+     * Starts the span of processing the given message. If the message carries a trace context, the span continues that
+     * trace; otherwise a new trace is started if this listener has a {@link #getSpanSink() span sink}. While the
+     * returned scope is open, messages sent by this thread continue the trace.
+     * 
+     * @param message
+     *            the received message
+     * @return the open scope that must be closed when processing is done, or <code>null</code> if the message is not
+     *         traced
+     */
+    protected SpanScope openProcessingScope(Message message) {
+        TraceContext senderContext = null;
+        try {
+            senderContext = TraceContext.fromTraceparent(message.getStringProperty(TraceContext.TRACEPARENT_PROPERTY));
+        } catch (JMSException e) {
+            getLog().debug("Cannot read the trace context of the message: {}", e.toString());
+        }
+
+        TraceContext context;
+        if (senderContext != null) {
+            context = senderContext.newChild();
+        } else if (spanSink != null) {
+            context = TraceContext.newRoot();
+        } else {
+            return null;
+        }
+        return SpanScope.open(context, Span.OPERATION_PROCESS, getEndpoint(), spanSink);
+    }
+
+    /**
+     * @return the endpoint of the consumer this listener is associated with, used to tag the measurements of this
+     *         listener; <code>null</code> if not known
+     */
+    protected Endpoint getEndpoint() {
+        ConsumerConnectionContext context = getConsumerConnectionContext();
+        return (context != null) ? context.getEndpoint() : null;
+    }
+
     /**
      * Given the Message received over the wire, convert it to our T representation of the message.
      * 
      * @param message
      *            the over-the-wire message
      * 
-     * @return the message as a object T, or null if we should not or cannot process the message
+     * @return the message as a object T, or null if we should not or cannot process the message (e.g. because it is a
+     *         duplicate of a message that has already been processed)
      */
     protected T getBasicMessageFromMessage(Message message) {
+        if (isExpired(message)) {
+            return null;
+        }
+
         T basicMessage;
+        long startTime = System.nanoTime();
+
+        if (metrics != NoOpMessagingMetrics.INSTANCE) {
+            recordResidenceTime(message);
+        }
 
         try {
-            String receivedBody = ((TextMessage) message).getText();
-            basicMessage = BasicMessage.fromJSON(receivedBody, getBasicMessageClass());
+            KeyDictionary messageKeyDictionary = getKeyDictionary(message);
+            if (message instanceof BytesMessage) {
+                basicMessage = getBasicMessageFromBytesMessage((BytesMessage) message, messageKeyDictionary);
+            } else {
+                String receivedBody = ((TextMessage) message).getText();
+                basicMessage = BasicMessage.fromJSON(receivedBody, getBasicMessageClass(), messageKeyDictionary);
+            }
 
             // grab some headers and put them in the message
             basicMessage.setMessageId(new MessageId(message.getJMSMessageID()));
@@ -90,17 +427,137 @@ public abstract class AbstractBasicMessageListener<T extends BasicMessage> imple
             }
 
             getLog().trace("Received basic message: {}", basicMessage);
+            metrics.messageDecoded(getEndpoint(), System.nanoTime() - startTime);
+
+            DuplicateDetector detector = duplicateDetector;
+            if (detector != null) {
+                String key = getDeduplicationKey(basicMessage);
+                if (key != null && detector.isDuplicate(key)) {
+                    getLog().debug("Dropping duplicate message [{}]", key);
+                    basicMessage = null;
+                }
+            }
         } catch (JMSException e) {
-            getLog().error("A message was received that was not a valid text message", e);
+            getLog().error("A message was received that was not a valid text or bytes message", e);
+            metrics.decodeFailed(getEndpoint());
+            deadLetterUndecodableMessage(message, e);
             basicMessage = null;
         } catch (Exception e) {
             getLog().error("A message was received that was not a valid JSON-encoded BasicMessage object", e);
+            metrics.decodeFailed(getEndpoint());
+            deadLetterUndecodableMessage(message, e);
             basicMessage = null;
         }
 
         return basicMessage;
     }
 
+    /**
+     * @return this listener's key dictionary if the message was compressed with it, otherwise <code>null</code>
+     */
+    private KeyDictionary getKeyDictionary(Message message) throws JMSException {
+        KeyDictionary dictionary = keyDictionary;
+        if (dictionary == null) {
+            return null;
+        }
+        String name = message.getStringProperty(KeyDictionary.NAME_PROPERTY);
+        if (!dictionary.getName().equals(name)) {
+            return null;
+        }
+        if (message.getIntProperty(KeyDictionary.VERSION_PROPERTY) > dictionary.getVersion()) {
+            getLog().debug("Message was compressed with version [{}] of key dictionary [{}], this listener has {}",
+                    new Object[] { message.getIntProperty(KeyDictionary.VERSION_PROPERTY), name, dictionary });
+        }
+        return dictionary;
+    }
+
+    private T getBasicMessageFromBytesMessage(BytesMessage message, KeyDictionary messageKeyDictionary)
+            throws JMSException, IOException {
+        // decode straight from the received bytes, without building a string of the whole body
+        message.reset();
+        Reader reader = new InputStreamReader(new BytesMessageInputStream(message), "UTF-8");
+        try {
+            return BasicMessage.fromJSON(reader, getBasicMessageClass(), messageKeyDictionary);
+        } catch (MessageConstructionException e) {
+            // only decoding from a string can fall back to Gson, which does not call constructors
+            message.reset();
+            byte[] body = new byte[(int) message.getBodyLength()];
+            message.readBytes(body);
+            return BasicMessage.fromJSON(new String(body, "UTF-8"), getBasicMessageClass(), messageKeyDictionary);
+        }
+    }
+
+    /**
+     * Given a message that was handed over in-process, return it as our T representation of the message. The message
+     * itself is returned if it already is a T; otherwise it is converted to a T by way of its JSON encoding.
+     * 
+     * @param message
+     *            the message that was sent
+     * 
+     * @return the message as a object T, or null if we should not or cannot process the message (e.g. because it is a
+     *         duplicate of a message that has already been processed)
+     */
+    protected T getBasicMessageFromObject(BasicMessage message) {
+        Class<T> clazz = getBasicMessageClass();
+        T basicMessage;
+        if (clazz.isInstance(message)) {
+            basicMessage = clazz.cast(message);
+        } else {
+            long startTime = System.nanoTime();
+            try {
+                basicMessage = BasicMessage.fromJSON(message.toJSON(), clazz);
+            } catch (Exception e) {
+                getLog().error("A message was sent that cannot be converted to a " + clazz.getName(), e);
+                metrics.decodeFailed(getEndpoint());
+                return null;
+            }
+            basicMessage.setMessageId(message.getMessageId());
+            basicMessage.setCorrelationId(message.getCorrelationId());
+            metrics.messageDecoded(getEndpoint(), System.nanoTime() - startTime);
+        }
+
+        DuplicateDetector detector = duplicateDetector;
+        if (detector != null) {
+            String key = getDeduplicationKey(basicMessage);
+            if (key != null && detector.isDuplicate(key)) {
+                getLog().debug("Dropping duplicate message [{}]", key);
+                return null;
+            }
+        }
+        return basicMessage;
+    }
+
+    /**
+     * Determines if the message expired before it could be processed, in which case it is not even decoded.
+     * 
+     * @param message
+     *            the over-the-wire message
+     * @return true if the message's time-to-live has passed
+     */
+    protected boolean isExpired(Message message) {
+        try {
+            long expiration = message.getJMSExpiration();
+            if (expiration != 0L && expiration <= System.currentTimeMillis()) {
+                getLog().debug("Dropping message [{}] that expired at [{}]", message.getJMSMessageID(), expiration);
+                return true;
+            }
+        } catch (JMSException e) {
+            getLog().debug("Cannot determine the expiration of the message: {}", e.toString());
+        }
+        return false;
+    }
+
+    private void recordResidenceTime(Message message) {
+        try {
+            if (message.propertyExists(SendTimestamp.PROPERTY_NAME)) {
+                long residenceTime = SendTimestamp.now() - message.getLongProperty(SendTimestamp.PROPERTY_NAME);
+                metrics.messageReceived(getEndpoint(), residenceTime);
+            }
+        } catch (Exception e) {
+            getLog().debug("Cannot determine the send time of the message: {}", e.toString());
+        }
+    }
+
     protected Class<T> getBasicMessageClass() {
         return jsonDecoderRing;
     }
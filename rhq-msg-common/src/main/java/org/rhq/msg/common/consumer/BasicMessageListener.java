@@ -3,6 +3,7 @@ package org.rhq.msg.common.consumer;
 import javax.jms.Message;
 
 import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.tracing.SpanScope;
 
 /**
  * A message listener that expects to receive a JSON-encoded BasicMessage or one of its subclasses. Implementors need
@@ -26,14 +27,63 @@ public abstract class BasicMessageListener<T extends BasicMessage> extends Abstr
 
     @Override
     public void onMessage(Message message) {
+        SpanScope scope = openProcessingScope(message);
+        try {
+            processMessage(message);
+        } finally {
+            if (scope != null) {
+                scope.close();
+            }
+        }
+    };
+
+    private void processMessage(Message message) {
         T basicMessage = getBasicMessageFromMessage(message);
         if (basicMessage == null) {
             return; // either we are not to process this message or some error occurred, so we skip it
         }
 
-        onBasicMessage(basicMessage);
+        ConsumerConnectionContext context = getConsumerConnectionContext();
+        if (context instanceof RPCConnectionContext) {
+            // this is the response to a request we sent
+            long roundTripTime = System.nanoTime() - ((RPCConnectionContext) context).getRequestSendTime();
+            getMessagingMetrics().rpcCompleted(getEndpoint(), roundTripTime);
+        }
+
+        long startTime = System.nanoTime();
+        try {
+            onBasicMessage(basicMessage);
+            markProcessed(basicMessage);
+        } catch (RuntimeException e) {
+            processingFailed(message, e);
+        } finally {
+            getMessagingMetrics().messageProcessed(getEndpoint(), System.nanoTime() - startTime);
+        }
         return;
-    };
+    }
+
+    /**
+     * Processes a message that was handed over in-process by a {@link org.rhq.msg.common.LocalTransport}, without
+     * having been encoded. The message is given to {@link #onBasicMessage(BasicMessage)} as is if it is of this
+     * listener's message type; otherwise a copy converted to that type is.
+     * 
+     * @param message
+     *            the message that was sent
+     */
+    public void onLocalMessage(BasicMessage message) {
+        T basicMessage = getBasicMessageFromObject(message);
+        if (basicMessage == null) {
+            return; // either we are not to process this message or some error occurred, so we skip it
+        }
+
+        long startTime = System.nanoTime();
+        try {
+            onBasicMessage(basicMessage);
+            markProcessed(basicMessage);
+        } finally {
+            getMessagingMetrics().messageProcessed(getEndpoint(), System.nanoTime() - startTime);
+        }
+    }
 
     /**
      * Subclasses implement this method to process the received message.
@@ -0,0 +1,147 @@
+package org.rhq.msg.common.consumer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A duplicate detector that remembers keys in memory for a limited time, and never remembers more than a maximum
+ * number of keys - when that number is exceeded the oldest keys are forgotten first.
+ *
+ * Keys are not stored themselves; only a 64-bit fingerprint of each key is kept. Two different keys with the same
+ * fingerprint would be mistaken for each other, but with 64 bits that is so unlikely it can be ignored.
+ */
+public class BoundedDuplicateDetector implements DuplicateDetector {
+
+    private static class Entry {
+        private final long fingerprint;
+        private final long time;
+
+        private Entry(long fingerprint, long time) {
+            this.fingerprint = fingerprint;
+            this.time = time;
+        }
+    }
+
+    private final int maxEntries;
+    private final long timeToLive;
+
+    // fingerprint -> the entry of the last time the key was processed
+    private final ConcurrentMap<Long, Entry> processedTimes = new ConcurrentHashMap<Long, Entry>();
+    // in the order the keys were processed, which is also the order in which they expire
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger entryCount = new AtomicInteger();
+
+    /**
+     * @param maxEntries
+     *            the maximum number of keys to remember
+     * @param timeToLive
+     *            how long to remember a key, in milliseconds
+     */
+    public BoundedDuplicateDetector(int maxEntries, long timeToLive) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        if (timeToLive <= 0L) {
+            throw new IllegalArgumentException("timeToLive must be positive: " + timeToLive);
+        }
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @return the number of keys currently remembered; this may include keys that have expired but not yet been
+     *         removed
+     */
+    public int size() {
+        return processedTimes.size();
+    }
+
+    @Override
+    public boolean isDuplicate(String key) {
+        if (key == null) {
+            throw new NullPointerException("key must not be null");
+        }
+        Entry entry = processedTimes.get(fingerprint(key));
+        return entry != null && (System.currentTimeMillis() - entry.time) < timeToLive;
+    }
+
+    @Override
+    public void processed(String key) {
+        if (key == null) {
+            throw new NullPointerException("key must not be null");
+        }
+        long fingerprint = fingerprint(key);
+        long now = System.currentTimeMillis();
+        remember(fingerprint, now);
+        recorded(fingerprint, now);
+    }
+
+    /**
+     * Remembers a fingerprint without calling {@link #recorded(long, long)}. Subclasses use this to restore the keys
+     * they persisted; they must restore them in the order they were processed.
+     *
+     * @param fingerprint
+     *            the fingerprint of the key
+     * @param time
+     *            when the key was processed, in milliseconds since the epoch
+     */
+    protected void remember(long fingerprint, long time) {
+        Entry entry = new Entry(fingerprint, time);
+        processedTimes.put(fingerprint, entry);
+        entries.add(entry);
+        entryCount.incrementAndGet();
+        evict(System.currentTimeMillis());
+    }
+
+    /**
+     * Called after a key has been processed. Does nothing by default; subclasses can override this to persist the key.
+     *
+     * @param fingerprint
+     *            the fingerprint of the key
+     * @param time
+     *            when the key was processed, in milliseconds since the epoch
+     */
+    protected void recorded(long fingerprint, long time) {
+    }
+
+    private void evict(long now) {
+        Entry oldest;
+        while ((oldest = entries.peek()) != null && (entryCount.get() > maxEntries || (now - oldest.time) >= timeToLive)) {
+            if (entries.remove(oldest)) {
+                entryCount.decrementAndGet();
+                // only forget the key if it has not been processed again since
+                processedTimes.remove(oldest.fingerprint, oldest);
+            }
+        }
+    }
+
+    /**
+     * Computes the 64-bit FNV-1a hash of the key. Never returns 0 so that 0 can be used to mark an unused slot.
+     *
+     * @param key
+     *            the key
+     * @return the fingerprint of the key
+     */
+    protected static long fingerprint(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            hash ^= (c & 0xff);
+            hash *= 0x100000001b3L;
+            hash ^= (c >>> 8);
+            hash *= 0x100000001b3L;
+        }
+        return (hash == 0L) ? 1L : hash;
+    }
+}
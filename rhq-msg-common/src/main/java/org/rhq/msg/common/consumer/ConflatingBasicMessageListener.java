@@ -0,0 +1,210 @@
+package org.rhq.msg.common.consumer;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.MessageId;
+
+/**
+ * A message listener for topics that publish the current state of things over and over, e.g. the availability of
+ * resources. Each message is identified by a key - the value of one of its {@link BasicMessage#getDetails() details}
+ * - and only the newest message per key is processed: while a message waits to be processed, a newer message with the
+ * same key replaces it, and the replaced message is counted as {@link #getConflatedCount() conflated}. A slow listener
+ * thus processes one message per key that changed rather than every message that was received.
+ *
+ * Messages are received on the consumer's thread and processed by {@link #onLatestMessage(BasicMessage)} on a thread
+ * of this listener, in the order their keys first became pending. Messages without a key are never conflated. At most
+ * a maximum number of keys is pending at any time; once that is reached, receiving waits until the listener has caught
+ * up. A message is acknowledged when it is received, so messages whose processing fails are not redelivered.
+ *
+ * Call {@link #stop()} when the listener is no longer needed.
+ */
+public abstract class ConflatingBasicMessageListener<T extends BasicMessage> extends BasicMessageListener<T> {
+
+    private final String keyName;
+    private final int maxPendingKeys;
+    private final ConcurrentMap<String, T> latest = new ConcurrentHashMap<String, T>();
+    // the keys that have a message waiting, in the order they got it
+    private final Queue<String> pendingKeys = new ConcurrentLinkedQueue<String>();
+    private final AtomicLong conflatedCount = new AtomicLong();
+    private final Object signal = new Object();
+    private Thread processor;
+    private volatile boolean stopped;
+
+    /**
+     * @param keyName
+     *            the name of the detail that identifies the messages that replace each other
+     * @param maxPendingKeys
+     *            the maximum number of keys that can have a message waiting to be processed
+     */
+    public ConflatingBasicMessageListener(String keyName, int maxPendingKeys) {
+        super();
+        this.keyName = checkKeyName(keyName);
+        this.maxPendingKeys = checkMaxPendingKeys(maxPendingKeys);
+    }
+
+    protected ConflatingBasicMessageListener(Class<T> jsonDecoderRing, String keyName, int maxPendingKeys) {
+        super(jsonDecoderRing);
+        this.keyName = checkKeyName(keyName);
+        this.maxPendingKeys = checkMaxPendingKeys(maxPendingKeys);
+    }
+
+    private static String checkKeyName(String keyName) {
+        if (keyName == null) {
+            throw new NullPointerException("keyName must not be null");
+        }
+        return keyName;
+    }
+
+    private static int checkMaxPendingKeys(int maxPendingKeys) {
+        if (maxPendingKeys < 1) {
+            throw new IllegalArgumentException("maxPendingKeys must be at least 1: " + maxPendingKeys);
+        }
+        return maxPendingKeys;
+    }
+
+    public String getKeyName() {
+        return keyName;
+    }
+
+    public int getMaxPendingKeys() {
+        return maxPendingKeys;
+    }
+
+    /**
+     * @return the number of messages that were replaced by newer messages before they were processed
+     */
+    public long getConflatedCount() {
+        return conflatedCount.get();
+    }
+
+    /**
+     * @return the number of messages waiting to be processed
+     */
+    public int getPendingCount() {
+        return latest.size();
+    }
+
+    /**
+     * Stops processing messages. Messages still waiting are dropped.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (signal) {
+            stopped = true;
+            thread = processor;
+            signal.notifyAll();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        latest.clear();
+        pendingKeys.clear();
+    }
+
+    @Override
+    protected final void onBasicMessage(T basicMessage) {
+        String key = getConflationKey(basicMessage);
+        synchronized (signal) {
+            if (stopped) {
+                return;
+            }
+            startProcessor();
+
+            if (latest.replace(key, basicMessage) != null) {
+                conflatedCount.incrementAndGet();
+                return;
+            }
+            while (latest.size() >= maxPendingKeys && !stopped) {
+                try {
+                    signal.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (latest.put(key, basicMessage) != null) {
+                conflatedCount.incrementAndGet(); // cannot happen, messages are received one at a time
+            } else {
+                pendingKeys.add(key);
+            }
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Subclasses implement this method to process the newest message of a key.
+     *
+     * @param basicMessage
+     *            the message to process
+     */
+    protected abstract void onLatestMessage(T basicMessage);
+
+    /**
+     * @param basicMessage
+     *            the received message
+     * @return the key of the message; messages without the key detail are given a key of their own
+     */
+    protected String getConflationKey(T basicMessage) {
+        Map<String, String> details = basicMessage.getDetails();
+        String key = (details != null) ? details.get(keyName) : null;
+        if (key != null) {
+            return "key:" + key;
+        }
+        MessageId messageId = basicMessage.getMessageId();
+        return "id:" + ((messageId != null) ? messageId.getId() : System.identityHashCode(basicMessage));
+    }
+
+    private void startProcessor() {
+        if (processor == null) {
+            processor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    processLatest();
+                }
+            }, "rhq-msg-conflating-listener");
+            processor.setDaemon(true);
+            processor.start();
+        }
+    }
+
+    private void processLatest() {
+        while (true) {
+            String key;
+            synchronized (signal) {
+                while ((key = pendingKeys.poll()) == null && !stopped) {
+                    try {
+                        signal.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+            }
+
+            // newer messages with this key replace this one until it is taken out here
+            T basicMessage = latest.remove(key);
+            synchronized (signal) {
+                signal.notifyAll(); // there is room for another key
+            }
+            if (basicMessage != null) {
+                try {
+                    onLatestMessage(basicMessage);
+                } catch (RuntimeException e) {
+                    getLog().error("Failed to process message [" + basicMessage.getMessageId() + "]", e);
+                }
+            }
+        }
+    }
+}
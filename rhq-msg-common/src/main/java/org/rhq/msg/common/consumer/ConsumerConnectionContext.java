@@ -6,6 +6,7 @@ import org.rhq.msg.common.ConnectionContext;
 
 public class ConsumerConnectionContext extends ConnectionContext {
     private MessageConsumer consumer;
+    private RetryPolicy retryPolicy;
 
     public MessageConsumer getMessageConsumer() {
         return consumer;
@@ -14,4 +15,16 @@ public class ConsumerConnectionContext extends ConnectionContext {
     public void setMessageConsumer(MessageConsumer consumer) {
         this.consumer = consumer;
     }
+
+    /**
+     * @return what to do with messages that fail to be processed, or <code>null</code> if failures are left to the
+     *         broker's defaults
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
 }
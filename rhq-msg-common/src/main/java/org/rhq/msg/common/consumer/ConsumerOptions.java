@@ -0,0 +1,99 @@
+package org.rhq.msg.common.consumer;
+
+/**
+ * Determines how a consumer subscribes to its endpoint; see
+ * {@link org.rhq.msg.common.ConnectionContextFactory#createConsumerConnectionContext(org.rhq.msg.common.Endpoint, ConsumerOptions)}.
+ *
+ * By default a topic consumer only receives the messages published while it is connected, and every consumer of a
+ * topic receives every message. A topic consumer can instead
+ * <ul>
+ * <li>have a {@link #getSubscriptionName() durable subscription}: the broker keeps the messages published while the
+ * consumer is disconnected and delivers them when it subscribes again with the same name. This requires the
+ * connection to have a client ID (see
+ * {@link org.rhq.msg.common.ConnectionContextFactory#setClientID(String)}).</li>
+ * <li>belong to a {@link #getConsumerGroup() consumer group}: each message published to the topic is delivered to only
+ * one consumer of each group, so the consumers of a group share the load of the topic while other groups (and plain
+ * topic consumers) still receive every message. The broker keeps the messages of a group while none of its consumers
+ * is connected. This uses the broker's virtual topics, so the name of the topic must start with
+ * {@link #VIRTUAL_TOPIC_PREFIX}.</li>
+ * </ul>
+ */
+public class ConsumerOptions {
+
+    /**
+     * The prefix of the names of the topics that consumer groups can subscribe to.
+     */
+    public static final String VIRTUAL_TOPIC_PREFIX = "VirtualTopic.";
+
+    private String subscriptionName;
+    private String consumerGroup;
+    private String messageSelector;
+    private boolean noLocal = false;
+    private int prefetchSize = -1;
+
+    /**
+     * @return the name of the consumer's durable topic subscription, or <code>null</code> if the subscription is not
+     *         durable
+     */
+    public String getSubscriptionName() {
+        return subscriptionName;
+    }
+
+    public void setSubscriptionName(String subscriptionName) {
+        this.subscriptionName = subscriptionName;
+    }
+
+    /**
+     * @return the name of the group of consumers that share the messages of a virtual topic, or <code>null</code> if
+     *         the consumer receives all messages of the topic
+     */
+    public String getConsumerGroup() {
+        return consumerGroup;
+    }
+
+    public void setConsumerGroup(String consumerGroup) {
+        this.consumerGroup = consumerGroup;
+    }
+
+    /**
+     * @return the JMS message selector that filters the messages the consumer receives, or <code>null</code> to receive
+     *         all messages
+     */
+    public String getMessageSelector() {
+        return messageSelector;
+    }
+
+    public void setMessageSelector(String messageSelector) {
+        this.messageSelector = messageSelector;
+    }
+
+    /**
+     * @return true if a topic consumer does not receive the messages published through its own connection
+     */
+    public boolean isNoLocal() {
+        return noLocal;
+    }
+
+    public void setNoLocal(boolean noLocal) {
+        this.noLocal = noLocal;
+    }
+
+    /**
+     * @return how many messages the broker sends to the consumer ahead of it processing them, or -1 to use the
+     *         connection's default; a small prefetch spreads messages more evenly across competing consumers
+     */
+    public int getPrefetchSize() {
+        return prefetchSize;
+    }
+
+    public void setPrefetchSize(int prefetchSize) {
+        this.prefetchSize = prefetchSize;
+    }
+
+    @Override
+    public String toString() {
+        return "ConsumerOptions: [subscriptionName=" + subscriptionName + ", consumerGroup=" + consumerGroup
+                + ", messageSelector=" + messageSelector + ", noLocal=" + noLocal + ", prefetchSize=" + prefetchSize
+                + "]";
+    }
+}
@@ -0,0 +1,27 @@
+package org.rhq.msg.common.consumer;
+
+/**
+ * Remembers the keys of messages that have been processed, so that messages delivered more than once (e.g. redelivered
+ * after a broker failover) can be dropped instead of being processed again.
+ *
+ * Implementations must be thread-safe.
+ *
+ * @see AbstractBasicMessageListener#setDuplicateDetector(DuplicateDetector)
+ */
+public interface DuplicateDetector {
+
+    /**
+     * @param key
+     *            identifies the message
+     * @return true if a message with the given key has been {@link #processed(String) processed} recently
+     */
+    boolean isDuplicate(String key);
+
+    /**
+     * Remembers that a message with the given key has been processed.
+     *
+     * @param key
+     *            identifies the message
+     */
+    void processed(String key);
+}
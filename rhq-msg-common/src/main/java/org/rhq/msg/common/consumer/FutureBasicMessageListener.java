@@ -1,11 +1,11 @@
 package org.rhq.msg.common.consumer;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.jms.JMSException;
 import javax.jms.MessageConsumer;
@@ -21,7 +21,12 @@ import org.rhq.msg.common.BasicMessage;
  * message. This is useful, for example, to process a response from a single RPC call over a temporary queue.
  * 
  * To use this, just register this as a message listener and call one of the get() methods to block waiting for the
- * response.
+ * response, or {@link #addCallback(Runnable) add a callback} that is run once the response is received.
+ * 
+ * The future is completed exactly once, by whichever comes first of the response and a cancellation, with a single
+ * atomic update; no locks are taken. Any number of threads may wait for it at the same time. A thread that calls a
+ * get() method after the future is done returns right away; only threads that have to wait are parked, and they are
+ * unparked by the thread that completes the future.
  * 
  * @author John Mazzitelli
  * 
@@ -30,14 +35,31 @@ import org.rhq.msg.common.BasicMessage;
  */
 public class FutureBasicMessageListener<T extends BasicMessage> extends BasicMessageListener<T> implements Future<T> {
 
-    private static enum State {
-        WAITING, DONE, CANCELLED
-    }
+    private static final Object CANCELLED = new Object();
+
+    // While the future is not done this is null or the most recently added Waiter, which links to the ones added before
+    // it. Once it is done it is either the response message or CANCELLED, and never changes again.
+    private final AtomicReference<Object> state = new AtomicReference<Object>();
 
-    // use array blocking queue because it has the same concurrent semantics as Future making things easy for us
-    private final BlockingQueue<T> responseQ = new ArrayBlockingQueue<T>(1);
-    private T responseMessage = null;
-    private State state = State.WAITING;
+    /**
+     * A thread waiting for the future, or a callback to run when it is done. A thread that gives up waiting clears its
+     * thread, and the waiter is then removed.
+     */
+    private static final class Waiter {
+        private volatile Thread thread;
+        private final Runnable callback;
+        private volatile Waiter next;
+
+        private Waiter(Thread thread, Runnable callback, Waiter next) {
+            this.thread = thread;
+            this.callback = callback;
+            this.next = next;
+        }
+
+        private boolean isAbandoned() {
+            return thread == null && callback == null;
+        }
+    }
 
     public FutureBasicMessageListener() {
         super();
@@ -54,73 +76,83 @@ public class FutureBasicMessageListener<T extends BasicMessage> extends BasicMes
             return false;
         }
 
+        if (!mayInterruptIfRunning) {
+            getLog().error("Told not to interrupt if running, but it is running. Cannot cancel.");
+            return false;
+        }
+
+        // the response may arrive at the same time, in which case the future is not cancelled
+        if (!complete(CANCELLED)) {
+            return false;
+        }
+
         try {
-            if (mayInterruptIfRunning) {
-                closeConsumer();
-                state = State.CANCELLED;
-            } else {
-                getLog().error("Told not to interrupt if running, but it is running. Cannot cancel.");
-            }
+            closeConsumer();
         } catch (Exception e) {
             getLog().error("Failed to close consumer, cannot fully cancel");
         }
-
-        return state == State.CANCELLED;
+        return true;
     }
 
     @Override
     public boolean isCancelled() {
-        return state == State.CANCELLED;
+        return state.get() == CANCELLED;
     }
 
     @Override
     public boolean isDone() {
-        return state == State.DONE || state == State.CANCELLED;
+        return isDone(state.get());
     }
 
     @Override
     public T get() throws InterruptedException, ExecutionException {
-        if (state == State.CANCELLED) {
-            throw new CancellationException();
-        }
-
-        // Since we only ever expect a single response, only take the first item ever in the blocking Q.
-        // From there on out we never take from the blocking Q.
-        if (responseMessage == null) {
-            responseMessage = responseQ.take();
+        Object s = state.get();
+        if (!isDone(s)) {
+            s = await(false, 0L);
         }
-        return responseMessage;
+        return report(s);
     }
 
     @Override
     public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        if (state == State.CANCELLED) {
-            throw new CancellationException();
-        }
-
-        // Since we only ever expect a single response, only take the first item ever in the blocking Q.
-        // From there on out we never take from the blocking Q.
-        if (responseMessage == null) {
-            final T item = responseQ.poll(timeout, unit);
-            if (item == null) {
+        Object s = state.get();
+        if (!isDone(s)) {
+            s = await(true, unit.toNanos(timeout));
+            if (s == null) {
                 throw new TimeoutException();
             }
-            responseMessage = item;
         }
+        return report(s);
+    }
 
-        return responseMessage;
+    /**
+     * Adds a callback that is run once the future is done, whether the response was received or the future was
+     * cancelled. Callbacks run on the thread that completes the future - typically the thread that delivers the
+     * response, so they should be quick - or, if the future is already done, right away on the calling thread.
+     * 
+     * @param callback
+     *            the callback to run
+     */
+    public void addCallback(Runnable callback) {
+        if (callback == null) {
+            throw new NullPointerException("callback must not be null");
+        }
+        while (true) {
+            Object s = state.get();
+            if (isDone(s)) {
+                runCallback(callback);
+                return;
+            }
+            if (state.compareAndSet(s, new Waiter(null, callback, (Waiter) s))) {
+                return;
+            }
+        }
     }
 
     @Override
     protected void onBasicMessage(T basicMessage) {
         // if we already got a message or were cancelled, ignore any additional messages we might receive
-        if (!isDone()) {
-            if (responseQ.offer(basicMessage)) {
-                state = State.DONE;
-            } else {
-                getLog().error("Failed to store incoming message for some reason. This future is now invalid.");
-                state = State.CANCELLED;
-            }
+        if (complete(basicMessage)) {
             try {
                 closeConsumer();
             } catch (Exception e) {
@@ -139,4 +171,153 @@ public class FutureBasicMessageListener<T extends BasicMessage> extends BasicMes
         }
         return;
     }
+
+    private static boolean isDone(Object s) {
+        return s != null && !(s instanceof Waiter);
+    }
+
+    /**
+     * Completes the future with the response message or {@link #CANCELLED}, then releases everything that waits for
+     * it.
+     * 
+     * @return true if this completed the future, false if it was already done
+     */
+    private boolean complete(Object outcome) {
+        while (true) {
+            Object s = state.get();
+            if (isDone(s)) {
+                return false;
+            }
+            if (state.compareAndSet(s, outcome)) {
+                release((Waiter) s);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Unparks the waiting threads, then runs the callbacks in the order they were added in.
+     */
+    private void release(Waiter waiters) {
+        // the waiters are linked from the most recently added one
+        Waiter callbacks = null;
+        for (Waiter waiter = waiters; waiter != null; waiter = waiter.next) {
+            Thread thread = waiter.thread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            } else if (waiter.callback != null) {
+                callbacks = new Waiter(null, waiter.callback, callbacks);
+            }
+        }
+        for (Waiter waiter = callbacks; waiter != null; waiter = waiter.next) {
+            runCallback(waiter.callback);
+        }
+    }
+
+    /**
+     * Parks the calling thread until the future is done.
+     * 
+     * @return the response message or {@link #CANCELLED}, or null if the wait timed out
+     */
+    private Object await(boolean timed, long nanos) throws InterruptedException {
+        long deadline = timed ? System.nanoTime() + nanos : 0L;
+        Waiter waiter = null;
+        while (true) {
+            Object s = state.get();
+            if (isDone(s)) {
+                return s;
+            }
+            if (Thread.interrupted()) {
+                abandon(waiter);
+                throw new InterruptedException();
+            }
+            long remaining = 0L;
+            if (timed) {
+                remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    abandon(waiter);
+                    return null;
+                }
+            }
+            if (waiter == null) {
+                // add this thread to the waiters before parking, so that it is certain to be unparked
+                Waiter newWaiter = new Waiter(Thread.currentThread(), null, (Waiter) s);
+                if (state.compareAndSet(s, newWaiter)) {
+                    waiter = newWaiter;
+                }
+                continue;
+            }
+            // wakes up spuriously, too; the loop checks again
+            if (timed) {
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * Removes the waiter of a thread that gave up waiting, so that a caller that keeps polling with a timeout does
+     * not pile up waiters. Other abandoned waiters found on the way are removed, too.
+     */
+    private void abandon(Waiter waiter) {
+        if (waiter == null) {
+            return;
+        }
+        waiter.thread = null;
+        retry: while (true) {
+            Object s = state.get();
+            if (!(s instanceof Waiter)) {
+                return; // done, nothing waits any longer
+            }
+            Waiter previous = null;
+            for (Waiter current = (Waiter) s; current != null; current = current.next) {
+                Waiter next = current.next;
+                if (!current.isAbandoned()) {
+                    previous = current;
+                } else if (previous != null) {
+                    previous.next = next;
+                    // the previous waiter may have been abandoned meanwhile and be removed by another thread
+                    if (previous.isAbandoned()) {
+                        continue retry;
+                    }
+                } else if (!state.compareAndSet(current, next)) {
+                    continue retry;
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * @return the number of threads that wait for the future and callbacks that have not run yet
+     */
+    int getWaiterCount() {
+        Object s = state.get();
+        int count = 0;
+        if (s instanceof Waiter) {
+            for (Waiter waiter = (Waiter) s; waiter != null; waiter = waiter.next) {
+                if (!waiter.isAbandoned()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void runCallback(Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            getLog().error("Callback failed: {}", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T report(Object s) {
+        if (s == CANCELLED) {
+            throw new CancellationException();
+        }
+        return (T) s;
+    }
 }
@@ -0,0 +1,136 @@
+package org.rhq.msg.common.consumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A {@link BoundedDuplicateDetector} that also writes the keys it remembers to a memory-mapped file, so they are still
+ * remembered after a restart. The file is a ring of fixed-size slots - one per key it can remember - so it never grows,
+ * and writing a key is just a write to memory that the operating system flushes to disk on its own. Keys written
+ * shortly before the machine (rather than the process) crashes may be lost.
+ *
+ * Call {@link #close()} when the detector is no longer needed.
+ */
+public class MappedFileDuplicateDetector extends BoundedDuplicateDetector {
+
+    private static final int MAGIC = 0x52485144; // "RHQD"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16; // magic, version, capacity, next slot
+    private static final int NEXT_SLOT_OFFSET = 12;
+    private static final int SLOT_SIZE = 16; // fingerprint, time
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private int nextSlot;
+
+    /**
+     * Opens the given file, creating it if necessary, and remembers the unexpired keys found in it. If the file was
+     * written with a different maximum number of keys, its contents are discarded.
+     *
+     * @param file
+     *            where the keys are kept
+     * @param maxEntries
+     *            the maximum number of keys to remember
+     * @param timeToLive
+     *            how long to remember a key, in milliseconds
+     * @throws IOException
+     *             if the file cannot be opened or mapped
+     */
+    public MappedFileDuplicateDetector(File file, int maxEntries, long timeToLive) throws IOException {
+        super(maxEntries, timeToLive);
+        if (file == null) {
+            throw new NullPointerException("file must not be null");
+        }
+
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            long size = HEADER_SIZE + ((long) maxEntries * SLOT_SIZE);
+            boolean reuse = randomAccessFile.length() == size && isCompatible(randomAccessFile, maxEntries);
+            if (!reuse) {
+                randomAccessFile.setLength(0L); // discard whatever was there
+                randomAccessFile.setLength(size);
+            }
+
+            this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, size);
+            if (reuse) {
+                this.nextSlot = buffer.getInt(NEXT_SLOT_OFFSET);
+                restore();
+            } else {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, maxEntries);
+                buffer.putInt(NEXT_SLOT_OFFSET, 0);
+                this.nextSlot = 0;
+            }
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    protected void recorded(long fingerprint, long time) {
+        synchronized (buffer) {
+            int position = HEADER_SIZE + (nextSlot * SLOT_SIZE);
+            buffer.putLong(position, fingerprint);
+            buffer.putLong(position + 8, time);
+            nextSlot = (nextSlot + 1) % getMaxEntries();
+            buffer.putInt(NEXT_SLOT_OFFSET, nextSlot);
+        }
+    }
+
+    /**
+     * Flushes the remembered keys to disk and closes the file. The detector must not be used afterwards.
+     *
+     * @throws IOException
+     *             if the file cannot be closed
+     */
+    public void close() throws IOException {
+        synchronized (buffer) {
+            buffer.force();
+        }
+        randomAccessFile.close();
+    }
+
+    private static boolean isCompatible(RandomAccessFile file, int maxEntries) throws IOException {
+        file.seek(0L);
+        return file.readInt() == MAGIC && file.readInt() == VERSION && file.readInt() == maxEntries;
+    }
+
+    private void restore() {
+        long now = System.currentTimeMillis();
+        List<long[]> unexpired = new ArrayList<long[]>();
+        for (int slot = 0; slot < getMaxEntries(); slot++) {
+            int position = HEADER_SIZE + (slot * SLOT_SIZE);
+            long fingerprint = buffer.getLong(position);
+            long time = buffer.getLong(position + 8);
+            if (fingerprint != 0L && (now - time) < getTimeToLive()) {
+                unexpired.add(new long[] { fingerprint, time });
+            }
+        }
+
+        // keys have to be remembered in the order they were processed
+        Collections.sort(unexpired, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return (a[1] < b[1]) ? -1 : ((a[1] == b[1]) ? 0 : 1);
+            }
+        });
+        for (long[] entry : unexpired) {
+            remember(entry[0], entry[1]);
+        }
+    }
+}
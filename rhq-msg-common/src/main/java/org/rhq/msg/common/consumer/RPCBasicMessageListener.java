@@ -7,6 +7,7 @@ import javax.jms.Session;
 import org.rhq.msg.common.BasicMessage;
 import org.rhq.msg.common.MessageProcessor;
 import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.rhq.msg.common.tracing.SpanScope;
 
 /**
  * A listener that processes an incoming request that will require a response sent back to the sender of the request.
@@ -52,12 +53,34 @@ public abstract class RPCBasicMessageListener<T extends BasicMessage, U extends
 
     @Override
     public void onMessage(Message message) {
+        // the response is sent within the processing scope, so it continues the trace of the request
+        SpanScope scope = openProcessingScope(message);
+        try {
+            processMessage(message);
+        } finally {
+            if (scope != null) {
+                scope.close();
+            }
+        }
+    }
+
+    private void processMessage(Message message) {
         T basicMessage = getBasicMessageFromMessage(message);
         if (basicMessage == null) {
             return; // either we are not to process this message or some error occurred, so we skip it
         }
 
-        U responseBasicMessage = onBasicMessage(basicMessage);
+        U responseBasicMessage;
+        long startTime = System.nanoTime();
+        try {
+            responseBasicMessage = onBasicMessage(basicMessage);
+            markProcessed(basicMessage);
+        } catch (RuntimeException e) {
+            processingFailed(message, e); // a poison request is not responded to
+            return;
+        } finally {
+            getMessagingMetrics().messageProcessed(getEndpoint(), System.nanoTime() - startTime);
+        }
 
         // send the response back to the sender of the request
         try {
@@ -18,6 +18,7 @@ import javax.jms.Message;
 public class RPCConnectionContext extends ConsumerConnectionContext {
     private Message requestMessage;
     private BasicMessageListener<?> responseListener;
+    private long requestSendTime;
 
     /**
      * This is the request message that was sent. A response is expected from this request message. When the message is
@@ -33,6 +34,20 @@ public class RPCConnectionContext extends ConsumerConnectionContext {
         this.requestMessage = requestMessage;
     }
 
+    /**
+     * The time at which the request message was sent, as given by {@link System#nanoTime()}. Used to measure how long
+     * it took for the response to arrive.
+     * 
+     * @return the time the request was sent
+     */
+    public long getRequestSendTime() {
+        return requestSendTime;
+    }
+
+    public void setRequestSendTime(long requestSendTime) {
+        this.requestSendTime = requestSendTime;
+    }
+
     /**
      * This is the listener that is assigned to process the returned response.
      * 
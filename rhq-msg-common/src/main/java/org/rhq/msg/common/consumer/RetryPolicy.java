@@ -0,0 +1,131 @@
+package org.rhq.msg.common.consumer;
+
+import org.apache.activemq.RedeliveryPolicy;
+import org.rhq.msg.common.Endpoint;
+
+/**
+ * Determines what happens to a received message whose listener fails to process it. The message is redelivered to the
+ * listener with an exponentially growing delay until it has been tried {@link #getMaxAttempts() a number of times};
+ * after that it is a poison message and is forwarded to the {@link #getDeadLetterEndpoint() dead letter endpoint}
+ * along with information about the failure. Messages that cannot even be decoded are forwarded there right away.
+ *
+ * While a failed message waits for its redelivery, the listener keeps processing the messages that arrived after it.
+ *
+ * A retry policy is set on the {@link org.rhq.msg.common.ConnectionContextFactory} and applies to all consumers
+ * created by that factory afterwards.
+ */
+public class RetryPolicy {
+
+    /**
+     * The property of a dead-lettered message that names the destination the message was originally sent to.
+     */
+    public static final String ORIGINAL_DESTINATION_PROPERTY = "RHQDeadLetterOriginalDestination";
+
+    /**
+     * The property of a dead-lettered message that holds the original message ID.
+     */
+    public static final String ORIGINAL_MESSAGE_ID_PROPERTY = "RHQDeadLetterOriginalMessageID";
+
+    /**
+     * The property of a dead-lettered message that describes the error that made the last attempt fail.
+     */
+    public static final String FAILURE_CAUSE_PROPERTY = "RHQDeadLetterFailureCause";
+
+    /**
+     * The property of a dead-lettered message that holds the number of times its processing was attempted.
+     */
+    public static final String ATTEMPTS_PROPERTY = "RHQDeadLetterAttempts";
+
+    /**
+     * The property of a dead-lettered message that holds the time (in milliseconds since the epoch) it was given up on.
+     */
+    public static final String FAILURE_TIME_PROPERTY = "RHQDeadLetterFailureTime";
+
+    private int maxAttempts = 5;
+    private long initialDelay = 1000L;
+    private double backOffMultiplier = 2.0;
+    private long maxDelay = 60000L;
+    private Endpoint deadLetterEndpoint;
+
+    /**
+     * @return how many times a message is delivered to its listener before it is given up on
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1: " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return milliseconds to wait before the first redelivery of a failed message
+     */
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    public void setInitialDelay(long initialDelay) {
+        this.initialDelay = initialDelay;
+    }
+
+    /**
+     * @return the factor the delay grows by with each further redelivery
+     */
+    public double getBackOffMultiplier() {
+        return backOffMultiplier;
+    }
+
+    public void setBackOffMultiplier(double backOffMultiplier) {
+        if (backOffMultiplier < 1.0) {
+            throw new IllegalArgumentException("backOffMultiplier must be at least 1: " + backOffMultiplier);
+        }
+        this.backOffMultiplier = backOffMultiplier;
+    }
+
+    /**
+     * @return the longest time to wait between two deliveries, in milliseconds
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @return where poison messages are forwarded to, or <code>null</code> to leave them to the broker, which moves
+     *         them to its own dead letter queue (without information about the failure)
+     */
+    public Endpoint getDeadLetterEndpoint() {
+        return deadLetterEndpoint;
+    }
+
+    public void setDeadLetterEndpoint(Endpoint deadLetterEndpoint) {
+        this.deadLetterEndpoint = deadLetterEndpoint;
+    }
+
+    /**
+     * @return the ActiveMQ redelivery policy that implements this policy's delays and attempts
+     */
+    public RedeliveryPolicy toRedeliveryPolicy() {
+        RedeliveryPolicy redeliveryPolicy = new RedeliveryPolicy();
+        redeliveryPolicy.setMaximumRedeliveries(maxAttempts - 1);
+        redeliveryPolicy.setInitialRedeliveryDelay(initialDelay);
+        redeliveryPolicy.setRedeliveryDelay(initialDelay);
+        redeliveryPolicy.setUseExponentialBackOff(backOffMultiplier > 1.0);
+        redeliveryPolicy.setBackOffMultiplier(backOffMultiplier);
+        redeliveryPolicy.setMaximumRedeliveryDelay(maxDelay);
+        return redeliveryPolicy;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy: [maxAttempts=" + maxAttempts + ", initialDelay=" + initialDelay + ", backOffMultiplier="
+                + backOffMultiplier + ", maxDelay=" + maxDelay + ", deadLetterEndpoint=" + deadLetterEndpoint + "]";
+    }
+}
@@ -0,0 +1,216 @@
+package org.rhq.msg.common.metrics;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rhq.msg.common.Endpoint;
+
+/**
+ * Keeps counters and timing histograms per endpoint in memory. Useful in tests, and as a source for management
+ * interfaces that want to expose the numbers.
+ */
+public class InMemoryMessagingMetrics implements MessagingMetrics {
+
+    /**
+     * Measurements tagged with a <code>null</code> endpoint are kept under this endpoint.
+     */
+    public static final Endpoint UNKNOWN_ENDPOINT = new Endpoint(Endpoint.Type.QUEUE, "__unknown__");
+
+    /**
+     * The measurements of a single endpoint. All times are in nanoseconds.
+     */
+    public static class EndpointMetrics {
+        private final LatencyHistogram sendTime = new LatencyHistogram();
+        private final AtomicLong sendFailures = new AtomicLong();
+        private final AtomicLong encodedSize = new AtomicLong();
+        private final LatencyHistogram residenceTime = new LatencyHistogram();
+        private final LatencyHistogram decodeTime = new LatencyHistogram();
+        private final AtomicLong decodeFailures = new AtomicLong();
+        private final LatencyHistogram processingTime = new LatencyHistogram();
+        private final LatencyHistogram rpcRoundTripTime = new LatencyHistogram();
+
+        public long getMessagesSent() {
+            return sendTime.getTotalCount();
+        }
+
+        public LatencyHistogram getSendTime() {
+            return sendTime;
+        }
+
+        public long getSendFailures() {
+            return sendFailures.get();
+        }
+
+        /**
+         * @return the total size of the encoded bodies of all messages sent, in bytes (text messages as UTF-8)
+         */
+        public long getEncodedSize() {
+            return encodedSize.get();
+        }
+
+        /**
+         * @return the time received messages spent between being sent and reaching their listener
+         */
+        public LatencyHistogram getResidenceTime() {
+            return residenceTime;
+        }
+
+        public long getMessagesDecoded() {
+            return decodeTime.getTotalCount();
+        }
+
+        public LatencyHistogram getDecodeTime() {
+            return decodeTime;
+        }
+
+        public long getDecodeFailures() {
+            return decodeFailures.get();
+        }
+
+        public long getMessagesProcessed() {
+            return processingTime.getTotalCount();
+        }
+
+        public LatencyHistogram getProcessingTime() {
+            return processingTime;
+        }
+
+        public long getRpcCompleted() {
+            return rpcRoundTripTime.getTotalCount();
+        }
+
+        public LatencyHistogram getRpcRoundTripTime() {
+            return rpcRoundTripTime;
+        }
+
+        /**
+         * @return a copy of these measurements that does not change as more measurements are recorded
+         */
+        public EndpointMetrics copy() {
+            EndpointMetrics copy = new EndpointMetrics();
+            copy.sendTime.add(sendTime);
+            copy.sendFailures.set(sendFailures.get());
+            copy.encodedSize.set(encodedSize.get());
+            copy.residenceTime.add(residenceTime);
+            copy.decodeTime.add(decodeTime);
+            copy.decodeFailures.set(decodeFailures.get());
+            copy.processingTime.add(processingTime);
+            copy.rpcRoundTripTime.add(rpcRoundTripTime);
+            return copy;
+        }
+
+        public void reset() {
+            sendTime.reset();
+            sendFailures.set(0L);
+            encodedSize.set(0L);
+            residenceTime.reset();
+            decodeTime.reset();
+            decodeFailures.set(0L);
+            processingTime.reset();
+            rpcRoundTripTime.reset();
+        }
+    }
+
+    private final ConcurrentMap<Endpoint, EndpointMetrics> endpointMetrics = new ConcurrentHashMap<Endpoint, EndpointMetrics>();
+
+    /**
+     * @return the endpoints for which measurements have been recorded
+     */
+    public Set<Endpoint> getEndpoints() {
+        return new HashSet<Endpoint>(endpointMetrics.keySet());
+    }
+
+    /**
+     * Returns the measurements of the given endpoint. The returned object is live - it keeps changing as more
+     * measurements are recorded.
+     *
+     * @param endpoint
+     *            the endpoint, or <code>null</code> for measurements of unknown endpoints
+     * @return the measurements of the endpoint; never <code>null</code>
+     */
+    public EndpointMetrics getEndpointMetrics(Endpoint endpoint) {
+        if (endpoint == null) {
+            endpoint = UNKNOWN_ENDPOINT;
+        }
+        EndpointMetrics metrics = endpointMetrics.get(endpoint);
+        if (metrics == null) {
+            EndpointMetrics newMetrics = new EndpointMetrics();
+            metrics = endpointMetrics.putIfAbsent(endpoint, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Takes a snapshot of the measurements of all endpoints, e.g. to report the residence and processing time
+     * histograms of the last reporting interval.
+     *
+     * @param reset
+     *            if true, the measurements are reset after the snapshot is taken. Measurements recorded by other
+     *            threads while this runs may be lost.
+     * @return copies of the measurements, keyed by endpoint
+     */
+    public Map<Endpoint, EndpointMetrics> snapshot(boolean reset) {
+        Map<Endpoint, EndpointMetrics> snapshot = new HashMap<Endpoint, EndpointMetrics>();
+        for (Map.Entry<Endpoint, EndpointMetrics> entry : endpointMetrics.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().copy());
+            if (reset) {
+                entry.getValue().reset();
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Resets the measurements of all endpoints.
+     */
+    public void reset() {
+        for (EndpointMetrics metrics : endpointMetrics.values()) {
+            metrics.reset();
+        }
+    }
+
+    @Override
+    public void messageSent(Endpoint endpoint, long sendTime, int encodedSize) {
+        EndpointMetrics metrics = getEndpointMetrics(endpoint);
+        metrics.sendTime.recordValue(Math.max(0L, sendTime));
+        metrics.encodedSize.addAndGet(encodedSize);
+    }
+
+    @Override
+    public void sendFailed(Endpoint endpoint) {
+        getEndpointMetrics(endpoint).sendFailures.incrementAndGet();
+    }
+
+    @Override
+    public void messageReceived(Endpoint endpoint, long residenceTime) {
+        getEndpointMetrics(endpoint).residenceTime.recordValue(Math.max(0L, residenceTime));
+    }
+
+    @Override
+    public void messageDecoded(Endpoint endpoint, long decodeTime) {
+        getEndpointMetrics(endpoint).decodeTime.recordValue(Math.max(0L, decodeTime));
+    }
+
+    @Override
+    public void decodeFailed(Endpoint endpoint) {
+        getEndpointMetrics(endpoint).decodeFailures.incrementAndGet();
+    }
+
+    @Override
+    public void messageProcessed(Endpoint endpoint, long processingTime) {
+        getEndpointMetrics(endpoint).processingTime.recordValue(Math.max(0L, processingTime));
+    }
+
+    @Override
+    public void rpcCompleted(Endpoint endpoint, long roundTripTime) {
+        getEndpointMetrics(endpoint).rpcRoundTripTime.recordValue(Math.max(0L, roundTripTime));
+    }
+}
@@ -0,0 +1,214 @@
+package org.rhq.msg.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of latency values with a log-linear bucket layout: values below 256 are counted exactly, and
+ * larger values are counted in buckets whose width grows with the magnitude of the value, so every value is recorded
+ * with a relative error of less than 1% no matter how large it is. This is the same trade-off HdrHistogram makes, so
+ * the percentiles of the histogram can be trusted all the way up to its maximum.
+ *
+ * Values can be recorded by many threads at the same time without locking. The unit of the values (e.g. nanoseconds or
+ * microseconds) is up to the caller.
+ */
+public class LatencyHistogram {
+
+    // each power of two range is split into this many linear sub-buckets
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalSum = new AtomicLong();
+    private final AtomicLong minValue = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maxValue = new AtomicLong(0L);
+
+    /**
+     * Records a single value.
+     *
+     * @param value
+     *            the value to record; must not be negative
+     */
+    public void recordValue(long value) {
+        recordValue(value, 1L);
+    }
+
+    /**
+     * Records a value and corrects for coordinated omission: when a value is larger than the interval at which values
+     * are expected to be recorded (e.g. the interval between two requests of a load generator running at a fixed
+     * rate), the requests that would have been sent - and delayed - while waiting for this one are recorded as well,
+     * with linearly decreasing values. Without this correction a single long stall would show up as one slow sample
+     * and the higher percentiles would look far better than what the users of the system actually experienced.
+     *
+     * @param value
+     *            the value to record; must not be negative
+     * @param expectedInterval
+     *            the interval between two values when nothing stalls, in the same unit as the value. If 0 or less, no
+     *            correction is made.
+     */
+    public void recordValueWithExpectedInterval(long value, long expectedInterval) {
+        recordValue(value, 1L);
+        if (expectedInterval <= 0L) {
+            return;
+        }
+        for (long missingValue = value - expectedInterval; missingValue >= expectedInterval; missingValue -= expectedInterval) {
+            recordValue(missingValue, 1L);
+        }
+    }
+
+    private void recordValue(long value, long count) {
+        if (value < 0L) {
+            throw new IllegalArgumentException("Cannot record negative value: " + value);
+        }
+
+        counts.addAndGet(getBucketIndex(value), count);
+        totalCount.addAndGet(count);
+        totalSum.addAndGet(value * count);
+
+        long min;
+        while (value < (min = minValue.get()) && !minValue.compareAndSet(min, value)) {
+            // lost the race to another thread, try again
+        }
+        long max;
+        while (value > (max = maxValue.get()) && !maxValue.compareAndSet(max, value)) {
+            // lost the race to another thread, try again
+        }
+    }
+
+    /**
+     * Adds all values recorded in the given histogram to this histogram.
+     *
+     * @param other
+     *            the histogram whose values are added; it is not changed
+     */
+    public void add(LatencyHistogram other) {
+        if (other == null) {
+            throw new NullPointerException("other must not be null");
+        }
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count > 0L) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        totalSum.addAndGet(other.totalSum.get());
+
+        long otherMin = other.minValue.get();
+        long min;
+        while (otherMin < (min = minValue.get()) && !minValue.compareAndSet(min, otherMin)) {
+            // lost the race to another thread, try again
+        }
+        long otherMax = other.maxValue.get();
+        long max;
+        while (otherMax > (max = maxValue.get()) && !maxValue.compareAndSet(max, otherMax)) {
+            // lost the race to another thread, try again
+        }
+    }
+
+    /**
+     * @return a new histogram holding the values recorded in this histogram so far
+     */
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * Forgets all recorded values. Values recorded by other threads while this runs may or may not be forgotten.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0L);
+        }
+        totalCount.set(0L);
+        totalSum.set(0L);
+        minValue.set(Long.MAX_VALUE);
+        maxValue.set(0L);
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return the smallest recorded value, or 0 if nothing was recorded
+     */
+    public long getMinValue() {
+        return (getTotalCount() == 0L) ? 0L : minValue.get();
+    }
+
+    /**
+     * @return the largest recorded value, or 0 if nothing was recorded
+     */
+    public long getMaxValue() {
+        return maxValue.get();
+    }
+
+    /**
+     * @return the mean of all recorded values, or 0 if nothing was recorded
+     */
+    public double getMean() {
+        long count = getTotalCount();
+        return (count == 0L) ? 0.0 : ((double) totalSum.get()) / count;
+    }
+
+    /**
+     * Returns the value below which the given percentage of all recorded values fall. The value is accurate to within
+     * the precision of the bucket it falls in, and never larger than the largest recorded value.
+     *
+     * @param percentile
+     *            the percentile, between 0 and 100 (e.g. 99.9)
+     * @return the value at the percentile, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+        }
+
+        long total = getTotalCount();
+        if (total == 0L) {
+            return 0L;
+        }
+
+        long countAtPercentile = Math.max(1L, (long) Math.ceil((percentile / 100.0) * total));
+        long cumulativeCount = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulativeCount += counts.get(i);
+            if (cumulativeCount >= countAtPercentile) {
+                return Math.min(getHighestValueInBucket(i), getMaxValue());
+            }
+        }
+        return getMaxValue();
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> shift); // always between SUB_BUCKET_HALF_COUNT and SUB_BUCKET_COUNT - 1
+        return (shift * SUB_BUCKET_HALF_COUNT) + subBucket;
+    }
+
+    static long getHighestValueInBucket(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_HALF_COUNT) / SUB_BUCKET_HALF_COUNT;
+        long subBucket = index - (shift * SUB_BUCKET_HALF_COUNT);
+        return ((subBucket + 1L) << shift) - 1L;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram: [count=" + getTotalCount() + ", min=" + getMinValue() + ", mean=" + getMean() + ", p50="
+                + getValueAtPercentile(50.0) + ", p99=" + getValueAtPercentile(99.0) + ", p99.9=" + getValueAtPercentile(99.9) + ", max="
+                + getMaxValue() + "]";
+    }
+}
@@ -0,0 +1,89 @@
+package org.rhq.msg.common.metrics;
+
+import org.rhq.msg.common.Endpoint;
+
+/**
+ * Receives measurements of the messaging work done by {@link org.rhq.msg.common.MessageProcessor} and the message
+ * listeners. Implementations decide what to do with them - count them, feed them into histograms, forward them to a
+ * monitoring system, etc.
+ *
+ * All measurements are tagged with the endpoint they belong to. The endpoint is <code>null</code> when the connection
+ * context was not created for a known endpoint. Times are in nanoseconds.
+ *
+ * Implementations are called on the sending and receiving threads and must therefore be thread-safe and fast.
+ *
+ * @see NoOpMessagingMetrics
+ * @see InMemoryMessagingMetrics
+ */
+public interface MessagingMetrics {
+
+    /**
+     * A message was sent.
+     *
+     * @param endpoint
+     *            where the message was sent
+     * @param sendTime
+     *            how long it took to encode and send the message
+     * @param encodedSize
+     *            the size of the encoded message body, in bytes (text messages as UTF-8)
+     */
+    void messageSent(Endpoint endpoint, long sendTime, int encodedSize);
+
+    /**
+     * Sending a message failed.
+     *
+     * @param endpoint
+     *            where the message was to be sent
+     */
+    void sendFailed(Endpoint endpoint);
+
+    /**
+     * A message has been received by a listener. This is only called for messages that carry a
+     * {@link SendTimestamp send timestamp}.
+     *
+     * @param endpoint
+     *            where the message was received
+     * @param residenceTime
+     *            the time between the message being sent and reaching the listener - i.e. the time it spent in transit
+     *            and waiting in the broker
+     */
+    void messageReceived(Endpoint endpoint, long residenceTime);
+
+    /**
+     * A received message was decoded.
+     *
+     * @param endpoint
+     *            where the message was received
+     * @param decodeTime
+     *            how long it took to decode the message
+     */
+    void messageDecoded(Endpoint endpoint, long decodeTime);
+
+    /**
+     * A received message could not be decoded and was dropped.
+     *
+     * @param endpoint
+     *            where the message was received
+     */
+    void decodeFailed(Endpoint endpoint);
+
+    /**
+     * A listener has processed a received message.
+     *
+     * @param endpoint
+     *            where the message was received
+     * @param processingTime
+     *            how long the listener took to process the message
+     */
+    void messageProcessed(Endpoint endpoint, long processingTime);
+
+    /**
+     * The response to an RPC request has been received.
+     *
+     * @param endpoint
+     *            where the request was sent
+     * @param roundTripTime
+     *            the time between sending the request and receiving the response
+     */
+    void rpcCompleted(Endpoint endpoint, long roundTripTime);
+}
@@ -0,0 +1,42 @@
+package org.rhq.msg.common.metrics;
+
+import org.rhq.msg.common.Endpoint;
+
+/**
+ * Metrics that ignore all measurements. This is what is used when no other metrics are configured.
+ */
+public final class NoOpMessagingMetrics implements MessagingMetrics {
+
+    public static final NoOpMessagingMetrics INSTANCE = new NoOpMessagingMetrics();
+
+    private NoOpMessagingMetrics() {
+    }
+
+    @Override
+    public void messageSent(Endpoint endpoint, long sendTime, int encodedSize) {
+    }
+
+    @Override
+    public void sendFailed(Endpoint endpoint) {
+    }
+
+    @Override
+    public void messageReceived(Endpoint endpoint, long residenceTime) {
+    }
+
+    @Override
+    public void messageDecoded(Endpoint endpoint, long decodeTime) {
+    }
+
+    @Override
+    public void decodeFailed(Endpoint endpoint) {
+    }
+
+    @Override
+    public void messageProcessed(Endpoint endpoint, long processingTime) {
+    }
+
+    @Override
+    public void rpcCompleted(Endpoint endpoint, long roundTripTime) {
+    }
+}
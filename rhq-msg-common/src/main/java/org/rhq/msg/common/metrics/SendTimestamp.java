@@ -0,0 +1,31 @@
+package org.rhq.msg.common.metrics;
+
+/**
+ * The timestamp that {@link org.rhq.msg.common.MessageProcessor} stamps on outgoing messages when metrics are enabled,
+ * so receivers can tell how long a message spent between being sent and reaching its listener (i.e. in transit and
+ * waiting in the broker).
+ *
+ * The timestamp is the wall-clock time in nanoseconds since the epoch, taken from a clock that is anchored to
+ * {@link System#currentTimeMillis()} once and then advanced by {@link System#nanoTime()}. Within one JVM it therefore
+ * has the resolution of nanoTime; between JVMs it is only as accurate as the synchronization of their system clocks.
+ */
+public final class SendTimestamp {
+
+    /**
+     * The name of the JMS message property that holds the send timestamp.
+     */
+    public static final String PROPERTY_NAME = "RHQSendTime";
+
+    private static final long BASE_NANOS = System.nanoTime();
+    private static final long BASE_EPOCH_NANOS = System.currentTimeMillis() * 1000000L;
+
+    private SendTimestamp() {
+    }
+
+    /**
+     * @return the current time in nanoseconds since the epoch
+     */
+    public static long now() {
+        return BASE_EPOCH_NANOS + (System.nanoTime() - BASE_NANOS);
+    }
+}
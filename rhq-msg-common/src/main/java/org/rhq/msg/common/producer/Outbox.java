@@ -0,0 +1,268 @@
+package org.rhq.msg.common.producer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.JMSException;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.codec.KeyDictionary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends messages by way of a local {@link OutboxJournal journal}, so that messages can be sent while the broker cannot
+ * be reached. {@link #send(Endpoint, BasicMessage)} only appends the message to the journal; a background forwarder
+ * reads the journal in batches and sends the messages to the broker in the order they were appended. When sending
+ * fails, the forwarder closes its connection and tries again later, starting with the first message that was not sent.
+ * Messages still in the journal when the process stops are sent once an outbox is started on the same journal again.
+ *
+ * A message is acknowledged in the journal only after it was sent, so messages may be sent twice - e.g. when the
+ * process dies after a message was sent but before it was acknowledged. Consumers that must not process a message
+ * twice should use a {@link org.rhq.msg.common.consumer.DuplicateDetector duplicate detector} keyed on something in the
+ * message.
+ *
+ * The outbox uses the connection context factory it is given for nothing else and closes it when it is stopped.
+ */
+public class Outbox {
+
+    /**
+     * Sends a message read from the journal as it was encoded when it was appended.
+     */
+    private static class JournaledMessage extends BasicMessage {
+        private final String json;
+
+        private JournaledMessage(OutboxJournal.Entry entry) {
+            super(null);
+            this.json = entry.getJSON();
+            setCorrelationId(entry.getCorrelationId());
+        }
+
+        @Override
+        public String toJSON() {
+            return json;
+        }
+
+        @Override
+        public void toJSON(Writer out, KeyDictionary keyDictionary) throws IOException {
+            // the message was encoded without a dictionary when it was journaled
+            out.write(json);
+            out.flush();
+        }
+    }
+
+    private final Logger log = LoggerFactory.getLogger(Outbox.class);
+
+    private final OutboxJournal journal;
+    private final ConnectionContextFactory connectionContextFactory;
+    private final Map<Endpoint, ProducerConnectionContext> contexts = new HashMap<Endpoint, ProducerConnectionContext>();
+    private final Object signal = new Object();
+    private MessageProcessor messageProcessor = new MessageProcessor();
+    private int batchSize = 100;
+    private long retryInterval = 5000L;
+    private volatile boolean running;
+    private Thread forwarder;
+
+    /**
+     * @param journal
+     *            where messages are kept until they are sent
+     * @param connectionContextFactory
+     *            creates the connections to the broker the messages are sent to
+     */
+    public Outbox(OutboxJournal journal, ConnectionContextFactory connectionContextFactory) {
+        if (journal == null) {
+            throw new NullPointerException("journal must not be null");
+        }
+        if (connectionContextFactory == null) {
+            throw new NullPointerException("connectionContextFactory must not be null");
+        }
+        this.journal = journal;
+        this.connectionContextFactory = connectionContextFactory;
+    }
+
+    public OutboxJournal getJournal() {
+        return journal;
+    }
+
+    public MessageProcessor getMessageProcessor() {
+        return messageProcessor;
+    }
+
+    /**
+     * Sets the processor the forwarder sends messages with, e.g. one with metrics.
+     *
+     * @param messageProcessor
+     *            the processor
+     */
+    public void setMessageProcessor(MessageProcessor messageProcessor) {
+        if (messageProcessor == null) {
+            throw new NullPointerException("messageProcessor must not be null");
+        }
+        this.messageProcessor = messageProcessor;
+    }
+
+    /**
+     * @return the maximum number of messages the forwarder sends before it acknowledges them in the journal
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return how long the forwarder waits after sending failed before it tries again, in milliseconds
+     */
+    public long getRetryInterval() {
+        return retryInterval;
+    }
+
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * Appends the given message to the journal; it is sent by the forwarder as soon as possible.
+     *
+     * @param endpoint
+     *            where the message is to be sent; must not be temporary
+     * @param basicMessage
+     *            the message to send
+     * @return true if the message was appended; false if it was dropped because the journal is full
+     * @throws IOException
+     *             if the message cannot be appended to the journal
+     */
+    public boolean send(Endpoint endpoint, BasicMessage basicMessage) throws IOException {
+        boolean appended = journal.append(endpoint, basicMessage);
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        return appended;
+    }
+
+    /**
+     * Starts the forwarder.
+     *
+     * @throws IllegalStateException
+     *             if the outbox has already been started
+     */
+    public synchronized void start() {
+        if (forwarder != null) {
+            throw new IllegalStateException("The outbox has already been started");
+        }
+        running = true;
+        forwarder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                forward();
+            }
+        }, "rhq-msg-outbox-forwarder");
+        forwarder.setDaemon(true);
+        forwarder.start();
+        log.debug("Started the outbox forwarder for {}", journal);
+    }
+
+    /**
+     * Stops the forwarder after the batch it is sending and closes the connection context factory. Messages that have
+     * not been sent stay in the journal. The journal is not closed.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting for the forwarder to stop
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (forwarder == null) {
+            return;
+        }
+        running = false;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        forwarder.join();
+        forwarder = null;
+        closeConnection();
+        log.debug("Stopped the outbox forwarder for {}", journal);
+    }
+
+    private void forward() {
+        while (running) {
+            List<OutboxJournal.Entry> batch = journal.read(batchSize);
+            if (batch.isEmpty()) {
+                await(retryInterval, true);
+            } else if (!send(batch)) {
+                closeConnection();
+                await(retryInterval, false);
+            }
+        }
+    }
+
+    /**
+     * Sends the messages and acknowledges those that were sent.
+     *
+     * @return true if all messages were sent
+     */
+    private boolean send(List<OutboxJournal.Entry> batch) {
+        OutboxJournal.Entry lastSent = null;
+        try {
+            for (OutboxJournal.Entry entry : batch) {
+                messageProcessor.send(getContext(entry.getEndpoint()), new JournaledMessage(entry));
+                lastSent = entry;
+            }
+            return true;
+        } catch (JMSException e) {
+            log.warn("Cannot send the messages in the outbox; trying again in [" + retryInterval + "] ms", e);
+            return false;
+        } catch (RuntimeException e) {
+            log.warn("Cannot send the messages in the outbox; trying again in [" + retryInterval + "] ms", e);
+            return false;
+        } finally {
+            if (lastSent != null) {
+                journal.acknowledge(lastSent);
+            }
+        }
+    }
+
+    private ProducerConnectionContext getContext(Endpoint endpoint) throws JMSException {
+        ProducerConnectionContext context = contexts.get(endpoint);
+        if (context == null) {
+            context = connectionContextFactory.createProducerConnectionContext(endpoint);
+            contexts.put(endpoint, context);
+        }
+        return context;
+    }
+
+    private void closeConnection() {
+        contexts.clear();
+        try {
+            connectionContextFactory.close();
+        } catch (JMSException e) {
+            log.debug("Cannot close the outbox connection", e);
+        }
+    }
+
+    private void await(long timeout, boolean untilAppended) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (signal) {
+            long remaining;
+            while (running && !(untilAppended && journal.hasUnacknowledged())
+                    && (remaining = deadline - System.currentTimeMillis()) > 0L) {
+                try {
+                    signal.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    running = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,541 @@
+package org.rhq.msg.common.producer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.MessageId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local, ordered store of messages waiting to be sent to the broker; see {@link Outbox}. The journal is a directory
+ * of memory-mapped segment files of a fixed size. Messages are appended to the newest segment, and when it is full a
+ * new segment is started. Messages are read in the order they were appended, starting at a checkpoint that is moved
+ * forward as messages are {@link #acknowledge(Entry) acknowledged}; segments whose messages have all been
+ * acknowledged are deleted.
+ *
+ * The messages and the checkpoint are kept in the files, so a journal opened on the same directory after a restart
+ * continues where the previous one stopped. Writing to a memory-mapped file is just a write to memory that the
+ * operating system flushes to disk on its own, so messages appended shortly before the machine (rather than the
+ * process) crashes may be lost. Each message is stored with a checksum so that one that was only partially written is
+ * recognized and skipped.
+ *
+ * The journal never uses more than a maximum amount of disk space. When appending a message would exceed it, the
+ * journal's {@link DropPolicy} decides whether the new message or the oldest segment of messages is dropped.
+ *
+ * Call {@link #close()} when the journal is no longer needed.
+ */
+public class OutboxJournal {
+
+    /**
+     * What to drop when the journal is full.
+     */
+    public enum DropPolicy {
+        /**
+         * Drop the message that is being appended, keeping the messages that are already in the journal.
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the oldest segment of messages to make room for the message that is being appended.
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * A message read from the journal.
+     */
+    public static class Entry {
+        private final Endpoint endpoint;
+        private final String json;
+        private final MessageId correlationId;
+        private final long nextSegment;
+        private final int nextOffset;
+
+        private Entry(Endpoint endpoint, String json, MessageId correlationId, long nextSegment, int nextOffset) {
+            this.endpoint = endpoint;
+            this.json = json;
+            this.correlationId = correlationId;
+            this.nextSegment = nextSegment;
+            this.nextOffset = nextOffset;
+        }
+
+        /**
+         * @return where the message is to be sent
+         */
+        public Endpoint getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * @return the JSON encoded message
+         */
+        public String getJSON() {
+            return json;
+        }
+
+        /**
+         * @return the correlation ID of the message, or <code>null</code> if it has none
+         */
+        public MessageId getCorrelationId() {
+            return correlationId;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry: [endpoint=" + endpoint + ", json=" + json + "]";
+        }
+    }
+
+    private static class Segment {
+        private final long id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+
+        private Segment(long id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT_FILE_NAME = "outbox.checkpoint";
+    private static final int CHECKPOINT_MAGIC = 0x5248514f; // "RHQO"
+    private static final int CHECKPOINT_OFFSET_POSITION = 4;
+    private static final int CHECKPOINT_SEGMENT_POSITION = 8;
+    private static final int CHECKPOINT_SIZE = 16; // magic, offset, segment
+    private static final int RECORD_HEADER_SIZE = 8; // length, checksum
+    private static final int MIN_SEGMENT_SIZE = 1024;
+
+    private final Logger log = LoggerFactory.getLogger(OutboxJournal.class);
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final DropPolicy dropPolicy;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final RandomAccessFile checkpointFile;
+    private final MappedByteBuffer checkpoint;
+    private Segment writeSegment;
+    private int writeOffset;
+    private long readSegment;
+    private int readOffset;
+    private long droppedCount;
+
+    /**
+     * Opens the journal in the given directory, creating the directory if necessary, and continues with the messages
+     * that have not been acknowledged yet. Messages appended after opening always go to a new segment.
+     *
+     * @param directory
+     *            where the segment files are kept; no other files should be kept there
+     * @param segmentSize
+     *            the size of each segment file in bytes; a single message must fit into one segment
+     * @param maxDiskUsage
+     *            the most disk space, in bytes, the segments may take; at least two segments always fit
+     * @param dropPolicy
+     *            what to drop when the journal is full
+     * @throws IOException
+     *             if the files cannot be created, opened or mapped
+     */
+    public OutboxJournal(File directory, int segmentSize, long maxDiskUsage, DropPolicy dropPolicy) throws IOException {
+        if (directory == null) {
+            throw new NullPointerException("directory must not be null");
+        }
+        if (dropPolicy == null) {
+            throw new NullPointerException("dropPolicy must not be null");
+        }
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segmentSize must be at least " + MIN_SEGMENT_SIZE + ": " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the outbox directory: " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2L, Math.min(Integer.MAX_VALUE, maxDiskUsage / segmentSize));
+        this.dropPolicy = dropPolicy;
+
+        File file = new File(directory, CHECKPOINT_FILE_NAME);
+        this.checkpointFile = new RandomAccessFile(file, "rw");
+        try {
+            boolean reuse = checkpointFile.length() == CHECKPOINT_SIZE;
+            this.checkpoint = checkpointFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, CHECKPOINT_SIZE);
+            if (reuse && checkpoint.getInt(0) == CHECKPOINT_MAGIC) {
+                this.readSegment = checkpoint.getLong(CHECKPOINT_SEGMENT_POSITION);
+                this.readOffset = checkpoint.getInt(CHECKPOINT_OFFSET_POSITION);
+            } else {
+                checkpoint.putInt(0, CHECKPOINT_MAGIC);
+            }
+
+            openSegments();
+            startSegment((segments.isEmpty() ? 0L : segments.lastKey()) + 1L);
+
+            // the checkpoint may point to a segment that has been dropped in the meantime
+            Segment first = segments.firstEntry().getValue();
+            if (readSegment < first.id) {
+                moveCheckpoint(first.id, 0);
+            }
+            deleteAcknowledgedSegments();
+        } catch (IOException e) {
+            checkpointFile.close();
+            throw e;
+        }
+
+        log.debug("Opened the outbox journal in [{}] with [{}] segments", directory, segments.size());
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    public DropPolicy getDropPolicy() {
+        return dropPolicy;
+    }
+
+    /**
+     * @return the number of segment files currently in use
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the number of messages that have been dropped because the journal was full since it was opened
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Appends a message to the journal.
+     *
+     * @param endpoint
+     *            where the message is to be sent; temporary endpoints do not outlive the connection that created them
+     *            and so cannot be used
+     * @param basicMessage
+     *            the message
+     * @return true if the message was appended; false if it was dropped because the journal is full and drops the
+     *         newest messages
+     * @throws IOException
+     *             if a new segment file cannot be created
+     * @throws IllegalArgumentException
+     *             if the endpoint is temporary or the message does not fit into a segment
+     */
+    public synchronized boolean append(Endpoint endpoint, BasicMessage basicMessage) throws IOException {
+        if (endpoint == null) {
+            throw new NullPointerException("endpoint must not be null");
+        }
+        if (basicMessage == null) {
+            throw new NullPointerException("message must not be null");
+        }
+        if (endpoint.isTemporary()) {
+            throw new IllegalArgumentException("Messages to temporary endpoints cannot be journaled: " + endpoint);
+        }
+        if (writeSegment == null) {
+            throw new IllegalStateException("The journal has been closed");
+        }
+
+        byte[] record = encode(endpoint, basicMessage);
+        if (RECORD_HEADER_SIZE + record.length > segmentSize) {
+            throw new IllegalArgumentException("The message is too large for a segment of " + segmentSize + " bytes: "
+                    + record.length);
+        }
+
+        if (writeOffset + RECORD_HEADER_SIZE + record.length > segmentSize) {
+            if (segments.size() >= maxSegments) {
+                if (dropPolicy == DropPolicy.DROP_NEWEST) {
+                    droppedCount++;
+                    return false;
+                }
+                dropOldestSegment();
+            }
+            startSegment(writeSegment.id + 1L);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        MappedByteBuffer buffer = writeSegment.buffer;
+        for (int i = 0; i < record.length; i++) {
+            buffer.put(writeOffset + RECORD_HEADER_SIZE + i, record[i]);
+        }
+        buffer.putInt(writeOffset + 4, (int) crc.getValue());
+        // the length is written last; until then the record is not there for readers
+        buffer.putInt(writeOffset, record.length);
+        writeOffset += RECORD_HEADER_SIZE + record.length;
+        return true;
+    }
+
+    /**
+     * @return true if there are messages that have not been acknowledged yet
+     */
+    public synchronized boolean hasUnacknowledged() {
+        return !read(1).isEmpty();
+    }
+
+    /**
+     * Reads the oldest messages that have not been acknowledged yet. Reading does not remove them; the same messages
+     * are read again until they are {@link #acknowledge(Entry) acknowledged}.
+     *
+     * @param maxEntries
+     *            the maximum number of messages to read
+     * @return the messages in the order they were appended; empty if there are none
+     */
+    public synchronized List<Entry> read(int maxEntries) {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (writeSegment == null) {
+            return entries;
+        }
+
+        Map.Entry<Long, Segment> current = segments.ceilingEntry(readSegment);
+        int offset = (current != null && current.getKey() == readSegment) ? readOffset : 0;
+        while (current != null && entries.size() < maxEntries) {
+            Segment segment = current.getValue();
+            Entry entry = readEntry(segment, offset);
+            if (entry == null) {
+                // the end of this segment; continue with the next one, if any
+                current = segments.higherEntry(current.getKey());
+                offset = 0;
+            } else {
+                entries.add(entry);
+                offset = entry.nextOffset;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Acknowledges the given message and all messages that were appended before it. They will not be read again, not
+     * even after a restart, and the segments they were in are deleted once they hold no more unacknowledged messages.
+     *
+     * @param entry
+     *            the newest message that has been sent
+     */
+    public synchronized void acknowledge(Entry entry) {
+        if (entry == null) {
+            throw new NullPointerException("entry must not be null");
+        }
+        if (writeSegment == null) {
+            throw new IllegalStateException("The journal has been closed");
+        }
+
+        // the segment of the entry may have been dropped while it was being sent
+        if (entry.nextSegment > readSegment || (entry.nextSegment == readSegment && entry.nextOffset > readOffset)) {
+            moveCheckpoint(entry.nextSegment, entry.nextOffset);
+            deleteAcknowledgedSegments();
+        }
+    }
+
+    /**
+     * Flushes the journal to disk and closes its files. The journal must not be used afterwards.
+     *
+     * @throws IOException
+     *             if the files cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        if (writeSegment == null) {
+            return;
+        }
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+        }
+        checkpoint.force();
+        checkpointFile.close();
+        segments.clear();
+        writeSegment = null;
+        log.debug("Closed the outbox journal in [{}]", directory);
+    }
+
+    @Override
+    public String toString() {
+        return "OutboxJournal: [directory=" + directory + ", segmentSize=" + segmentSize + ", maxSegments="
+                + maxSegments + ", dropPolicy=" + dropPolicy + "]";
+    }
+
+    private void openSegments() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            long id;
+            try {
+                id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring unexpected file in the outbox directory: {}", file);
+                continue;
+            }
+            segments.put(id, new Segment(id, file, map(file, file.length())));
+        }
+    }
+
+    private void startSegment(long id) throws IOException {
+        File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0L); // a new segment has to be all zeros
+            randomAccessFile.setLength(segmentSize);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        writeSegment = new Segment(id, file, map(file, segmentSize));
+        writeOffset = 0;
+        segments.put(id, writeSegment);
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid after the file is closed
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private void dropOldestSegment() {
+        Segment oldest = segments.firstEntry().getValue();
+        int dropped = 0;
+        int offset = (oldest.id == readSegment) ? readOffset : 0;
+        if (oldest.id >= readSegment) {
+            Entry entry;
+            while ((entry = readEntry(oldest, offset)) != null) {
+                dropped++;
+                offset = entry.nextOffset;
+            }
+        }
+        droppedCount += dropped;
+        log.warn("The outbox is full; dropping [{}] messages of its oldest segment", dropped);
+
+        deleteSegment(oldest);
+        Long next = segments.firstKey();
+        if (readSegment < next) {
+            moveCheckpoint(next, 0);
+        }
+    }
+
+    private void deleteAcknowledgedSegments() {
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment.id >= readSegment || segment == writeSegment) {
+                break;
+            }
+            iterator.remove();
+            if (!segment.file.delete()) {
+                log.warn("Cannot delete the outbox segment: {}", segment.file);
+            }
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment.id);
+        if (!segment.file.delete()) {
+            log.warn("Cannot delete the outbox segment: {}", segment.file);
+        }
+    }
+
+    private void moveCheckpoint(long segment, int offset) {
+        // the offset is written first - should the process die in between, messages are sent again rather than lost
+        checkpoint.putInt(CHECKPOINT_OFFSET_POSITION, offset);
+        checkpoint.putLong(CHECKPOINT_SEGMENT_POSITION, segment);
+        readSegment = segment;
+        readOffset = offset;
+    }
+
+    private Entry readEntry(Segment segment, int offset) {
+        MappedByteBuffer buffer = segment.buffer;
+        if (offset + RECORD_HEADER_SIZE > buffer.capacity()) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0) {
+            return null;
+        }
+        if (offset + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+            log.warn("Skipping the rest of the damaged outbox segment: {}", segment.file);
+            return null;
+        }
+
+        byte[] record = new byte[length];
+        for (int i = 0; i < length; i++) {
+            record[i] = buffer.get(offset + RECORD_HEADER_SIZE + i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+            log.warn("Skipping the rest of the damaged outbox segment: {}", segment.file);
+            return null;
+        }
+
+        return decode(record, segment.id, offset + RECORD_HEADER_SIZE + length);
+    }
+
+    private static byte[] encode(Endpoint endpoint, BasicMessage basicMessage) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(endpoint.getType().ordinal());
+        out.writeUTF(endpoint.getName());
+        MessageId correlationId = basicMessage.getCorrelationId();
+        out.writeBoolean(correlationId != null);
+        if (correlationId != null) {
+            out.writeUTF(correlationId.toString());
+        }
+        // the JSON may be longer than writeUTF allows
+        byte[] json = basicMessage.toJSON().getBytes("UTF-8");
+        out.writeInt(json.length);
+        out.write(json);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Entry decode(byte[] record, long segment, int nextOffset) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        try {
+            Endpoint.Type type = Endpoint.Type.values()[in.readByte()];
+            Endpoint endpoint = new Endpoint(type, in.readUTF());
+            MessageId correlationId = in.readBoolean() ? new MessageId(in.readUTF()) : null;
+            byte[] json = new byte[in.readInt()];
+            in.readFully(json);
+            return new Entry(endpoint, new String(json, "UTF-8"), correlationId, segment, nextOffset);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            // cannot happen; the checksum matched
+            throw new IllegalStateException("Cannot decode an outbox record", e);
+        }
+    }
+}
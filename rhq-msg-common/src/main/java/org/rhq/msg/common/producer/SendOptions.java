@@ -0,0 +1,113 @@
+package org.rhq.msg.common.producer;
+
+import javax.jms.DeliveryMode;
+
+/**
+ * Determines how a single message is sent (see
+ * {@link org.rhq.msg.common.MessageProcessor#send(ProducerConnectionContext, org.rhq.msg.common.BasicMessage, SendOptions)}),
+ * or how all messages of a producer are sent by default (see
+ * {@link org.rhq.msg.common.ConnectionContextFactory#createProducerConnectionContext(org.rhq.msg.common.Endpoint, SendOptions)}).
+ * Any option left unset falls back to the producer's default, which by default sends persistent messages that never
+ * expire with priority 4.
+ *
+ * Messages that lose their value quickly, such as telemetry, are best sent non-persistent with a time-to-live: the
+ * broker then neither writes them to its store nor delivers them once they have expired, e.g. after an outage, and
+ * listeners skip expired messages they still receive without decoding them.
+ *
+ * A message can be given a JMS priority so that it overtakes messages of lower priority that are still waiting to be
+ * delivered - e.g. a control message sent to an agent whose queue is full of bulk data. The broker only dispatches
+ * messages in order of priority for the destinations whose policy enables prioritized messages (see the broker's
+ * <code>DestinationPolicy</code>); on other destinations the priority is carried along but messages are dispatched
+ * in the order they arrived.
+ *
+ * A message can be delayed so that it is only delivered once the delay has passed, e.g. to retry something later
+ * without parking a thread. The broker holds delayed messages in its scheduler, which must be enabled in its
+ * configuration (<code>schedulerSupport</code>); alternatively non-persistent delayed messages can be held on the
+ * client (see {@link org.rhq.msg.common.MessageProcessor#setTimingWheel(TimingWheel)}). The broker's scheduler counts
+ * the delay from the start of the second the message arrives in, so it may deliver a message up to a second early;
+ * the timing wheel is precise to its tick.
+ */
+public class SendOptions {
+
+    /**
+     * The lowest priority a message can have.
+     */
+    public static final int MIN_PRIORITY = 0;
+
+    /**
+     * The highest priority a message can have.
+     */
+    public static final int MAX_PRIORITY = 9;
+
+    private int deliveryMode = -1;
+    private int priority = -1;
+    private long timeToLive = -1L;
+    private long delay = 0L;
+
+    /**
+     * @return {@link DeliveryMode#PERSISTENT} if the broker must keep the message until it is delivered, even across
+     *         restarts; {@link DeliveryMode#NON_PERSISTENT} if it is kept in memory only; or -1 to use the producer's
+     *         default
+     */
+    public int getDeliveryMode() {
+        return deliveryMode;
+    }
+
+    public void setDeliveryMode(int deliveryMode) {
+        if (deliveryMode != -1 && deliveryMode != DeliveryMode.PERSISTENT && deliveryMode != DeliveryMode.NON_PERSISTENT) {
+            throw new IllegalArgumentException("deliveryMode must be -1, PERSISTENT or NON_PERSISTENT: " + deliveryMode);
+        }
+        this.deliveryMode = deliveryMode;
+    }
+
+    /**
+     * @return the JMS priority of the message (0 to 9, where 9 is the most urgent), or -1 to use the producer's default
+     *         priority
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        if (priority != -1 && (priority < MIN_PRIORITY || priority > MAX_PRIORITY)) {
+            throw new IllegalArgumentException("priority must be -1 or between " + MIN_PRIORITY + " and " + MAX_PRIORITY + ": "
+                    + priority);
+        }
+        this.priority = priority;
+    }
+
+    /**
+     * @return the number of milliseconds after which the message expires and is no longer delivered, 0 if it never
+     *         expires, or -1 to use the producer's default
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public void setTimeToLive(long timeToLive) {
+        if (timeToLive < -1L) {
+            throw new IllegalArgumentException("timeToLive must be -1 or greater: " + timeToLive);
+        }
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @return the number of milliseconds the message is held back before it is delivered, or 0 to deliver it right away
+     */
+    public long getDelay() {
+        return delay;
+    }
+
+    public void setDelay(long delay) {
+        if (delay < 0L) {
+            throw new IllegalArgumentException("delay must not be negative: " + delay);
+        }
+        this.delay = delay;
+    }
+
+    @Override
+    public String toString() {
+        return "SendOptions: [deliveryMode=" + deliveryMode + ", priority=" + priority + ", timeToLive=" + timeToLive
+                + ", delay=" + delay + "]";
+    }
+}
@@ -0,0 +1,291 @@
+package org.rhq.msg.common.producer;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks after a delay without dedicating a thread - or a sorted queue entry that has to be rebalanced - to each of
+ * them, so that very large numbers of deferred tasks (e.g. delayed messages) are cheap to hold.
+ *
+ * Time is divided into ticks. The wheel has several levels of {@value #WHEEL_SIZE} buckets each: a bucket of the first
+ * level holds the tasks due in one tick, a bucket of the second level those due in {@value #WHEEL_SIZE} ticks, and so
+ * on. Scheduling and cancelling a task take constant time. As time advances, the tasks of a higher level bucket are
+ * moved down to the lower levels once they are due within the range of the lower level. Tasks therefore run up to one
+ * tick late, never early.
+ *
+ * All tasks run one after another on the single thread of the wheel, which is started when the first task is
+ * scheduled; tasks must be short or hand their work to another thread. Call {@link #stop()} when the wheel is no longer
+ * needed.
+ */
+public class TimingWheel {
+
+    /**
+     * The number of buckets of each level of the wheel.
+     */
+    public static final int WHEEL_SIZE = 256;
+
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+
+    private final Logger log = LoggerFactory.getLogger(TimingWheel.class);
+
+    private final long tickNanos;
+    private final long maxDelayTicks;
+    // only touched by the worker thread
+    private final Queue<Timeout>[][] buckets;
+    // tasks scheduled since the last tick, handed to the worker thread
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final Object lock = new Object();
+    private long startTime;
+    private long currentTick;
+    private Thread worker;
+    private volatile boolean stopped;
+
+    /**
+     * A task scheduled on the wheel.
+     */
+    public static class Timeout {
+        private static final int PENDING = 0;
+        private static final int EXPIRED = 1;
+        private static final int CANCELLED = 2;
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadlineNanos;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long deadlineTick;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadlineNanos) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Prevents the task from running.
+         *
+         * @return true if the task was cancelled, false if it has already run or was cancelled before
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(PENDING, CANCELLED)) {
+                wheel.pendingCount.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * @return true if the task has run (or is running)
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    /**
+     * Creates a wheel whose ticks are 10 milliseconds long.
+     */
+    public TimingWheel() {
+        this(10L, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param tickDuration
+     *            the length of a tick, which is the precision of the wheel
+     * @param unit
+     *            the unit of the tick duration
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickDuration, TimeUnit unit) {
+        if (unit == null) {
+            throw new NullPointerException("unit must not be null");
+        }
+        if (tickDuration <= 0L) {
+            throw new IllegalArgumentException("tickDuration must be greater than 0: " + tickDuration);
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.maxDelayTicks = (1L << (WHEEL_BITS * LEVELS)) - 1L;
+        this.buckets = new Queue[LEVELS][WHEEL_SIZE];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                buckets[level][i] = new ArrayDeque<Timeout>();
+            }
+        }
+    }
+
+    /**
+     * @return the longest delay the wheel can hold, in milliseconds
+     */
+    public long getMaxDelay() {
+        return TimeUnit.NANOSECONDS.toMillis(maxDelayTicks * tickNanos);
+    }
+
+    /**
+     * @return the number of tasks that have neither run nor been cancelled
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Schedules the given task to run once the given delay has passed.
+     *
+     * @param task
+     *            what to run
+     * @param delay
+     *            how long to wait before running the task
+     * @param unit
+     *            the unit of the delay
+     * @return the handle that allows to cancel the task
+     * @throws IllegalStateException
+     *             if the wheel has been stopped
+     * @throws IllegalArgumentException
+     *             if the delay exceeds the {@link #getMaxDelay() maximum}
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException("task must not be null");
+        }
+        if (unit == null) {
+            throw new NullPointerException("unit must not be null");
+        }
+        long delayNanos = Math.max(0L, unit.toNanos(delay));
+        if (delayNanos / tickNanos >= maxDelayTicks) {
+            throw new IllegalArgumentException("delay exceeds the maximum of " + getMaxDelay() + "ms: " + unit.toMillis(delay));
+        }
+
+        synchronized (lock) {
+            if (stopped) {
+                throw new IllegalStateException("The timing wheel has been stopped");
+            }
+            startWorker();
+            Timeout timeout = new Timeout(this, task, System.nanoTime() - startTime + delayNanos);
+            pendingCount.incrementAndGet();
+            incoming.add(timeout);
+            return timeout;
+        }
+    }
+
+    /**
+     * Stops the wheel. Tasks that have not run yet never will.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (lock) {
+            stopped = true;
+            thread = worker;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void startWorker() {
+        if (worker == null) {
+            startTime = System.nanoTime();
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, "rhq-msg-timing-wheel");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void runWorker() {
+        while (!stopped) {
+            long nextTickTime = (currentTick + 1L) * tickNanos;
+            long sleepNanos = nextTickTime - (System.nanoTime() - startTime);
+            if (sleepNanos > 0L) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (stopped) {
+                        break;
+                    }
+                    continue;
+                }
+            }
+            advance();
+        }
+        // drop whatever has not run
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            timeout.cancel();
+        }
+        for (Queue<Timeout>[] level : buckets) {
+            for (Queue<Timeout> bucket : level) {
+                while ((timeout = bucket.poll()) != null) {
+                    timeout.cancel();
+                }
+            }
+        }
+    }
+
+    private void advance() {
+        long tick = ++currentTick;
+
+        // move the tasks of the higher level buckets whose turn has come down, highest level first
+        int level = 0;
+        while (level + 1 < LEVELS && (tick & ((1L << (WHEEL_BITS * (level + 1))) - 1L)) == 0L) {
+            level++;
+        }
+        for (; level > 0; level--) {
+            Queue<Timeout> bucket = buckets[level][(int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK)];
+            Timeout timeout;
+            while ((timeout = bucket.poll()) != null) {
+                place(timeout, tick);
+            }
+        }
+
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            // round up, so that a task never runs early
+            timeout.deadlineTick = Math.max(tick, (timeout.deadlineNanos + tickNanos - 1L) / tickNanos);
+            place(timeout, tick);
+        }
+
+        Queue<Timeout> due = buckets[0][(int) (tick & WHEEL_MASK)];
+        while ((timeout = due.poll()) != null) {
+            if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                pendingCount.decrementAndGet();
+                try {
+                    timeout.task.run();
+                } catch (Throwable t) {
+                    log.error("Scheduled task failed", t);
+                }
+            }
+        }
+    }
+
+    private void place(Timeout timeout, long tick) {
+        if (timeout.isCancelled()) {
+            return;
+        }
+        // the lowest level at which the deadline and the current tick agree on all higher digits
+        int level = 0;
+        while (level + 1 < LEVELS && (timeout.deadlineTick >>> (WHEEL_BITS * (level + 1))) != (tick >>> (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+        buckets[level][(int) ((timeout.deadlineTick >>> (WHEEL_BITS * level)) & WHEEL_MASK)].add(timeout);
+    }
+}
@@ -0,0 +1,77 @@
+package org.rhq.msg.common.tracing;
+
+import org.rhq.msg.common.Endpoint;
+
+/**
+ * A finished span, as reported to a {@link SpanSink}.
+ */
+public class Span {
+
+    /**
+     * The span of sending a message.
+     */
+    public static final String OPERATION_SEND = "send";
+
+    /**
+     * The span of a listener receiving and processing a message (including sending the response of an RPC request).
+     */
+    public static final String OPERATION_PROCESS = "process";
+
+    private final TraceContext context;
+    private final String operation;
+    private final Endpoint endpoint;
+    private final long startTime;
+    private final long duration;
+
+    public Span(TraceContext context, String operation, Endpoint endpoint, long startTime, long duration) {
+        if (context == null) {
+            throw new NullPointerException("context must not be null");
+        }
+        if (operation == null) {
+            throw new NullPointerException("operation must not be null");
+        }
+        this.context = context;
+        this.operation = operation;
+        this.endpoint = endpoint;
+        this.startTime = startTime;
+        this.duration = duration;
+    }
+
+    public TraceContext getContext() {
+        return context;
+    }
+
+    /**
+     * @return what was done in this span, e.g. {@link #OPERATION_SEND}
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return the endpoint the span's message was sent to or received from, or <code>null</code> if not known
+     */
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return when the span started, in nanoseconds since the epoch (see
+     *         {@link org.rhq.msg.common.metrics.SendTimestamp#now()})
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return how long the span took, in nanoseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    @Override
+    public String toString() {
+        return "Span: [operation=" + operation + ", endpoint=" + endpoint + ", duration=" + duration + ", " + context + "]";
+    }
+}
@@ -0,0 +1,103 @@
+package org.rhq.msg.common.tracing;
+
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.metrics.SendTimestamp;
+
+/**
+ * A span that is in progress on the current thread. While a scope is open, messages sent by the thread continue its
+ * trace - they become children of the scope's span - and their spans are reported to the scope's sink unless the
+ * sending {@link org.rhq.msg.common.MessageProcessor} has a sink of its own.
+ *
+ * Scopes must be closed by the thread that opened them, in the reverse order they were opened:
+ *
+ * <pre>
+ * SpanScope scope = SpanScope.open(context, Span.OPERATION_PROCESS, endpoint, sink);
+ * try {
+ *     ...
+ * } finally {
+ *     scope.close();
+ * }
+ * </pre>
+ */
+public class SpanScope {
+
+    private static final ThreadLocal<SpanScope> current = new ThreadLocal<SpanScope>();
+
+    private final TraceContext context;
+    private final String operation;
+    private final Endpoint endpoint;
+    private final SpanSink sink;
+    private final SpanScope previous;
+    private final long startTime;
+
+    private SpanScope(TraceContext context, String operation, Endpoint endpoint, SpanSink sink, SpanScope previous) {
+        this.context = context;
+        this.operation = operation;
+        this.endpoint = endpoint;
+        this.sink = sink;
+        this.previous = previous;
+        this.startTime = SendTimestamp.now();
+    }
+
+    /**
+     * Opens a scope and makes it the current scope of this thread.
+     *
+     * @param context
+     *            the span that is starting
+     * @param operation
+     *            what is done in the span
+     * @param endpoint
+     *            the endpoint the span is about, may be <code>null</code>
+     * @param sink
+     *            where to report the span when the scope is closed, may be <code>null</code>
+     * @return the new scope
+     */
+    public static SpanScope open(TraceContext context, String operation, Endpoint endpoint, SpanSink sink) {
+        if (context == null) {
+            throw new NullPointerException("context must not be null");
+        }
+        if (operation == null) {
+            throw new NullPointerException("operation must not be null");
+        }
+        SpanScope scope = new SpanScope(context, operation, endpoint, sink, current.get());
+        current.set(scope);
+        return scope;
+    }
+
+    /**
+     * @return the scope currently open on this thread, or <code>null</code> if there is none
+     */
+    public static SpanScope current() {
+        return current.get();
+    }
+
+    public TraceContext getContext() {
+        return context;
+    }
+
+    /**
+     * @return where the spans of this trace are reported, or <code>null</code> if they are not
+     */
+    public SpanSink getSink() {
+        return sink;
+    }
+
+    /**
+     * Finishes the span, reports it to the sink and makes the scope that was current when this one was opened current
+     * again.
+     */
+    public void close() {
+        if (current.get() != this) {
+            throw new IllegalStateException("Scope is not the current scope of this thread: " + context);
+        }
+        if (previous != null) {
+            current.set(previous);
+        } else {
+            current.remove();
+        }
+
+        if (sink != null) {
+            sink.spanFinished(new Span(context, operation, endpoint, startTime, SendTimestamp.now() - startTime));
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package org.rhq.msg.common.tracing;
+
+/**
+ * Receives the spans that have finished, e.g. to log them or forward them to a tracing system. Spans of the same trace
+ * can be reported by different threads and processes; they are linked by their trace and parent span IDs.
+ *
+ * Implementations are called on the sending and receiving threads and must therefore be thread-safe and fast.
+ */
+public interface SpanSink {
+
+    /**
+     * @param span
+     *            the span that has finished
+     */
+    void spanFinished(Span span);
+}
@@ -0,0 +1,142 @@
+package org.rhq.msg.common.tracing;
+
+import java.util.Random;
+
+/**
+ * Identifies a span - a single hop such as the sending or the processing of a message - within a trace that may cross
+ * many hops. This is propagated from hop to hop in a JMS message property in the format of the W3C Trace Context
+ * <code>traceparent</code> header, e.g. <code>00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01</code>.
+ *
+ * Instances are immutable.
+ */
+public class TraceContext {
+
+    /**
+     * The name of the JMS message property that holds the trace context of the span that sent the message.
+     */
+    public static final String TRACEPARENT_PROPERTY = "traceparent";
+
+    private static final String VERSION = "00";
+    private static final String FLAG_SAMPLED = "01";
+    private static final Random random = new Random();
+
+    private final String traceId;
+    private final String spanId;
+    private final String parentSpanId;
+
+    /**
+     * @param traceId
+     *            32 lowercase hex characters identifying the trace
+     * @param spanId
+     *            16 lowercase hex characters identifying the span
+     * @param parentSpanId
+     *            the ID of the parent span, or <code>null</code> if this span starts the trace (as far as we know)
+     */
+    public TraceContext(String traceId, String spanId, String parentSpanId) {
+        if (!isValidId(traceId, 32)) {
+            throw new IllegalArgumentException("Invalid trace ID: " + traceId);
+        }
+        if (!isValidId(spanId, 16)) {
+            throw new IllegalArgumentException("Invalid span ID: " + spanId);
+        }
+        if (parentSpanId != null && !isValidId(parentSpanId, 16)) {
+            throw new IllegalArgumentException("Invalid parent span ID: " + parentSpanId);
+        }
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+    }
+
+    /**
+     * @return the first span of a new trace
+     */
+    public static TraceContext newRoot() {
+        return new TraceContext(randomId(2), randomId(1), null);
+    }
+
+    /**
+     * Parses the value of a <code>traceparent</code> property.
+     *
+     * @param traceparent
+     *            the property value
+     * @return the trace context of the span described by the value, or <code>null</code> if the value is missing or
+     *         not valid
+     */
+    public static TraceContext fromTraceparent(String traceparent) {
+        if (traceparent == null || traceparent.length() != 55) {
+            return null;
+        }
+        String[] parts = traceparent.split("-");
+        if (parts.length != 4 || !VERSION.equals(parts[0]) || !isValidId(parts[1], 32) || !isValidId(parts[2], 16)) {
+            return null;
+        }
+        return new TraceContext(parts[1], parts[2], null);
+    }
+
+    /**
+     * @return a new span of the same trace whose parent is this span
+     */
+    public TraceContext newChild() {
+        return new TraceContext(traceId, randomId(1), spanId);
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * @return the ID of the parent span, or <code>null</code> if this span starts the trace
+     */
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    /**
+     * @return this span in the W3C <code>traceparent</code> format
+     */
+    public String toTraceparent() {
+        return VERSION + "-" + traceId + "-" + spanId + "-" + FLAG_SAMPLED;
+    }
+
+    @Override
+    public String toString() {
+        return "TraceContext: [traceId=" + traceId + ", spanId=" + spanId + ", parentSpanId=" + parentSpanId + "]";
+    }
+
+    private static String randomId(int longs) {
+        StringBuilder id = new StringBuilder(longs * 16);
+        for (int i = 0; i < longs; i++) {
+            long value;
+            do {
+                value = random.nextLong();
+            } while (value == 0L); // an all-zero ID is invalid
+            String hex = Long.toHexString(value);
+            for (int pad = hex.length(); pad < 16; pad++) {
+                id.append('0');
+            }
+            id.append(hex);
+        }
+        return id.toString();
+    }
+
+    private static boolean isValidId(String id, int length) {
+        if (id == null || id.length() != length) {
+            return false;
+        }
+        boolean allZero = true;
+        for (int i = 0; i < length; i++) {
+            char c = id.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+            if (c != '0') {
+                allZero = false;
+            }
+        }
+        return !allZero;
+    }
+}
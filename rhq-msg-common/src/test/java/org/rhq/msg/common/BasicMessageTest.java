@@ -3,6 +3,7 @@ package org.rhq.msg.common;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.rhq.msg.common.codec.MessageCodecs;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -65,4 +66,33 @@ public class BasicMessageTest {
         // make sure it didn't change and its still the same
         Assert.assertEquals(msg.getDetails().get("key1"), "val1");
     }
+
+    public void testDetailsDecodedByGsonAreCompact() {
+        Map<String, String> details = new HashMap<String, String>();
+        details.put("key1", "val1");
+        details.put("secondkey", "secondval");
+
+        // there is no codec for this message, so Gson decodes it
+        Assert.assertNull(MessageCodecs.getCodec(GsonOnlyMessage.class));
+        GsonOnlyMessage msg = BasicMessage.fromJSON(new GsonOnlyMessage("gson", details).toJSON(), GsonOnlyMessage.class);
+        Assert.assertTrue(msg.getDetails() instanceof DetailsMap, msg.getDetails().getClass().getName());
+        Assert.assertSame(msg.getDetails(), msg.getDetails());
+        Assert.assertEquals(msg.getDetails(), details);
+
+        // and so does the fallback for messages whose constructor would change what was read
+        BasicMessage empty = BasicMessage.fromJSON("{\"message\":\"m\",\"details\":{}}", BasicMessage.class);
+        Assert.assertTrue(empty.getDetails() instanceof DetailsMap);
+        Assert.assertTrue(empty.getDetails().isEmpty());
+    }
+
+    public static class GsonOnlyMessage extends BasicMessage {
+        // the constructor does not take the details, so no codec is generated
+        public GsonOnlyMessage(String message) {
+            super(message);
+        }
+
+        private GsonOnlyMessage(String message, Map<String, String> details) {
+            super(message, details);
+        }
+    }
 }
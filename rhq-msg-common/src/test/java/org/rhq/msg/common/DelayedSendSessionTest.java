@@ -0,0 +1,79 @@
+package org.rhq.msg.common;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.DeliveryMode;
+
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.consumer.BasicMessageListener;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.rhq.msg.common.producer.SendOptions;
+import org.rhq.msg.common.producer.TimingWheel;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the timing wheel sends the delayed messages of all contexts on a connection through one session.
+ */
+@Test
+public class DelayedSendSessionTest {
+    private static final String BROKER_URL = "vm://delayedsession?broker.persistent=false&broker.useJmx=false";
+
+    public void testOneSessionPerConnection() throws Exception {
+        MessageProcessor processor = new MessageProcessor();
+        TimingWheel wheel = new TimingWheel();
+        processor.setTimingWheel(wheel);
+        ConnectionContextFactory consumerFactory = new ConnectionContextFactory(BROKER_URL);
+        ConnectionContextFactory factory = null;
+
+        try {
+            int count = 5;
+            CountingListener listener = new CountingListener();
+            listener.latch = new CountDownLatch(count);
+            Endpoint[] endpoints = new Endpoint[count];
+            for (int i = 0; i < count; i++) {
+                endpoints[i] = new Endpoint(Type.QUEUE, "delayedsessionq" + i);
+                processor.listen(consumerFactory.createConsumerConnectionContext(endpoints[i]), listener);
+            }
+
+            // every context has a session of its own, but the wheel needs only one for their connection
+            factory = new ConnectionContextFactory(BROKER_URL);
+            for (int i = 0; i < count; i++) {
+                sendDelayed(processor, factory.createProducerConnectionContext(endpoints[i]));
+            }
+            Assert.assertTrue(listener.latch.await(10, TimeUnit.SECONDS), "Delayed messages were not received");
+            Assert.assertEquals(processor.getDelayedSendSessionCount(), 1);
+
+            // the entry of a closed connection is dropped once the wheel needs a session for another one
+            factory.close();
+            factory = new ConnectionContextFactory(BROKER_URL);
+            listener.latch = new CountDownLatch(1);
+            sendDelayed(processor, factory.createProducerConnectionContext(endpoints[0]));
+            Assert.assertTrue(listener.latch.await(10, TimeUnit.SECONDS), "Delayed message was not received");
+            Assert.assertEquals(processor.getDelayedSendSessionCount(), 1);
+        } finally {
+            wheel.stop();
+            if (factory != null) {
+                factory.close();
+            }
+            consumerFactory.close();
+        }
+    }
+
+    private void sendDelayed(MessageProcessor processor, ProducerConnectionContext context) throws Exception {
+        SendOptions options = new SendOptions();
+        options.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+        options.setDelay(100L);
+        Assert.assertNull(processor.send(context, new BasicMessage("later"), options));
+    }
+
+    private static class CountingListener extends BasicMessageListener<BasicMessage> {
+        private volatile CountDownLatch latch;
+
+        @Override
+        protected void onBasicMessage(BasicMessage basicMessage) {
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.rhq.msg.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class DetailsMapTest {
+
+    public void testSameAsHashMap() {
+        Map<String, String> hashMap = new HashMap<String, String>();
+        hashMap.put("zeta", "1");
+        hashMap.put("alpha", "2");
+        hashMap.put(null, "null key");
+        hashMap.put("null value", null);
+
+        DetailsMap details = DetailsMap.copyOf(hashMap);
+        Assert.assertEquals(details, hashMap);
+        Assert.assertEquals(hashMap, details);
+        Assert.assertEquals(details.hashCode(), hashMap.hashCode());
+        Assert.assertEquals(details.size(), 4);
+        Assert.assertEquals(details.get("alpha"), "2");
+        Assert.assertEquals(details.get(null), "null key");
+        Assert.assertNull(details.get("null value"));
+        Assert.assertTrue(details.containsKey("null value"));
+        Assert.assertFalse(details.containsKey("beta"));
+        Assert.assertFalse(details.containsKey(Integer.valueOf(1)));
+
+        List<String> keys = new ArrayList<String>(details.keySet());
+        Assert.assertEquals(keys, Arrays.asList(null, "alpha", "null value", "zeta"));
+        Assert.assertSame(DetailsMap.copyOf(details), details);
+    }
+
+    public void testImmutable() {
+        Map<String, String> hashMap = new HashMap<String, String>();
+        hashMap.put("key", "value");
+        DetailsMap details = DetailsMap.copyOf(hashMap);
+        hashMap.put("key", "changed");
+        Assert.assertEquals(details.get("key"), "value");
+
+        try {
+            details.put("other", "value");
+            assert false : "put must not be supported";
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            details.entrySet().iterator().next().setValue("changed");
+            assert false : "setValue must not be supported";
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            details.keySet().clear();
+            assert false : "clear must not be supported";
+        } catch (UnsupportedOperationException expected) {
+        }
+        Assert.assertEquals(details.size(), 1);
+    }
+
+    public void testKeysAreShared() {
+        Map<String, String> first = new HashMap<String, String>();
+        first.put(new String("resource-id"), "1");
+        Map<String, String> second = new HashMap<String, String>();
+        second.put(new String("resource-id"), "2");
+
+        String firstKey = DetailsMap.copyOf(first).keySet().iterator().next();
+        String secondKey = new DetailsMap.Builder().put(new String("resource-id"), "2").build().keySet().iterator().next();
+        Assert.assertSame(secondKey, firstKey);
+        Assert.assertSame(DetailsMap.copyOf(second).keySet().iterator().next(), firstKey);
+    }
+
+    public void testOneOffKeysDoNotCrowdOutCommonKeys() {
+        // far more keys that occur once than the shared dictionary can hold
+        for (int i = 0; i < 2 * DetailsMap.MAX_SHARED_KEYS; i++) {
+            Map<String, String> oneOff = new HashMap<String, String>();
+            oneOff.put("one-off-" + i, "value");
+            DetailsMap.copyOf(oneOff);
+        }
+
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            Map<String, String> common = new HashMap<String, String>();
+            common.put(new String("common-after-one-offs"), String.valueOf(i));
+            keys.add(DetailsMap.copyOf(common).keySet().iterator().next());
+        }
+        Assert.assertSame(keys.get(1), keys.get(0));
+        Assert.assertSame(keys.get(2), keys.get(0));
+    }
+
+    public void testBuilder() {
+        DetailsMap sorted = new DetailsMap.Builder().put("a", "1").put("b", "2").put("c", "3").build();
+        Assert.assertEquals(new ArrayList<String>(sorted.values()), Arrays.asList("1", "2", "3"));
+
+        // out of order, and the last value of a key wins
+        DetailsMap unsorted = new DetailsMap.Builder().put("c", "3").put("a", "1").put("c", "4").put(null, "0").build();
+        Assert.assertEquals(new ArrayList<String>(unsorted.keySet()), Arrays.asList(null, "a", "c"));
+        Assert.assertEquals(unsorted.get("c"), "4");
+
+        DetailsMap.Builder builder = new DetailsMap.Builder();
+        Map<String, String> expected = new HashMap<String, String>();
+        for (int i = 0; i < 100; i++) {
+            builder.put("key" + i, "value" + i);
+            expected.put("key" + i, "value" + i);
+        }
+        Assert.assertEquals(builder.build(), expected);
+        Assert.assertTrue(new DetailsMap.Builder().build().isEmpty());
+    }
+}
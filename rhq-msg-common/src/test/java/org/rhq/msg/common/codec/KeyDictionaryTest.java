@@ -0,0 +1,98 @@
+package org.rhq.msg.common.codec;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rhq.msg.common.BasicMessage;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class KeyDictionaryTest {
+
+    public void testVersions() {
+        KeyDictionary v1 = KeyDictionary.create("metrics", "resourceId", "metricName");
+        KeyDictionary v2 = v1.extend("unit");
+        Assert.assertEquals(v1.getVersion(), 1);
+        Assert.assertEquals(v2.getVersion(), 2);
+        Assert.assertEquals(v2.getName(), "metrics");
+        Assert.assertEquals(v2.size(), 3);
+
+        // keys keep their numbers
+        Assert.assertEquals(v2.getIndex("resourceId"), 0);
+        Assert.assertEquals(v2.getIndex("unit"), 2);
+        Assert.assertEquals(v1.getIndex("unit"), -1);
+        Assert.assertEquals(v2.getKey(1), "metricName");
+        Assert.assertNull(v1.getKey(2));
+        Assert.assertNull(v2.getKey(-1));
+
+        KeyDictionary older = v2.getVersion(1);
+        Assert.assertEquals(older.getVersion(), 1);
+        Assert.assertEquals(older.size(), 2);
+        Assert.assertSame(v2.getVersion(2), v2);
+
+        try {
+            v2.extend("metricName");
+            assert false : "Keys must not be added twice";
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            v2.getVersion(3);
+            assert false : "There is no version 3";
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testCompressedDetails() throws Exception {
+        KeyDictionary v1 = KeyDictionary.create("metrics", "resourceId", "metricName");
+        KeyDictionary v2 = v1.extend("unit");
+
+        Map<String, String> details = new HashMap<String, String>();
+        details.put("resourceId", "1234");
+        details.put("metricName", "heap used");
+        details.put("rare", "x");
+        details.put("99", "a key that looks like a number");
+        BasicMessage message = new BasicMessage("metric", details);
+
+        StringWriter json = new StringWriter();
+        message.toJSON(json, v2);
+        Assert.assertFalse(json.toString().contains("resourceId"), json.toString());
+        Assert.assertTrue(json.toString().length() < message.toJSON().length());
+
+        BasicMessage decoded = BasicMessage.fromJSON(new StringReader(json.toString()), BasicMessage.class, v2);
+        Assert.assertEquals(decoded.getDetails(), details);
+        Assert.assertEquals(decoded.getMessage(), "metric");
+
+        // the message only has keys an older version knows, too
+        decoded = BasicMessage.fromJSON(new StringReader(json.toString()), BasicMessage.class, v1);
+        Assert.assertEquals(decoded.getDetails(), details);
+
+        // uncompressed messages can be read with a dictionary
+        decoded = BasicMessage.fromJSON(new StringReader(message.toJSON()), BasicMessage.class, v2);
+        Assert.assertEquals(decoded.getDetails(), details);
+    }
+
+    public void testUnknownKeysAreRejected() throws Exception {
+        KeyDictionary v1 = KeyDictionary.create("metrics", "resourceId");
+        KeyDictionary v2 = v1.extend("unit");
+
+        Map<String, String> details = new HashMap<String, String>();
+        details.put("unit", "bytes");
+        StringWriter json = new StringWriter();
+        new BasicMessage("metric", details).toJSON(json, v2);
+
+        try {
+            BasicMessage.fromJSON(new StringReader(json.toString()), BasicMessage.class, v1);
+            assert false : "A key the dictionary does not have must not be decoded";
+        } catch (RuntimeException expected) {
+            Assert.assertTrue(expected.getCause() instanceof IllegalStateException, expected.toString());
+        }
+        try {
+            BasicMessage.fromJSON(new StringReader(json.toString()), BasicMessage.class);
+            assert false : "Compressed keys must not be decoded without a dictionary";
+        } catch (RuntimeException expected) {
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.rhq.msg.common.consumer;
+
+import java.io.File;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class DuplicateDetectorTest {
+    public void testDuplicates() {
+        BoundedDuplicateDetector detector = new BoundedDuplicateDetector(100, 60000L);
+        Assert.assertFalse(detector.isDuplicate("a"));
+        Assert.assertFalse(detector.isDuplicate("a"), "Only processed keys are duplicates");
+
+        detector.processed("a");
+        Assert.assertTrue(detector.isDuplicate("a"));
+        Assert.assertFalse(detector.isDuplicate("b"));
+    }
+
+    public void testMaxEntries() {
+        BoundedDuplicateDetector detector = new BoundedDuplicateDetector(3, 60000L);
+        for (int i = 0; i < 5; i++) {
+            detector.processed("key" + i);
+        }
+        Assert.assertEquals(detector.size(), 3);
+        Assert.assertFalse(detector.isDuplicate("key0"));
+        Assert.assertFalse(detector.isDuplicate("key1"));
+        Assert.assertTrue(detector.isDuplicate("key2"));
+        Assert.assertTrue(detector.isDuplicate("key4"));
+
+        // processing a key again keeps it from being evicted with its older entry
+        detector.processed("key2");
+        detector.processed("key5");
+        Assert.assertTrue(detector.isDuplicate("key2"));
+        Assert.assertFalse(detector.isDuplicate("key3"));
+    }
+
+    public void testTimeToLive() throws Exception {
+        BoundedDuplicateDetector detector = new BoundedDuplicateDetector(100, 200L);
+        detector.processed("a");
+        Assert.assertTrue(detector.isDuplicate("a"));
+        Thread.sleep(300L);
+        Assert.assertFalse(detector.isDuplicate("a"));
+
+        detector.processed("b"); // evicts the expired key
+        Assert.assertEquals(detector.size(), 1);
+    }
+
+    public void testMappedFile() throws Exception {
+        File file = File.createTempFile("dedupe", ".dat");
+        file.delete();
+        try {
+            MappedFileDuplicateDetector detector = new MappedFileDuplicateDetector(file, 3, 60000L);
+            for (int i = 0; i < 4; i++) {
+                detector.processed("key" + i);
+            }
+            detector.close();
+
+            // the keys survive a restart, except for the one that was overwritten
+            detector = new MappedFileDuplicateDetector(file, 3, 60000L);
+            Assert.assertFalse(detector.isDuplicate("key0"));
+            Assert.assertTrue(detector.isDuplicate("key1"));
+            Assert.assertTrue(detector.isDuplicate("key3"));
+            detector.processed("key4");
+            detector.close();
+
+            detector = new MappedFileDuplicateDetector(file, 3, 60000L);
+            Assert.assertFalse(detector.isDuplicate("key1"));
+            Assert.assertTrue(detector.isDuplicate("key2"));
+            Assert.assertTrue(detector.isDuplicate("key4"));
+            detector.close();
+
+            // a file written with a different size is discarded
+            detector = new MappedFileDuplicateDetector(file, 10, 60000L);
+            Assert.assertFalse(detector.isDuplicate("key4"));
+            detector.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
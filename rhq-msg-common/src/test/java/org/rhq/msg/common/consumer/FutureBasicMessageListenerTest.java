@@ -0,0 +1,237 @@
+package org.rhq.msg.common.consumer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.rhq.msg.common.BasicMessage;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class FutureBasicMessageListenerTest {
+    public void testResponse() throws Exception {
+        FutureBasicMessageListener<BasicMessage> future = new FutureBasicMessageListener<BasicMessage>(BasicMessage.class);
+        Assert.assertFalse(future.isDone());
+        try {
+            future.get(10L, TimeUnit.MILLISECONDS);
+            assert false : "There is no response yet";
+        } catch (TimeoutException expected) {
+        }
+
+        BasicMessage response = new BasicMessage("response");
+        future.onBasicMessage(response);
+        // only the first message is the response
+        future.onBasicMessage(new BasicMessage("another"));
+
+        Assert.assertTrue(future.isDone());
+        Assert.assertFalse(future.isCancelled());
+        Assert.assertSame(future.get(), response);
+        Assert.assertSame(future.get(0L, TimeUnit.MILLISECONDS), response);
+        Assert.assertFalse(future.cancel(true));
+    }
+
+    public void testCancel() throws Exception {
+        FutureBasicMessageListener<BasicMessage> future = new FutureBasicMessageListener<BasicMessage>(BasicMessage.class);
+        final AtomicInteger callbacks = new AtomicInteger();
+        future.addCallback(new Runnable() {
+            public void run() {
+                callbacks.incrementAndGet();
+            }
+        });
+
+        Assert.assertFalse(future.cancel(false));
+        Assert.assertFalse(future.isDone());
+        Assert.assertEquals(callbacks.get(), 0);
+
+        Assert.assertTrue(future.cancel(true));
+        Assert.assertTrue(future.isCancelled());
+        Assert.assertTrue(future.isDone());
+        Assert.assertEquals(callbacks.get(), 1);
+        Assert.assertFalse(future.cancel(true));
+
+        // a late response does not change the outcome
+        future.onBasicMessage(new BasicMessage("late"));
+        Assert.assertTrue(future.isCancelled());
+        try {
+            future.get();
+            assert false : "The future was cancelled";
+        } catch (CancellationException expected) {
+        }
+        Assert.assertEquals(callbacks.get(), 1);
+    }
+
+    public void testManyWaitersAndCallbacks() throws Exception {
+        final FutureBasicMessageListener<BasicMessage> future = new FutureBasicMessageListener<BasicMessage>(
+                BasicMessage.class);
+        int waiterCount = 16;
+        final CountDownLatch done = new CountDownLatch(waiterCount);
+        final List<Object> results = new ArrayList<Object>();
+        final AtomicInteger callbacks = new AtomicInteger();
+        final List<Integer> callbackOrder = new ArrayList<Integer>();
+
+        for (int i = 0; i < waiterCount; i++) {
+            final boolean timed = (i % 2 == 0);
+            Thread waiter = new Thread(new Runnable() {
+                public void run() {
+                    Object result;
+                    try {
+                        result = timed ? future.get(10L, TimeUnit.SECONDS) : future.get();
+                    } catch (Exception e) {
+                        result = e;
+                    }
+                    synchronized (results) {
+                        results.add(result);
+                    }
+                    done.countDown();
+                }
+            });
+            waiter.setDaemon(true);
+            waiter.start();
+
+            final int callbackNumber = i;
+            future.addCallback(new Runnable() {
+                public void run() {
+                    callbacks.incrementAndGet();
+                    callbackOrder.add(Integer.valueOf(callbackNumber));
+                }
+            });
+        }
+
+        Thread.sleep(100L);
+        Assert.assertEquals(done.getCount(), waiterCount, "Waiters returned before the response");
+        Assert.assertEquals(callbacks.get(), 0);
+
+        BasicMessage response = new BasicMessage("response");
+        future.onBasicMessage(response);
+        Assert.assertTrue(done.await(10L, TimeUnit.SECONDS), "Waiters were not released");
+        for (Object result : results) {
+            Assert.assertSame(result, response);
+        }
+        Assert.assertEquals(callbacks.get(), waiterCount);
+        for (int i = 0; i < waiterCount; i++) {
+            Assert.assertEquals(callbackOrder.get(i).intValue(), i, "Callbacks ran out of order: " + callbackOrder);
+        }
+
+        // a callback added once the future is done runs right away
+        future.addCallback(new Runnable() {
+            public void run() {
+                callbacks.incrementAndGet();
+            }
+        });
+        Assert.assertEquals(callbacks.get(), waiterCount + 1);
+    }
+
+    public void testTimedOutWaitersAreRemoved() throws Exception {
+        final FutureBasicMessageListener<BasicMessage> future = new FutureBasicMessageListener<BasicMessage>(
+                BasicMessage.class);
+        final AtomicInteger callbacks = new AtomicInteger();
+        future.addCallback(new Runnable() {
+            public void run() {
+                callbacks.incrementAndGet();
+            }
+        });
+        final CountDownLatch waiterDone = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    // the test fails below as the waiter does not count down
+                    return;
+                }
+                waiterDone.countDown();
+            }
+        });
+        waiter.setDaemon(true);
+        waiter.start();
+        for (int i = 0; i < 100 && future.getWaiterCount() < 2; i++) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(future.getWaiterCount(), 2);
+
+        // pollers that give up are pushed above the waiter and the callback, and next to each other
+        int pollerCount = 4;
+        final CountDownLatch pollersDone = new CountDownLatch(pollerCount);
+        final AtomicInteger timeouts = new AtomicInteger();
+        for (int p = 0; p < pollerCount; p++) {
+            Thread poller = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 200; i++) {
+                        try {
+                            future.get(1L, TimeUnit.MILLISECONDS);
+                        } catch (TimeoutException expected) {
+                            timeouts.incrementAndGet();
+                        } catch (Exception e) {
+                            break;
+                        }
+                    }
+                    pollersDone.countDown();
+                }
+            });
+            poller.setDaemon(true);
+            poller.start();
+        }
+        Assert.assertTrue(pollersDone.await(30L, TimeUnit.SECONDS), "Pollers did not finish");
+        Assert.assertEquals(timeouts.get(), pollerCount * 200);
+        Assert.assertEquals(future.getWaiterCount(), 2, "Waiters that timed out were not removed");
+
+        // interrupted waiters are removed, too
+        Thread.currentThread().interrupt();
+        try {
+            future.get(10L, TimeUnit.SECONDS);
+            assert false : "The thread was interrupted";
+        } catch (InterruptedException expected) {
+        }
+        Assert.assertEquals(future.getWaiterCount(), 2);
+
+        future.onBasicMessage(new BasicMessage("response"));
+        Assert.assertTrue(waiterDone.await(10L, TimeUnit.SECONDS), "The remaining waiter was not released");
+        Assert.assertEquals(callbacks.get(), 1);
+        Assert.assertEquals(future.getWaiterCount(), 0);
+    }
+
+    public void testResponseRacesCancel() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            final FutureBasicMessageListener<BasicMessage> future = new FutureBasicMessageListener<BasicMessage>(
+                    BasicMessage.class);
+            final BasicMessage response = new BasicMessage("response");
+            final CyclicBarrier start = new CyclicBarrier(2);
+            final AtomicInteger callbacks = new AtomicInteger();
+            final AtomicReference<Boolean> cancelled = new AtomicReference<Boolean>();
+            future.addCallback(new Runnable() {
+                public void run() {
+                    callbacks.incrementAndGet();
+                }
+            });
+
+            Thread canceller = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (Exception e) {
+                        return;
+                    }
+                    cancelled.set(Boolean.valueOf(future.cancel(true)));
+                }
+            });
+            canceller.start();
+            start.await();
+            future.onBasicMessage(response);
+            canceller.join();
+
+            Assert.assertTrue(future.isDone());
+            Assert.assertEquals(callbacks.get(), 1, "The future must be completed exactly once");
+            Assert.assertEquals(future.isCancelled(), cancelled.get().booleanValue());
+            if (!future.isCancelled()) {
+                Assert.assertSame(future.get(), response);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.rhq.msg.common.metrics;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class LatencyHistogramTest {
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.recordValue(i);
+        }
+
+        Assert.assertEquals(histogram.getTotalCount(), 10000L);
+        Assert.assertEquals(histogram.getMinValue(), 1L);
+        Assert.assertEquals(histogram.getMaxValue(), 10000L);
+        Assert.assertEquals(histogram.getMean(), 5000.5, 0.001);
+        assertWithinOnePercent(histogram.getValueAtPercentile(50.0), 5000L);
+        assertWithinOnePercent(histogram.getValueAtPercentile(99.0), 9900L);
+        assertWithinOnePercent(histogram.getValueAtPercentile(99.9), 9990L);
+        Assert.assertEquals(histogram.getValueAtPercentile(100.0), 10000L);
+    }
+
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordValue(0L);
+        histogram.recordValue(7L);
+        histogram.recordValue(255L);
+        Assert.assertEquals(histogram.getValueAtPercentile(0.0), 0L);
+        Assert.assertEquals(histogram.getValueAtPercentile(50.0), 7L);
+        Assert.assertEquals(histogram.getValueAtPercentile(100.0), 255L);
+    }
+
+    public void testBucketLayout() {
+        // every bucket must hold the values that map to it - no gaps, no overlaps
+        long[] values = { 0L, 1L, 255L, 256L, 257L, 258L, 511L, 512L, 5000L, 123456789L, Long.MAX_VALUE / 3, Long.MAX_VALUE };
+        for (long value : values) {
+            int index = LatencyHistogram.getBucketIndex(value);
+            long highest = LatencyHistogram.getHighestValueInBucket(index);
+            Assert.assertTrue(highest >= value, "bucket of " + value + " ends at " + highest);
+            if (index > 0) {
+                Assert.assertTrue(LatencyHistogram.getHighestValueInBucket(index - 1) < value, "previous bucket also holds " + value);
+            }
+            Assert.assertTrue(highest - value <= value / 128, "bucket of " + value + " is too wide");
+        }
+    }
+
+    public void testCoordinatedOmissionCorrection() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.recordValueWithExpectedInterval(10L, 100L);
+        }
+        // a single stall of 1000 means 9 more requests were held up behind it
+        histogram.recordValueWithExpectedInterval(1000L, 100L);
+
+        Assert.assertEquals(histogram.getTotalCount(), 109L);
+        Assert.assertEquals(histogram.getMaxValue(), 1000L);
+        assertWithinOnePercent(histogram.getValueAtPercentile(95.0), 500L);
+
+        LatencyHistogram uncorrected = new LatencyHistogram();
+        uncorrected.recordValueWithExpectedInterval(1000L, 0L);
+        Assert.assertEquals(uncorrected.getTotalCount(), 1L);
+    }
+
+    public void testAddAndReset() {
+        LatencyHistogram first = new LatencyHistogram();
+        first.recordValue(5L);
+        LatencyHistogram second = new LatencyHistogram();
+        second.recordValue(500L);
+        second.recordValue(2L);
+
+        first.add(second);
+        Assert.assertEquals(first.getTotalCount(), 3L);
+        Assert.assertEquals(first.getMinValue(), 2L);
+        Assert.assertEquals(first.getMaxValue(), 500L);
+        Assert.assertEquals(second.getTotalCount(), 2L);
+
+        LatencyHistogram copy = first.copy();
+        first.reset();
+        Assert.assertEquals(copy.getTotalCount(), 3L);
+        Assert.assertEquals(copy.getMaxValue(), 500L);
+
+        Assert.assertEquals(first.getTotalCount(), 0L);
+        Assert.assertEquals(first.getMinValue(), 0L);
+        Assert.assertEquals(first.getMaxValue(), 0L);
+        Assert.assertEquals(first.getValueAtPercentile(99.0), 0L);
+    }
+
+    private void assertWithinOnePercent(long actual, long expected) {
+        Assert.assertTrue(Math.abs(actual - expected) <= expected / 100, "expected " + expected + " but was " + actual);
+    }
+}
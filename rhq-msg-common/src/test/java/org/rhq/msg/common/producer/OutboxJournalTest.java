@@ -0,0 +1,153 @@
+package org.rhq.msg.common.producer;
+
+import java.io.File;
+import java.util.List;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageId;
+import org.rhq.msg.common.producer.OutboxJournal.DropPolicy;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class OutboxJournalTest {
+    private static final Endpoint QUEUE = new Endpoint(Type.QUEUE, "outboxq");
+    private static final Endpoint TOPIC = new Endpoint(Type.TOPIC, "outboxt");
+
+    public void testAppendReadAcknowledge() throws Exception {
+        File directory = createDirectory();
+        OutboxJournal journal = new OutboxJournal(directory, 1024, 1024 * 1024, DropPolicy.DROP_NEWEST);
+        try {
+            Assert.assertFalse(journal.hasUnacknowledged());
+            BasicMessage correlated = new BasicMessage("two");
+            correlated.setCorrelationId(new MessageId("id-1"));
+            Assert.assertTrue(journal.append(QUEUE, new BasicMessage("one")));
+            Assert.assertTrue(journal.append(TOPIC, correlated));
+            Assert.assertTrue(journal.append(QUEUE, new BasicMessage("three")));
+
+            List<OutboxJournal.Entry> entries = journal.read(2);
+            Assert.assertEquals(entries.size(), 2);
+            Assert.assertEquals(entries.get(0).getEndpoint(), QUEUE);
+            Assert.assertEquals(BasicMessage.fromJSON(entries.get(0).getJSON(), BasicMessage.class).getMessage(), "one");
+            Assert.assertNull(entries.get(0).getCorrelationId());
+            Assert.assertEquals(entries.get(1).getEndpoint(), TOPIC);
+            Assert.assertEquals(entries.get(1).getCorrelationId(), new MessageId("id-1"));
+
+            // reading again without acknowledging returns the same messages
+            Assert.assertEquals(journal.read(10).size(), 3);
+
+            journal.acknowledge(entries.get(1));
+            entries = journal.read(10);
+            Assert.assertEquals(entries.size(), 1);
+            Assert.assertEquals(BasicMessage.fromJSON(entries.get(0).getJSON(), BasicMessage.class).getMessage(), "three");
+
+            journal.acknowledge(entries.get(0));
+            Assert.assertFalse(journal.hasUnacknowledged());
+
+            try {
+                journal.append(Endpoint.TEMPORARY_QUEUE, new BasicMessage("temporary"));
+                assert false : "Messages to temporary endpoints cannot be journaled";
+            } catch (IllegalArgumentException expected) {
+            }
+        } finally {
+            journal.close();
+            delete(directory);
+        }
+    }
+
+    public void testRotationAndRestart() throws Exception {
+        File directory = createDirectory();
+        try {
+            OutboxJournal journal = new OutboxJournal(directory, 1024, 1024 * 1024, DropPolicy.DROP_NEWEST);
+            for (int i = 0; i < 100; i++) {
+                Assert.assertTrue(journal.append(QUEUE, new BasicMessage("message-" + i)));
+            }
+            Assert.assertTrue(journal.getSegmentCount() > 1, "Segments were not rotated");
+            List<OutboxJournal.Entry> entries = journal.read(40);
+            journal.acknowledge(entries.get(39));
+            journal.close();
+
+            // the unacknowledged messages are still there after a restart, in order
+            journal = new OutboxJournal(directory, 1024, 1024 * 1024, DropPolicy.DROP_NEWEST);
+            Assert.assertTrue(journal.append(QUEUE, new BasicMessage("after-restart")));
+            entries = journal.read(1000);
+            Assert.assertEquals(entries.size(), 61);
+            for (int i = 0; i < 60; i++) {
+                Assert.assertEquals(BasicMessage.fromJSON(entries.get(i).getJSON(), BasicMessage.class).getMessage(),
+                        "message-" + (i + 40));
+            }
+            Assert.assertEquals(BasicMessage.fromJSON(entries.get(60).getJSON(), BasicMessage.class).getMessage(),
+                    "after-restart");
+
+            // acknowledged segments are deleted
+            journal.acknowledge(entries.get(60));
+            Assert.assertEquals(journal.getSegmentCount(), 1);
+            Assert.assertFalse(journal.hasUnacknowledged());
+            journal.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    public void testDropNewest() throws Exception {
+        File directory = createDirectory();
+        OutboxJournal journal = new OutboxJournal(directory, 1024, 2048, DropPolicy.DROP_NEWEST);
+        try {
+            int appended = 0;
+            for (int i = 0; i < 100; i++) {
+                if (journal.append(QUEUE, new BasicMessage("message-" + i))) {
+                    appended++;
+                }
+            }
+            Assert.assertEquals(journal.getSegmentCount(), 2);
+            Assert.assertEquals(journal.getDroppedCount(), 100 - appended);
+
+            // the oldest messages were kept
+            List<OutboxJournal.Entry> entries = journal.read(1000);
+            Assert.assertEquals(entries.size(), appended);
+            Assert.assertEquals(BasicMessage.fromJSON(entries.get(0).getJSON(), BasicMessage.class).getMessage(), "message-0");
+        } finally {
+            journal.close();
+            delete(directory);
+        }
+    }
+
+    public void testDropOldest() throws Exception {
+        File directory = createDirectory();
+        OutboxJournal journal = new OutboxJournal(directory, 1024, 2048, DropPolicy.DROP_OLDEST);
+        try {
+            for (int i = 0; i < 100; i++) {
+                Assert.assertTrue(journal.append(QUEUE, new BasicMessage("message-" + i)));
+            }
+            Assert.assertEquals(journal.getSegmentCount(), 2);
+
+            // the newest messages were kept
+            List<OutboxJournal.Entry> entries = journal.read(1000);
+            Assert.assertEquals(entries.size() + journal.getDroppedCount(), 100L);
+            Assert.assertEquals(BasicMessage.fromJSON(entries.get(entries.size() - 1).getJSON(), BasicMessage.class)
+                    .getMessage(), "message-99");
+        } finally {
+            journal.close();
+            delete(directory);
+        }
+    }
+
+    private File createDirectory() throws Exception {
+        File directory = File.createTempFile("outbox", ".dir");
+        directory.delete();
+        directory.mkdirs();
+        return directory;
+    }
+
+    private void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,112 @@
+package org.rhq.msg.common.producer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.rhq.msg.common.producer.TimingWheel.Timeout;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TimingWheelTest {
+
+    public void testTasksRunAfterTheirDelay() throws Exception {
+        // 1ms ticks so that the longer delays have to move down from the higher levels
+        TimingWheel wheel = new TimingWheel(1L, TimeUnit.MILLISECONDS);
+        try {
+            long[] delays = { 0L, 5L, 50L, 255L, 256L, 300L, 700L };
+            CountDownLatch done = new CountDownLatch(delays.length);
+            AtomicInteger early = new AtomicInteger();
+            for (long delay : delays) {
+                wheel.schedule(new RecordingTask(delay, early, done), delay, TimeUnit.MILLISECONDS);
+            }
+            Assert.assertEquals(wheel.getPendingCount(), delays.length);
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS), "Tasks did not run: " + done.getCount());
+            Assert.assertEquals(early.get(), 0, "Tasks ran early");
+            Assert.assertEquals(wheel.getPendingCount(), 0);
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    public void testManyTasks() throws Exception {
+        TimingWheel wheel = new TimingWheel();
+        try {
+            int count = 100000;
+            CountDownLatch done = new CountDownLatch(count);
+            AtomicInteger early = new AtomicInteger();
+            for (int i = 0; i < count; i++) {
+                long delay = i % 1000;
+                wheel.schedule(new RecordingTask(delay, early, done), delay, TimeUnit.MILLISECONDS);
+            }
+            Assert.assertTrue(done.await(30, TimeUnit.SECONDS), "Tasks did not run: " + done.getCount());
+            Assert.assertEquals(early.get(), 0, "Tasks ran early");
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    public void testCancel() throws Exception {
+        TimingWheel wheel = new TimingWheel();
+        try {
+            CountDownLatch done = new CountDownLatch(1);
+            CountDownLatch cancelledDone = new CountDownLatch(1);
+            AtomicInteger early = new AtomicInteger();
+            Timeout cancelled = wheel.schedule(new RecordingTask(100L, early, cancelledDone), 100L, TimeUnit.MILLISECONDS);
+            Timeout kept = wheel.schedule(new RecordingTask(200L, early, done), 200L, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(cancelled.cancel());
+            Assert.assertFalse(cancelled.cancel());
+            Assert.assertEquals(wheel.getPendingCount(), 1);
+
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(cancelledDone.getCount(), 1L, "The cancelled task ran");
+            Assert.assertTrue(kept.isExpired());
+            Assert.assertFalse(kept.cancel());
+            Assert.assertTrue(cancelled.isCancelled());
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    public void testStop() throws Exception {
+        TimingWheel wheel = new TimingWheel();
+        Timeout timeout = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 1L, TimeUnit.HOURS);
+        wheel.stop();
+        Assert.assertTrue(timeout.isCancelled());
+        Assert.assertEquals(wheel.getPendingCount(), 0);
+        try {
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, 1L, TimeUnit.SECONDS);
+            assert false : "A stopped wheel must not accept tasks";
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private static class RecordingTask implements Runnable {
+        private final long dueTime;
+        private final AtomicInteger early;
+        private final CountDownLatch done;
+
+        RecordingTask(long delay, AtomicInteger early, CountDownLatch done) {
+            this.dueTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            this.early = early;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            if (System.nanoTime() < dueTime) {
+                early.incrementAndGet();
+            }
+            done.countDown();
+        }
+    }
+}
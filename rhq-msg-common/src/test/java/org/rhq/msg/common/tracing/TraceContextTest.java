@@ -0,0 +1,72 @@
+package org.rhq.msg.common.tracing;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TraceContextTest {
+    public void testTraceparent() {
+        TraceContext root = TraceContext.newRoot();
+        Assert.assertEquals(root.getTraceId().length(), 32);
+        Assert.assertEquals(root.getSpanId().length(), 16);
+        Assert.assertNull(root.getParentSpanId());
+
+        String traceparent = root.toTraceparent();
+        Assert.assertEquals(traceparent, "00-" + root.getTraceId() + "-" + root.getSpanId() + "-01");
+
+        TraceContext parsed = TraceContext.fromTraceparent(traceparent);
+        Assert.assertEquals(parsed.getTraceId(), root.getTraceId());
+        Assert.assertEquals(parsed.getSpanId(), root.getSpanId());
+
+        parsed = TraceContext.fromTraceparent("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01");
+        Assert.assertEquals(parsed.getTraceId(), "4bf92f3577b34da6a3ce929d0e0e4736");
+        Assert.assertEquals(parsed.getSpanId(), "00f067aa0ba902b7");
+    }
+
+    public void testInvalidTraceparent() {
+        Assert.assertNull(TraceContext.fromTraceparent(null));
+        Assert.assertNull(TraceContext.fromTraceparent(""));
+        Assert.assertNull(TraceContext.fromTraceparent("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7"));
+        Assert.assertNull(TraceContext.fromTraceparent("01-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01"));
+        Assert.assertNull(TraceContext.fromTraceparent("00-4BF92F3577B34DA6A3CE929D0E0E4736-00f067aa0ba902b7-01"));
+        Assert.assertNull(TraceContext.fromTraceparent("00-00000000000000000000000000000000-00f067aa0ba902b7-01"));
+        Assert.assertNull(TraceContext.fromTraceparent("00-4bf92f3577b34da6a3ce929d0e0e4736-0000000000000000-01"));
+    }
+
+    public void testChild() {
+        TraceContext root = TraceContext.newRoot();
+        TraceContext child = root.newChild();
+        Assert.assertEquals(child.getTraceId(), root.getTraceId());
+        Assert.assertEquals(child.getParentSpanId(), root.getSpanId());
+        Assert.assertNotEquals(child.getSpanId(), root.getSpanId());
+    }
+
+    public void testScopes() {
+        Assert.assertNull(SpanScope.current());
+
+        final StringBuilder finished = new StringBuilder();
+        SpanSink sink = new SpanSink() {
+            @Override
+            public void spanFinished(Span span) {
+                finished.append(span.getOperation()).append(' ');
+            }
+        };
+
+        TraceContext root = TraceContext.newRoot();
+        SpanScope outer = SpanScope.open(root, "outer", null, sink);
+        SpanScope inner = SpanScope.open(root.newChild(), "inner", null, sink);
+        Assert.assertSame(SpanScope.current(), inner);
+
+        try {
+            outer.close();
+            assert false : "Should not be able to close a scope that is not current";
+        } catch (IllegalStateException expected) {
+        }
+
+        inner.close();
+        Assert.assertSame(SpanScope.current(), outer);
+        outer.close();
+        Assert.assertNull(SpanScope.current());
+        Assert.assertEquals(finished.toString(), "inner outer ");
+    }
+}
@@ -0,0 +1,410 @@
+package org.rhq.msg.common.test;
+
+import gnu.getopt.Getopt;
+import gnu.getopt.LongOpt;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.ConsumerConnectionContext;
+import org.rhq.msg.common.consumer.RPCBasicMessageListener;
+import org.rhq.msg.common.metrics.LatencyHistogram;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A standalone load generator that drives a broker with a number of producer and consumer threads and reports the
+ * throughput and latency percentiles it observed. Run it from the command line against any broker URL, e.g. one
+ * started via EmbeddedBroker's main method:
+ *
+ * <pre>
+ * java org.rhq.msg.common.test.LoadGenerator -u tcp://localhost:61616 -p 4 -c 2 -r 1000 -d 60 -R 10
+ * </pre>
+ *
+ * When a rate is given, each producer sends on a fixed schedule and latencies are measured from the time a message was
+ * <i>supposed</i> to be sent rather than from the time it actually was. A stalled broker therefore shows up as
+ * latency for every message that was held up behind the stall and not just for the one message that was in flight,
+ * i.e. the results are corrected for coordinated omission.
+ *
+ * Producers and consumers run in the same JVM so they share the clock used to measure one-way latency.
+ */
+public class LoadGenerator {
+    private static final Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+    static final String SEND_TIME_DETAIL = "loadgen.sendTime";
+
+    /**
+     * The settings of a load generator run.
+     */
+    public static class Configuration {
+        public String brokerURL;
+        public Endpoint endpoint = new Endpoint(Endpoint.Type.QUEUE, "loadgen");
+        public int producers = 1;
+        public int consumers = 1;
+        public int messageSize = 100;
+        /** messages per second per producer; 0 means send as fast as possible */
+        public int rate = 0;
+        public int durationSeconds = 10;
+        /** percentage of messages that are sent as RPC requests and wait for a response */
+        public int rpcPercent = 0;
+        public long rpcTimeoutMillis = 10000L;
+    }
+
+    /**
+     * The outcome of a load generator run. Latencies are in microseconds.
+     */
+    public static class Results {
+        public final AtomicLong sent = new AtomicLong();
+        public final AtomicLong rpcSent = new AtomicLong();
+        public final AtomicLong received = new AtomicLong();
+        public final AtomicLong errors = new AtomicLong();
+        public final LatencyHistogram oneWayLatency = new LatencyHistogram();
+        public final LatencyHistogram rpcLatency = new LatencyHistogram();
+        public long elapsedNanos;
+
+        public double getThroughput() {
+            return (elapsedNanos == 0L) ? 0.0 : sent.get() / (elapsedNanos / 1000000000.0);
+        }
+
+        public void print(PrintStream out) {
+            out.println(String.format("Sent: %d (RPC: %d), received: %d, errors: %d", sent.get(), rpcSent.get(), received.get(),
+                    errors.get()));
+            out.println(String.format("Throughput: %.1f msgs/sec over %.1f seconds", getThroughput(), elapsedNanos / 1000000000.0));
+            printLatency(out, "One-way latency", oneWayLatency);
+            printLatency(out, "RPC latency", rpcLatency);
+        }
+
+        private void printLatency(PrintStream out, String title, LatencyHistogram histogram) {
+            if (histogram.getTotalCount() == 0L) {
+                return;
+            }
+            out.println(String.format("%s (us): p50=%d p90=%d p99=%d p99.9=%d max=%d (%d samples)", title,
+                    histogram.getValueAtPercentile(50.0), histogram.getValueAtPercentile(90.0), histogram.getValueAtPercentile(99.0),
+                    histogram.getValueAtPercentile(99.9), histogram.getMaxValue(), histogram.getTotalCount()));
+        }
+    }
+
+    private final Configuration config;
+
+    public static void main(String[] args) throws Exception {
+        Configuration config;
+        try {
+            config = processArguments(args);
+        } catch (HelpException e) {
+            return;
+        }
+
+        Results results = new LoadGenerator(config).run();
+        results.print(System.out);
+    }
+
+    public LoadGenerator(Configuration config) {
+        if (config == null) {
+            throw new NullPointerException("config must not be null");
+        }
+        if (config.brokerURL == null) {
+            throw new NullPointerException("config.brokerURL must not be null");
+        }
+        if (config.endpoint == null) {
+            throw new NullPointerException("config.endpoint must not be null");
+        }
+        this.config = config;
+    }
+
+    /**
+     * Runs the load for the configured duration, waits for the messages still in flight to arrive and returns what
+     * was measured.
+     *
+     * @return the results of the run
+     */
+    public Results run() throws Exception {
+        final Results results = new Results();
+        List<ConnectionContextFactory> factories = new ArrayList<ConnectionContextFactory>();
+
+        try {
+            // consumers must be listening before the first message is sent, otherwise topic messages are lost
+            for (int i = 0; i < config.consumers; i++) {
+                ConnectionContextFactory factory = new ConnectionContextFactory(config.brokerURL);
+                factories.add(factory);
+                ConsumerConnectionContext context = factory.createConsumerConnectionContext(config.endpoint);
+                new MessageProcessor().listen(context, new LoadListener(results));
+            }
+
+            final long startTime = System.nanoTime();
+            final long stopTime = startTime + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+            final CountDownLatch producersDone = new CountDownLatch(config.producers);
+            String payload = createPayload(config.messageSize);
+
+            for (int i = 0; i < config.producers; i++) {
+                ConnectionContextFactory factory = new ConnectionContextFactory(config.brokerURL);
+                factories.add(factory);
+                ProducerConnectionContext context = factory.createProducerConnectionContext(config.endpoint);
+                Thread producer = new Thread(new Producer(context, payload, startTime, stopTime, results, producersDone),
+                        "RHQ Msg Load Generator Producer " + i);
+                producer.setDaemon(true);
+                producer.start();
+            }
+
+            producersDone.await();
+            results.elapsedNanos = System.nanoTime() - startTime;
+            waitForInFlightMessages(results);
+        } finally {
+            for (ConnectionContextFactory factory : factories) {
+                try {
+                    factory.close();
+                } catch (Exception e) {
+                    log.warn("Failed to close connection: {}", e.toString());
+                }
+            }
+        }
+
+        return results;
+    }
+
+    private void waitForInFlightMessages(Results results) throws InterruptedException {
+        int receiversPerMessage = (config.endpoint.getType() == Endpoint.Type.TOPIC) ? config.consumers : Math.min(1,
+                config.consumers);
+        long expected = results.sent.get() * receiversPerMessage;
+        long lastReceived = -1L;
+
+        // give up once nothing has arrived for a while
+        while (results.received.get() < expected && results.received.get() != lastReceived) {
+            lastReceived = results.received.get();
+            Thread.sleep(1000L);
+        }
+    }
+
+    private class Producer implements Runnable {
+        private final ProducerConnectionContext context;
+        private final String payload;
+        private final long startTime;
+        private final long stopTime;
+        private final Results results;
+        private final CountDownLatch done;
+        private final MessageProcessor processor = new MessageProcessor();
+        private final Random random = new Random();
+
+        Producer(ProducerConnectionContext context, String payload, long startTime, long stopTime, Results results,
+                CountDownLatch done) {
+            this.context = context;
+            this.payload = payload;
+            this.startTime = startTime;
+            this.stopTime = stopTime;
+            this.results = results;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long interval = (config.rate > 0) ? TimeUnit.SECONDS.toNanos(1L) / config.rate : 0L;
+                for (long count = 0L;; count++) {
+                    long intendedSendTime = (interval > 0L) ? startTime + (count * interval) : System.nanoTime();
+                    if (intendedSendTime >= stopTime) {
+                        return;
+                    }
+                    waitUntil(intendedSendTime);
+                    sendOne(intendedSendTime);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void sendOne(long intendedSendTime) {
+            Map<String, String> details = new HashMap<String, String>();
+            details.put(SEND_TIME_DETAIL, String.valueOf(intendedSendTime));
+            BasicMessage message = new BasicMessage(payload, details);
+
+            try {
+                if (random.nextInt(100) < config.rpcPercent) {
+                    results.sent.incrementAndGet();
+                    results.rpcSent.incrementAndGet();
+                    processor.sendRPC(context, message, BasicMessage.class).get(config.rpcTimeoutMillis, TimeUnit.MILLISECONDS);
+                    results.rpcLatency.recordValue(toMicros(System.nanoTime() - intendedSendTime));
+                } else {
+                    results.sent.incrementAndGet();
+                    processor.send(context, message);
+                }
+            } catch (Exception e) {
+                results.errors.incrementAndGet();
+                log.debug("Failed to send message: {}", e.toString());
+            }
+        }
+
+        private void waitUntil(long time) throws InterruptedException {
+            long remaining;
+            while ((remaining = time - System.nanoTime()) > 0L) {
+                TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(1L)));
+            }
+        }
+    }
+
+    /**
+     * Records the one-way latency of every message and acknowledges RPC requests with an empty response.
+     */
+    private static class LoadListener extends RPCBasicMessageListener<BasicMessage, BasicMessage> {
+        private final Results results;
+
+        LoadListener(Results results) {
+            super(BasicMessage.class);
+            this.results = results;
+        }
+
+        @Override
+        protected BasicMessage onBasicMessage(BasicMessage basicMessage) {
+            long now = System.nanoTime();
+            Map<String, String> details = basicMessage.getDetails();
+            String sendTime = (details != null) ? details.get(SEND_TIME_DETAIL) : null;
+            if (sendTime != null) {
+                results.oneWayLatency.recordValue(toMicros(Math.max(0L, now - Long.parseLong(sendTime))));
+            }
+            results.received.incrementAndGet();
+            return new BasicMessage("ack");
+        }
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static String createPayload(int size) {
+        char[] chars = new char[Math.max(0, size)];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    static Configuration processArguments(String[] cmdlineArgs) throws Exception {
+        log.debug("Processing arguments: {}", Arrays.asList(cmdlineArgs));
+
+        Configuration config = new Configuration();
+
+        String sopts = "-:hu:e:p:c:s:r:d:R:";
+        LongOpt[] lopts = { new LongOpt("help", LongOpt.NO_ARGUMENT, null, 'h'), //
+                new LongOpt("broker-url", LongOpt.REQUIRED_ARGUMENT, null, 'u'), //
+                new LongOpt("endpoint", LongOpt.REQUIRED_ARGUMENT, null, 'e'), //
+                new LongOpt("producers", LongOpt.REQUIRED_ARGUMENT, null, 'p'), //
+                new LongOpt("consumers", LongOpt.REQUIRED_ARGUMENT, null, 'c'), //
+                new LongOpt("message-size", LongOpt.REQUIRED_ARGUMENT, null, 's'), //
+                new LongOpt("rate", LongOpt.REQUIRED_ARGUMENT, null, 'r'), //
+                new LongOpt("duration", LongOpt.REQUIRED_ARGUMENT, null, 'd'), //
+                new LongOpt("rpc-percent", LongOpt.REQUIRED_ARGUMENT, null, 'R') };
+
+        Getopt getopt = new Getopt("rhq-msg-load-generator", cmdlineArgs, sopts, lopts);
+        int code;
+
+        while ((code = getopt.getopt()) != -1) {
+            switch (code) {
+            case ':':
+            case '?': {
+                displayUsage();
+                throw new IllegalArgumentException("Invalid argument(s)");
+            }
+
+            case 1: {
+                System.err.println("Unused argument: " + getopt.getOptarg());
+                break;
+            }
+
+            case 'h': {
+                displayUsage();
+                throw new HelpException("Help displayed");
+            }
+
+            case 'u': {
+                config.brokerURL = getopt.getOptarg();
+                break;
+            }
+
+            case 'e': {
+                config.endpoint = parseEndpoint(getopt.getOptarg());
+                break;
+            }
+
+            case 'p': {
+                config.producers = Integer.parseInt(getopt.getOptarg());
+                break;
+            }
+
+            case 'c': {
+                config.consumers = Integer.parseInt(getopt.getOptarg());
+                break;
+            }
+
+            case 's': {
+                config.messageSize = Integer.parseInt(getopt.getOptarg());
+                break;
+            }
+
+            case 'r': {
+                config.rate = Integer.parseInt(getopt.getOptarg());
+                break;
+            }
+
+            case 'd': {
+                config.durationSeconds = Integer.parseInt(getopt.getOptarg());
+                break;
+            }
+
+            case 'R': {
+                config.rpcPercent = Integer.parseInt(getopt.getOptarg());
+                break;
+            }
+            }
+        }
+
+        if (config.brokerURL == null) {
+            throw new IllegalArgumentException("Missing broker URL (-u)");
+        }
+        if (config.rpcPercent < 0 || config.rpcPercent > 100) {
+            throw new IllegalArgumentException("RPC percentage must be between 0 and 100: " + config.rpcPercent);
+        }
+
+        return config;
+    }
+
+    private static Endpoint parseEndpoint(String arg) {
+        int i = arg.indexOf(':');
+        if (i == -1) {
+            return new Endpoint(Endpoint.Type.QUEUE, arg);
+        }
+        Endpoint.Type type = Endpoint.Type.valueOf(arg.substring(0, i).toUpperCase());
+        return new Endpoint(type, arg.substring(i + 1));
+    }
+
+    private static void displayUsage() {
+        log.info("Options:");
+        log.info("\t--help, -h: Displays this help text.");
+        log.info("\t--broker-url=<url>, -u: The URL of the broker to connect to.");
+        log.info("\t--endpoint=[QUEUE|TOPIC:]<name>, -e: Where messages are sent (default QUEUE:loadgen).");
+        log.info("\t--producers=<count>, -p: Number of producer threads (default 1).");
+        log.info("\t--consumers=<count>, -c: Number of consumers (default 1).");
+        log.info("\t--message-size=<chars>, -s: Size of each message body (default 100).");
+        log.info("\t--rate=<msgs/sec>, -r: Messages per second per producer; 0 sends as fast as possible (default 0).");
+        log.info("\t--duration=<seconds>, -d: How long to send messages (default 10).");
+        log.info("\t--rpc-percent=<0-100>, -R: Percentage of messages sent as RPC requests (default 0).");
+    }
+
+    private static class HelpException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public HelpException(String msg) {
+            super(msg);
+        }
+    }
+}
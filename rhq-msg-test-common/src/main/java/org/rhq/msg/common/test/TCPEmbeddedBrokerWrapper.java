@@ -13,16 +13,30 @@ public class TCPEmbeddedBrokerWrapper extends AbstractEmbeddedBrokerWrapper {
     private final int bindPort;
 
     public TCPEmbeddedBrokerWrapper() throws Exception {
-        bindPort = findFreePort();
+        this(findFreePort());
+    }
+
+    /**
+     * Creates a broker that listens on the given port, e.g. to start a broker in place of one that was stopped.
+     *
+     * @param bindPort
+     *            the port to accept clients on
+     */
+    public TCPEmbeddedBrokerWrapper(int bindPort) throws Exception {
+        this.bindPort = bindPort;
         setBroker(new EmbeddedBroker(new String[] { "--config=simple-activemq.xml", "-Dtcp-testbroker.bind.port=" + bindPort }));
     }
 
+    public int getBindPort() {
+        return bindPort;
+    }
+
     @Override
     public String getBrokerURL() {
         return "tcp://localhost:" + bindPort;
     }
 
-    protected int findFreePort() throws Exception {
+    protected static int findFreePort() throws Exception {
         ServerSocket ss = null;
         try {
             ss = new ServerSocket(0);
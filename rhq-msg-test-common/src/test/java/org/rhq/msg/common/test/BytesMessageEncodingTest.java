@@ -0,0 +1,116 @@
+package org.rhq.msg.common.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.Message;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.ConsumerConnectionContext;
+import org.rhq.msg.common.metrics.InMemoryMessagingMetrics;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests sending messages as bytes messages whose body is streamed JSON.
+ */
+@Test
+public class BytesMessageEncodingTest {
+    public void testBodyIsUtf8Json() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "bytesrawq");
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            ConsumerConnectionContext consumerContext = factory.createConsumerConnectionContext(endpoint);
+            // metrics stamp the send time on the message after its body has been written
+            InMemoryMessagingMetrics metrics = new InMemoryMessagingMetrics();
+            MessageProcessor processor = new MessageProcessor(metrics);
+            processor.setBytesMessageEncoding(true);
+
+            SpecificMessage specific = new SpecificMessage("gr\u00fc\u00df \u20ac <&>", createDetails(10), "\ud83d\ude00");
+            processor.send(factory.createProducerConnectionContext(endpoint), specific);
+
+            Message received = consumerContext.getMessageConsumer().receive(10000L);
+            Assert.assertTrue(received instanceof BytesMessage, "Not a bytes message: " + received);
+            BytesMessage bytesMessage = (BytesMessage) received;
+            byte[] body = new byte[(int) bytesMessage.getBodyLength()];
+            bytesMessage.readBytes(body);
+            Assert.assertEquals(new String(body, "UTF-8"), specific.toJSON());
+            Assert.assertEquals(metrics.getEndpointMetrics(endpoint).getEncodedSize(), (long) body.length);
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testListenersDecodeBytesMessages() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.TOPIC, "bytestopic");
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            MessageProcessor processor = new MessageProcessor();
+            processor.setBytesMessageEncoding(true);
+
+            CountDownLatch latch = new CountDownLatch(4);
+            ArrayList<SpecificMessage> specificMessages = new ArrayList<SpecificMessage>();
+            ArrayList<BasicMessage> basicMessages = new ArrayList<BasicMessage>();
+            ArrayList<String> errors = new ArrayList<String>();
+            processor.listen(factory.createConsumerConnectionContext(endpoint),
+                    new StoreAndLatchBasicMessageListener<SpecificMessage>(latch, specificMessages, errors,
+                            SpecificMessage.class));
+            processor.listen(factory.createConsumerConnectionContext(endpoint),
+                    new StoreAndLatchBasicMessageListener<BasicMessage>(latch, basicMessages, errors, BasicMessage.class));
+
+            // large enough to span many of the chunks the body is read in
+            Map<String, String> details = createDetails(5000);
+            ProducerConnectionContext producerContext = factory.createProducerConnectionContext(endpoint);
+            processor.send(producerContext, new SpecificMessage("\u00e4\u00f6\u00fc", details, "specific"));
+            // the listener of the subclass gets a message whose constructor rejects the missing property
+            processor.send(producerContext, new BasicMessage("basic"));
+
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS), "Missed messages: " + latch.getCount());
+            Thread.sleep(200L);
+            Assert.assertTrue(errors.isEmpty(), errors.toString());
+            Assert.assertEquals(basicMessages.size(), 2);
+            Assert.assertEquals(specificMessages.size(), 2);
+            SpecificMessage received = specificMessages.get(0);
+            Assert.assertEquals(received.getMessage(), "\u00e4\u00f6\u00fc");
+            Assert.assertEquals(received.getDetails(), details);
+            Assert.assertEquals(received.getSpecific(), "specific");
+            Assert.assertNotNull(received.getMessageId());
+            Assert.assertEquals(basicMessages.get(1).getMessage(), "basic");
+            Assert.assertEquals(specificMessages.get(1).getMessage(), "basic");
+            Assert.assertNull(specificMessages.get(1).getSpecific());
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    private static Map<String, String> createDetails(int count) {
+        Map<String, String> details = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            details.put("key" + i, "value \u00df " + i);
+        }
+        return details;
+    }
+}
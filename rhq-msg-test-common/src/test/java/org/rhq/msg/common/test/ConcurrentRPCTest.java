@@ -0,0 +1,109 @@
+package org.rhq.msg.common.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.FutureBasicMessageListener;
+import org.rhq.msg.common.consumer.RPCBasicMessageListener;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Sends many RPC requests from many threads at once and makes sure each gets its own response, whether the caller
+ * waits for it with or without a timeout or is called back.
+ */
+@Test
+public class ConcurrentRPCTest {
+    private static final int THREADS = 8;
+    private static final int REQUESTS_PER_THREAD = 50;
+
+    public void testConcurrentRPC() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory consumerFactory = null;
+        ConnectionContextFactory producerFactory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "concurrentrpcq");
+            consumerFactory = new ConnectionContextFactory(broker.getBrokerURL());
+            new MessageProcessor().listen(consumerFactory.createConsumerConnectionContext(endpoint), new EchoListener());
+
+            producerFactory = new ConnectionContextFactory(broker.getBrokerURL());
+            final MessageProcessor processor = new MessageProcessor();
+            final CountDownLatch done = new CountDownLatch(THREADS);
+            // callbacks run after the waiters are released, so they are awaited on their own
+            final CountDownLatch callbacks = new CountDownLatch(THREADS * REQUESTS_PER_THREAD);
+            final List<String> errors = new ArrayList<String>();
+
+            for (int t = 0; t < THREADS; t++) {
+                // sessions must not be shared between threads, so each thread sends with its own
+                final ProducerConnectionContext producerContext = producerFactory.createProducerConnectionContext(endpoint);
+                final int thread = t;
+                new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            List<Future<BasicMessage>> futures = new ArrayList<Future<BasicMessage>>();
+                            for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                                Future<BasicMessage> future = processor.sendRPC(producerContext, new BasicMessage(thread
+                                        + ":" + i), BasicMessage.class);
+                                ((FutureBasicMessageListener<BasicMessage>) future).addCallback(new Runnable() {
+                                    public void run() {
+                                        callbacks.countDown();
+                                    }
+                                });
+                                futures.add(future);
+                            }
+                            for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                                Future<BasicMessage> future = futures.get(i);
+                                BasicMessage response = (i % 2 == 0) ? future.get(30L, TimeUnit.SECONDS) : future.get();
+                                if (!future.isDone() || !("RESPONSE:" + thread + ":" + i).equals(response.getMessage())) {
+                                    addError(errors, "Wrong response to " + thread + ":" + i + ": " + response);
+                                }
+                            }
+                        } catch (Exception e) {
+                            addError(errors, e.toString());
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+
+            Assert.assertTrue(done.await(60L, TimeUnit.SECONDS), "RPC threads did not finish");
+            synchronized (errors) {
+                Assert.assertTrue(errors.isEmpty(), errors.toString());
+            }
+            Assert.assertTrue(callbacks.await(10L, TimeUnit.SECONDS), "Callbacks did not run: " + callbacks.getCount());
+        } finally {
+            if (producerFactory != null) {
+                producerFactory.close();
+            }
+            if (consumerFactory != null) {
+                consumerFactory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    private static void addError(List<String> errors, String error) {
+        synchronized (errors) {
+            errors.add(error);
+        }
+    }
+
+    private static class EchoListener extends RPCBasicMessageListener<BasicMessage, BasicMessage> {
+        @Override
+        protected BasicMessage onBasicMessage(BasicMessage requestMessage) {
+            return new BasicMessage("RESPONSE:" + requestMessage.getMessage());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.rhq.msg.common.test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.ConflatingBasicMessageListener;
+import org.rhq.msg.common.consumer.ConsumerConnectionContext;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that a slow conflating listener only processes the newest message per key.
+ */
+@Test
+public class ConflatingListenerTest {
+    public void testConflation() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory consumerFactory = null;
+        ConnectionContextFactory producerFactory = null;
+        AvailabilityListener listener = new AvailabilityListener();
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.TOPIC, "availabilityt");
+            consumerFactory = new ConnectionContextFactory(broker.getBrokerURL());
+            ConsumerConnectionContext consumerContext = consumerFactory.createConsumerConnectionContext(endpoint);
+            MessageProcessor processor = new MessageProcessor();
+            processor.listen(consumerContext, listener);
+
+            producerFactory = new ConnectionContextFactory(broker.getBrokerURL());
+            ProducerConnectionContext producerContext = producerFactory.createProducerConnectionContext(endpoint);
+
+            // the first message blocks the listener while the others pile up
+            processor.send(producerContext, availability("blocker", 0));
+            Assert.assertTrue(listener.blocking.await(10, TimeUnit.SECONDS));
+            for (int i = 1; i <= 100; i++) {
+                processor.send(producerContext, availability("resource-" + (i % 3), i));
+            }
+            processor.send(producerContext, new BasicMessage("no key"));
+
+            // wait until all messages have been received
+            for (int i = 0; i < 200 && listener.getConflatedCount() + listener.getPendingCount() < 101; i++) {
+                Thread.sleep(50L);
+            }
+            Assert.assertEquals(listener.getPendingCount(), 4);
+            Assert.assertEquals(listener.getConflatedCount(), 97L);
+
+            listener.release.countDown();
+            Assert.assertTrue(listener.done.await(10, TimeUnit.SECONDS), "Not processed: " + listener.latest);
+
+            Assert.assertEquals(listener.processedCount, 4);
+            Assert.assertEquals(listener.latest.get("resource-0"), "99");
+            Assert.assertEquals(listener.latest.get("resource-1"), "100");
+            Assert.assertEquals(listener.latest.get("resource-2"), "98");
+            Assert.assertEquals(listener.latest.get(null), "no key");
+        } finally {
+            listener.stop();
+            if (producerFactory != null) {
+                producerFactory.close();
+            }
+            if (consumerFactory != null) {
+                consumerFactory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    private static BasicMessage availability(String resource, int sequence) {
+        Map<String, String> details = new HashMap<String, String>();
+        details.put("resource", resource);
+        details.put("sequence", String.valueOf(sequence));
+        return new BasicMessage("UP", details);
+    }
+
+    private static class AvailabilityListener extends ConflatingBasicMessageListener<BasicMessage> {
+        private final CountDownLatch blocking = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch done = new CountDownLatch(4);
+        private final Map<String, String> latest = Collections.synchronizedMap(new HashMap<String, String>());
+        private volatile int processedCount;
+
+        public AvailabilityListener() {
+            super("resource", 10);
+        }
+
+        @Override
+        protected void onLatestMessage(BasicMessage basicMessage) {
+            Map<String, String> details = basicMessage.getDetails();
+            if (details != null && "blocker".equals(details.get("resource"))) {
+                blocking.countDown();
+                try {
+                    release.await(20, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            processedCount++;
+            if (details == null) {
+                latest.put(null, basicMessage.getMessage());
+            } else {
+                latest.put(details.get("resource"), details.get("sequence"));
+            }
+            done.countDown();
+        }
+    }
+}
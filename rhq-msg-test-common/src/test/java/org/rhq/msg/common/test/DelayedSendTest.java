@@ -0,0 +1,111 @@
+package org.rhq.msg.common.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.DeliveryMode;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.BasicMessageListener;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.rhq.msg.common.producer.SendOptions;
+import org.rhq.msg.common.producer.TimingWheel;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that delayed messages are held back by the broker's scheduler or by a client-side timing wheel.
+ */
+@Test
+public class DelayedSendTest {
+    public void testBrokerScheduledDelay() throws Exception {
+        // this broker has a scheduler store
+        TCPEmbeddedBrokerWrapper broker = new TCPEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "delayedq");
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            MessageProcessor processor = new MessageProcessor();
+            TimingListener listener = new TimingListener();
+            processor.listen(factory.createConsumerConnectionContext(endpoint), listener);
+
+            ProducerConnectionContext producerContext = factory.createProducerConnectionContext(endpoint);
+            SendOptions options = new SendOptions();
+            options.setDelay(2000L);
+            long sendTime = System.nanoTime();
+            Assert.assertNotNull(processor.send(producerContext, new BasicMessage("later"), options));
+
+            // the broker's scheduler counts the delay from the start of the second the message arrived in
+            Assert.assertTrue(listener.latch.await(10, TimeUnit.SECONDS), "Delayed message was not received");
+            long waited = TimeUnit.NANOSECONDS.toMillis(listener.receiveTime - sendTime);
+            Assert.assertTrue(waited >= 1000L, "Delayed message arrived after only " + waited + "ms");
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testTimingWheelDelay() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+        TimingWheel wheel = new TimingWheel();
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "delayedwheelq");
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            MessageProcessor processor = new MessageProcessor();
+            processor.setTimingWheel(wheel);
+            TimingListener listener = new TimingListener();
+            processor.listen(factory.createConsumerConnectionContext(endpoint), listener);
+
+            ProducerConnectionContext producerContext = factory.createProducerConnectionContext(endpoint);
+            SendOptions options = new SendOptions();
+            options.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            options.setDelay(500L);
+            BasicMessage message = new BasicMessage("later");
+            long sendTime = System.nanoTime();
+
+            // the wheel holds the message, so it has not been sent yet
+            Assert.assertNull(processor.send(producerContext, message, options));
+            Assert.assertEquals(wheel.getPendingCount(), 1);
+            // the wheel sends through a session of its own, not the caller's
+            producerContext.getMessageProducer().close();
+
+            Assert.assertTrue(listener.latch.await(10, TimeUnit.SECONDS), "Delayed message was not received");
+            long waited = TimeUnit.NANOSECONDS.toMillis(listener.receiveTime - sendTime);
+            Assert.assertTrue(waited >= 500L, "Delayed message arrived after only " + waited + "ms");
+            Assert.assertEquals(wheel.getPendingCount(), 0);
+            // the ID is set once the wheel's send returns, which may be after the message arrived
+            for (int i = 0; i < 100 && message.getMessageId() == null; i++) {
+                Thread.sleep(10L);
+            }
+            Assert.assertNotNull(message.getMessageId());
+        } finally {
+            wheel.stop();
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    private static class TimingListener extends BasicMessageListener<BasicMessage> {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile long receiveTime;
+
+        @Override
+        protected void onBasicMessage(BasicMessage basicMessage) {
+            receiveTime = System.nanoTime();
+            latch.countDown();
+        }
+    }
+}
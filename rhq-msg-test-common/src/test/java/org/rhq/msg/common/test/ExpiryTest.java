@@ -0,0 +1,103 @@
+package org.rhq.msg.common.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.DeliveryMode;
+
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.BasicMessageListener;
+import org.rhq.msg.common.metrics.InMemoryMessagingMetrics;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.rhq.msg.common.producer.SendOptions;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests sending messages non-persistent and with a time-to-live, and that expired messages are not processed.
+ */
+@Test
+public class ExpiryTest {
+    public void testExpiredMessagesAreNotDelivered() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "expiryq");
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            MessageProcessor processor = new MessageProcessor();
+
+            // the context sends non-persistent messages that expire quickly unless a send says otherwise
+            SendOptions telemetry = new SendOptions();
+            telemetry.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            telemetry.setTimeToLive(200L);
+            ProducerConnectionContext producerContext = factory.createProducerConnectionContext(endpoint, telemetry);
+            Assert.assertEquals(producerContext.getMessageProducer().getDeliveryMode(), DeliveryMode.NON_PERSISTENT);
+            Assert.assertEquals(producerContext.getMessageProducer().getTimeToLive(), 200L);
+
+            SendOptions keep = new SendOptions();
+            keep.setTimeToLive(0L);
+            processor.send(producerContext, new BasicMessage("stale"));
+            processor.send(producerContext, new BasicMessage("kept"), keep);
+            Thread.sleep(500L);
+
+            // nobody was listening until the first message expired
+            StoringListener listener = new StoringListener(2);
+            processor.listen(factory.createConsumerConnectionContext(endpoint), listener);
+            processor.send(producerContext, new BasicMessage("fresh"));
+
+            Assert.assertTrue(listener.latch.await(10, TimeUnit.SECONDS), "Missed messages: " + listener.messages);
+            Thread.sleep(200L);
+            Assert.assertEquals(listener.messages, Arrays.asList("kept", "fresh"));
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testExpiredMessageIsNotDecoded() throws Exception {
+        InMemoryMessagingMetrics metrics = new InMemoryMessagingMetrics();
+        StoringListener listener = new StoringListener(0);
+        listener.setMessagingMetrics(metrics);
+
+        ActiveMQTextMessage expired = new ActiveMQTextMessage();
+        expired.setText("this is not JSON");
+        expired.setJMSExpiration(System.currentTimeMillis() - 1000L);
+        listener.onMessage(expired);
+        Assert.assertTrue(metrics.getEndpoints().isEmpty(), "Expired message was decoded: " + metrics.snapshot(false));
+
+        ActiveMQTextMessage current = new ActiveMQTextMessage();
+        current.setText("this is not JSON");
+        current.setJMSExpiration(System.currentTimeMillis() + 60000L);
+        listener.onMessage(current);
+        Assert.assertEquals(metrics.getEndpoints().size(), 1, "Unexpired message was not decoded");
+        Assert.assertTrue(listener.messages.isEmpty());
+    }
+
+    private static class StoringListener extends BasicMessageListener<BasicMessage> {
+        private final CountDownLatch latch;
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        public StoringListener(int expected) {
+            this.latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        protected void onBasicMessage(BasicMessage basicMessage) {
+            messages.add(basicMessage.getMessage());
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.rhq.msg.common.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.BoundedDuplicateDetector;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that listeners with a duplicate detector drop messages that have already been processed.
+ */
+@Test
+public class IdempotentConsumerTest {
+    public void testDuplicatesAreDropped() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "dedupeq");
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            MessageProcessor processor = new MessageProcessor();
+
+            CountDownLatch latch = new CountDownLatch(3);
+            ArrayList<BasicMessage> messages = new ArrayList<BasicMessage>();
+            ArrayList<String> errors = new ArrayList<String>();
+            StoreAndLatchBasicMessageListener<BasicMessage> listener = new StoreAndLatchBasicMessageListener<BasicMessage>(latch,
+                    messages, errors);
+            listener.setDuplicateDetector(new BoundedDuplicateDetector(1000, 60000L));
+            listener.setDeduplicationKeyName("orderId");
+            processor.listen(factory.createConsumerConnectionContext(endpoint), listener);
+
+            ProducerConnectionContext producerContext = factory.createProducerConnectionContext(endpoint);
+            processor.send(producerContext, createMessage("first", "order-1"));
+            processor.send(producerContext, createMessage("first again", "order-1"));
+            processor.send(producerContext, createMessage("second", "order-2"));
+            processor.send(producerContext, new BasicMessage("no key"));
+
+            // only three of the four messages make it to the listener
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS), "Did not receive messages");
+            Thread.sleep(500L);
+            Assert.assertTrue(errors.isEmpty(), errors.toString());
+            Assert.assertEquals(messages.size(), 3);
+            Assert.assertEquals(messages.get(0).getMessage(), "first");
+            Assert.assertEquals(messages.get(1).getMessage(), "second");
+            Assert.assertEquals(messages.get(2).getMessage(), "no key");
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    private BasicMessage createMessage(String text, String orderId) {
+        Map<String, String> details = new HashMap<String, String>();
+        details.put("orderId", orderId);
+        return new BasicMessage(text, details);
+    }
+}
@@ -0,0 +1,225 @@
+package org.rhq.msg.common.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.codec.KeyDictionary;
+import org.rhq.msg.common.codec.MessageCodecs;
+import org.rhq.msg.common.consumer.ConsumerConnectionContext;
+import org.rhq.msg.common.consumer.RPCBasicMessageListener;
+import org.rhq.msg.common.metrics.InMemoryMessagingMetrics;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.gson.annotations.Expose;
+
+/**
+ * Tests sending messages whose detail keys are compressed with a key dictionary.
+ */
+@Test
+public class KeyDictionaryCompressionTest {
+    private final KeyDictionary version1 = KeyDictionary.create("metrics", "resourceId", "metricName");
+    private final KeyDictionary version2 = version1.extend("unit");
+
+    public void testCompressedKeysOnTheWire() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "keydictrawq");
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            ConsumerConnectionContext consumerContext = factory.createConsumerConnectionContext(endpoint);
+            MessageProcessor processor = new MessageProcessor();
+            processor.setKeyDictionary(endpoint, version2);
+            Assert.assertSame(processor.getKeyDictionary(endpoint), version2);
+
+            BasicMessage sent = new BasicMessage("metric", createDetails(true));
+            processor.send(factory.createProducerConnectionContext(endpoint), sent);
+
+            Message received = consumerContext.getMessageConsumer().receive(10000L);
+            Assert.assertEquals(received.getStringProperty(KeyDictionary.NAME_PROPERTY), "metrics");
+            Assert.assertEquals(received.getIntProperty(KeyDictionary.VERSION_PROPERTY), 2);
+            String json = ((TextMessage) received).getText();
+            Assert.assertFalse(json.contains("resourceId"), json);
+            Assert.assertTrue(json.length() < sent.toJSON().length(), json);
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testConsumerWithOlderDictionary() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "keydictq");
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+
+            // the consumer has not been updated yet
+            MessageProcessor consumerProcessor = new MessageProcessor();
+            InMemoryMessagingMetrics metrics = new InMemoryMessagingMetrics();
+            consumerProcessor.setMessagingMetrics(metrics);
+            consumerProcessor.setKeyDictionary(endpoint, version1);
+            CountDownLatch latch = new CountDownLatch(2);
+            ArrayList<BasicMessage> messages = new ArrayList<BasicMessage>();
+            ArrayList<String> errors = new ArrayList<String>();
+            consumerProcessor.listen(factory.createConsumerConnectionContext(endpoint),
+                    new StoreAndLatchBasicMessageListener<BasicMessage>(latch, messages, errors, BasicMessage.class));
+
+            MessageProcessor producerProcessor = new MessageProcessor();
+            producerProcessor.setKeyDictionary(endpoint, version2);
+            producerProcessor.setBytesMessageEncoding(true);
+            ProducerConnectionContext producerContext = factory.createProducerConnectionContext(endpoint);
+            producerProcessor.send(producerContext, new BasicMessage("old keys", createDetails(false)));
+            // cannot be decoded with the older dictionary, so it is rejected rather than decoded with a wrong key
+            producerProcessor.send(producerContext, new BasicMessage("new key", createDetails(true)));
+
+            // once the producer is told to use the version its consumers have, all keys can be decoded
+            producerProcessor.setKeyDictionary(endpoint, version2.getVersion(1));
+            producerProcessor.send(producerContext, new BasicMessage("new key, old version", createDetails(true)));
+
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS), "Missed messages: " + latch.getCount());
+            Thread.sleep(200L);
+            Assert.assertTrue(errors.isEmpty(), errors.toString());
+            Assert.assertEquals(messages.size(), 2);
+            Assert.assertEquals(messages.get(0).getMessage(), "old keys");
+            Assert.assertEquals(messages.get(0).getDetails(), createDetails(false));
+            Assert.assertEquals(messages.get(1).getMessage(), "new key, old version");
+            Assert.assertEquals(messages.get(1).getDetails(), createDetails(true));
+            Assert.assertEquals(metrics.snapshot(false).get(endpoint).getDecodeFailures(), 1L);
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testRPCResponseIsExpanded() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "keydictrpcq");
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+
+            // the responder sends its responses with the processor that compresses the keys of the endpoint
+            MessageProcessor serverProcessor = new MessageProcessor();
+            serverProcessor.setKeyDictionary(endpoint, version2);
+            serverProcessor.listen(factory.createConsumerConnectionContext(endpoint), new EchoListener(serverProcessor));
+
+            MessageProcessor clientProcessor = new MessageProcessor();
+            clientProcessor.setKeyDictionary(endpoint, version2);
+            Future<BasicMessage> future = clientProcessor.sendRPC(factory.createProducerConnectionContext(endpoint),
+                    new BasicMessage("request", createDetails(true)), BasicMessage.class);
+
+            BasicMessage response = future.get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(response.getMessage(), "RESPONSE:request");
+            Assert.assertEquals(response.getDetails(), createDetails(true));
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testConstructorFallbackExpandsKeys() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "keydictfallbackq");
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            Assert.assertNotNull(MessageCodecs.getCodec(HopMessage.class));
+
+            MessageProcessor consumerProcessor = new MessageProcessor();
+            consumerProcessor.setKeyDictionary(endpoint, version2);
+            CountDownLatch latch = new CountDownLatch(2);
+            ArrayList<HopMessage> messages = new ArrayList<HopMessage>();
+            ArrayList<String> errors = new ArrayList<String>();
+            consumerProcessor.listen(factory.createConsumerConnectionContext(endpoint),
+                    new StoreAndLatchBasicMessageListener<HopMessage>(latch, messages, errors, HopMessage.class));
+
+            // the codec rejects what it reads as the constructor changes it, so these are decoded by Gson
+            MessageProcessor producerProcessor = new MessageProcessor();
+            producerProcessor.setKeyDictionary(endpoint, version2);
+            ProducerConnectionContext producerContext = factory.createProducerConnectionContext(endpoint);
+            producerProcessor.send(producerContext, new HopMessage("text", createDetails(true), 0));
+            producerProcessor.setBytesMessageEncoding(true);
+            producerProcessor.send(producerContext, new HopMessage("bytes", createDetails(true), 0));
+
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS), "Missed messages: " + latch.getCount() + " " + errors);
+            Assert.assertTrue(errors.isEmpty(), errors.toString());
+            Assert.assertEquals(messages.size(), 2);
+            for (HopMessage message : messages) {
+                Assert.assertEquals(message.getDetails(), createDetails(true), message.getMessage());
+                Assert.assertEquals(message.getHops(), 1, message.getMessage());
+            }
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    /**
+     * A message whose constructor changes the value it is given, so it is not decoded by its codec.
+     */
+    public static class HopMessage extends BasicMessage {
+        @Expose
+        private final int hops;
+
+        public HopMessage(String message, Map<String, String> details, int hops) {
+            super(message, details);
+            this.hops = hops + 1;
+        }
+
+        public int getHops() {
+            return hops;
+        }
+    }
+
+    private static class EchoListener extends RPCBasicMessageListener<BasicMessage, BasicMessage> {
+        private EchoListener(MessageProcessor messageSender) {
+            super(BasicMessage.class, messageSender);
+        }
+
+        @Override
+        protected BasicMessage onBasicMessage(BasicMessage requestMessage) {
+            return new BasicMessage("RESPONSE:" + requestMessage.getMessage(), requestMessage.getDetails());
+        }
+    }
+
+    private static Map<String, String> createDetails(boolean withUnit) {
+        Map<String, String> details = new HashMap<String, String>();
+        details.put("resourceId", "1234");
+        details.put("metricName", "heap used");
+        details.put("host", "localhost");
+        if (withUnit) {
+            details.put("unit", "bytes");
+        }
+        return details;
+    }
+}
@@ -0,0 +1,55 @@
+package org.rhq.msg.common.test;
+
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Runs the load generator briefly against an embedded broker.
+ */
+@Test
+public class LoadGeneratorTest {
+    public void testRun() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+
+        try {
+            LoadGenerator.Configuration config = new LoadGenerator.Configuration();
+            config.brokerURL = broker.getBrokerURL();
+            config.producers = 2;
+            config.consumers = 2;
+            config.rate = 100;
+            config.durationSeconds = 1;
+            config.rpcPercent = 20;
+
+            LoadGenerator.Results results = new LoadGenerator(config).run();
+
+            Assert.assertTrue(results.sent.get() > 0L, "Nothing was sent");
+            Assert.assertEquals(results.errors.get(), 0L);
+            Assert.assertEquals(results.received.get(), results.sent.get());
+            Assert.assertEquals(results.oneWayLatency.getTotalCount(), results.sent.get());
+            Assert.assertEquals(results.rpcLatency.getTotalCount(), results.rpcSent.get());
+            Assert.assertTrue(results.getThroughput() > 0.0);
+        } finally {
+            broker.stop();
+        }
+    }
+
+    public void testProcessArguments() throws Exception {
+        LoadGenerator.Configuration config = LoadGenerator.processArguments(new String[] { "-u", "vm://test", "-p", "3",
+                "--consumers=4", "-e", "TOPIC:load", "-r", "500", "-R", "25" });
+        Assert.assertEquals(config.brokerURL, "vm://test");
+        Assert.assertEquals(config.producers, 3);
+        Assert.assertEquals(config.consumers, 4);
+        Assert.assertEquals(config.endpoint, new Endpoint(Type.TOPIC, "load"));
+        Assert.assertEquals(config.rate, 500);
+        Assert.assertEquals(config.rpcPercent, 25);
+
+        try {
+            LoadGenerator.processArguments(new String[] { "-p", "3" });
+            assert false : "Should have failed without a broker URL";
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.rhq.msg.common.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.LocalTransport;
+import org.rhq.msg.common.MessageId;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.BasicMessageListener;
+import org.rhq.msg.common.consumer.ConsumerConnectionContext;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that messages to endpoints enabled in a {@link LocalTransport} are handed to the listeners in-process.
+ */
+@Test
+public class LocalTransportTest {
+    public void testQueue() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "localq");
+            LocalTransport transport = new LocalTransport();
+            transport.enable(endpoint);
+            MessageProcessor processor = new MessageProcessor();
+            processor.setLocalTransport(transport);
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            ProducerConnectionContext producerContext = factory.createProducerConnectionContext(endpoint);
+
+            // sent before there is a listener - kept until there is one
+            BasicMessage first = new BasicMessage("first");
+            MessageId firstId = processor.send(producerContext, first);
+            Assert.assertNotNull(firstId);
+            Assert.assertEquals(first.getMessageId(), firstId);
+
+            StoringListener listener1 = new StoringListener();
+            StoringListener listener2 = new StoringListener();
+            processor.listen(factory.createConsumerConnectionContext(endpoint), listener1);
+            processor.listen(factory.createConsumerConnectionContext(endpoint), listener2);
+            Assert.assertEquals(listener1.messages.size(), 1);
+            Assert.assertSame(listener1.messages.get(0), first, "The message object should be handed over as is");
+
+            for (int i = 0; i < 10; i++) {
+                BasicMessage message = new BasicMessage("message-" + i);
+                Assert.assertNotEquals(processor.send(producerContext, message), firstId);
+            }
+
+            // each message goes to exactly one of the listeners
+            Assert.assertEquals(listener1.messages.size() + listener2.messages.size(), 11);
+            Assert.assertEquals(listener2.messages.size(), 5);
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testClosedListenersAreRemoved() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+        ConnectionContextFactory closedFactory = null;
+
+        try {
+            Endpoint queue = new Endpoint(Type.QUEUE, "localclosedq");
+            Endpoint topic = new Endpoint(Type.TOPIC, "localclosedt");
+            LocalTransport transport = new LocalTransport();
+            transport.enable(queue);
+            transport.enable(topic);
+            MessageProcessor processor = new MessageProcessor();
+            processor.setLocalTransport(transport);
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            closedFactory = new ConnectionContextFactory(broker.getBrokerURL());
+
+            StoringListener closedQueueListener = new StoringListener();
+            StoringListener unlistenedQueueListener = new StoringListener();
+            StoringListener queueListener = new StoringListener();
+            processor.listen(closedFactory.createConsumerConnectionContext(queue), closedQueueListener);
+            ConsumerConnectionContext unlistenedContext = factory.createConsumerConnectionContext(queue);
+            processor.listen(unlistenedContext, unlistenedQueueListener);
+            processor.listen(factory.createConsumerConnectionContext(queue), queueListener);
+
+            StoringListener closedTopicListener = new StoringListener();
+            StoringListener topicListener = new StoringListener();
+            processor.listen(closedFactory.createConsumerConnectionContext(topic), closedTopicListener);
+            processor.listen(factory.createConsumerConnectionContext(topic), topicListener);
+
+            processor.unlisten(unlistenedContext, unlistenedQueueListener);
+            closedFactory.close();
+            closedFactory = null;
+
+            ProducerConnectionContext queueProducer = factory.createProducerConnectionContext(queue);
+            ProducerConnectionContext topicProducer = factory.createProducerConnectionContext(topic);
+            for (int i = 0; i < 6; i++) {
+                processor.send(queueProducer, new BasicMessage("queue-" + i));
+                processor.send(topicProducer, new BasicMessage("topic-" + i));
+            }
+
+            // only the listeners that are still listening get the messages
+            Assert.assertEquals(queueListener.messages.size(), 6);
+            Assert.assertTrue(closedQueueListener.messages.isEmpty());
+            Assert.assertTrue(unlistenedQueueListener.messages.isEmpty());
+            Assert.assertEquals(topicListener.messages.size(), 6);
+            Assert.assertTrue(closedTopicListener.messages.isEmpty());
+        } finally {
+            if (closedFactory != null) {
+                closedFactory.close();
+            }
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testTopicAndCopyOnNeed() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.TOPIC, "localt");
+            LocalTransport transport = new LocalTransport();
+            transport.enable(endpoint);
+            MessageProcessor processor = new MessageProcessor();
+            processor.setLocalTransport(transport);
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            ProducerConnectionContext producerContext = factory.createProducerConnectionContext(endpoint);
+
+            // nobody is listening - the message is dropped
+            processor.send(producerContext, new SpecificMessage("dropped", null, "specific"));
+
+            StoringListener basicListener = new StoringListener();
+            SpecificListener specificListener = new SpecificListener();
+            processor.listen(factory.createConsumerConnectionContext(endpoint), basicListener);
+            processor.listen(factory.createConsumerConnectionContext(endpoint), specificListener);
+
+            SpecificMessage specific = new SpecificMessage("hello", null, "specific");
+            processor.send(producerContext, specific);
+            Assert.assertEquals(basicListener.messages.size(), 1);
+            Assert.assertSame(basicListener.messages.get(0), specific);
+            Assert.assertEquals(specificListener.messages.size(), 1);
+            Assert.assertSame(specificListener.messages.get(0), specific);
+
+            // a listener of a more specific type gets a converted copy
+            BasicMessage basic = new BasicMessage("basic");
+            processor.send(producerContext, basic);
+            Assert.assertEquals(basicListener.messages.size(), 2);
+            Assert.assertEquals(specificListener.messages.size(), 2);
+            SpecificMessage copy = specificListener.messages.get(1);
+            Assert.assertNotSame(copy, basic);
+            Assert.assertEquals(copy.getMessage(), "basic");
+            Assert.assertEquals(copy.getMessageId(), basic.getMessageId());
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testBrokerMessagesStillArrive() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "localremoteq");
+            LocalTransport transport = new LocalTransport();
+            transport.enable(endpoint);
+            MessageProcessor localProcessor = new MessageProcessor();
+            localProcessor.setLocalTransport(transport);
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+
+            StoringListener listener = new StoringListener();
+            localProcessor.listen(factory.createConsumerConnectionContext(endpoint), listener);
+
+            // a processor without the transport, like one in another JVM, sends through the broker
+            new MessageProcessor().send(factory.createProducerConnectionContext(endpoint), new BasicMessage("remote"));
+            Assert.assertTrue(listener.latch.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(listener.messages.get(0).getMessage(), "remote");
+
+            try {
+                transport.enable(Endpoint.TEMPORARY_QUEUE);
+                assert false : "Temporary endpoints cannot be enabled";
+            } catch (IllegalArgumentException expected) {
+            }
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    private static class StoringListener extends BasicMessageListener<BasicMessage> {
+        private final List<BasicMessage> messages = Collections.synchronizedList(new ArrayList<BasicMessage>());
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        protected void onBasicMessage(BasicMessage basicMessage) {
+            messages.add(basicMessage);
+            latch.countDown();
+        }
+    }
+
+    private static class SpecificListener extends BasicMessageListener<SpecificMessage> {
+        private final List<SpecificMessage> messages = Collections.synchronizedList(new ArrayList<SpecificMessage>());
+
+        @Override
+        protected void onBasicMessage(SpecificMessage basicMessage) {
+            messages.add(basicMessage);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package org.rhq.msg.common.test;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.codec.MessageCodecs;
+import org.rhq.msg.common.codec.MessageConstructionException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Tests the codecs generated at compile time, which must read and write the same JSON as Gson.
+ */
+@Test
+public class MessageCodecTest {
+    private final Gson gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+
+    public void testCodecsAreRegistered() {
+        Assert.assertNotNull(MessageCodecs.getCodec(BasicMessage.class));
+        Assert.assertNotNull(MessageCodecs.getCodec(SpecificMessage.class));
+        Assert.assertNotNull(MessageCodecs.getCodec(AllTypesMessage.class));
+        // there is no constructor that takes the exposed fields
+        Assert.assertNull(MessageCodecs.getCodec(NoCodecMessage.class));
+    }
+
+    public void testSameJsonAsGson() {
+        Map<String, String> details = new HashMap<String, String>();
+        details.put("one", "1");
+        details.put("html", "<a href='x'>&</a>");
+
+        SpecificMessage specific = new SpecificMessage("hello \"world\"", details, "specific\n");
+        Assert.assertEquals(specific.toJSON(), gson.toJson(specific));
+        SpecificMessage specific2 = BasicMessage.fromJSON(specific.toJSON(), SpecificMessage.class);
+        Assert.assertEquals(specific2.getMessage(), specific.getMessage());
+        Assert.assertEquals(specific2.getDetails(), details);
+        Assert.assertEquals(specific2.getSpecific(), "specific\n");
+
+        BasicMessage nulls = new BasicMessage(null);
+        Assert.assertEquals(nulls.toJSON(), "{}");
+        Assert.assertEquals(nulls.toJSON(), gson.toJson(nulls));
+
+        AllTypesMessage all = new AllTypesMessage("msg", null, true, Boolean.FALSE, 1, Integer.valueOf(2), 3L, null,
+                (short) 4, (byte) 5, 6.5d, 0.1f, Float.valueOf(7.25f), Type.QUEUE, null, "renamed", "hidden");
+        String json = all.toJSON();
+        Assert.assertEquals(json, gson.toJson(all));
+
+        AllTypesMessage all2 = BasicMessage.fromJSON(json, AllTypesMessage.class);
+        Assert.assertEquals(all2.toJSON(), json);
+        Assert.assertEquals(all2.getRenamed(), "renamed");
+        Assert.assertNull(all2.getNotSerialized());
+    }
+
+    public void testConstructorDoesNotChangeDecoding() throws Exception {
+        // the constructors drop empty details and copy the others, Gson keeps what it reads
+        String[] jsons = { "{\"message\":\"m\",\"details\":{}}", "{\"message\":\"m\"}", "{}",
+                "{\"details\":{\"a\":\"b\"}}", "{\"message\":\"m\",\"details\":null,\"specific\":\"s\"}",
+                "{\"details\":{},\"specific\":\"s\"}" };
+        for (String json : jsons) {
+            BasicMessage basic = BasicMessage.fromJSON(json, BasicMessage.class);
+            BasicMessage gsonBasic = gson.fromJson(json, BasicMessage.class);
+            Assert.assertEquals(basic.toJSON(), gson.toJson(gsonBasic), json);
+            Assert.assertEquals(basic.getDetails(), gsonBasic.getDetails(), json);
+
+            SpecificMessage specific = BasicMessage.fromJSON(json, SpecificMessage.class);
+            SpecificMessage gsonSpecific = gson.fromJson(json, SpecificMessage.class);
+            Assert.assertEquals(specific.toJSON(), gson.toJson(gsonSpecific), json);
+            Assert.assertEquals(specific.getDetails(), gsonSpecific.getDetails(), json);
+        }
+
+        // the codec itself does not decode a message its constructor would change
+        try {
+            MessageCodecs.getCodec(BasicMessage.class).read(new JsonReader(new StringReader(jsons[0])));
+            assert false : "The constructor drops the empty details";
+        } catch (MessageConstructionException expected) {
+        }
+        Assert.assertEquals(MessageCodecs.getCodec(BasicMessage.class).read(new JsonReader(new StringReader(jsons[3])))
+                .getDetails().get("a"), "b");
+    }
+
+    public void testSameDecodingAsGson() {
+        String json = "{\"unknown\":{\"a\":[1,2]},\"primitiveInt\":\"12\",\"boxedLong\":null,\"primitiveBoolean\":\"true\","
+                + "\"enumValue\":\"NO_SUCH_TYPE\",\"otherEnumValue\":\"TOPIC\",\"primitiveDouble\":null,\"message\":7,"
+                + "\"json-name\":\"x\",\"notSerialized\":\"y\"}";
+        AllTypesMessage fromCodec = BasicMessage.fromJSON(json, AllTypesMessage.class);
+        AllTypesMessage fromGson = gson.fromJson(json, AllTypesMessage.class);
+        Assert.assertEquals(fromCodec.toJSON(), gson.toJson(fromGson));
+        Assert.assertEquals(fromCodec.getMessage(), "7");
+        Assert.assertNull(fromCodec.getNotSerialized());
+
+        // the constructor rejects the missing property, so the message is decoded by Gson, which does not call it
+        SpecificMessage converted = BasicMessage.fromJSON("{\"message\":\"m\"}", SpecificMessage.class);
+        Assert.assertEquals(converted.getMessage(), "m");
+        Assert.assertNull(converted.getSpecific());
+
+        Assert.assertNull(BasicMessage.fromJSON("null", SpecificMessage.class));
+        try {
+            BasicMessage.fromJSON("{\"message\":", BasicMessage.class);
+            assert false : "Truncated JSON must not be decoded";
+        } catch (RuntimeException expected) {
+        }
+    }
+
+    public enum Type {
+        QUEUE, TOPIC
+    }
+
+    public static class AllTypesMessage extends BasicMessage {
+        @Expose
+        private final boolean primitiveBoolean;
+        @Expose
+        private final Boolean boxedBoolean;
+        @Expose
+        private final int primitiveInt;
+        @Expose
+        private final Integer boxedInt;
+        @Expose
+        private final long primitiveLong;
+        @Expose
+        private final Long boxedLong;
+        @Expose
+        private final short primitiveShort;
+        @Expose
+        private final byte primitiveByte;
+        @Expose
+        private final double primitiveDouble;
+        @Expose
+        private final float primitiveFloat;
+        @Expose
+        private final Float boxedFloat;
+        @Expose
+        private final Type enumValue;
+        @Expose
+        final Type otherEnumValue;
+        @Expose
+        @SerializedName("json-name")
+        private final String renamed;
+        @Expose(serialize = false, deserialize = false)
+        private final String notSerialized;
+
+        public AllTypesMessage(String message, Map<String, String> details, boolean primitiveBoolean,
+                Boolean boxedBoolean, int primitiveInt, Integer boxedInt, long primitiveLong, Long boxedLong,
+                short primitiveShort, byte primitiveByte, double primitiveDouble, float primitiveFloat,
+                Float boxedFloat, Type enumValue, Type otherEnumValue, String renamed, String notSerialized) {
+            super(message, details);
+            this.primitiveBoolean = primitiveBoolean;
+            this.boxedBoolean = boxedBoolean;
+            this.primitiveInt = primitiveInt;
+            this.boxedInt = boxedInt;
+            this.primitiveLong = primitiveLong;
+            this.boxedLong = boxedLong;
+            this.primitiveShort = primitiveShort;
+            this.primitiveByte = primitiveByte;
+            this.primitiveDouble = primitiveDouble;
+            this.primitiveFloat = primitiveFloat;
+            this.boxedFloat = boxedFloat;
+            this.enumValue = enumValue;
+            this.otherEnumValue = otherEnumValue;
+            this.renamed = renamed;
+            this.notSerialized = notSerialized;
+        }
+
+        public boolean isPrimitiveBoolean() {
+            return primitiveBoolean;
+        }
+
+        public Boolean getBoxedBoolean() {
+            return boxedBoolean;
+        }
+
+        public int getPrimitiveInt() {
+            return primitiveInt;
+        }
+
+        public Integer getBoxedInt() {
+            return boxedInt;
+        }
+
+        public long getPrimitiveLong() {
+            return primitiveLong;
+        }
+
+        public Long getBoxedLong() {
+            return boxedLong;
+        }
+
+        public short getPrimitiveShort() {
+            return primitiveShort;
+        }
+
+        public byte getPrimitiveByte() {
+            return primitiveByte;
+        }
+
+        public double getPrimitiveDouble() {
+            return primitiveDouble;
+        }
+
+        public float getPrimitiveFloat() {
+            return primitiveFloat;
+        }
+
+        public Float getBoxedFloat() {
+            return boxedFloat;
+        }
+
+        public Type getEnumValue() {
+            return enumValue;
+        }
+
+        public String getRenamed() {
+            return renamed;
+        }
+
+        public String getNotSerialized() {
+            return notSerialized;
+        }
+    }
+
+    public static class NoCodecMessage extends BasicMessage {
+        public NoCodecMessage(String message) {
+            super(message);
+        }
+    }
+}
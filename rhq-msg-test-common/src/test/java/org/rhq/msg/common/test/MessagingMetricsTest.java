@@ -0,0 +1,138 @@
+package org.rhq.msg.common.test;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.ConsumerConnectionContext;
+import org.rhq.msg.common.consumer.RPCBasicMessageListener;
+import org.rhq.msg.common.metrics.InMemoryMessagingMetrics;
+import org.rhq.msg.common.metrics.InMemoryMessagingMetrics.EndpointMetrics;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that sending and receiving messages is measured by the configured metrics.
+ */
+@Test
+public class MessagingMetricsTest {
+    public void testSendAndReceiveMetrics() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "metricsq");
+            InMemoryMessagingMetrics metrics = new InMemoryMessagingMetrics();
+            MessageProcessor processor = new MessageProcessor(metrics);
+
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            ConsumerConnectionContext consumerContext = factory.createConsumerConnectionContext(endpoint);
+            CountDownLatch latch = new CountDownLatch(2);
+            ArrayList<BasicMessage> messages = new ArrayList<BasicMessage>();
+            ArrayList<String> errors = new ArrayList<String>();
+            processor.listen(consumerContext, new StoreAndLatchBasicMessageListener<BasicMessage>(latch, messages, errors));
+
+            ProducerConnectionContext producerContext = factory.createProducerConnectionContext(endpoint);
+            processor.send(producerContext, new BasicMessage("first"));
+
+            // a message that is not JSON cannot be decoded
+            MessageProducer producer = producerContext.getMessageProducer();
+            Message garbage = producerContext.getSession().createTextMessage("not json");
+            producer.send(garbage);
+
+            // the size of a text message is its UTF-8 length, not its number of chars
+            processor.send(producerContext, new BasicMessage("zweite \u00fcber \u20ac \ud83d\ude00"));
+
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS), "Did not receive messages");
+            Assert.assertTrue(errors.isEmpty(), errors.toString());
+
+            // the processing time is recorded after the listener returns, so it can trail the latch a little
+            EndpointMetrics endpointMetrics = metrics.getEndpointMetrics(endpoint);
+            for (int i = 0; i < 100 && endpointMetrics.getMessagesProcessed() < 2L; i++) {
+                Thread.sleep(50L);
+            }
+            Assert.assertEquals(endpointMetrics.getMessagesSent(), 2L);
+            Assert.assertEquals(endpointMetrics.getSendFailures(), 0L);
+            Assert.assertEquals(endpointMetrics.getEncodedSize(), new BasicMessage("first").toJSON().getBytes("UTF-8").length
+                    + new BasicMessage("zweite \u00fcber \u20ac \ud83d\ude00").toJSON().getBytes("UTF-8").length);
+            Assert.assertEquals(endpointMetrics.getMessagesDecoded(), 2L);
+            Assert.assertEquals(endpointMetrics.getDecodeFailures(), 1L);
+            Assert.assertEquals(endpointMetrics.getMessagesProcessed(), 2L);
+            Assert.assertTrue(endpointMetrics.getSendTime().getMaxValue() > 0L);
+            Assert.assertEquals(metrics.getEndpoints().size(), 1);
+
+            // only the messages sent through the processor carry a send timestamp
+            Assert.assertEquals(endpointMetrics.getResidenceTime().getTotalCount(), 2L);
+            Assert.assertTrue(endpointMetrics.getResidenceTime().getMaxValue() > 0L);
+
+            Map<Endpoint, EndpointMetrics> snapshot = metrics.snapshot(true);
+            Assert.assertEquals(snapshot.get(endpoint).getResidenceTime().getTotalCount(), 2L);
+            Assert.assertEquals(snapshot.get(endpoint).getProcessingTime().getTotalCount(), 2L);
+            Assert.assertEquals(snapshot.get(endpoint).getDecodeFailures(), 1L);
+            Assert.assertEquals(endpointMetrics.getMessagesSent(), 0L);
+            Assert.assertEquals(endpointMetrics.getDecodeFailures(), 0L);
+            Assert.assertEquals(endpointMetrics.getResidenceTime().getTotalCount(), 0L);
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testRPCMetrics() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "metricsrpcq");
+            InMemoryMessagingMetrics serverMetrics = new InMemoryMessagingMetrics();
+            InMemoryMessagingMetrics clientMetrics = new InMemoryMessagingMetrics();
+
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            ConsumerConnectionContext consumerContext = factory.createConsumerConnectionContext(endpoint);
+            new MessageProcessor(serverMetrics).listen(consumerContext, new EchoListener());
+
+            ProducerConnectionContext producerContext = factory.createProducerConnectionContext(endpoint);
+            Future<BasicMessage> future = new MessageProcessor(clientMetrics).sendRPC(producerContext, new BasicMessage("ping"),
+                    BasicMessage.class);
+            Assert.assertEquals(future.get(10, TimeUnit.SECONDS).getMessage(), "pong");
+
+            EndpointMetrics client = clientMetrics.getEndpointMetrics(endpoint);
+            Assert.assertEquals(client.getMessagesSent(), 1L);
+            Assert.assertEquals(client.getRpcCompleted(), 1L);
+            Assert.assertTrue(client.getRpcRoundTripTime().getMaxValue() > 0L);
+            Assert.assertEquals(client.getMessagesDecoded(), 1L);
+
+            EndpointMetrics server = serverMetrics.getEndpointMetrics(endpoint);
+            Assert.assertEquals(server.getMessagesDecoded(), 1L);
+            Assert.assertEquals(server.getMessagesProcessed(), 1L);
+            Assert.assertEquals(server.getRpcCompleted(), 0L);
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    private static class EchoListener extends RPCBasicMessageListener<BasicMessage, BasicMessage> {
+        @Override
+        protected BasicMessage onBasicMessage(BasicMessage basicMessage) {
+            return new BasicMessage("pong");
+        }
+    }
+}
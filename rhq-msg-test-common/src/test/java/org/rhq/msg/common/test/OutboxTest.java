@@ -0,0 +1,171 @@
+package org.rhq.msg.common.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.codec.KeyDictionary;
+import org.rhq.msg.common.consumer.BasicMessageListener;
+import org.rhq.msg.common.consumer.ConsumerConnectionContext;
+import org.rhq.msg.common.producer.Outbox;
+import org.rhq.msg.common.producer.OutboxJournal;
+import org.rhq.msg.common.producer.OutboxJournal.DropPolicy;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that messages sent through an outbox while the broker is down are forwarded once it is up, even across a
+ * restart of the outbox.
+ */
+@Test
+public class OutboxTest {
+    public void testForwardAfterBrokerStarts() throws Exception {
+        TCPEmbeddedBrokerWrapper broker = new TCPEmbeddedBrokerWrapper();
+        broker.start();
+        broker.stop();
+        TCPEmbeddedBrokerWrapper restartedBroker = null;
+        File directory = File.createTempFile("outbox", ".dir");
+        directory.delete();
+        ConnectionContextFactory consumerFactory = null;
+        Endpoint endpoint = new Endpoint(Type.QUEUE, "outboxq");
+
+        try {
+            OutboxJournal journal = new OutboxJournal(directory, 4096, 1024 * 1024, DropPolicy.DROP_NEWEST);
+            Outbox outbox = new Outbox(journal, new ConnectionContextFactory(broker.getBrokerURL()));
+            outbox.setRetryInterval(200L);
+            outbox.setBatchSize(7);
+            outbox.start();
+
+            // the broker cannot be reached, yet sending succeeds
+            for (int i = 0; i < 10; i++) {
+                Assert.assertTrue(outbox.send(endpoint, new BasicMessage("message-" + i)));
+            }
+            Thread.sleep(500L);
+            Assert.assertTrue(journal.hasUnacknowledged());
+
+            // stop the process and start it again, still without a broker
+            outbox.stop();
+            journal.close();
+            journal = new OutboxJournal(directory, 4096, 1024 * 1024, DropPolicy.DROP_NEWEST);
+            outbox = new Outbox(journal, new ConnectionContextFactory(broker.getBrokerURL()));
+            outbox.setRetryInterval(200L);
+            outbox.setBatchSize(7);
+            outbox.start();
+            for (int i = 10; i < 20; i++) {
+                Assert.assertTrue(outbox.send(endpoint, new BasicMessage("message-" + i)));
+            }
+
+            restartedBroker = new TCPEmbeddedBrokerWrapper(broker.getBindPort());
+            restartedBroker.start();
+            consumerFactory = new ConnectionContextFactory(broker.getBrokerURL());
+            ConsumerConnectionContext consumerContext = consumerFactory.createConsumerConnectionContext(endpoint);
+            StoringListener listener = new StoringListener(20);
+            new MessageProcessor().listen(consumerContext, listener);
+
+            Assert.assertTrue(listener.latch.await(20, TimeUnit.SECONDS), "Messages were not forwarded: " + listener.messages);
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals(listener.messages.get(i), "message-" + i);
+            }
+
+            outbox.stop();
+            Assert.assertFalse(journal.hasUnacknowledged());
+            journal.close();
+        } finally {
+            if (consumerFactory != null) {
+                consumerFactory.close();
+            }
+            if (restartedBroker != null) {
+                restartedBroker.stop();
+            }
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    public void testForwardWithBytesEncoding() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        File directory = File.createTempFile("outbox", ".dir");
+        directory.delete();
+        ConnectionContextFactory consumerFactory = null;
+        Endpoint endpoint = new Endpoint(Type.QUEUE, "outboxbytesq");
+        KeyDictionary keyDictionary = KeyDictionary.create("outbox", "key");
+
+        try {
+            // the journaled JSON is sent as it is, in a bytes message, and without claiming compressed keys
+            MessageProcessor processor = new MessageProcessor();
+            processor.setBytesMessageEncoding(true);
+            processor.setKeyDictionary(endpoint, keyDictionary);
+            OutboxJournal journal = new OutboxJournal(directory, 4096, 1024 * 1024, DropPolicy.DROP_NEWEST);
+            Outbox outbox = new Outbox(journal, new ConnectionContextFactory(broker.getBrokerURL()));
+            outbox.setMessageProcessor(processor);
+            outbox.start();
+
+            consumerFactory = new ConnectionContextFactory(broker.getBrokerURL());
+            StoringListener listener = new StoringListener(5);
+            MessageProcessor consumerProcessor = new MessageProcessor();
+            consumerProcessor.setKeyDictionary(endpoint, keyDictionary);
+            consumerProcessor.listen(consumerFactory.createConsumerConnectionContext(endpoint), listener);
+
+            for (int i = 0; i < 5; i++) {
+                Map<String, String> details = new HashMap<String, String>();
+                details.put("key", "value-" + i);
+                Assert.assertTrue(outbox.send(endpoint, new BasicMessage("message-" + i, details)));
+            }
+
+            Assert.assertTrue(listener.latch.await(20, TimeUnit.SECONDS), "Messages were not forwarded: " + listener.messages);
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals(listener.messages.get(i), "message-" + i);
+                Assert.assertEquals(listener.details.get(i).get("key"), "value-" + i);
+            }
+
+            outbox.stop();
+            journal.close();
+        } finally {
+            if (consumerFactory != null) {
+                consumerFactory.close();
+            }
+            broker.stop();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private static class StoringListener extends BasicMessageListener<BasicMessage> {
+        private final CountDownLatch latch;
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        private final List<Map<String, String>> details = Collections
+                .synchronizedList(new ArrayList<Map<String, String>>());
+
+        public StoringListener(int expected) {
+            this.latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        protected void onBasicMessage(BasicMessage basicMessage) {
+            messages.add(basicMessage.getMessage());
+            details.add(basicMessage.getDetails());
+            latch.countDown();
+        }
+    }
+}
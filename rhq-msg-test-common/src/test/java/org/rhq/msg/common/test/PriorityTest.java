@@ -0,0 +1,182 @@
+package org.rhq.msg.common.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.rhq.msg.broker.BrokerTuning;
+import org.rhq.msg.broker.DestinationPolicy;
+import org.rhq.msg.broker.DestinationPolicy.DestinationType;
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.BasicMessageListener;
+import org.rhq.msg.common.consumer.ConsumerOptions;
+import org.rhq.msg.common.consumer.RPCBasicMessageListener;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.rhq.msg.common.producer.SendOptions;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that high priority messages overtake a backlog of low priority messages.
+ */
+@Test
+public class PriorityTest {
+    public void testHighPriorityOvertakesBacklog() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+        SlowListener listener = new SlowListener();
+
+        try {
+            BrokerTuning tuning = new BrokerTuning();
+            DestinationPolicy policy = new DestinationPolicy(DestinationType.QUEUE, "priority.>");
+            policy.setPrioritizedMessages(true);
+            tuning.addDestinationPolicy(policy);
+            broker.getBroker().applyBrokerTuning(tuning);
+
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "priority.commands");
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            MessageProcessor processor = new MessageProcessor();
+            ConsumerOptions options = new ConsumerOptions();
+            options.setPrefetchSize(1);
+            processor.listen(factory.createConsumerConnectionContext(endpoint, options), listener);
+
+            // saturate the queue with bulk messages the slow listener needs seconds to get through
+            ProducerConnectionContext producerContext = factory.createProducerConnectionContext(endpoint);
+            SendOptions low = new SendOptions();
+            low.setPriority(SendOptions.MIN_PRIORITY);
+            for (int i = 0; i < 2000; i++) {
+                processor.send(producerContext, new BasicMessage("bulk"), low);
+            }
+            Assert.assertTrue(listener.started.await(10, TimeUnit.SECONDS));
+
+            SendOptions high = new SendOptions();
+            high.setPriority(SendOptions.MAX_PRIORITY);
+            int processedBeforeSend = listener.processed.get();
+            processor.send(producerContext, new BasicMessage("control"), high);
+
+            Assert.assertTrue(listener.control.await(10, TimeUnit.SECONDS), "Control message was not received");
+            int overtaken = listener.processedBeforeControl - processedBeforeSend;
+            // the broker reorders the page of messages it has ready for dispatch - at most 200 plus the one prefetched
+            Assert.assertTrue(overtaken <= 201, "Control message waited for " + overtaken + " bulk messages");
+            Assert.assertTrue(listener.processedBeforeControl < 1000, "Backlog drained first: " + listener.processedBeforeControl);
+        } finally {
+            listener.release.countDown();
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testHighPriorityRPCOvertakesBacklog() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+        SlowRPCListener listener = new SlowRPCListener();
+
+        try {
+            BrokerTuning tuning = new BrokerTuning();
+            DestinationPolicy policy = new DestinationPolicy(DestinationType.QUEUE, "priority.>");
+            policy.setPrioritizedMessages(true);
+            tuning.addDestinationPolicy(policy);
+            broker.getBroker().applyBrokerTuning(tuning);
+
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "priority.rpc");
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            MessageProcessor processor = new MessageProcessor();
+            ConsumerOptions options = new ConsumerOptions();
+            options.setPrefetchSize(1);
+            processor.listen(factory.createConsumerConnectionContext(endpoint, options), listener);
+
+            ProducerConnectionContext producerContext = factory.createProducerConnectionContext(endpoint);
+            SendOptions low = new SendOptions();
+            low.setPriority(SendOptions.MIN_PRIORITY);
+            for (int i = 0; i < 2000; i++) {
+                processor.send(producerContext, new BasicMessage("bulk"), low);
+            }
+            Assert.assertTrue(listener.started.await(10, TimeUnit.SECONDS));
+
+            SendOptions high = new SendOptions();
+            high.setPriority(SendOptions.MAX_PRIORITY);
+            int processedBeforeSend = listener.processed.get();
+            Future<BasicMessage> response = processor.sendRPC(producerContext, new BasicMessage("control"),
+                    BasicMessage.class, high);
+
+            Assert.assertEquals(response.get(10, TimeUnit.SECONDS).getMessage(), "RESPONSE:control");
+            int overtaken = listener.processedBeforeControl - processedBeforeSend;
+            Assert.assertTrue(overtaken <= 201, "Control request waited for " + overtaken + " bulk messages");
+            Assert.assertTrue(listener.processedBeforeControl < 1000, "Backlog drained first: " + listener.processedBeforeControl);
+        } finally {
+            listener.release.countDown();
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testPriorityRange() {
+        SendOptions options = new SendOptions();
+        options.setPriority(-1);
+        options.setPriority(SendOptions.MAX_PRIORITY);
+        try {
+            options.setPriority(10);
+            assert false : "Priorities above 9 are not allowed";
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static class SlowListener extends BasicMessageListener<BasicMessage> {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch control = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger processed = new AtomicInteger();
+        private volatile int processedBeforeControl = -1;
+
+        @Override
+        protected void onBasicMessage(BasicMessage basicMessage) {
+            if ("control".equals(basicMessage.getMessage())) {
+                processedBeforeControl = processed.get();
+                control.countDown();
+                return;
+            }
+            started.countDown();
+            processed.incrementAndGet();
+            try {
+                release.await(2, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class SlowRPCListener extends RPCBasicMessageListener<BasicMessage, BasicMessage> {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger processed = new AtomicInteger();
+        private volatile int processedBeforeControl = -1;
+
+        @Override
+        protected BasicMessage onBasicMessage(BasicMessage basicMessage) {
+            if ("control".equals(basicMessage.getMessage())) {
+                processedBeforeControl = processed.get();
+                return new BasicMessage("RESPONSE:control");
+            }
+            started.countDown();
+            processed.incrementAndGet();
+            try {
+                release.await(2, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // bulk messages are not requests, so nobody is waiting for a response
+            return null;
+        }
+    }
+}
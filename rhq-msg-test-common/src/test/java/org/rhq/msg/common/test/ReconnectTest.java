@@ -0,0 +1,174 @@
+package org.rhq.msg.common.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jms.JMSException;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.FailoverConfiguration;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.BasicMessageListener;
+import org.rhq.msg.common.consumer.ConsumerConnectionContext;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that clients reconnect and keep sending and receiving messages when the broker is restarted.
+ */
+@Test
+public class ReconnectTest {
+    public void testReconnectAfterBrokerRestart() throws Exception {
+        TCPEmbeddedBrokerWrapper broker = new TCPEmbeddedBrokerWrapper();
+        broker.start();
+        TCPEmbeddedBrokerWrapper restartedBroker = null;
+        ConnectionContextFactory consumerFactory = null;
+        ConnectionContextFactory producerFactory = null;
+
+        try {
+            FailoverConfiguration failover = new FailoverConfiguration();
+            failover.addBrokerURL(broker.getBrokerURL());
+            failover.setInitialReconnectDelay(50L);
+            failover.setMaxReconnectDelay(500L);
+            failover.setSendTimeout(15000L);
+
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "reconnectq");
+            consumerFactory = new ConnectionContextFactory(failover);
+            ConsumerConnectionContext consumerContext = consumerFactory.createConsumerConnectionContext(endpoint);
+            StoringListener listener = new StoringListener(10);
+            new MessageProcessor().listen(consumerContext, listener);
+
+            producerFactory = new ConnectionContextFactory(failover);
+            final ProducerConnectionContext producerContext = producerFactory.createProducerConnectionContext(endpoint);
+            final MessageProcessor processor = new MessageProcessor();
+            for (int i = 0; i < 5; i++) {
+                processor.send(producerContext, new BasicMessage("before-" + i));
+            }
+            Assert.assertTrue(producerFactory.isConnected());
+            waitForCount(listener, 5);
+
+            // kill the broker mid-stream and keep sending while it is gone
+            broker.stop();
+            waitForConnected(producerFactory, false);
+            waitForConnected(consumerFactory, false);
+
+            final AtomicReference<Exception> sendError = new AtomicReference<Exception>();
+            Thread sender = new Thread("reconnect-test-sender") {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 5; i++) {
+                            processor.send(producerContext, new BasicMessage("during-" + i));
+                        }
+                    } catch (Exception e) {
+                        sendError.set(e);
+                    }
+                }
+            };
+            sender.start();
+            Thread.sleep(500L);
+
+            // the sends are held back until the broker is back
+            Assert.assertTrue(sender.isAlive(), "Sends should block while the broker is down");
+            Assert.assertEquals(listener.messages.size(), 5);
+
+            restartedBroker = new TCPEmbeddedBrokerWrapper(broker.getBindPort());
+            restartedBroker.start();
+
+            sender.join(20000L);
+            Assert.assertNull(sendError.get(), "Sends failed during the outage: " + sendError.get());
+            Assert.assertFalse(sender.isAlive(), "Sends did not resume after the broker came back");
+
+            // the listener was registered again without anyone having to do anything
+            Assert.assertTrue(listener.latch.await(20, TimeUnit.SECONDS), "Messages were lost: " + listener.messages);
+            for (int i = 0; i < 5; i++) {
+                Assert.assertTrue(listener.messages.contains("during-" + i), "Missing message: " + listener.messages);
+            }
+            waitForConnected(producerFactory, true);
+            waitForConnected(consumerFactory, true);
+        } finally {
+            if (producerFactory != null) {
+                producerFactory.close();
+            }
+            if (consumerFactory != null) {
+                consumerFactory.close();
+            }
+            if (restartedBroker != null) {
+                restartedBroker.stop();
+            }
+        }
+    }
+
+    public void testSendTimeoutWhileBrokerIsDown() throws Exception {
+        TCPEmbeddedBrokerWrapper broker = new TCPEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory producerFactory = null;
+
+        try {
+            FailoverConfiguration failover = new FailoverConfiguration();
+            failover.addBrokerURL(broker.getBrokerURL());
+            failover.setInitialReconnectDelay(50L);
+            failover.setMaxReconnectDelay(500L);
+            failover.setSendTimeout(1000L);
+
+            producerFactory = new ConnectionContextFactory(failover);
+            ProducerConnectionContext producerContext = producerFactory.createProducerConnectionContext(new Endpoint(
+                    Type.QUEUE, "reconnectq"));
+            MessageProcessor processor = new MessageProcessor();
+            processor.send(producerContext, new BasicMessage("before"));
+
+            broker.stop();
+            waitForConnected(producerFactory, false);
+
+            long start = System.currentTimeMillis();
+            try {
+                processor.send(producerContext, new BasicMessage("during"));
+                assert false : "The send should have timed out while the broker is down";
+            } catch (JMSException expected) {
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            Assert.assertTrue(elapsed < 10000L, "The send blocked for too long: " + elapsed + "ms");
+        } finally {
+            if (producerFactory != null) {
+                producerFactory.close();
+            }
+        }
+    }
+
+    private void waitForCount(StoringListener listener, int count) throws InterruptedException {
+        for (int i = 0; i < 200 && listener.messages.size() < count; i++) {
+            Thread.sleep(100L);
+        }
+        Assert.assertEquals(listener.messages.size(), count, "Did not receive the messages: " + listener.messages);
+    }
+
+    private void waitForConnected(ConnectionContextFactory factory, boolean connected) throws InterruptedException {
+        for (int i = 0; i < 200 && factory.isConnected() != connected; i++) {
+            Thread.sleep(100L);
+        }
+        Assert.assertEquals(factory.isConnected(), connected);
+    }
+
+    private static class StoringListener extends BasicMessageListener<BasicMessage> {
+        private final CountDownLatch latch;
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        public StoringListener(int expected) {
+            this.latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        protected void onBasicMessage(BasicMessage basicMessage) {
+            messages.add(basicMessage.getMessage());
+            latch.countDown();
+        }
+    }
+}
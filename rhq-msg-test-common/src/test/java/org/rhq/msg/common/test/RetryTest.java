@@ -0,0 +1,148 @@
+package org.rhq.msg.common.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.TextMessage;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.BasicMessageListener;
+import org.rhq.msg.common.consumer.ConsumerConnectionContext;
+import org.rhq.msg.common.consumer.RetryPolicy;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that failed messages are redelivered and poison messages end up at the dead letter endpoint.
+ */
+@Test
+public class RetryTest {
+    public void testRetryAndDeadLetter() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory consumerFactory = null;
+        ConnectionContextFactory producerFactory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.QUEUE, "retryq");
+            Endpoint deadLetterEndpoint = new Endpoint(Type.QUEUE, "retrydlq");
+
+            RetryPolicy retryPolicy = new RetryPolicy();
+            retryPolicy.setMaxAttempts(3);
+            retryPolicy.setInitialDelay(200L);
+            retryPolicy.setBackOffMultiplier(2.0);
+            retryPolicy.setDeadLetterEndpoint(deadLetterEndpoint);
+
+            consumerFactory = new ConnectionContextFactory(broker.getBrokerURL());
+            consumerFactory.setRetryPolicy(retryPolicy);
+            ConsumerConnectionContext consumerContext = consumerFactory.createConsumerConnectionContext(endpoint);
+            FlakyListener listener = new FlakyListener(2);
+            new MessageProcessor().listen(consumerContext, listener);
+
+            producerFactory = new ConnectionContextFactory(broker.getBrokerURL());
+            ProducerConnectionContext producerContext = producerFactory.createProducerConnectionContext(endpoint);
+            MessageProcessor processor = new MessageProcessor();
+            processor.send(producerContext, new BasicMessage("poison"));
+            processor.send(producerContext, new BasicMessage("flaky"));
+            processor.send(producerContext, new BasicMessage("healthy"));
+            TextMessage garbage = producerContext.getSession().createTextMessage("not json");
+            producerContext.getMessageProducer().send(garbage);
+
+            Assert.assertTrue(listener.latch.await(20, TimeUnit.SECONDS), "Messages were not processed: " + listener.processed);
+            // the healthy message was not held up by the failing ones that were sent before it
+            Assert.assertEquals(listener.processed.get(0), "healthy");
+            Assert.assertEquals(listener.processed.get(1), "flaky");
+            Assert.assertEquals(listener.flakyAttempts.get(), 3);
+
+            ConsumerConnectionContext deadLetterContext = producerFactory.createConsumerConnectionContext(deadLetterEndpoint);
+            MessageConsumer deadLetterConsumer = deadLetterContext.getMessageConsumer();
+            List<Message> deadLetters = new ArrayList<Message>();
+            for (int i = 0; i < 2; i++) {
+                Message deadLetter = deadLetterConsumer.receive(20000L);
+                Assert.assertNotNull(deadLetter, "Dead letter " + i + " did not arrive");
+                deadLetters.add(deadLetter);
+            }
+
+            Message undecodable = deadLetters.get(0);
+            Assert.assertEquals(((TextMessage) undecodable).getText(), "not json");
+            Assert.assertEquals(undecodable.getIntProperty(RetryPolicy.ATTEMPTS_PROPERTY), 1);
+            Assert.assertEquals(undecodable.getStringProperty(RetryPolicy.ORIGINAL_MESSAGE_ID_PROPERTY), garbage.getJMSMessageID());
+
+            Message poison = deadLetters.get(1);
+            Assert.assertEquals(BasicMessage.fromJSON(((TextMessage) poison).getText(), BasicMessage.class).getMessage(), "poison");
+            Assert.assertEquals(poison.getIntProperty(RetryPolicy.ATTEMPTS_PROPERTY), 3);
+            Assert.assertTrue(poison.getStringProperty(RetryPolicy.FAILURE_CAUSE_PROPERTY).contains("poisoned"));
+            Assert.assertTrue(poison.getStringProperty(RetryPolicy.ORIGINAL_DESTINATION_PROPERTY).contains("retryq"));
+            Assert.assertTrue(poison.getLongProperty(RetryPolicy.FAILURE_TIME_PROPERTY) > 0L);
+            Assert.assertEquals(listener.poisonAttempts.get(), 3);
+        } finally {
+            if (producerFactory != null) {
+                producerFactory.close();
+            }
+            if (consumerFactory != null) {
+                consumerFactory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testRetryPolicyAfterConnection() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            factory.createConsumerConnectionContext(new Endpoint(Type.QUEUE, "retryq"));
+            try {
+                factory.setRetryPolicy(new RetryPolicy());
+                assert false : "The retry policy cannot be set once the connection exists";
+            } catch (IllegalStateException expected) {
+            }
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    /**
+     * Always fails "poison" messages and fails "flaky" messages a given number of times.
+     */
+    private static class FlakyListener extends BasicMessageListener<BasicMessage> {
+        private final int flakyFailures;
+        private final CountDownLatch latch = new CountDownLatch(2);
+        private final List<String> processed = Collections.synchronizedList(new ArrayList<String>());
+        private final AtomicInteger flakyAttempts = new AtomicInteger();
+        private final AtomicInteger poisonAttempts = new AtomicInteger();
+
+        public FlakyListener(int flakyFailures) {
+            this.flakyFailures = flakyFailures;
+        }
+
+        @Override
+        protected void onBasicMessage(BasicMessage basicMessage) {
+            if ("poison".equals(basicMessage.getMessage())) {
+                poisonAttempts.incrementAndGet();
+                throw new IllegalStateException("poisoned");
+            }
+            if ("flaky".equals(basicMessage.getMessage()) && flakyAttempts.incrementAndGet() <= flakyFailures) {
+                throw new IllegalStateException("flaky");
+            }
+            processed.add(basicMessage.getMessage());
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.rhq.msg.common.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.BasicMessageListener;
+import org.rhq.msg.common.consumer.ConsumerOptions;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests durable topic subscriptions and consumer groups sharing a virtual topic.
+ */
+@Test
+public class SubscriptionTest {
+    public void testDurableSubscription() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory consumerFactory = null;
+        ConnectionContextFactory producerFactory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.TOPIC, "durablet");
+            ConsumerOptions options = new ConsumerOptions();
+            options.setSubscriptionName("durable-test");
+
+            // subscribe, then disconnect
+            consumerFactory = new ConnectionContextFactory(broker.getBrokerURL());
+            consumerFactory.setClientID("durable-client");
+            StoringListener listener = new StoringListener(1);
+            MessageProcessor processor = new MessageProcessor();
+            processor.listen(consumerFactory.createConsumerConnectionContext(endpoint, options), listener);
+            consumerFactory.close();
+
+            // published while the subscriber is away
+            producerFactory = new ConnectionContextFactory(broker.getBrokerURL());
+            ProducerConnectionContext producerContext = producerFactory.createProducerConnectionContext(endpoint);
+            for (int i = 0; i < 3; i++) {
+                processor.send(producerContext, new BasicMessage("message-" + i));
+            }
+
+            consumerFactory = new ConnectionContextFactory(broker.getBrokerURL());
+            consumerFactory.setClientID("durable-client");
+            listener = new StoringListener(3);
+            processor.listen(consumerFactory.createConsumerConnectionContext(endpoint, options), listener);
+            Assert.assertTrue(listener.latch.await(10, TimeUnit.SECONDS), "Missed messages: " + listener.messages);
+            Assert.assertEquals(listener.messages.get(0), "message-0");
+            consumerFactory.close();
+
+            consumerFactory = new ConnectionContextFactory(broker.getBrokerURL());
+            consumerFactory.setClientID("durable-client");
+            consumerFactory.unsubscribe("durable-test");
+        } finally {
+            if (producerFactory != null) {
+                producerFactory.close();
+            }
+            if (consumerFactory != null) {
+                consumerFactory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testDurableSubscriptionRequiresClientID() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            ConsumerOptions options = new ConsumerOptions();
+            options.setSubscriptionName("no-client-id");
+            try {
+                factory.createConsumerConnectionContext(new Endpoint(Type.TOPIC, "durablet"), options);
+                assert false : "Durable subscriptions require a client ID";
+            } catch (IllegalStateException expected) {
+            }
+            try {
+                factory.createConsumerConnectionContext(new Endpoint(Type.QUEUE, "durableq"), options);
+                assert false : "Queues cannot have durable subscriptions";
+            } catch (IllegalArgumentException expected) {
+            }
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    public void testConsumerGroups() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint endpoint = new Endpoint(Type.TOPIC, ConsumerOptions.VIRTUAL_TOPIC_PREFIX + "status");
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+            MessageProcessor processor = new MessageProcessor();
+
+            ConsumerOptions groupA = new ConsumerOptions();
+            groupA.setConsumerGroup("A");
+            groupA.setPrefetchSize(1);
+            ConsumerOptions groupB = new ConsumerOptions();
+            groupB.setConsumerGroup("B");
+
+            StoringListener a1 = new StoringListener(0);
+            StoringListener a2 = new StoringListener(0);
+            StoringListener b = new StoringListener(20);
+            StoringListener plain = new StoringListener(20);
+            processor.listen(factory.createConsumerConnectionContext(endpoint, groupA), a1);
+            processor.listen(factory.createConsumerConnectionContext(endpoint, groupA), a2);
+            processor.listen(factory.createConsumerConnectionContext(endpoint, groupB), b);
+            processor.listen(factory.createConsumerConnectionContext(endpoint), plain);
+
+            ProducerConnectionContext producerContext = factory.createProducerConnectionContext(endpoint);
+            for (int i = 0; i < 20; i++) {
+                processor.send(producerContext, new BasicMessage("message-" + i));
+            }
+
+            // every group and the plain subscriber get every message; the consumers of a group share them
+            Assert.assertTrue(b.latch.await(10, TimeUnit.SECONDS), "Group B missed messages: " + b.messages);
+            Assert.assertTrue(plain.latch.await(10, TimeUnit.SECONDS), "Subscriber missed messages: " + plain.messages);
+            for (int i = 0; i < 100 && a1.messages.size() + a2.messages.size() < 20; i++) {
+                Thread.sleep(100L);
+            }
+            Assert.assertEquals(a1.messages.size() + a2.messages.size(), 20);
+            Assert.assertTrue(a1.messages.size() > 0 && a2.messages.size() > 0, "Group A did not share the load: "
+                    + a1.messages + " / " + a2.messages);
+
+            try {
+                factory.createConsumerConnectionContext(new Endpoint(Type.TOPIC, "status"), groupA);
+                assert false : "Consumer groups need a virtual topic";
+            } catch (IllegalArgumentException expected) {
+            }
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    private static class StoringListener extends BasicMessageListener<BasicMessage> {
+        private final CountDownLatch latch;
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        public StoringListener(int expected) {
+            this.latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        protected void onBasicMessage(BasicMessage basicMessage) {
+            messages.add(basicMessage.getMessage());
+            latch.countDown();
+        }
+    }
+}
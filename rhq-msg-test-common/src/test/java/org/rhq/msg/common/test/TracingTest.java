@@ -0,0 +1,135 @@
+package org.rhq.msg.common.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.rhq.msg.common.BasicMessage;
+import org.rhq.msg.common.ConnectionContextFactory;
+import org.rhq.msg.common.Endpoint;
+import org.rhq.msg.common.Endpoint.Type;
+import org.rhq.msg.common.MessageProcessor;
+import org.rhq.msg.common.consumer.RPCBasicMessageListener;
+import org.rhq.msg.common.producer.ProducerConnectionContext;
+import org.rhq.msg.common.tracing.Span;
+import org.rhq.msg.common.tracing.SpanSink;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that trace contexts are propagated across an RPC call and the messages sent while processing it.
+ */
+@Test
+public class TracingTest {
+    public void testTracePropagation() throws Exception {
+        VMEmbeddedBrokerWrapper broker = new VMEmbeddedBrokerWrapper();
+        broker.start();
+        ConnectionContextFactory factory = null;
+
+        try {
+            Endpoint requestEndpoint = new Endpoint(Type.QUEUE, "tracerequestq");
+            Endpoint downstreamEndpoint = new Endpoint(Type.QUEUE, "tracedownstreamq");
+            RecordingSpanSink sink = new RecordingSpanSink();
+            factory = new ConnectionContextFactory(broker.getBrokerURL());
+
+            // the downstream service
+            CountDownLatch downstreamLatch = new CountDownLatch(1);
+            ArrayList<BasicMessage> downstreamMessages = new ArrayList<BasicMessage>();
+            ArrayList<String> errors = new ArrayList<String>();
+            MessageProcessor downstreamProcessor = new MessageProcessor();
+            downstreamProcessor.setSpanSink(sink);
+            downstreamProcessor.listen(factory.createConsumerConnectionContext(downstreamEndpoint),
+                    new StoreAndLatchBasicMessageListener<BasicMessage>(downstreamLatch, downstreamMessages, errors));
+
+            // the service that answers requests - it notifies the downstream service with a processor that has no
+            // sink of its own, so its sends are only traced because they happen while processing a traced request
+            ProducerConnectionContext downstreamProducer = factory.createProducerConnectionContext(downstreamEndpoint);
+            MessageProcessor serverProcessor = new MessageProcessor();
+            serverProcessor.setSpanSink(sink);
+            serverProcessor.listen(factory.createConsumerConnectionContext(requestEndpoint), new NotifyingListener(
+                    downstreamProducer));
+
+            // the client
+            MessageProcessor clientProcessor = new MessageProcessor();
+            clientProcessor.setSpanSink(sink);
+            ProducerConnectionContext requestProducer = factory.createProducerConnectionContext(requestEndpoint);
+            Future<BasicMessage> future = clientProcessor.sendRPC(requestProducer, new BasicMessage("request"), BasicMessage.class);
+            Assert.assertEquals(future.get(10, TimeUnit.SECONDS).getMessage(), "response");
+            Assert.assertTrue(downstreamLatch.await(10, TimeUnit.SECONDS), "Downstream service did not get the message");
+
+            // client send, server process, downstream send, response send, downstream process, client process
+            List<Span> spans = sink.waitForSpans(6);
+            Assert.assertEquals(spans.size(), 6, spans.toString());
+
+            String traceId = spans.get(0).getContext().getTraceId();
+            Map<String, Span> spansById = new HashMap<String, Span>();
+            Span clientSend = null;
+            for (Span span : spans) {
+                Assert.assertEquals(span.getContext().getTraceId(), traceId, "All spans must belong to the same trace");
+                spansById.put(span.getContext().getSpanId(), span);
+                if (span.getContext().getParentSpanId() == null) {
+                    Assert.assertNull(clientSend, "Only one span can start the trace");
+                    clientSend = span;
+                }
+            }
+
+            Assert.assertNotNull(clientSend, "No span started the trace");
+            Assert.assertEquals(clientSend.getOperation(), Span.OPERATION_SEND);
+            Assert.assertEquals(clientSend.getEndpoint(), requestEndpoint);
+
+            for (Span span : spans) {
+                if (span != clientSend) {
+                    Span parent = spansById.get(span.getContext().getParentSpanId());
+                    Assert.assertNotNull(parent, "Parent of " + span + " was not reported");
+                    // sends are children of processing and vice versa
+                    Assert.assertNotEquals(span.getOperation(), parent.getOperation());
+                }
+            }
+        } finally {
+            if (factory != null) {
+                factory.close();
+            }
+            broker.stop();
+        }
+    }
+
+    private static class NotifyingListener extends RPCBasicMessageListener<BasicMessage, BasicMessage> {
+        private final ProducerConnectionContext downstreamProducer;
+
+        public NotifyingListener(ProducerConnectionContext downstreamProducer) {
+            this.downstreamProducer = downstreamProducer;
+        }
+
+        @Override
+        protected BasicMessage onBasicMessage(BasicMessage basicMessage) {
+            try {
+                new MessageProcessor().send(downstreamProducer, new BasicMessage("notification"));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return new BasicMessage("response");
+        }
+    }
+
+    private static class RecordingSpanSink implements SpanSink {
+        private final List<Span> spans = new ArrayList<Span>();
+
+        @Override
+        public synchronized void spanFinished(Span span) {
+            spans.add(span);
+            notifyAll();
+        }
+
+        public synchronized List<Span> waitForSpans(int count) throws InterruptedException {
+            long stopTime = System.currentTimeMillis() + 10000L;
+            while (spans.size() < count && System.currentTimeMillis() < stopTime) {
+                wait(100L);
+            }
+            return new ArrayList<Span>(spans);
+        }
+    }
+}